@@ -0,0 +1,226 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2017.                            (c) 2017.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.caom2;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Difference between two lists of observation states. The reference list is 
+ * normally the authoritative (source) side and the candidate list the copy
+ * being checked. Both lists are sorted by URI and compared with a single
+ * merge-join pass, so the cost is dominated by the sort.
+ * 
+ * @author pdowler
+ */
+public class ObservationStateDiff 
+{
+    /**
+     * Ordering used for the merge-join and for computing digests.
+     */
+    public static final Comparator<ObservationState> URI_ORDER = new Comparator<ObservationState>()
+    {
+        @Override
+        public int compare(ObservationState o1, ObservationState o2)
+        {
+            int ret = o1.getURI().getCollection().compareTo(o2.getURI().getCollection());
+            if (ret == 0)
+                ret = o1.getURI().getObservationID().compareTo(o2.getURI().getObservationID());
+            return ret;
+        }
+    };
+    
+    /**
+     * States in the reference list but not in the candidate list.
+     */
+    public final List<ObservationState> missing = new ArrayList<ObservationState>();
+    
+    /**
+     * States in the candidate list but not in the reference list.
+     */
+    public final List<ObservationState> extra = new ArrayList<ObservationState>();
+    
+    /**
+     * States (from the reference list) where the accMetaChecksum does not match.
+     */
+    public final List<ObservationState> different = new ArrayList<ObservationState>();
+    
+    /**
+     * Create an empty diff. This is used to hold differences computed elsewhere
+     * (e.g. returned by a remote service).
+     */
+    public ObservationStateDiff()
+    {
+    }
+    
+    /**
+     * Compute the difference between two state lists. The input lists are not 
+     * modified.
+     * 
+     * @param reference
+     * @param candidate 
+     */
+    public ObservationStateDiff(List<ObservationState> reference, List<ObservationState> candidate)
+    {
+        List<ObservationState> ref = sort(reference);
+        List<ObservationState> cand = sort(candidate);
+        
+        int i = 0;
+        int j = 0;
+        while (i < ref.size() && j < cand.size())
+        {
+            ObservationState r = ref.get(i);
+            ObservationState c = cand.get(j);
+            int cmp = URI_ORDER.compare(r, c);
+            if (cmp < 0)
+            {
+                missing.add(r);
+                i++;
+            }
+            else if (cmp > 0)
+            {
+                extra.add(c);
+                j++;
+            }
+            else
+            {
+                if (r.accMetaChecksum == null || !r.accMetaChecksum.equals(c.accMetaChecksum))
+                    different.add(r);
+                i++;
+                j++;
+            }
+        }
+        while (i < ref.size())
+            missing.add(ref.get(i++));
+        while (j < cand.size())
+            extra.add(cand.get(j++));
+    }
+    
+    public boolean isEmpty()
+    {
+        return missing.isEmpty() && extra.isEmpty() && different.isEmpty();
+    }
+    
+    /**
+     * Compute a digest of a list of states. The digest is the MD5 of one record per
+     * state in observationID order: the observationID, a tab, the accMetaChecksum 
+     * (empty if null), and a newline. Two lists for the same collection and time 
+     * range have the same digest iff they contain the same observations with the 
+     * same accMetaChecksum. The input list is not modified.
+     * 
+     * @param states
+     * @return digest URI of the form md5:hex
+     */
+    public static URI getDigest(List<ObservationState> states)
+    {
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            for (ObservationState s : sort(states))
+            {
+                md.update(s.getURI().getObservationID().getBytes("UTF-8"));
+                md.update((byte) '\t');
+                if (s.accMetaChecksum != null)
+                    md.update(s.accMetaChecksum.toASCIIString().getBytes("UTF-8"));
+                md.update((byte) '\n');
+            }
+            return toURI(md);
+        }
+        catch(NoSuchAlgorithmException | UnsupportedEncodingException ex)
+        {
+            throw new RuntimeException("BUG: failed to compute MD5 digest", ex);
+        }
+    }
+    
+    private static URI toURI(MessageDigest md)
+    {
+        byte[] b = md.digest();
+        StringBuilder sb = new StringBuilder("md5:");
+        for (byte v : b)
+        {
+            sb.append(Character.forDigit((v >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(v & 0xf, 16));
+        }
+        return URI.create(sb.toString());
+    }
+    
+    private static List<ObservationState> sort(List<ObservationState> states)
+    {
+        List<ObservationState> ret = new ArrayList<ObservationState>(states);
+        Collections.sort(ret, URI_ORDER);
+        return ret;
+    }
+}
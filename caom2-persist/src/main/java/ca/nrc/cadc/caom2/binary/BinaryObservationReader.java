@@ -0,0 +1,638 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2017.                            (c) 2017.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.caom2.binary;
+
+import ca.nrc.cadc.caom2.Algorithm;
+import ca.nrc.cadc.caom2.Artifact;
+import ca.nrc.cadc.caom2.CalibrationLevel;
+import ca.nrc.cadc.caom2.CaomEntity;
+import ca.nrc.cadc.caom2.Chunk;
+import ca.nrc.cadc.caom2.CompositeObservation;
+import ca.nrc.cadc.caom2.DataProductType;
+import ca.nrc.cadc.caom2.DataQuality;
+import ca.nrc.cadc.caom2.EnergyTransition;
+import ca.nrc.cadc.caom2.Environment;
+import ca.nrc.cadc.caom2.Instrument;
+import ca.nrc.cadc.caom2.Metrics;
+import ca.nrc.cadc.caom2.Observation;
+import ca.nrc.cadc.caom2.ObservationIntentType;
+import ca.nrc.cadc.caom2.ObservationURI;
+import ca.nrc.cadc.caom2.Part;
+import ca.nrc.cadc.caom2.Plane;
+import ca.nrc.cadc.caom2.PlaneURI;
+import ca.nrc.cadc.caom2.ProductType;
+import ca.nrc.cadc.caom2.Proposal;
+import ca.nrc.cadc.caom2.Provenance;
+import ca.nrc.cadc.caom2.Quality;
+import ca.nrc.cadc.caom2.ReleaseType;
+import ca.nrc.cadc.caom2.Requirements;
+import ca.nrc.cadc.caom2.SimpleObservation;
+import ca.nrc.cadc.caom2.Status;
+import ca.nrc.cadc.caom2.Target;
+import ca.nrc.cadc.caom2.TargetPosition;
+import ca.nrc.cadc.caom2.TargetType;
+import ca.nrc.cadc.caom2.Telescope;
+import ca.nrc.cadc.caom2.types.Point;
+import ca.nrc.cadc.caom2.util.CaomUtil;
+import ca.nrc.cadc.caom2.wcs.Axis;
+import ca.nrc.cadc.caom2.wcs.Coord2D;
+import ca.nrc.cadc.caom2.wcs.CoordAxis1D;
+import ca.nrc.cadc.caom2.wcs.CoordAxis2D;
+import ca.nrc.cadc.caom2.wcs.CoordBounds1D;
+import ca.nrc.cadc.caom2.wcs.CoordBounds2D;
+import ca.nrc.cadc.caom2.wcs.CoordCircle2D;
+import ca.nrc.cadc.caom2.wcs.CoordError;
+import ca.nrc.cadc.caom2.wcs.CoordFunction1D;
+import ca.nrc.cadc.caom2.wcs.CoordFunction2D;
+import ca.nrc.cadc.caom2.wcs.CoordPolygon2D;
+import ca.nrc.cadc.caom2.wcs.CoordRange1D;
+import ca.nrc.cadc.caom2.wcs.CoordRange2D;
+import ca.nrc.cadc.caom2.wcs.Dimension2D;
+import ca.nrc.cadc.caom2.wcs.ObservableAxis;
+import ca.nrc.cadc.caom2.wcs.PolarizationWCS;
+import ca.nrc.cadc.caom2.wcs.RefCoord;
+import ca.nrc.cadc.caom2.wcs.Slice;
+import ca.nrc.cadc.caom2.wcs.SpatialWCS;
+import ca.nrc.cadc.caom2.wcs.SpectralWCS;
+import ca.nrc.cadc.caom2.wcs.TemporalWCS;
+import ca.nrc.cadc.caom2.wcs.ValueCoord2D;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import org.apache.log4j.Logger;
+
+/**
+ * Read an observation written by BinaryObservationWriter.
+ *
+ * @author pdowler
+ */
+public class BinaryObservationReader
+{
+    private static final Logger log = Logger.getLogger(BinaryObservationReader.class);
+
+    private DataInputStream in;
+    private List<String> dictionary;
+
+    public BinaryObservationReader() { }
+
+    /**
+     * Read an observation. The input stream is not closed.
+     * 
+     * @param istream
+     * @return observation with the state of the written observation
+     * @throws IOException if the input is not a supported binary observation
+     */
+    public Observation read(InputStream istream)
+        throws IOException
+    {
+        long t = System.currentTimeMillis();
+        this.in = new DataInputStream(new BufferedInputStream(istream));
+        this.dictionary = new ArrayList<String>();
+        try
+        {
+            int magic = in.readInt();
+            if (magic != BinaryObservationWriter.MAGIC)
+                throw new IOException("invalid binary observation: magic number " + Integer.toHexString(magic));
+            int version = in.readUnsignedByte();
+            if (version != BinaryObservationWriter.VERSION)
+                throw new IOException("unsupported binary observation version: " + version);
+            Observation ret = readObservation();
+            log.debug("read: " + ret.getURI() + " " + (System.currentTimeMillis() - t) + "ms");
+            return ret;
+        }
+        catch (IllegalArgumentException ex)
+        {
+            throw new IOException("invalid binary observation: " + ex.getMessage(), ex);
+        }
+        finally
+        {
+            this.in = null;
+            this.dictionary = null;
+        }
+    }
+
+    private Observation readObservation()
+        throws IOException
+    {
+        Observation obs;
+        int type = in.readUnsignedByte();
+        if (type == BinaryObservationWriter.COMPOSITE)
+        {
+            String collection = readString();
+            String observationID = readString();
+            CompositeObservation co = new CompositeObservation(collection, observationID, new Algorithm(readString()));
+            int n = readCount();
+            for (int i = 0; i < n; i++)
+                co.getMembers().add(new ObservationURI(readURI()));
+            obs = co;
+        }
+        else if (type == BinaryObservationWriter.SIMPLE)
+        {
+            String collection = readString();
+            String observationID = readString();
+            obs = new SimpleObservation(collection, observationID);
+        }
+        else
+            throw new IOException("invalid binary observation: observation type " + type);
+
+        obs.type = readString();
+        String s = readString();
+        if (s != null)
+            obs.intent = ObservationIntentType.toValue(s);
+        obs.sequenceNumber = readInteger();
+        obs.metaRelease = readDate();
+
+        if (in.readBoolean())
+        {
+            obs.proposal = new Proposal(readString());
+            obs.proposal.pi = readString();
+            obs.proposal.project = readString();
+            obs.proposal.title = readString();
+            readStrings(obs.proposal.getKeywords());
+        }
+        if (in.readBoolean())
+        {
+            obs.target = new Target(readString());
+            s = readString();
+            if (s != null)
+                obs.target.type = TargetType.toValue(s);
+            obs.target.standard = readBoolean();
+            obs.target.redshift = readDouble();
+            obs.target.moving = readBoolean();
+            readStrings(obs.target.getKeywords());
+        }
+        if (in.readBoolean())
+        {
+            String cs = readString();
+            double cval1 = in.readDouble();
+            double cval2 = in.readDouble();
+            obs.targetPosition = new TargetPosition(cs, new Point(cval1, cval2));
+            obs.targetPosition.equinox = readDouble();
+        }
+        if (in.readBoolean())
+            obs.requirements = new Requirements(Status.toValue(readString()));
+        if (in.readBoolean())
+        {
+            obs.telescope = new Telescope(readString());
+            obs.telescope.geoLocationX = readDouble();
+            obs.telescope.geoLocationY = readDouble();
+            obs.telescope.geoLocationZ = readDouble();
+            readStrings(obs.telescope.getKeywords());
+        }
+        if (in.readBoolean())
+        {
+            obs.instrument = new Instrument(readString());
+            readStrings(obs.instrument.getKeywords());
+        }
+        if (in.readBoolean())
+        {
+            obs.environment = new Environment();
+            obs.environment.seeing = readDouble();
+            obs.environment.humidity = readDouble();
+            obs.environment.elevation = readDouble();
+            obs.environment.tau = readDouble();
+            obs.environment.wavelengthTau = readDouble();
+            obs.environment.ambientTemp = readDouble();
+            obs.environment.photometric = readBoolean();
+        }
+        readState(obs);
+
+        int marker = in.readUnsignedByte();
+        while (marker == BinaryObservationWriter.PLANE)
+        {
+            obs.getPlanes().add(readPlane());
+            marker = in.readUnsignedByte();
+        }
+        if (marker != BinaryObservationWriter.END)
+            throw new IOException("invalid binary observation: plane marker " + marker);
+        return obs;
+    }
+
+    private Plane readPlane()
+        throws IOException
+    {
+        Plane p = new Plane(readString());
+        p.creatorID = readURI();
+        p.metaRelease = readDate();
+        p.dataRelease = readDate();
+        String s = readString();
+        if (s != null)
+            p.dataProductType = DataProductType.toValue(s);
+        Integer cal = readInteger();
+        if (cal != null)
+            p.calibrationLevel = CalibrationLevel.toValue(cal);
+
+        if (in.readBoolean())
+        {
+            p.provenance = new Provenance(readString());
+            p.provenance.reference = readURI();
+            p.provenance.version = readString();
+            p.provenance.project = readString();
+            p.provenance.producer = readString();
+            p.provenance.runID = readString();
+            p.provenance.lastExecuted = readDate();
+            int n = readCount();
+            for (int i = 0; i < n; i++)
+                p.provenance.getInputs().add(new PlaneURI(readURI()));
+            readStrings(p.provenance.getKeywords());
+        }
+        if (in.readBoolean())
+        {
+            p.metrics = new Metrics();
+            p.metrics.sourceNumberDensity = readDouble();
+            p.metrics.background = readDouble();
+            p.metrics.backgroundStddev = readDouble();
+            p.metrics.fluxDensityLimit = readDouble();
+            p.metrics.magLimit = readDouble();
+        }
+        if (in.readBoolean())
+            p.quality = new DataQuality(Quality.toValue(readString()));
+        readState(p);
+
+        int n = readCount();
+        for (int i = 0; i < n; i++)
+            p.getArtifacts().add(readArtifact());
+        return p;
+    }
+
+    private Artifact readArtifact()
+        throws IOException
+    {
+        URI uri = readURI();
+        ProductType ptype = ProductType.toValue(readString());
+        ReleaseType rtype = ReleaseType.toValue(readString());
+        Artifact a = new Artifact(uri, ptype, rtype);
+        a.contentType = readString();
+        a.contentLength = readLong();
+        a.contentChecksum = readURI();
+        readState(a);
+
+        int n = readCount();
+        for (int i = 0; i < n; i++)
+            a.getParts().add(readPart());
+        return a;
+    }
+
+    private Part readPart()
+        throws IOException
+    {
+        Part p = new Part(readString());
+        String s = readString();
+        if (s != null)
+            p.productType = ProductType.toValue(s);
+        readState(p);
+
+        int n = readCount();
+        for (int i = 0; i < n; i++)
+            p.getChunks().add(readChunk());
+        return p;
+    }
+
+    private Chunk readChunk()
+        throws IOException
+    {
+        Chunk c = new Chunk();
+        c.naxis = readInteger();
+        c.positionAxis1 = readInteger();
+        c.positionAxis2 = readInteger();
+        c.energyAxis = readInteger();
+        c.timeAxis = readInteger();
+        c.polarizationAxis = readInteger();
+        c.observableAxis = readInteger();
+
+        if (in.readBoolean())
+        {
+            CoordAxis2D axis = new CoordAxis2D(readAxis(), readAxis());
+            axis.error1 = readError();
+            axis.error2 = readError();
+            if (in.readBoolean())
+                axis.range = new CoordRange2D(readCoord2D(), readCoord2D());
+            axis.bounds = readBounds2D();
+            if (in.readBoolean())
+            {
+                long naxis1 = in.readLong();
+                long naxis2 = in.readLong();
+                Coord2D ref = readCoord2D();
+                double cd11 = in.readDouble();
+                double cd12 = in.readDouble();
+                double cd21 = in.readDouble();
+                double cd22 = in.readDouble();
+                axis.function = new CoordFunction2D(new Dimension2D(naxis1, naxis2), ref, cd11, cd12, cd21, cd22);
+            }
+            c.position = new SpatialWCS(axis);
+            c.position.coordsys = readString();
+            c.position.equinox = readDouble();
+            c.position.resolution = readDouble();
+        }
+        if (in.readBoolean())
+        {
+            CoordAxis1D axis = readAxis1D();
+            c.energy = new SpectralWCS(axis, readString());
+            c.energy.ssysobs = readString();
+            c.energy.ssyssrc = readString();
+            c.energy.restfrq = readDouble();
+            c.energy.restwav = readDouble();
+            c.energy.velosys = readDouble();
+            c.energy.zsource = readDouble();
+            c.energy.velang = readDouble();
+            c.energy.bandpassName = readString();
+            c.energy.resolvingPower = readDouble();
+            if (in.readBoolean())
+            {
+                String species = readString();
+                c.energy.transition = new EnergyTransition(species, readString());
+            }
+        }
+        if (in.readBoolean())
+        {
+            c.time = new TemporalWCS(readAxis1D());
+            c.time.timesys = readString();
+            c.time.trefpos = readString();
+            c.time.mjdref = readDouble();
+            c.time.exposure = readDouble();
+            c.time.resolution = readDouble();
+        }
+        if (in.readBoolean())
+            c.polarization = new PolarizationWCS(readAxis1D());
+        if (in.readBoolean())
+        {
+            c.observable = new ObservableAxis(readSlice());
+            if (in.readBoolean())
+                c.observable.independent = readSlice();
+        }
+        readState(c);
+        return c;
+    }
+
+    private CoordAxis1D readAxis1D()
+        throws IOException
+    {
+        CoordAxis1D axis = new CoordAxis1D(readAxis());
+        axis.error = readError();
+        if (in.readBoolean())
+            axis.range = readRange1D();
+        if (in.readBoolean())
+        {
+            axis.bounds = new CoordBounds1D();
+            int n = readCount();
+            for (int i = 0; i < n; i++)
+                axis.bounds.getSamples().add(readRange1D());
+        }
+        if (in.readBoolean())
+        {
+            long naxis = in.readLong();
+            double delta = in.readDouble();
+            axis.function = new CoordFunction1D(naxis, delta, readRefCoord());
+        }
+        return axis;
+    }
+
+    private Axis readAxis()
+        throws IOException
+    {
+        String ctype = readString();
+        return new Axis(ctype, readString());
+    }
+
+    private CoordError readError()
+        throws IOException
+    {
+        if (!in.readBoolean())
+            return null;
+        Double syser = readDouble();
+        return new CoordError(syser, readDouble());
+    }
+
+    private Slice readSlice()
+        throws IOException
+    {
+        Axis axis = readAxis();
+        return new Slice(axis, in.readLong());
+    }
+
+    private CoordRange1D readRange1D()
+        throws IOException
+    {
+        RefCoord start = readRefCoord();
+        return new CoordRange1D(start, readRefCoord());
+    }
+
+    private Coord2D readCoord2D()
+        throws IOException
+    {
+        RefCoord c1 = readRefCoord();
+        return new Coord2D(c1, readRefCoord());
+    }
+
+    private RefCoord readRefCoord()
+        throws IOException
+    {
+        double pix = in.readDouble();
+        return new RefCoord(pix, in.readDouble());
+    }
+
+    private CoordBounds2D readBounds2D()
+        throws IOException
+    {
+        if (!in.readBoolean())
+            return null;
+        int type = in.readUnsignedByte();
+        if (type == BinaryObservationWriter.CIRCLE)
+        {
+            double c1 = in.readDouble();
+            double c2 = in.readDouble();
+            return new CoordCircle2D(new ValueCoord2D(c1, c2), in.readDouble());
+        }
+        if (type == BinaryObservationWriter.POLYGON)
+        {
+            CoordPolygon2D poly = new CoordPolygon2D();
+            int n = readCount();
+            for (int i = 0; i < n; i++)
+            {
+                double c1 = in.readDouble();
+                poly.getVertices().add(new ValueCoord2D(c1, in.readDouble()));
+            }
+            return poly;
+        }
+        throw new IOException("invalid binary observation: CoordBounds2D type " + type);
+    }
+
+    private void readState(CaomEntity ce)
+        throws IOException
+    {
+        long msb = in.readLong();
+        CaomUtil.assignID(ce, new UUID(msb, in.readLong()));
+        CaomUtil.assignLastModified(ce, readDate(), "lastModified");
+        CaomUtil.assignLastModified(ce, readDate(), "maxLastModified");
+        CaomUtil.assignMetaChecksum(ce, readURI(), "metaChecksum");
+        CaomUtil.assignMetaChecksum(ce, readURI(), "accMetaChecksum");
+    }
+
+    private String readString()
+        throws IOException
+    {
+        int code = readCount();
+        if (code == BinaryObservationWriter.NULL_STRING)
+            return null;
+        if (code == BinaryObservationWriter.NEW_STRING)
+        {
+            byte[] b = new byte[readCount()];
+            in.readFully(b);
+            String ret = new String(b, "UTF-8");
+            dictionary.add(ret);
+            return ret;
+        }
+        int i = code - BinaryObservationWriter.FIRST_INDEX;
+        if (i >= dictionary.size())
+            throw new IOException("invalid binary observation: string index " + i + " dictionary size " + dictionary.size());
+        return dictionary.get(i);
+    }
+
+    private void readStrings(Collection<String> vals)
+        throws IOException
+    {
+        int n = readCount();
+        for (int i = 0; i < n; i++)
+            vals.add(readString());
+    }
+
+    private URI readURI()
+        throws IOException
+    {
+        String s = readString();
+        if (s == null)
+            return null;
+        return URI.create(s);
+    }
+
+    private Double readDouble()
+        throws IOException
+    {
+        if (in.readBoolean())
+            return in.readDouble();
+        return null;
+    }
+
+    private Integer readInteger()
+        throws IOException
+    {
+        if (in.readBoolean())
+            return in.readInt();
+        return null;
+    }
+
+    private Long readLong()
+        throws IOException
+    {
+        if (in.readBoolean())
+            return in.readLong();
+        return null;
+    }
+
+    private Boolean readBoolean()
+        throws IOException
+    {
+        if (in.readBoolean())
+            return in.readBoolean();
+        return null;
+    }
+
+    private Date readDate()
+        throws IOException
+    {
+        if (in.readBoolean())
+            return new Date(in.readLong());
+        return null;
+    }
+
+    private int readCount()
+        throws IOException
+    {
+        int ret = 0;
+        int shift = 0;
+        int b = in.readUnsignedByte();
+        while ((b & 0x80) != 0)
+        {
+            ret |= (b & 0x7f) << shift;
+            shift += 7;
+            if (shift > 28)
+                throw new IOException("invalid binary observation: varint too long");
+            b = in.readUnsignedByte();
+        }
+        return ret | (b << shift);
+    }
+}
@@ -0,0 +1,661 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2017.                            (c) 2017.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.caom2.binary;
+
+import ca.nrc.cadc.caom2.Artifact;
+import ca.nrc.cadc.caom2.CaomEntity;
+import ca.nrc.cadc.caom2.Chunk;
+import ca.nrc.cadc.caom2.CompositeObservation;
+import ca.nrc.cadc.caom2.Observation;
+import ca.nrc.cadc.caom2.ObservationURI;
+import ca.nrc.cadc.caom2.Part;
+import ca.nrc.cadc.caom2.Plane;
+import ca.nrc.cadc.caom2.PlaneURI;
+import ca.nrc.cadc.caom2.wcs.Axis;
+import ca.nrc.cadc.caom2.wcs.Coord2D;
+import ca.nrc.cadc.caom2.wcs.CoordAxis1D;
+import ca.nrc.cadc.caom2.wcs.CoordAxis2D;
+import ca.nrc.cadc.caom2.wcs.CoordBounds1D;
+import ca.nrc.cadc.caom2.wcs.CoordBounds2D;
+import ca.nrc.cadc.caom2.wcs.CoordCircle2D;
+import ca.nrc.cadc.caom2.wcs.CoordError;
+import ca.nrc.cadc.caom2.wcs.CoordFunction1D;
+import ca.nrc.cadc.caom2.wcs.CoordFunction2D;
+import ca.nrc.cadc.caom2.wcs.CoordPolygon2D;
+import ca.nrc.cadc.caom2.wcs.CoordRange1D;
+import ca.nrc.cadc.caom2.wcs.CoordRange2D;
+import ca.nrc.cadc.caom2.wcs.RefCoord;
+import ca.nrc.cadc.caom2.wcs.Slice;
+import ca.nrc.cadc.caom2.wcs.ValueCoord2D;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import org.apache.log4j.Logger;
+
+/**
+ * Write an observation in a compact binary format. All entity fields and state 
+ * (id, lastModified, maxLastModified, metaChecksum, accMetaChecksum) are written so 
+ * the reader restores the same checksums. Plane metadata computed from the artifacts 
+ * (position, energy, time, polarization) is not written; receivers compute it.
+ * <p>
+ * Format: magic number and version, then the observation tree depth first. Each plane
+ * is preceded by a PLANE byte and the planes end with an END byte so an observation
+ * can be written one plane at a time (start, plane, end). UUIDs are
+ * written as 16 bytes and doubles as raw IEEE 754 values. Nullable values are 
+ * preceded by a presence byte. Counts and string lengths are unsigned varints.
+ * Strings are dictionary coded: the first occurrence is written inline and later
+ * occurrences (ctype, cunit, coordsys, contentType...) as an index.
+ *
+ * @author pdowler
+ */
+public class BinaryObservationWriter
+{
+    private static final Logger log = Logger.getLogger(BinaryObservationWriter.class);
+
+    public static final String CONTENT_TYPE = "application/x-caom2-binary";
+
+    static final int MAGIC = 0x43414f4d; // CAOM
+    static final int VERSION = 1;
+
+    // string codes: null, new string, index in dictionary + FIRST_INDEX
+    static final int NULL_STRING = 0;
+    static final int NEW_STRING = 1;
+    static final int FIRST_INDEX = 2;
+
+    static final int SIMPLE = 0;
+    static final int COMPOSITE = 1;
+
+    static final int CIRCLE = 0;
+    static final int POLYGON = 1;
+
+    // plane sequence markers
+    static final int END = 0;
+    static final int PLANE = 1;
+
+    private DataOutputStream out;
+    private Map<String, Integer> dictionary;
+
+    public BinaryObservationWriter() { }
+
+    /**
+     * Write an observation. The output stream is flushed but not closed.
+     * 
+     * @param obs
+     * @param ostream
+     * @throws IOException 
+     */
+    public void write(Observation obs, OutputStream ostream)
+        throws IOException
+    {
+        long t = System.currentTimeMillis();
+        try
+        {
+            start(obs, ostream);
+            for (Plane p : obs.getPlanes())
+                plane(p);
+            end();
+        }
+        finally
+        {
+            this.out = null;
+            this.dictionary = null;
+        }
+        log.debug("write: " + obs.getURI() + " " + (System.currentTimeMillis() - t) + "ms");
+    }
+
+    /**
+     * Start writing an observation one plane at a time: writes the observation 
+     * without the planes. Planes must be passed to plane() in the order of
+     * Observation.getPlanes and the document completed with end().
+     * 
+     * @param obs observation, the planes are ignored
+     * @param ostream
+     * @throws IOException 
+     */
+    public void start(Observation obs, OutputStream ostream)
+        throws IOException
+    {
+        this.out = new DataOutputStream(new BufferedOutputStream(ostream));
+        this.dictionary = new HashMap<String, Integer>();
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        writeObservation(obs);
+    }
+
+    /**
+     * Write the next plane of the observation passed to start().
+     * 
+     * @param p
+     * @throws IOException 
+     */
+    public void plane(Plane p)
+        throws IOException
+    {
+        if (out == null)
+            throw new IllegalStateException("plane called before start");
+        out.writeByte(PLANE);
+        writePlane(p);
+    }
+
+    /**
+     * Complete the observation passed to start(). The output stream is flushed but 
+     * not closed.
+     * 
+     * @throws IOException 
+     */
+    public void end()
+        throws IOException
+    {
+        if (out == null)
+            throw new IllegalStateException("end called before start");
+        try
+        {
+            out.writeByte(END);
+            out.flush();
+        }
+        finally
+        {
+            this.out = null;
+            this.dictionary = null;
+        }
+    }
+
+    private void writeObservation(Observation obs)
+        throws IOException
+    {
+        if (obs instanceof CompositeObservation)
+        {
+            out.writeByte(COMPOSITE);
+            writeString(obs.getCollection());
+            writeString(obs.getObservationID());
+            writeString(obs.getAlgorithm().getName());
+            CompositeObservation co = (CompositeObservation) obs;
+            writeCount(co.getMembers().size());
+            for (ObservationURI m : co.getMembers())
+                writeURI(m.getURI());
+        }
+        else
+        {
+            out.writeByte(SIMPLE);
+            writeString(obs.getCollection());
+            writeString(obs.getObservationID());
+        }
+
+        writeString(obs.type);
+        writeString(obs.intent == null ? null : obs.intent.getValue());
+        writeInteger(obs.sequenceNumber);
+        writeDate(obs.metaRelease);
+
+        if (present(obs.proposal))
+        {
+            writeString(obs.proposal.getID());
+            writeString(obs.proposal.pi);
+            writeString(obs.proposal.project);
+            writeString(obs.proposal.title);
+            writeStrings(obs.proposal.getKeywords());
+        }
+        if (present(obs.target))
+        {
+            writeString(obs.target.getName());
+            writeString(obs.target.type == null ? null : obs.target.type.getValue());
+            writeBoolean(obs.target.standard);
+            writeDouble(obs.target.redshift);
+            writeBoolean(obs.target.moving);
+            writeStrings(obs.target.getKeywords());
+        }
+        if (present(obs.targetPosition))
+        {
+            writeString(obs.targetPosition.getCoordsys());
+            out.writeDouble(obs.targetPosition.getCoordinates().cval1);
+            out.writeDouble(obs.targetPosition.getCoordinates().cval2);
+            writeDouble(obs.targetPosition.equinox);
+        }
+        if (present(obs.requirements))
+            writeString(obs.requirements.getFlag().getValue());
+        if (present(obs.telescope))
+        {
+            writeString(obs.telescope.getName());
+            writeDouble(obs.telescope.geoLocationX);
+            writeDouble(obs.telescope.geoLocationY);
+            writeDouble(obs.telescope.geoLocationZ);
+            writeStrings(obs.telescope.getKeywords());
+        }
+        if (present(obs.instrument))
+        {
+            writeString(obs.instrument.getName());
+            writeStrings(obs.instrument.getKeywords());
+        }
+        if (present(obs.environment))
+        {
+            writeDouble(obs.environment.seeing);
+            writeDouble(obs.environment.humidity);
+            writeDouble(obs.environment.elevation);
+            writeDouble(obs.environment.tau);
+            writeDouble(obs.environment.wavelengthTau);
+            writeDouble(obs.environment.ambientTemp);
+            writeBoolean(obs.environment.photometric);
+        }
+        writeState(obs);
+    }
+
+    private void writePlane(Plane p)
+        throws IOException
+    {
+        writeString(p.getProductID());
+        writeURI(p.creatorID);
+        writeDate(p.metaRelease);
+        writeDate(p.dataRelease);
+        writeString(p.dataProductType == null ? null : p.dataProductType.getValue());
+        writeInteger(p.calibrationLevel == null ? null : p.calibrationLevel.getValue());
+
+        if (present(p.provenance))
+        {
+            writeString(p.provenance.getName());
+            writeURI(p.provenance.reference);
+            writeString(p.provenance.version);
+            writeString(p.provenance.project);
+            writeString(p.provenance.producer);
+            writeString(p.provenance.runID);
+            writeDate(p.provenance.lastExecuted);
+            writeCount(p.provenance.getInputs().size());
+            for (PlaneURI pu : p.provenance.getInputs())
+                writeURI(pu.getURI());
+            writeStrings(p.provenance.getKeywords());
+        }
+        if (present(p.metrics))
+        {
+            writeDouble(p.metrics.sourceNumberDensity);
+            writeDouble(p.metrics.background);
+            writeDouble(p.metrics.backgroundStddev);
+            writeDouble(p.metrics.fluxDensityLimit);
+            writeDouble(p.metrics.magLimit);
+        }
+        if (present(p.quality))
+            writeString(p.quality.getFlag().getValue());
+        writeState(p);
+
+        writeCount(p.getArtifacts().size());
+        for (Artifact a : p.getArtifacts())
+            writeArtifact(a);
+    }
+
+    private void writeArtifact(Artifact a)
+        throws IOException
+    {
+        writeURI(a.getURI());
+        writeString(a.getProductType().getValue());
+        writeString(a.getReleaseType().getValue());
+        writeString(a.contentType);
+        writeLong(a.contentLength);
+        writeURI(a.contentChecksum);
+        writeState(a);
+
+        writeCount(a.getParts().size());
+        for (Part p : a.getParts())
+            writePart(p);
+    }
+
+    private void writePart(Part p)
+        throws IOException
+    {
+        writeString(p.getName());
+        writeString(p.productType == null ? null : p.productType.getValue());
+        writeState(p);
+
+        writeCount(p.getChunks().size());
+        for (Chunk c : p.getChunks())
+            writeChunk(c);
+    }
+
+    private void writeChunk(Chunk c)
+        throws IOException
+    {
+        writeInteger(c.naxis);
+        writeInteger(c.positionAxis1);
+        writeInteger(c.positionAxis2);
+        writeInteger(c.energyAxis);
+        writeInteger(c.timeAxis);
+        writeInteger(c.polarizationAxis);
+        writeInteger(c.observableAxis);
+
+        if (present(c.position))
+        {
+            CoordAxis2D axis = c.position.getAxis();
+            writeAxis(axis.getAxis1());
+            writeAxis(axis.getAxis2());
+            writeError(axis.error1);
+            writeError(axis.error2);
+            if (present(axis.range))
+            {
+                writeCoord2D(axis.range.getStart());
+                writeCoord2D(axis.range.getEnd());
+            }
+            writeBounds2D(axis.bounds);
+            if (present(axis.function))
+            {
+                CoordFunction2D f = axis.function;
+                out.writeLong(f.getDimension().naxis1);
+                out.writeLong(f.getDimension().naxis2);
+                writeCoord2D(f.getRefCoord());
+                out.writeDouble(f.getCd11());
+                out.writeDouble(f.getCd12());
+                out.writeDouble(f.getCd21());
+                out.writeDouble(f.getCd22());
+            }
+            writeString(c.position.coordsys);
+            writeDouble(c.position.equinox);
+            writeDouble(c.position.resolution);
+        }
+        if (present(c.energy))
+        {
+            writeAxis1D(c.energy.getAxis());
+            writeString(c.energy.getSpecsys());
+            writeString(c.energy.ssysobs);
+            writeString(c.energy.ssyssrc);
+            writeDouble(c.energy.restfrq);
+            writeDouble(c.energy.restwav);
+            writeDouble(c.energy.velosys);
+            writeDouble(c.energy.zsource);
+            writeDouble(c.energy.velang);
+            writeString(c.energy.bandpassName);
+            writeDouble(c.energy.resolvingPower);
+            if (present(c.energy.transition))
+            {
+                writeString(c.energy.transition.getSpecies());
+                writeString(c.energy.transition.getTransition());
+            }
+        }
+        if (present(c.time))
+        {
+            writeAxis1D(c.time.getAxis());
+            writeString(c.time.timesys);
+            writeString(c.time.trefpos);
+            writeDouble(c.time.mjdref);
+            writeDouble(c.time.exposure);
+            writeDouble(c.time.resolution);
+        }
+        if (present(c.polarization))
+            writeAxis1D(c.polarization.getAxis());
+        if (present(c.observable))
+        {
+            writeSlice(c.observable.getDependent());
+            if (present(c.observable.independent))
+                writeSlice(c.observable.independent);
+        }
+        writeState(c);
+    }
+
+    private void writeAxis1D(CoordAxis1D axis)
+        throws IOException
+    {
+        writeAxis(axis.getAxis());
+        writeError(axis.error);
+        if (present(axis.range))
+            writeRange1D(axis.range);
+        if (present(axis.bounds))
+        {
+            CoordBounds1D b = axis.bounds;
+            writeCount(b.getSamples().size());
+            for (CoordRange1D r : b.getSamples())
+                writeRange1D(r);
+        }
+        if (present(axis.function))
+        {
+            CoordFunction1D f = axis.function;
+            out.writeLong(f.getNaxis());
+            out.writeDouble(f.getDelta());
+            writeRefCoord(f.getRefCoord());
+        }
+    }
+
+    private void writeAxis(Axis a)
+        throws IOException
+    {
+        writeString(a.getCtype());
+        writeString(a.getCunit());
+    }
+
+    private void writeError(CoordError e)
+        throws IOException
+    {
+        if (present(e))
+        {
+            writeDouble(e.syser);
+            writeDouble(e.rnder);
+        }
+    }
+
+    private void writeSlice(Slice s)
+        throws IOException
+    {
+        writeAxis(s.getAxis());
+        out.writeLong(s.getBin());
+    }
+
+    private void writeRange1D(CoordRange1D r)
+        throws IOException
+    {
+        writeRefCoord(r.getStart());
+        writeRefCoord(r.getEnd());
+    }
+
+    private void writeCoord2D(Coord2D c)
+        throws IOException
+    {
+        writeRefCoord(c.getCoord1());
+        writeRefCoord(c.getCoord2());
+    }
+
+    private void writeRefCoord(RefCoord c)
+        throws IOException
+    {
+        out.writeDouble(c.pix);
+        out.writeDouble(c.val);
+    }
+
+    private void writeBounds2D(CoordBounds2D b)
+        throws IOException
+    {
+        if (!present(b))
+            return;
+        if (b instanceof CoordCircle2D)
+        {
+            CoordCircle2D circ = (CoordCircle2D) b;
+            out.writeByte(CIRCLE);
+            out.writeDouble(circ.getCenter().coord1);
+            out.writeDouble(circ.getCenter().coord2);
+            out.writeDouble(circ.getRadius());
+        }
+        else if (b instanceof CoordPolygon2D)
+        {
+            CoordPolygon2D poly = (CoordPolygon2D) b;
+            out.writeByte(POLYGON);
+            writeCount(poly.getVertices().size());
+            for (ValueCoord2D v : poly.getVertices())
+            {
+                out.writeDouble(v.coord1);
+                out.writeDouble(v.coord2);
+            }
+        }
+        else
+            throw new IllegalArgumentException("unsupported CoordBounds2D type: " + b.getClass().getName());
+    }
+
+    private void writeState(CaomEntity ce)
+        throws IOException
+    {
+        UUID id = ce.getID();
+        out.writeLong(id.getMostSignificantBits());
+        out.writeLong(id.getLeastSignificantBits());
+        writeDate(ce.getLastModified());
+        writeDate(ce.getMaxLastModified());
+        writeURI(ce.getMetaChecksum());
+        writeURI(ce.getAccMetaChecksum());
+    }
+
+    // presence byte for optional values
+    private boolean present(Object o)
+        throws IOException
+    {
+        out.writeBoolean(o != null);
+        return o != null;
+    }
+
+    private void writeString(String s)
+        throws IOException
+    {
+        if (s == null)
+        {
+            writeCount(NULL_STRING);
+            return;
+        }
+        Integer i = dictionary.get(s);
+        if (i != null)
+        {
+            writeCount(FIRST_INDEX + i);
+            return;
+        }
+        dictionary.put(s, dictionary.size());
+        writeCount(NEW_STRING);
+        byte[] b = s.getBytes("UTF-8");
+        writeCount(b.length);
+        out.write(b);
+    }
+
+    private void writeStrings(Collection<String> vals)
+        throws IOException
+    {
+        writeCount(vals.size());
+        for (String s : vals)
+            writeString(s);
+    }
+
+    private void writeURI(URI u)
+        throws IOException
+    {
+        writeString(u == null ? null : u.toASCIIString());
+    }
+
+    private void writeDouble(Double d)
+        throws IOException
+    {
+        if (present(d))
+            out.writeDouble(d);
+    }
+
+    private void writeInteger(Integer i)
+        throws IOException
+    {
+        if (present(i))
+            out.writeInt(i);
+    }
+
+    private void writeLong(Long l)
+        throws IOException
+    {
+        if (present(l))
+            out.writeLong(l);
+    }
+
+    private void writeBoolean(Boolean b)
+        throws IOException
+    {
+        if (present(b))
+            out.writeBoolean(b);
+    }
+
+    private void writeDate(Date d)
+        throws IOException
+    {
+        if (present(d))
+            out.writeLong(d.getTime());
+    }
+
+    // unsigned varint: 7 bits per byte, high bit set on all but the last byte
+    private void writeCount(int n)
+        throws IOException
+    {
+        if (n < 0)
+            throw new IllegalArgumentException("negative count: " + n);
+        while (n >= 0x80)
+        {
+            out.writeByte((n & 0x7f) | 0x80);
+            n >>>= 7;
+        }
+        out.writeByte(n);
+    }
+}
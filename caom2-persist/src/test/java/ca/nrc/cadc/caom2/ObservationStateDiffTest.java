@@ -0,0 +1,158 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2017.                            (c) 2017.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.caom2;
+
+import ca.nrc.cadc.util.Log4jInit;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author pdowler
+ */
+public class ObservationStateDiffTest
+{
+    private static final Logger log = Logger.getLogger(ObservationStateDiffTest.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.caom2", Level.INFO);
+    }
+
+    public ObservationStateDiffTest() { }
+
+    private ObservationState getState(String observationID, String accMetaChecksum)
+    {
+        ObservationState ret = new ObservationState(new ObservationURI("TEST", observationID));
+        if (accMetaChecksum != null)
+            ret.accMetaChecksum = URI.create(accMetaChecksum);
+        return ret;
+    }
+
+    @Test
+    public void testDigest()
+    {
+        try
+        {
+            List<ObservationState> states = new ArrayList<ObservationState>();
+            states.add(getState("b", null));
+            states.add(getState("a", "md5:1"));
+
+            // one record per state in observationID order
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            md.update("a\tmd5:1\nb\t\n".getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder("md5:");
+            for (byte v : md.digest())
+                sb.append(String.format("%02x", v));
+            Assert.assertEquals(URI.create(sb.toString()), ObservationStateDiff.getDigest(states));
+
+            // input not modified
+            Assert.assertEquals("b", states.get(0).getURI().getObservationID());
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
+    @Test
+    public void testDigestFieldBoundaries()
+    {
+        try
+        {
+            // same concatenated content without delimiters: aabmd5:1
+            List<ObservationState> s1 = new ArrayList<ObservationState>();
+            s1.add(getState("a", null));
+            s1.add(getState("ab", "md5:1"));
+            List<ObservationState> s2 = new ArrayList<ObservationState>();
+            s2.add(getState("aa", null));
+            s2.add(getState("b", "md5:1"));
+            Assert.assertNotEquals(ObservationStateDiff.getDigest(s1), ObservationStateDiff.getDigest(s2));
+
+            // null vs empty list entry
+            List<ObservationState> s3 = new ArrayList<ObservationState>();
+            s3.add(getState("a", null));
+            Assert.assertNotEquals(ObservationStateDiff.getDigest(s3), 
+                    ObservationStateDiff.getDigest(new ArrayList<ObservationState>()));
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+}
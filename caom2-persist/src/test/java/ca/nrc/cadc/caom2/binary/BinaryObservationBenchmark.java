@@ -0,0 +1,148 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2017.                            (c) 2017.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.caom2.binary;
+
+import ca.nrc.cadc.caom2.Observation;
+import ca.nrc.cadc.caom2.xml.ObservationReader;
+import ca.nrc.cadc.util.Log4jInit;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Comparison of size and time of the binary and XML formats. Only runs with 
+ * -Pbenchmark.
+ *
+ * @author pdowler
+ */
+public class BinaryObservationBenchmark
+{
+    private static final Logger log = Logger.getLogger(BinaryObservationBenchmark.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.caom2.binary", Level.INFO);
+    }
+
+    static final int NUM_PLANES = 50;
+    static final int NUM_RUNS = 20;
+
+    public BinaryObservationBenchmark() { }
+
+    @Test
+    public void testCompareXml()
+    {
+        try
+        {
+            Observation obs = BinaryObservationTest.getTestObservation(false, NUM_PLANES);
+            ObservationReader xr = new ObservationReader(false);
+
+            // warm up
+            String xml = BinaryObservationTest.writeXml(obs);
+            byte[] bin = BinaryObservationTest.writeBinary(obs);
+            xr.read(xml);
+            BinaryObservationTest.readBinary(bin);
+
+            long txw = 0L;
+            long txr = 0L;
+            long tbw = 0L;
+            long tbr = 0L;
+            for (int i = 0; i < NUM_RUNS; i++)
+            {
+                long t = System.currentTimeMillis();
+                xml = BinaryObservationTest.writeXml(obs);
+                txw += System.currentTimeMillis() - t;
+
+                t = System.currentTimeMillis();
+                xr.read(xml);
+                txr += System.currentTimeMillis() - t;
+
+                t = System.currentTimeMillis();
+                bin = BinaryObservationTest.writeBinary(obs);
+                tbw += System.currentTimeMillis() - t;
+
+                t = System.currentTimeMillis();
+                BinaryObservationTest.readBinary(bin);
+                tbr += System.currentTimeMillis() - t;
+            }
+            int xmlBytes = xml.getBytes("UTF-8").length;
+            log.info(NUM_PLANES + " planes: xml " + xmlBytes + " bytes write " + txw / NUM_RUNS + "ms read " + txr / NUM_RUNS + "ms"
+                    + " binary " + bin.length + " bytes write " + tbw / NUM_RUNS + "ms read " + tbr / NUM_RUNS + "ms");
+
+            Assert.assertTrue("binary size: " + bin.length + " xml size: " + xmlBytes, bin.length < xmlBytes);
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+}
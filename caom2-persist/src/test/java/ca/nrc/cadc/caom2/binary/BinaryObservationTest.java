@@ -0,0 +1,489 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2017.                            (c) 2017.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.caom2.binary;
+
+import ca.nrc.cadc.caom2.Algorithm;
+import ca.nrc.cadc.caom2.Artifact;
+import ca.nrc.cadc.caom2.CalibrationLevel;
+import ca.nrc.cadc.caom2.CaomEntity;
+import ca.nrc.cadc.caom2.Chunk;
+import ca.nrc.cadc.caom2.CompositeObservation;
+import ca.nrc.cadc.caom2.DataProductType;
+import ca.nrc.cadc.caom2.DataQuality;
+import ca.nrc.cadc.caom2.EnergyTransition;
+import ca.nrc.cadc.caom2.Environment;
+import ca.nrc.cadc.caom2.Instrument;
+import ca.nrc.cadc.caom2.Metrics;
+import ca.nrc.cadc.caom2.Observation;
+import ca.nrc.cadc.caom2.ObservationIntentType;
+import ca.nrc.cadc.caom2.ObservationURI;
+import ca.nrc.cadc.caom2.Part;
+import ca.nrc.cadc.caom2.Plane;
+import ca.nrc.cadc.caom2.PlaneURI;
+import ca.nrc.cadc.caom2.ProductType;
+import ca.nrc.cadc.caom2.Proposal;
+import ca.nrc.cadc.caom2.Provenance;
+import ca.nrc.cadc.caom2.Quality;
+import ca.nrc.cadc.caom2.ReleaseType;
+import ca.nrc.cadc.caom2.Requirements;
+import ca.nrc.cadc.caom2.SimpleObservation;
+import ca.nrc.cadc.caom2.Status;
+import ca.nrc.cadc.caom2.Target;
+import ca.nrc.cadc.caom2.TargetPosition;
+import ca.nrc.cadc.caom2.TargetType;
+import ca.nrc.cadc.caom2.Telescope;
+import ca.nrc.cadc.caom2.types.Point;
+import ca.nrc.cadc.caom2.util.CaomUtil;
+import ca.nrc.cadc.caom2.wcs.Axis;
+import ca.nrc.cadc.caom2.wcs.Coord2D;
+import ca.nrc.cadc.caom2.wcs.CoordAxis1D;
+import ca.nrc.cadc.caom2.wcs.CoordAxis2D;
+import ca.nrc.cadc.caom2.wcs.CoordBounds1D;
+import ca.nrc.cadc.caom2.wcs.CoordBounds2D;
+import ca.nrc.cadc.caom2.wcs.CoordCircle2D;
+import ca.nrc.cadc.caom2.wcs.CoordError;
+import ca.nrc.cadc.caom2.wcs.CoordFunction1D;
+import ca.nrc.cadc.caom2.wcs.CoordFunction2D;
+import ca.nrc.cadc.caom2.wcs.CoordPolygon2D;
+import ca.nrc.cadc.caom2.wcs.CoordRange1D;
+import ca.nrc.cadc.caom2.wcs.CoordRange2D;
+import ca.nrc.cadc.caom2.wcs.Dimension2D;
+import ca.nrc.cadc.caom2.wcs.ObservableAxis;
+import ca.nrc.cadc.caom2.wcs.PolarizationWCS;
+import ca.nrc.cadc.caom2.wcs.RefCoord;
+import ca.nrc.cadc.caom2.wcs.Slice;
+import ca.nrc.cadc.caom2.wcs.SpatialWCS;
+import ca.nrc.cadc.caom2.wcs.SpectralWCS;
+import ca.nrc.cadc.caom2.wcs.TemporalWCS;
+import ca.nrc.cadc.caom2.wcs.ValueCoord2D;
+import ca.nrc.cadc.caom2.xml.ObservationWriter;
+import ca.nrc.cadc.util.Log4jInit;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Date;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Round trip of observations through the binary format.
+ *
+ * @author pdowler
+ */
+public class BinaryObservationTest
+{
+    private static final Logger log = Logger.getLogger(BinaryObservationTest.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.caom2.binary", Level.INFO);
+    }
+
+    public BinaryObservationTest() { }
+
+    static Observation getTestObservation(boolean composite, int numPlanes)
+        throws Exception
+    {
+        Observation obs;
+        if (composite)
+        {
+            CompositeObservation co = new CompositeObservation("TEST", "bin", new Algorithm("stack"));
+            co.getMembers().add(new ObservationURI("TEST", "m1"));
+            co.getMembers().add(new ObservationURI("TEST", "m2"));
+            obs = co;
+        }
+        else
+            obs = new SimpleObservation("TEST", "bin");
+
+        obs.type = "OBJECT";
+        obs.intent = ObservationIntentType.SCIENCE;
+        obs.sequenceNumber = 123;
+        obs.metaRelease = new Date();
+        obs.proposal = new Proposal("P1");
+        obs.proposal.pi = "pi";
+        obs.proposal.title = "title with unicode \u00e9";
+        obs.proposal.getKeywords().add("a");
+        obs.proposal.getKeywords().add("b");
+        obs.target = new Target("M31");
+        obs.target.type = TargetType.OBJECT;
+        obs.target.standard = Boolean.FALSE;
+        obs.target.redshift = 0.001;
+        obs.target.getKeywords().add("galaxy");
+        obs.targetPosition = new TargetPosition("ICRS", new Point(10.68, 41.27));
+        obs.targetPosition.equinox = 2000.0;
+        obs.requirements = new Requirements(Status.FAIL);
+        obs.telescope = new Telescope("CFHT");
+        obs.telescope.geoLocationX = 1.0;
+        obs.telescope.geoLocationY = 2.0;
+        obs.telescope.geoLocationZ = 3.0;
+        obs.instrument = new Instrument("MegaPrime");
+        obs.instrument.getKeywords().add("imager");
+        obs.environment = new Environment();
+        obs.environment.seeing = 0.7;
+        obs.environment.photometric = Boolean.TRUE;
+
+        for (int i = 0; i < numPlanes; i++)
+            obs.getPlanes().add(getTestPlane("p" + i));
+
+        assignState(obs);
+        return obs;
+    }
+
+    static Plane getTestPlane(String productID)
+    {
+        Plane p = new Plane(productID);
+        p.creatorID = URI.create("ivo://example.net/TEST?" + productID);
+        p.metaRelease = new Date();
+        p.dataRelease = new Date();
+        p.dataProductType = DataProductType.IMAGE;
+        p.calibrationLevel = CalibrationLevel.CALIBRATED;
+        p.provenance = new Provenance("pipeline");
+        p.provenance.reference = URI.create("http://www.example.net/pipeline");
+        p.provenance.lastExecuted = new Date();
+        p.provenance.getInputs().add(new PlaneURI(new ObservationURI("TEST", "m1"), "raw"));
+        p.provenance.getKeywords().add("v1");
+        p.metrics = new Metrics();
+        p.metrics.background = 1.0;
+        p.metrics.magLimit = 24.5;
+        p.quality = new DataQuality(Quality.JUNK);
+
+        Artifact a = new Artifact(URI.create("ad:TEST/" + productID + ".fits"), ProductType.SCIENCE, ReleaseType.DATA);
+        a.contentType = "application/fits";
+        a.contentLength = 123456789L;
+        a.contentChecksum = URI.create("md5:fb696fe6e2fbb98dee340bd1e8811dcb");
+        for (int n = 0; n < 4; n++)
+        {
+            Part pa = new Part(n);
+            pa.productType = ProductType.SCIENCE;
+            pa.getChunks().add(getTestChunk(n));
+            a.getParts().add(pa);
+        }
+        p.getArtifacts().add(a);
+        return p;
+    }
+
+    static Chunk getTestChunk(int n)
+    {
+        Chunk c = new Chunk();
+        c.naxis = 4;
+        c.positionAxis1 = 1;
+        c.positionAxis2 = 2;
+        c.energyAxis = 3;
+        c.timeAxis = 4;
+
+        CoordAxis2D pos = new CoordAxis2D(new Axis("RA---TAN", "deg"), new Axis("DEC--TAN", "deg"));
+        pos.error1 = new CoordError(0.01, 0.02);
+        pos.range = new CoordRange2D(new Coord2D(new RefCoord(0.5, 10.0), new RefCoord(0.5, 20.0)),
+                new Coord2D(new RefCoord(1024.5, 10.1), new RefCoord(2048.5, 20.2)));
+        if (n % 2 == 0)
+            pos.bounds = new CoordCircle2D(new ValueCoord2D(10.05, 20.1), 0.1);
+        else
+        {
+            CoordPolygon2D poly = new CoordPolygon2D();
+            poly.getVertices().add(new ValueCoord2D(10.0, 20.0));
+            poly.getVertices().add(new ValueCoord2D(10.1, 20.0));
+            poly.getVertices().add(new ValueCoord2D(10.1, 20.2));
+            pos.bounds = poly;
+        }
+        pos.function = new CoordFunction2D(new Dimension2D(1024, 2048),
+                new Coord2D(new RefCoord(512.0, 10.05), new RefCoord(1024.0, 20.1)), 1.0e-4, 0.0, 0.0, 1.0e-4);
+        c.position = new SpatialWCS(pos);
+        c.position.coordsys = "ICRS";
+        c.position.resolution = 0.7;
+
+        CoordAxis1D en = new CoordAxis1D(new Axis("WAVE", "m"));
+        en.function = new CoordFunction1D(1024L, 1.0e-10, new RefCoord(0.5, 400.0e-9));
+        en.bounds = new CoordBounds1D();
+        en.bounds.getSamples().add(new CoordRange1D(new RefCoord(0.5, 400.0e-9), new RefCoord(512.5, 450.0e-9)));
+        c.energy = new SpectralWCS(en, "TOPOCENT");
+        c.energy.restwav = 656.3e-9;
+        c.energy.bandpassName = "r";
+        c.energy.transition = new EnergyTransition("H", "alpha");
+
+        CoordAxis1D t = new CoordAxis1D(new Axis("TIME", "d"));
+        t.range = new CoordRange1D(new RefCoord(0.5, 55000.0), new RefCoord(1.5, 55000.1));
+        c.time = new TemporalWCS(t);
+        c.time.timesys = "UTC";
+        c.time.exposure = 300.0;
+
+        if (n == 0)
+        {
+            c.polarizationAxis = 5;
+            c.polarization = new PolarizationWCS(new CoordAxis1D(new Axis("STOKES", null)));
+            c.polarization.getAxis().function = new CoordFunction1D(3L, 1.0, new RefCoord(1.0, 1.0));
+            c.observableAxis = 6;
+            c.observable = new ObservableAxis(new Slice(new Axis("flux", "Jy"), 3L));
+            c.observable.independent = new Slice(new Axis("WAVE", "m"), 4L);
+        }
+        return c;
+    }
+
+    // state like a DAO: checksums computed bottom up
+    static void assignState(Observation obs)
+        throws Exception
+    {
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        Date now = new Date();
+        for (Plane p : obs.getPlanes())
+        {
+            for (Artifact a : p.getArtifacts())
+            {
+                for (Part pa : a.getParts())
+                {
+                    for (Chunk c : pa.getChunks())
+                        assignState(c, now, md);
+                    assignState(pa, now, md);
+                }
+                assignState(a, now, md);
+            }
+            assignState(p, now, md);
+        }
+        assignState(obs, now, md);
+    }
+
+    static void assignState(CaomEntity ce, Date now, MessageDigest md)
+    {
+        CaomUtil.assignLastModified(ce, now, "lastModified");
+        CaomUtil.assignLastModified(ce, now, "maxLastModified");
+        CaomUtil.assignMetaChecksum(ce, ce.computeMetaChecksum(md), "metaChecksum");
+        CaomUtil.assignMetaChecksum(ce, ce.computeAccMetaChecksum(md), "accMetaChecksum");
+    }
+
+    static byte[] writeBinary(Observation obs)
+        throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new BinaryObservationWriter().write(obs, bos);
+        return bos.toByteArray();
+    }
+
+    static Observation readBinary(byte[] doc)
+        throws IOException
+    {
+        return new BinaryObservationReader().read(new ByteArrayInputStream(doc));
+    }
+
+    static String writeXml(Observation obs)
+        throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new ObservationWriter().write(obs, bos);
+        return bos.toString("UTF-8");
+    }
+
+    @Test
+    public void testRoundTrip()
+    {
+        try
+        {
+            for (boolean composite : new boolean[] { false, true })
+            {
+                Observation expected = getTestObservation(composite, 3);
+                Observation actual = readBinary(writeBinary(expected));
+
+                Assert.assertEquals(expected.getClass(), actual.getClass());
+                Assert.assertEquals(expected.getID(), actual.getID());
+                Assert.assertEquals(expected.getMaxLastModified(), actual.getMaxLastModified());
+                Assert.assertEquals(expected.getAccMetaChecksum(), actual.getAccMetaChecksum());
+
+                // recomputed from the content read
+                MessageDigest md = MessageDigest.getInstance("MD5");
+                Assert.assertEquals(expected.getMetaChecksum(), actual.computeMetaChecksum(md));
+                Assert.assertEquals(expected.getAccMetaChecksum(), actual.computeAccMetaChecksum(md));
+
+                // every field and the state of every entity
+                Assert.assertEquals(writeXml(expected), writeXml(actual));
+            }
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
+    @Test
+    public void testStreaming()
+    {
+        try
+        {
+            Observation obs = getTestObservation(true, 3);
+            byte[] expected = writeBinary(obs);
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            BinaryObservationWriter w = new BinaryObservationWriter();
+            w.start(obs, bos);
+            for (Plane p : obs.getPlanes())
+                w.plane(p);
+            w.end();
+            Assert.assertArrayEquals(expected, bos.toByteArray());
+
+            // the writer can be reused for the next observation
+            bos.reset();
+            w.write(obs, bos);
+            Assert.assertArrayEquals(expected, bos.toByteArray());
+
+            try
+            {
+                new BinaryObservationWriter().plane(obs.getPlanes().iterator().next());
+                Assert.fail("expected IllegalStateException");
+            }
+            catch (IllegalStateException expectedEx)
+            {
+                log.debug("caught expected: " + expectedEx);
+            }
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
+    @Test
+    public void testInvalid()
+    {
+        try
+        {
+            byte[] doc = writeBinary(getTestObservation(false, 1));
+            doc[0] = 'x';
+            try
+            {
+                readBinary(doc);
+                Assert.fail("expected IOException");
+            }
+            catch (IOException expected)
+            {
+                log.debug("caught expected: " + expected);
+            }
+
+            // the last byte is the END marker
+            doc = writeBinary(getTestObservation(false, 1));
+            doc[doc.length - 1] = 7;
+            try
+            {
+                readBinary(doc);
+                Assert.fail("expected IOException");
+            }
+            catch (IOException expected)
+            {
+                log.debug("caught expected: " + expected);
+            }
+
+            // truncated
+            doc = writeBinary(getTestObservation(false, 1));
+            try
+            {
+                readBinary(Arrays.copyOf(doc, doc.length - 1));
+                Assert.fail("expected IOException");
+            }
+            catch (IOException expected)
+            {
+                log.debug("caught expected: " + expected);
+            }
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
+    @Test
+    public void testUnsupportedBounds()
+    {
+        try
+        {
+            Observation obs = getTestObservation(false, 1);
+            Chunk c = obs.getPlanes().iterator().next().getArtifacts().iterator().next()
+                    .getParts().iterator().next().getChunks().iterator().next();
+            c.position.getAxis().bounds = new CoordBounds2D() { };
+            try
+            {
+                writeBinary(obs);
+                Assert.fail("expected IllegalArgumentException");
+            }
+            catch (IllegalArgumentException expected)
+            {
+                log.debug("caught expected: " + expected);
+            }
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+}
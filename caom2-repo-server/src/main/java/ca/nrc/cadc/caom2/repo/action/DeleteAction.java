@@ -96,10 +96,9 @@ public class DeleteAction extends RepoAction
 
         ObservationDAO dao = getDAO();
         
-        if (!dao.exists(uri))
+        if (!dao.deleteIfExists(uri))
             throw new ResourceNotFoundException("not found: " + uri);
-
-        dao.delete(uri);
+        ObservationCache.getInstance().invalidate(uri);
 
         log.debug("DONE: " + uri);
     }
@@ -0,0 +1,247 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2016.                            (c) 2016.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.caom2.repo.action;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+import ca.nrc.cadc.io.ByteCountOutputStream;
+
+/**
+ * Response body with optional gzip or deflate content coding. Compression is 
+ * streaming: nothing is buffered beyond the compressor. Call finish() after the 
+ * last write and end() when the response fails before that; the underlying stream 
+ * is not closed.
+ *
+ * @author pdowler
+ */
+public class EncodedOutputStream extends OutputStream
+{
+    private static final Logger log = Logger.getLogger(EncodedOutputStream.class);
+    
+    private static final int BUFFER_SIZE = 8192;
+    
+    private final String encoding;
+    private final ByteCountOutputStream wire;
+    private final DeflaterOutputStream compressor;
+    private final Deflater deflater;
+    private final OutputStream out;
+    private long bytes;
+    private boolean finished;
+    private boolean ended;
+
+    /**
+     * @param dest response output
+     * @param encoding ResponseEncoding.GZIP, ResponseEncoding.DEFLATE, or null
+     * @param level compression level
+     * @throws IOException 
+     */
+    public EncodedOutputStream(OutputStream dest, String encoding, int level)
+        throws IOException
+    {
+        this.encoding = encoding;
+        this.wire = new ByteCountOutputStream(dest);
+        if (ResponseEncoding.GZIP.equals(encoding))
+        {
+            GzipStream gz = new GzipStream(wire, level);
+            this.compressor = gz;
+            this.deflater = gz.getDeflater();
+        }
+        else if (ResponseEncoding.DEFLATE.equals(encoding))
+        {
+            this.deflater = new Deflater(level);
+            this.compressor = new DeflaterOutputStream(wire, deflater, BUFFER_SIZE);
+        }
+        else if (encoding == null)
+        {
+            this.deflater = null;
+            this.compressor = null;
+        }
+        else
+            throw new IllegalArgumentException("unsupported encoding: " + encoding);
+        this.out = (compressor != null ? compressor : wire);
+    }
+    
+    // GZIPOutputStream with a compression level
+    private static class GzipStream extends GZIPOutputStream
+    {
+        GzipStream(OutputStream out, int level)
+            throws IOException
+        {
+            super(out, BUFFER_SIZE);
+            def.setLevel(level);
+        }
+        
+        Deflater getDeflater()
+        {
+            return def;
+        }
+    }
+
+    public String getEncoding()
+    {
+        return encoding;
+    }
+    
+    /**
+     * @return bytes written before compression
+     */
+    public long getBytes()
+    {
+        return bytes;
+    }
+    
+    /**
+     * @return bytes written to the response
+     */
+    public long getEncodedBytes()
+    {
+        return wire.getByteCount();
+    }
+
+    @Override
+    public void write(int b)
+        throws IOException
+    {
+        out.write(b);
+        bytes++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+        throws IOException
+    {
+        out.write(b, off, len);
+        bytes += len;
+    }
+
+    @Override
+    public void flush()
+        throws IOException
+    {
+        out.flush();
+    }
+    
+    /**
+     * Write the end of the compressed data and record the byte counts. 
+     * 
+     * @throws IOException 
+     */
+    public void finish()
+        throws IOException
+    {
+        if (finished)
+            return;
+        finished = true;
+        try
+        {
+            if (compressor != null)
+                compressor.finish();
+            wire.flush();
+        }
+        finally
+        {
+            end();
+            ResponseEncoding.getInstance().add(encoding, bytes, wire.getByteCount());
+            log.debug("encoding: " + encoding + " bytes: " + bytes + " encoded: " + wire.getByteCount());
+        }
+    }
+
+    /**
+     * Release the native resources of the compressor without writing the end of the
+     * compressed data. Safe to call more than once and after finish(); further writes 
+     * fail.
+     */
+    public void end()
+    {
+        if (deflater != null && !ended)
+        {
+            ended = true;
+            deflater.end();
+        }
+    }
+
+    /**
+     * Same as finish: the underlying stream is left open.
+     * 
+     * @throws IOException 
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        finish();
+    }
+}
@@ -69,6 +69,7 @@
 
 package ca.nrc.cadc.caom2.repo.action;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
@@ -76,6 +77,7 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import org.apache.log4j.Logger;
 
@@ -84,10 +86,13 @@ import com.csvreader.CsvWriter;
 import ca.nrc.cadc.caom2.Observation;
 import ca.nrc.cadc.caom2.ObservationState;
 import ca.nrc.cadc.caom2.ObservationURI;
+import ca.nrc.cadc.caom2.Plane;
+import ca.nrc.cadc.caom2.binary.BinaryObservationWriter;
 import ca.nrc.cadc.caom2.persistence.ObservationDAO;
+import ca.nrc.cadc.caom2.persistence.ObservationStreamHandler;
 import ca.nrc.cadc.caom2.xml.ObservationWriter;
+import ca.nrc.cadc.caom2.xml.XmlConstants;
 import ca.nrc.cadc.date.DateUtil;
-import ca.nrc.cadc.io.ByteCountOutputStream;
 import ca.nrc.cadc.net.ResourceNotFoundException;
 
 /**
@@ -105,12 +110,31 @@ public class GetAction extends RepoAction
 
     public static final int MAX_OBS_LIST_SIZE = 100000;
 
+    // concurrent requests for the same document share one load
+    static final SingleFlight<byte[]> loader = new SingleFlight<byte[]>();
+
+    // the observation document format depends on the Accept header
+    private boolean varyAccept = false;
+
     public GetAction()
     {
     }
 
     @Override
     public void doAction() throws Exception
+    {
+        try
+        {
+            doGet();
+        }
+        finally
+        {
+            // release the compressor if the response was not finished
+            endEncodedOutputStream();
+        }
+    }
+
+    private void doGet() throws Exception
     {
         log.debug("GET ACTION");
         ObservationURI uri = getURI();
@@ -157,25 +181,332 @@ public class GetAction extends RepoAction
     protected void doGetObservation(ObservationURI uri) throws Exception
     {
         log.debug("START: " + uri);
+        varyAccept = isBinaryAvailable();
 
         checkReadPermission(uri.getCollection());
 
         ObservationDAO dao = getDAO();
-        Observation obs = dao.get(uri);
+        
+        // the cached document is current if the accMetaChecksum did not change
+        ObservationCache cache = ObservationCache.getInstance();
+        ObservationState state = dao.getState(uri);
+        if (state == null)
+            throw new ResourceNotFoundException("not found: " + uri);
+        // binary documents share the cache and the coalesced loads with XML 
+        // documents under their content type
+        boolean binary = isBinaryAccepted();
+        String docType = getNamespace();
+        String contentType = CAOM_MIMETYPE;
+        if (binary)
+        {
+            docType = BinaryObservationWriter.CONTENT_TYPE;
+            contentType = BinaryObservationWriter.CONTENT_TYPE;
+        }
+        byte[] doc = cache.get(docType, uri, state.accMetaChecksum);
+        String how = "cached";
+        if (doc == null)
+        {
+            if (cache.getMaxEntrySize() <= 0L || cache.isLarge(docType, uri, state.accMetaChecksum))
+            {
+                // known to be too large to buffer: stream without coalescing
+                logInfo.setBytes(writeObservation(dao, uri, binary));
+                log.debug("DONE: " + uri + " " + contentType + " streamed");
+                return;
+            }
 
-        if (obs == null)
+            // the first request streams to its own response and buffers a copy for 
+            // the requests that arrive while it is running
+            String key = uri.getURI().toASCIIString() + " " + docType + " " + state.accMetaChecksum;
+            LoadTask task = new LoadTask(dao, uri, state, binary);
+            doc = loader.get(key, task);
+            if (task.bytes >= 0L)
+            {
+                logInfo.setBytes(task.bytes);
+                log.debug("DONE: " + uri + " " + contentType + " loaded");
+                return;
+            }
+            if (doc == null)
+            {
+                // the shared load was too large to buffer
+                logInfo.setBytes(writeObservation(dao, uri, binary));
+                log.debug("DONE: " + uri + " " + contentType + " streamed");
+                return;
+            }
+            how = "shared";
+        }
+
+        syncOutput.setHeader("Content-Type", contentType);
+        EncodedOutputStream os = getEncodedOutputStream();
+        os.write(doc);
+        os.finish();
+        logInfo.setBytes(os.getEncodedBytes());
+
+        log.debug("DONE: " + uri + " " + contentType + " " + how + " " + doc.length + " bytes");
+    }
+
+    @Override
+    protected String getVary()
+    {
+        if (varyAccept)
+            return "Accept, " + super.getVary();
+        return super.getVary();
+    }
+
+    /**
+     * @return true if the compact binary format is available for this model version
+     */
+    protected boolean isBinaryAvailable()
+    {
+        return true;
+    }
+
+    /**
+     * Check if the caller accepts the compact binary format (Accept header lists it
+     * with q > 0).
+     * 
+     * @return true to write the binary format
+     */
+    protected boolean isBinaryAccepted()
+    {
+        if (!isBinaryAvailable())
+            return false;
+        List<String> accept = syncInput.getHeaders("Accept");
+        if (accept == null)
+            return false;
+        for (String header : accept)
+        {
+            for (String s : header.split(","))
+            {
+                String[] parts = s.split(";");
+                if (!BinaryObservationWriter.CONTENT_TYPE.equalsIgnoreCase(parts[0].trim()))
+                    continue;
+                double q = 1.0;
+                for (int i = 1; i < parts.length; i++)
+                {
+                    String p = parts[i].trim();
+                    if (p.startsWith("q="))
+                    {
+                        try
+                        {
+                            q = Double.parseDouble(p.substring(2));
+                        }
+                        catch (NumberFormatException ex)
+                        {
+                            q = 0.0;
+                        }
+                    }
+                }
+                return q > 0.0;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stream an observation from the database to the response one plane at a time.
+     * 
+     * @param dao
+     * @param uri
+     * @param binary true for the compact binary format, false for XML
+     * @return number of bytes written to the response
+     * @throws Exception 
+     */
+    protected long writeObservation(ObservationDAO dao, ObservationURI uri, boolean binary)
+        throws Exception
+    {
+        if (binary)
+            syncOutput.setHeader("Content-Type", BinaryObservationWriter.CONTENT_TYPE);
+        else
+            syncOutput.setHeader("Content-Type", CAOM_MIMETYPE);
+        LazyOutputStream out = new LazyOutputStream();
+        if (!dao.stream(uri, getStreamHandler(out, binary)))
             throw new ResourceNotFoundException("not found: " + uri);
+        out.close();
+        return out.getEncodedBytes();
+    }
+
+    private ObservationStreamHandler getStreamHandler(OutputStream out, boolean binary)
+    {
+        if (binary)
+            return new BinaryStreamHandler(out);
+        return new StreamingObservationWriter(getObservationWriter(), out);
+    }
+
+    // stream an observation to the response and add a copy to the cache; the copy
+    // is returned to requests that share the load, null if larger than a cache entry
+    private class LoadTask implements Callable<byte[]>
+    {
+        private ObservationDAO dao;
+        private ObservationURI uri;
+        private ObservationState state;
+        private boolean binary;
+
+        // bytes written to the response, -1 if this request did not run the load
+        long bytes = -1L;
+
+        LoadTask(ObservationDAO dao, ObservationURI uri, ObservationState state, boolean binary)
+        {
+            this.dao = dao;
+            this.uri = uri;
+            this.state = state;
+            this.binary = binary;
+        }
+
+        @Override
+        public byte[] call() throws Exception
+        {
+            ObservationCache cache = ObservationCache.getInstance();
+            String docType = getNamespace();
+            if (binary)
+            {
+                docType = BinaryObservationWriter.CONTENT_TYPE;
+                syncOutput.setHeader("Content-Type", BinaryObservationWriter.CONTENT_TYPE);
+            }
+            else
+                syncOutput.setHeader("Content-Type", CAOM_MIMETYPE);
+            LazyOutputStream out = new LazyOutputStream();
+            CopyOutputStream cos = new CopyOutputStream(out, cache.getMaxEntrySize());
+            if (!dao.stream(uri, getStreamHandler(cos, binary)))
+                throw new ResourceNotFoundException("not found: " + uri);
+            out.close();
+            this.bytes = out.getEncodedBytes();
+
+            // key with the state checksum: if obs changed since getState the 
+            // next request sees a different checksum and reloads
+            byte[] ret = cos.getCopy();
+            if (ret == null)
+            {
+                log.debug("load: " + uri + " larger than " + cache.getMaxEntrySize() + " bytes");
+                cache.putLarge(docType, uri, state.accMetaChecksum);
+                return null;
+            }
+            cache.put(docType, uri, state.accMetaChecksum, ret);
+            return ret;
+        }
+    }
+
+    // write an observation from ObservationDAO.stream in the binary format
+    private static class BinaryStreamHandler implements ObservationStreamHandler
+    {
+        private BinaryObservationWriter writer = new BinaryObservationWriter();
+        private OutputStream out;
 
-        // write with default schema
-        ObservationWriter ow = getObservationWriter();
+        BinaryStreamHandler(OutputStream out)
+        {
+            this.out = out;
+        }
 
-        syncOutput.setHeader("Content-Type", CAOM_MIMETYPE);
-        OutputStream os = syncOutput.getOutputStream();
-        ByteCountOutputStream bc = new ByteCountOutputStream(os);
-        ow.write(obs, bc);
-        logInfo.setBytes(bc.getByteCount());
+        @Override
+        public void start(Observation obs) throws IOException
+        {
+            writer.start(obs, out);
+        }
 
-        log.debug("DONE: " + uri);
+        @Override
+        public void plane(Plane plane) throws IOException
+        {
+            writer.plane(plane);
+        }
+
+        @Override
+        public void end(Observation obs) throws IOException
+        {
+            writer.end();
+        }
+    }
+
+    // open the response output on the first write so a not found can still be reported
+    private class LazyOutputStream extends OutputStream
+    {
+        private EncodedOutputStream out;
+
+        private OutputStream get() throws IOException
+        {
+            if (out == null)
+                out = getEncodedOutputStream();
+            return out;
+        }
+
+        long getEncodedBytes()
+        {
+            if (out == null)
+                return 0L;
+            return out.getEncodedBytes();
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            get().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            get().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            if (out != null)
+                out.flush();
+        }
+
+        // finish the content coding, the response is left open
+        @Override
+        public void close() throws IOException
+        {
+            if (out != null)
+                out.finish();
+        }
+    }
+
+    // write through and keep a copy until the content exceeds a max size
+    private static class CopyOutputStream extends OutputStream
+    {
+        private OutputStream out;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        private long maxSize;
+
+        CopyOutputStream(OutputStream out, long maxSize)
+        {
+            this.out = out;
+            this.maxSize = maxSize;
+        }
+
+        // null if the content exceeded the max size
+        byte[] getCopy()
+        {
+            if (copy == null)
+                return null;
+            return copy.toByteArray();
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            if (copy != null)
+            {
+                if (copy.size() + len > maxSize)
+                    copy = null;
+                else
+                    copy.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            out.flush();
+        }
     }
 
     protected void doList(int maxRec, Date start, Date end) throws Exception
@@ -202,13 +533,20 @@ public class GetAction extends RepoAction
         return new ObservationWriter();
     }
 
+    /**
+     * @return namespace of documents written by getObservationWriter
+     */
+    protected String getNamespace()
+    {
+        return XmlConstants.CAOM2_3_NAMESPACE;
+    }
+
     protected long writeObservationList(List<ObservationState> states) throws IOException
     {
         // write in tsv format
         syncOutput.setHeader("Content-Type", "text/tab-separated-values");
-        OutputStream os = syncOutput.getOutputStream();
-        ByteCountOutputStream bc = new ByteCountOutputStream(os);
-        OutputStreamWriter out = new OutputStreamWriter(bc, "US-ASCII");
+        EncodedOutputStream os = getEncodedOutputStream();
+        OutputStreamWriter out = new OutputStreamWriter(os, "US-ASCII");
         CsvWriter writer = new CsvWriter(out, '\t');
         for (ObservationState state : states)
         {
@@ -233,7 +571,8 @@ public class GetAction extends RepoAction
             writer.endRecord();
         }
         writer.flush();
-        return bc.getByteCount();
+        os.finish();
+        return os.getEncodedBytes();
     }
 
 }
@@ -70,7 +70,6 @@
 package ca.nrc.cadc.caom2.repo.action;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.util.List;
 
@@ -79,7 +78,6 @@ import com.csvreader.CsvWriter;
 import ca.nrc.cadc.caom2.ObservationState;
 import ca.nrc.cadc.caom2.xml.ObservationWriter;
 import ca.nrc.cadc.caom2.xml.XmlConstants;
-import ca.nrc.cadc.io.ByteCountOutputStream;
 
 /**
  * For CAOM 2.2 support.
@@ -96,6 +94,21 @@ public class GetAction22 extends GetAction
         return new ObservationWriter("caom2", XmlConstants.CAOM2_2_NAMESPACE, false);
     }
 
+    @Override
+    protected String getNamespace()
+    {
+        return XmlConstants.CAOM2_2_NAMESPACE;
+    }
+
+    /**
+     * The binary format is only available for the current model.
+     */
+    @Override
+    protected boolean isBinaryAvailable()
+    {
+        return false;
+    }
+
     /**
      * Write in CSV format
      */
@@ -104,9 +117,8 @@ public class GetAction22 extends GetAction
     {
         // write in csv format for now
         syncOutput.setHeader("Content-Type", "text/csv");
-        OutputStream os = syncOutput.getOutputStream();
-        ByteCountOutputStream bc = new ByteCountOutputStream(os);
-        CsvWriter writer = new CsvWriter(bc, ',', Charset.defaultCharset());
+        EncodedOutputStream os = getEncodedOutputStream();
+        CsvWriter writer = new CsvWriter(os, ',', Charset.defaultCharset());
         for (ObservationState state : states)
         {
             writer.write(state.getURI().getObservationID());
@@ -114,7 +126,8 @@ public class GetAction22 extends GetAction
             writer.endRecord();
         }
         writer.flush();
-        return bc.getByteCount();
+        os.finish();
+        return os.getEncodedBytes();
     }
 
 }
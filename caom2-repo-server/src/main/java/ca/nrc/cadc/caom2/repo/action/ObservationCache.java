@@ -0,0 +1,381 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2016.                            (c) 2016.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.caom2.repo.action;
+
+import ca.nrc.cadc.caom2.ObservationURI;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.log4j.Logger;
+
+/**
+ * Cache of serialized observation documents. Entries are keyed by document
+ * namespace and observation URI and hold the accMetaChecksum of the observation
+ * that was serialized; a cached document is only used if the caller finds the 
+ * same accMetaChecksum in the database. The cache is bounded by the total size 
+ * of the documents and the least recently used entries are removed first.
+ * 
+ * @author pdowler
+ */
+public class ObservationCache implements ObservationCacheMBean
+{
+    private static final Logger log = Logger.getLogger(ObservationCache.class);
+    
+    public static final String OBJECT_NAME = "ca.nrc.cadc.caom2.repo:type=ObservationCache";
+    
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024L * 1024L;
+    
+    // larger documents are not cached
+    static final int MAX_ENTRY_FRACTION = 16;
+    
+    // max number of documents remembered as too large to cache
+    static final int MAX_LARGE_ENTRIES = 4096;
+    
+    private static final ObservationCache INSTANCE = new ObservationCache(DEFAULT_MAX_BYTES);
+    
+    static
+    {
+        INSTANCE.register();
+    }
+    
+    private final LinkedHashMap<String,Entry> cache = new LinkedHashMap<String,Entry>(256, 0.75f, true);
+    // documents larger than a cache entry -> accMetaChecksum
+    private final LinkedHashMap<String,URI> large = new LinkedHashMap<String,URI>(256, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,URI> eldest)
+        {
+            return size() > MAX_LARGE_ENTRIES;
+        }
+    };
+    private long maxBytes;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long stale;
+    private long evictions;
+    
+    private static class Entry
+    {
+        URI accMetaChecksum;
+        byte[] doc;
+        
+        Entry(URI accMetaChecksum, byte[] doc)
+        {
+            this.accMetaChecksum = accMetaChecksum;
+            this.doc = doc;
+        }
+    }
+
+    ObservationCache(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+    
+    public static ObservationCache getInstance()
+    {
+        return INSTANCE;
+    }
+    
+    private void register()
+    {
+        try
+        {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName(OBJECT_NAME);
+            if (!mbs.isRegistered(on))
+                mbs.registerMBean(this, on);
+            log.debug("registered: " + OBJECT_NAME);
+        }
+        catch (Exception ex)
+        {
+            log.warn("failed to register MBean " + OBJECT_NAME + ": " + ex);
+        }
+    }
+    
+    private static String getKey(String namespace, ObservationURI uri)
+    {
+        return uri.getURI().toASCIIString() + " " + namespace;
+    }
+    
+    /**
+     * Get a cached document.
+     * 
+     * @param namespace document namespace
+     * @param uri
+     * @param accMetaChecksum current accMetaChecksum of the observation
+     * @return document or null if not cached or out of date
+     */
+    public synchronized byte[] get(String namespace, ObservationURI uri, URI accMetaChecksum)
+    {
+        String key = getKey(namespace, uri);
+        Entry e = cache.get(key);
+        if (e == null)
+        {
+            misses++;
+            return null;
+        }
+        if (accMetaChecksum == null || !accMetaChecksum.equals(e.accMetaChecksum))
+        {
+            log.debug("stale: " + key + " " + e.accMetaChecksum + " vs " + accMetaChecksum);
+            remove(key);
+            stale++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.doc;
+    }
+    
+    /**
+     * Add a document to the cache. Documents without accMetaChecksum or larger than
+     * 1/16 of the cache are not cached.
+     * 
+     * @param namespace document namespace
+     * @param uri
+     * @param accMetaChecksum accMetaChecksum of the observation that was serialized
+     * @param doc 
+     */
+    public synchronized void put(String namespace, ObservationURI uri, URI accMetaChecksum, byte[] doc)
+    {
+        if (accMetaChecksum == null || doc.length > getMaxEntrySize())
+            return;
+        String key = getKey(namespace, uri);
+        remove(key);
+        cache.put(key, new Entry(accMetaChecksum, doc));
+        bytes += doc.length;
+        evict();
+    }
+    
+    /**
+     * Remember that a document is larger than a cache entry so later requests can
+     * stream it without trying to buffer it.
+     * 
+     * @param namespace document namespace
+     * @param uri
+     * @param accMetaChecksum accMetaChecksum of the observation that was serialized
+     */
+    public synchronized void putLarge(String namespace, ObservationURI uri, URI accMetaChecksum)
+    {
+        if (accMetaChecksum == null)
+            return;
+        large.put(getKey(namespace, uri), accMetaChecksum);
+    }
+    
+    /**
+     * Check if a document is known to be larger than a cache entry.
+     * 
+     * @param namespace document namespace
+     * @param uri
+     * @param accMetaChecksum current accMetaChecksum of the observation
+     * @return true if the document with this accMetaChecksum was too large
+     */
+    public synchronized boolean isLarge(String namespace, ObservationURI uri, URI accMetaChecksum)
+    {
+        if (accMetaChecksum == null)
+            return false;
+        return accMetaChecksum.equals(large.get(getKey(namespace, uri)));
+    }
+    
+    /**
+     * Remove all documents for an observation. 
+     * 
+     * @param uri 
+     */
+    public synchronized void invalidate(ObservationURI uri)
+    {
+        String prefix = uri.getURI().toASCIIString() + " ";
+        Iterator<Map.Entry<String,Entry>> i = cache.entrySet().iterator();
+        while (i.hasNext())
+        {
+            Map.Entry<String,Entry> me = i.next();
+            if (me.getKey().startsWith(prefix))
+            {
+                bytes -= me.getValue().doc.length;
+                i.remove();
+            }
+        }
+        Iterator<String> j = large.keySet().iterator();
+        while (j.hasNext())
+        {
+            if (j.next().startsWith(prefix))
+                j.remove();
+        }
+    }
+    
+    // remove least recently used entries until the cache fits
+    private void evict()
+    {
+        Iterator<Map.Entry<String,Entry>> i = cache.entrySet().iterator();
+        while (bytes > maxBytes && i.hasNext())
+        {
+            bytes -= i.next().getValue().doc.length;
+            i.remove();
+            evictions++;
+        }
+    }
+    
+    private void remove(String key)
+    {
+        Entry e = cache.remove(key);
+        if (e != null)
+            bytes -= e.doc.length;
+    }
+
+    @Override
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    @Override
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    @Override
+    public synchronized long getStale()
+    {
+        return stale;
+    }
+
+    @Override
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    @Override
+    public synchronized double getHitRate()
+    {
+        long n = hits + misses;
+        if (n == 0)
+            return 0.0;
+        return ((double) hits) / n;
+    }
+
+    @Override
+    public synchronized int getEntries()
+    {
+        return cache.size();
+    }
+
+    @Override
+    public synchronized int getLargeEntries()
+    {
+        return large.size();
+    }
+
+    @Override
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    @Override
+    public synchronized long getMaxEntrySize()
+    {
+        return maxBytes / MAX_ENTRY_FRACTION;
+    }
+    
+    @Override
+    public synchronized long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    @Override
+    public synchronized void setMaxBytes(long maxBytes)
+    {
+        if (maxBytes < 0)
+            throw new IllegalArgumentException("invalid maxBytes: " + maxBytes);
+        this.maxBytes = maxBytes;
+        // the max entry size changed
+        large.clear();
+        evict();
+    }
+
+    @Override
+    public synchronized void clear()
+    {
+        cache.clear();
+        large.clear();
+        bytes = 0L;
+        hits = 0L;
+        misses = 0L;
+        stale = 0L;
+        evictions = 0L;
+    }
+}
@@ -88,7 +88,7 @@ public class ObservationInlineContentHandler implements InlineContentHandler
     private static Logger log = Logger.getLogger(ObservationInlineContentHandler.class);
 
     // 20MB XML Doc size limit
-    private static final long DOCUMENT_SIZE_MAX = 20971520L;
+    static final long DOCUMENT_SIZE_MAX = 20971520L;
 
     public static final String CONTENT_KEY = "obs_name";
 
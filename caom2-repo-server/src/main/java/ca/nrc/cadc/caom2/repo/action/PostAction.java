@@ -69,23 +69,85 @@
 
 package ca.nrc.cadc.caom2.repo.action;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.URI;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.apache.log4j.Logger;
 
+import com.csvreader.CsvWriter;
+
 import ca.nrc.cadc.caom2.Observation;
+import ca.nrc.cadc.caom2.ObservationState;
+import ca.nrc.cadc.caom2.ObservationStateBucket;
+import ca.nrc.cadc.caom2.ObservationStateDiff;
 import ca.nrc.cadc.caom2.ObservationURI;
 import ca.nrc.cadc.caom2.persistence.ObservationDAO;
+import ca.nrc.cadc.caom2.persistence.TransactionManager;
 import ca.nrc.cadc.caom2.util.CaomValidator;
+import ca.nrc.cadc.caom2.xml.ObservationReader;
+import ca.nrc.cadc.date.DateUtil;
+import ca.nrc.cadc.io.ByteCountOutputStream;
 import ca.nrc.cadc.net.ResourceNotFoundException;
+import ca.nrc.cadc.rest.InlineContentException;
 import ca.nrc.cadc.rest.InlineContentHandler;
 
 /**
- *
+ * Update an observation (POST to an observation URI), compare a client
+ * state list with the repository (POST to a collection), or store a sequence
+ * of observations (POST a bulk document to a collection).
+ * 
  * @author pdowler
  */
 public class PostAction extends RepoAction
 {
     private static final Logger log = Logger.getLogger(PostAction.class);
 
+    public static final String DIFF_MISSING = "missing";
+    public static final String DIFF_EXTRA = "extra";
+    public static final String DIFF_DIFFERENT = "different";
+    
+    public static final String BULK_OK = "ok";
+    public static final String BULK_EXISTS = "exists";
+    public static final String BULK_NOT_FOUND = "not-found";
+    public static final String BULK_INVALID = "invalid";
+    public static final String BULK_FAILED = "failed";
+    
+    public static final String BULK_MODE_PUT = "put";
+    public static final String BULK_MODE_CREATE = "create";
+    public static final String BULK_MODE_UPDATE = "update";
+    
+    // max observations committed in one transaction
+    static final int BULK_GROUP_SIZE = 100;
+    
+    // max time a transaction stays open while more observations are validated
+    static final long BULK_GROUP_TIME = 2000L;
+    
+    // max threads parsing and validating the documents of one request
+    static final int BULK_MAX_WORKERS = 8;
+    
+    protected DateFormat df = DateUtil.getDateFormat(DateUtil.IVOA_DATE_FORMAT, DateUtil.UTC);
+
     public PostAction() { }
 
     @Override
@@ -93,6 +155,15 @@ public class PostAction extends RepoAction
         throws Exception
     {
         ObservationURI uri = getURI();
+        if (uri == null)
+        {
+            InputStream bulk = getInputBulk();
+            if (bulk != null)
+                doBulk(bulk);
+            else
+                doDiff();
+            return;
+        }
         log.debug("START: " + uri);
 
         checkWritePermission(uri);
@@ -102,21 +173,591 @@ public class PostAction extends RepoAction
         if ( !uri.equals(obs.getURI()) )
             throw new IllegalArgumentException("invalid input: " + uri);
         
+        validate(obs);
+
         ObservationDAO dao = getDAO();
         
-        if (!dao.exists(uri))
+        if (!dao.update(obs))
             throw new ResourceNotFoundException("not found: " + uri);
+        ObservationCache.getInstance().invalidate(uri);
+        
+        log.debug("DONE: " + uri);
+    }
+    
+    /**
+     * Store a sequence of observations in the collection. Documents are parsed 
+     * and validated by a pool of worker threads while the request thread stores
+     * the valid observations in input order. Observations are committed in groups 
+     * with each observation in a nested transaction (savepoint) so a failure only 
+     * affects that observation. After each commit, one status record per observation
+     * is recorded: (index, status, observationURI, message) with status ok, exists 
+     * (mode=create), not-found (mode=update), invalid, or failed. The status records
+     * are buffered and only written once the whole request body has been read: a
+     * client that does not read the response until it has finished sending (e.g.
+     * HttpURLConnection) would otherwise fill both socket buffers and deadlock. 
+     * 
+     * @param istream bulk document
+     * @throws Exception 
+     */
+    protected void doBulk(InputStream istream)
+        throws Exception
+    {
+        final String collection = getCollection();
+        log.debug("START: bulk " + collection);
+        
+        checkWritePermission(collection);
+        
+        String mode = syncInput.getParameter("mode");
+        if (mode == null)
+            mode = BULK_MODE_PUT;
+        if (!BULK_MODE_PUT.equals(mode) && !BULK_MODE_CREATE.equals(mode) && !BULK_MODE_UPDATE.equals(mode))
+            throw new IllegalArgumentException("invalid mode: " + mode);
+        
+        ObservationDAO dao = getDAO();
+        TransactionManager txn = dao.getTransactionManager();
+        
+        // status records: small, at most one per document in the request
+        ByteArrayOutputStream status = new ByteArrayOutputStream();
+        CsvWriter writer = new CsvWriter(new OutputStreamWriter(status, "US-ASCII"), '\t');
+        ByteCountOutputStream bc = null;
+        
+        int workers = Math.min(Runtime.getRuntime().availableProcessors(), BULK_MAX_WORKERS);
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        BufferedInputStream in = new BufferedInputStream(istream);
+        LinkedList<Future<BulkItem>> pending = new LinkedList<Future<BulkItem>>();
+        List<BulkItem> group = new ArrayList<BulkItem>();
+        long groupStart = 0L;
+        boolean txnOpen = false;
+        int num = 0;
+        int numOK = 0;
+        String inputError = null;
+        long t = System.currentTimeMillis();
+        try
+        {
+            boolean more = true;
+            while (more || !pending.isEmpty())
+            {
+                // keep the workers busy without reading the whole input
+                while (more && pending.size() < 2 * workers)
+                {
+                    try
+                    {
+                        byte[] doc = readDocument(in);
+                        if (doc == null)
+                            more = false;
+                        else
+                            pending.add(pool.submit(new ValidateTask(num++, doc, collection)));
+                    }
+                    catch (IllegalArgumentException ex)
+                    {
+                        log.debug("bulk input: " + ex.getMessage());
+                        inputError = ex.getMessage();
+                        more = false;
+                    }
+                }
+                if (pending.isEmpty())
+                    break;
+                
+                // commit instead of holding the transaction while waiting for validation
+                Future<BulkItem> head = pending.getFirst();
+                if (!group.isEmpty() && (group.size() >= BULK_GROUP_SIZE || !head.isDone()
+                        || System.currentTimeMillis() - groupStart > BULK_GROUP_TIME))
+                {
+                    numOK += commitGroup(txn, txnOpen, group, writer);
+                    txnOpen = false;
+                    group.clear();
+                }
+                
+                BulkItem item = getItem(pending.removeFirst());
+                if (group.isEmpty())
+                    groupStart = System.currentTimeMillis();
+                if (item.obs != null)
+                {
+                    if (!txnOpen)
+                    {
+                        txn.startTransaction();
+                        txnOpen = true;
+                    }
+                    store(dao, mode, item);
+                }
+                group.add(item);
+            }
+            numOK += commitGroup(txn, txnOpen, group, writer);
+            txnOpen = false;
+            
+            if (inputError != null)
+            {
+                BulkItem item = new BulkItem(num);
+                item.status = BULK_FAILED;
+                item.message = "invalid bulk document: " + inputError;
+                writeItem(writer, item);
+            }
+            writer.flush();
+            
+            syncOutput.setHeader("Content-Type", StateListInlineContentHandler.CONTENT_TYPE);
+            bc = new ByteCountOutputStream(syncOutput.getOutputStream());
+            status.writeTo(bc);
+            bc.flush();
+        }
+        finally
+        {
+            if (txnOpen)
+            {
+                log.error("bulk: open transaction in finally - rollback");
+                txn.rollbackTransaction();
+            }
+            pool.shutdownNow();
+            if (bc != null)
+                logInfo.setBytes(bc.getByteCount());
+            long dt = System.currentTimeMillis() - t;
+            log.debug("DONE: bulk " + collection + " " + mode + " " + numOK + "/" + num + " " + dt + "ms");
+        }
+    }
+    
+    private static class BulkItem
+    {
+        int index;
+        ObservationURI uri;
+        Observation obs;
+        String status;
+        String message;
+        
+        BulkItem(int index)
+        {
+            this.index = index;
+        }
+    }
+    
+    private class ValidateTask implements Callable<BulkItem>
+    {
+        private BulkItem item;
+        private byte[] doc;
+        private String collection;
+        
+        ValidateTask(int index, byte[] doc, String collection)
+        {
+            this.item = new BulkItem(index);
+            this.doc = doc;
+            this.collection = collection;
+        }
 
-        validate(obs);
+        @Override
+        public BulkItem call()
+        {
+            try
+            {
+                ObservationReader r = new ObservationReader();
+                Observation obs = r.read(new ByteArrayInputStream(doc));
+                doc = null;
+                item.uri = obs.getURI();
+                if (!collection.equals(obs.getURI().getCollection()))
+                    throw new IllegalArgumentException("invalid input: " + obs.getURI() + " not in " + collection);
+                validate(obs);
+                item.obs = obs;
+            }
+            catch (Exception ex)
+            {
+                log.debug("bulk: invalid document " + item.index, ex);
+                item.status = BULK_INVALID;
+                item.message = ex.getMessage();
+            }
+            return item;
+        }
+    }
+    
+    private BulkItem getItem(Future<BulkItem> f)
+        throws InterruptedException
+    {
+        try
+        {
+            return f.get();
+        }
+        catch (ExecutionException ex)
+        {
+            // ValidateTask catches everything so this is a bug
+            throw new RuntimeException("BUG: validation failed", ex.getCause());
+        }
+    }
+    
+    // store one observation; the DAO uses a nested transaction so a failure
+    // only rolls back this observation
+    private void store(ObservationDAO dao, String mode, BulkItem item)
+    {
+        try
+        {
+            item.status = BULK_OK;
+            if (BULK_MODE_CREATE.equals(mode))
+            {
+                if (!dao.create(item.obs))
+                    item.status = BULK_EXISTS;
+            }
+            else if (BULK_MODE_UPDATE.equals(mode))
+            {
+                if (!dao.update(item.obs))
+                    item.status = BULK_NOT_FOUND;
+            }
+            else
+                dao.put(item.obs);
+            if (BULK_OK.equals(item.status))
+                ObservationCache.getInstance().invalidate(item.uri);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            log.debug("bulk: invalid " + item.uri, ex);
+            item.status = BULK_INVALID;
+            item.message = ex.getMessage();
+        }
+        catch (RuntimeException ex)
+        {
+            log.debug("bulk: failed " + item.uri, ex);
+            item.status = BULK_FAILED;
+            item.message = ex.getMessage();
+        }
+        item.obs = null;
+    }
+    
+    // commit the group and record the status; returns number stored
+    private int commitGroup(TransactionManager txn, boolean txnOpen, List<BulkItem> group, CsvWriter writer)
+        throws IOException
+    {
+        if (txnOpen)
+        {
+            try
+            {
+                txn.commitTransaction();
+            }
+            catch (RuntimeException ex)
+            {
+                // the transaction was rolled back
+                log.debug("bulk: commit failed", ex);
+                for (BulkItem item : group)
+                {
+                    if (BULK_OK.equals(item.status))
+                    {
+                        item.status = BULK_FAILED;
+                        item.message = "commit failed: " + ex.getMessage();
+                    }
+                }
+            }
+        }
+        int ret = 0;
+        for (BulkItem item : group)
+        {
+            writeItem(writer, item);
+            if (BULK_OK.equals(item.status))
+                ret++;
+        }
+        writer.flush();
+        return ret;
+    }
+    
+    private void writeItem(CsvWriter writer, BulkItem item)
+        throws IOException
+    {
+        writer.write(Integer.toString(item.index));
+        writer.write(item.status);
+        if (item.uri != null)
+            writer.write(item.uri.getURI().toASCIIString());
+        else
+            writer.write("");
+        if (item.message != null)
+            writer.write(item.message.replaceAll("\\s+", " "));
+        else
+            writer.write("");
+        writer.endRecord();
+    }
+    
+    // read the next size line and document; null at end of input
+    static byte[] readDocument(InputStream in)
+        throws IOException
+    {
+        long size = 0L;
+        int digits = 0;
+        int c = in.read();
+        while (c != '\n')
+        {
+            if (c == -1)
+            {
+                if (digits == 0)
+                    return null;
+                throw new IllegalArgumentException("unexpected end of input in size line");
+            }
+            if (c < '0' || c > '9')
+                throw new IllegalArgumentException("invalid size line: unexpected character " + c);
+            size = 10L * size + (c - '0');
+            if (size > ObservationInlineContentHandler.DOCUMENT_SIZE_MAX)
+                throw new IllegalArgumentException("document too large (limit: " 
+                        + ObservationInlineContentHandler.DOCUMENT_SIZE_MAX + ")");
+            digits++;
+            c = in.read();
+        }
+        if (digits == 0)
+            throw new IllegalArgumentException("invalid size line: no size");
+        byte[] ret = new byte[(int) size];
+        int off = 0;
+        while (off < ret.length)
+        {
+            int n = in.read(ret, off, ret.length - off);
+            if (n == -1)
+                throw new IllegalArgumentException("unexpected end of input: expected " + size + " bytes, found " + off);
+            off += n;
+        }
+        return ret;
+    }
+    
+    /**
+     * Compare the input state list (or state buckets) with the content of the
+     * collection and write the differences. For a state list, the output records
+     * are (status, collection, observationID, maxLastModified, accMetaChecksum) with 
+     * status relative to the caller: missing (in the repository only), extra 
+     * (in the input only), or different (accMetaChecksum does not match). For buckets,
+     * the output records are (start, end, count, digest) for each bucket whose digest
+     * does not match.
+     * 
+     * @throws Exception 
+     */
+    protected void doDiff()
+        throws Exception
+    {
+        String collection = getCollection();
+        log.debug("START: diff " + collection);
 
-        dao.put(obs);
+        checkReadPermission(collection);
+
+        List<ObservationStateBucket> buckets = getInputBuckets();
+        if (buckets != null)
+        {
+            doBucketDiff(buckets);
+            return;
+        }
         
-        log.debug("DONE: " + uri);
+        List<ObservationState> states = getInputStates();
+        if (states == null)
+            throw new IllegalArgumentException("no input state list");
+        for (ObservationState s : states)
+        {
+            if (!collection.equals(s.getURI().getCollection()))
+                throw new IllegalArgumentException("invalid input: " + s.getURI() + " not in " + collection);
+        }
+        
+        Date start = null;
+        Date end = null;
+        try
+        {
+            String startString = syncInput.getParameter("start");
+            if (startString != null)
+                start = df.parse(startString);
+            String endString = syncInput.getParameter("end");
+            if (endString != null)
+                end = df.parse(endString);
+        }
+        catch (ParseException e)
+        {
+            throw new IllegalArgumentException("wrong date format", e);
+        }
+        
+        List<ObservationState> repoStates = getStates(collection, start, end);
+        ObservationStateDiff diff = new ObservationStateDiff(repoStates, states);
+        log.debug("diff " + collection + ": " + repoStates.size() + " vs " + states.size() 
+                + " missing: " + diff.missing.size() + " extra: " + diff.extra.size() + " different: " + diff.different.size());
+        
+        syncOutput.setHeader("Content-Type", StateListInlineContentHandler.CONTENT_TYPE);
+        OutputStream os = syncOutput.getOutputStream();
+        ByteCountOutputStream bc = new ByteCountOutputStream(os);
+        CsvWriter writer = new CsvWriter(new OutputStreamWriter(bc, "US-ASCII"), '\t');
+        writeStates(writer, DIFF_MISSING, diff.missing);
+        writeStates(writer, DIFF_EXTRA, diff.extra);
+        writeStates(writer, DIFF_DIFFERENT, diff.different);
+        writer.flush();
+        logInfo.setBytes(bc.getByteCount());
+        
+        log.debug("DONE: diff " + collection);
+    }
+    
+    private void doBucketDiff(List<ObservationStateBucket> buckets)
+        throws Exception
+    {
+        String collection = getCollection();
+        List<ObservationStateBucket> input = new ArrayList<ObservationStateBucket>(buckets);
+        Collections.sort(input, BUCKET_ORDER);
+        List<ObservationStateBucket> repoBuckets = getRepoBuckets(collection, input);
+        
+        syncOutput.setHeader("Content-Type", StateListInlineContentHandler.CONTENT_TYPE);
+        OutputStream os = syncOutput.getOutputStream();
+        ByteCountOutputStream bc = new ByteCountOutputStream(os);
+        CsvWriter writer = new CsvWriter(new OutputStreamWriter(bc, "US-ASCII"), '\t');
+        int num = 0;
+        for (int i = 0; i < input.size(); i++)
+        {
+            ObservationStateBucket b = input.get(i);
+            ObservationStateBucket rb = repoBuckets.get(i);
+            if (!rb.digest.equals(b.digest))
+            {
+                writer.write(df.format(b.getStart()));
+                writer.write(df.format(b.getEnd()));
+                writer.write(Long.toString(rb.count));
+                writer.write(rb.digest.toASCIIString());
+                writer.endRecord();
+                num++;
+            }
+        }
+        writer.flush();
+        logInfo.setBytes(bc.getByteCount());
+        log.debug("DONE: diff " + collection + " " + input.size() + " buckets, " + num + " different");
+    }
+    
+    private static final Comparator<ObservationStateBucket> BUCKET_ORDER = new Comparator<ObservationStateBucket>()
+    {
+        @Override
+        public int compare(ObservationStateBucket o1, ObservationStateBucket o2)
+        {
+            return o1.getStart().compareTo(o2.getStart());
+        }
+    };
+    
+    // get the repository count and digest for each input bucket (in the same order); 
+    // a grid of aligned buckets (the first and last may be clipped) is computed with 
+    // one aggregate query, other input with one aggregate query per bucket
+    private List<ObservationStateBucket> getRepoBuckets(String collection, List<ObservationStateBucket> input)
+        throws Exception
+    {
+        ObservationDAO dao = getDAO();
+        List<ObservationStateBucket> ret = new ArrayList<ObservationStateBucket>(input.size());
+        if (input.isEmpty())
+            return ret;
+        
+        Date start = input.get(0).getStart();
+        Date end = input.get(0).getEnd();
+        long size = 1L;
+        for (ObservationStateBucket b : input)
+        {
+            if (b.getEnd().after(end))
+                end = b.getEnd();
+            size = Math.max(size, b.getEnd().getTime() - b.getStart().getTime() + 1L);
+        }
+        
+        if (isGrid(input, start, end, size))
+        {
+            List<ObservationStateBucket> result = dao.getObservationBuckets(collection, start, end, size);
+            if (result == null)
+                throw new ResourceNotFoundException("Collection not found: " + collection);
+            Map<Long, ObservationStateBucket> repo = new HashMap<Long, ObservationStateBucket>();
+            for (ObservationStateBucket rb : result)
+                repo.put(rb.getStart().getTime() / size, rb);
+            for (ObservationStateBucket b : input)
+                ret.add(orEmpty(repo.get(b.getStart().getTime() / size)));
+            log.debug("getRepoBuckets: " + collection + " " + input.size() + " buckets of " + size + "ms");
+            return ret;
+        }
+        
+        for (ObservationStateBucket b : input)
+        {
+            // one bucket that contains the whole range
+            List<ObservationStateBucket> result = dao.getObservationBuckets(collection, b.getStart(), b.getEnd(), Long.MAX_VALUE);
+            if (result == null)
+                throw new ResourceNotFoundException("Collection not found: " + collection);
+            ret.add(orEmpty(result.isEmpty() ? null : result.get(0)));
+        }
+        log.debug("getRepoBuckets: " + collection + " " + input.size() + " buckets (not a grid)");
+        return ret;
+    }
+    
+    // true if each bucket is the part of a distinct aligned bucket of the specified 
+    // size that lies inside [start,end]: that is what getObservationBuckets computes
+    private boolean isGrid(List<ObservationStateBucket> input, Date start, Date end, long size)
+    {
+        long prev = Long.MIN_VALUE;
+        for (ObservationStateBucket b : input)
+        {
+            long i = b.getStart().getTime() / size;
+            if (i == prev)
+                return false;
+            long s = Math.max(i * size, start.getTime());
+            long e = Math.min((i + 1) * size - 1L, end.getTime());
+            if (b.getStart().getTime() != s || b.getEnd().getTime() != e)
+                return false;
+            prev = i;
+        }
+        return true;
+    }
+    
+    private ObservationStateBucket orEmpty(ObservationStateBucket b)
+    {
+        if (b != null)
+            return b;
+        ObservationStateBucket ret = new ObservationStateBucket(new Date(0L), new Date(0L));
+        ret.count = 0L;
+        ret.digest = ObservationStateDiff.getDigest(new ArrayList<ObservationState>());
+        return ret;
+    }
+    
+    // get states in the specified range and fail if the list would be truncated
+    private List<ObservationState> getStates(String collection, Date start, Date end)
+        throws Exception
+    {
+        ObservationDAO dao = getDAO();
+        List<ObservationState> ret = dao.getObservationList(collection, start, end, GetAction.MAX_OBS_LIST_SIZE + 1);
+        if (ret == null)
+            throw new ResourceNotFoundException("Collection not found: " + collection);
+        if (ret.size() > GetAction.MAX_OBS_LIST_SIZE)
+            throw new IllegalArgumentException("too many observations in range (limit: " 
+                    + GetAction.MAX_OBS_LIST_SIZE + "): use a smaller range or buckets");
+        return ret;
+    }
+    
+    private void writeStates(CsvWriter writer, String status, List<ObservationState> states)
+        throws IOException
+    {
+        for (ObservationState s : states)
+        {
+            writer.write(status);
+            writer.write(s.getURI().getCollection());
+            writer.write(s.getURI().getObservationID());
+            if (s.maxLastModified != null)
+                writer.write(df.format(s.maxLastModified));
+            else
+                writer.write("");
+            if (s.accMetaChecksum != null)
+                writer.write(s.accMetaChecksum.toASCIIString());
+            else
+                writer.write("");
+            writer.endRecord();
+        }
+    }
+    
+    protected List<ObservationState> getInputStates()
+    {
+        return (List<ObservationState>) syncInput.getContent(StateListInlineContentHandler.STATES_KEY);
+    }
+    
+    protected List<ObservationStateBucket> getInputBuckets()
+    {
+        return (List<ObservationStateBucket>) syncInput.getContent(StateListInlineContentHandler.BUCKETS_KEY);
+    }
+    
+    protected InputStream getInputBulk()
+    {
+        return (InputStream) syncInput.getContent(BulkInlineContentHandler.CONTENT_KEY);
     }
     
     @Override
     protected InlineContentHandler getInlineContentHandler()
     {
-    	return new ObservationInlineContentHandler();
+        final InlineContentHandler obsHandler = new ObservationInlineContentHandler();
+        final InlineContentHandler stateHandler = new StateListInlineContentHandler();
+        final InlineContentHandler bulkHandler = new BulkInlineContentHandler();
+        return new InlineContentHandler()
+        {
+            @Override
+            public Content accept(String name, String contentType, InputStream inputStream) 
+                throws InlineContentException, IOException
+            {
+                if (contentType != null && contentType.startsWith(StateListInlineContentHandler.CONTENT_TYPE))
+                    return stateHandler.accept(name, contentType, inputStream);
+                if (contentType != null && contentType.startsWith(BulkInlineContentHandler.CONTENT_TYPE))
+                    return bulkHandler.accept(name, contentType, inputStream);
+                return obsHandler.accept(name, contentType, inputStream);
+            }
+        };
     }
 }
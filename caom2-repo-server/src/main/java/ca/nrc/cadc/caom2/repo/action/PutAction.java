@@ -105,15 +105,14 @@ public class PutAction extends RepoAction
         if ( !uri.equals(obs.getURI()) )
             throw new IllegalArgumentException("invalid input: " + uri);
         
+        validate(obs);
+
         ObservationDAO dao = getDAO();
         
-        if (dao.exists(uri))
+        if (!dao.create(obs))
             throw new ResourceAlreadyExistsException(
                     "already exists: " + uri);
-
-        validate(obs);
-
-        dao.put(obs);
+        ObservationCache.getInstance().invalidate(uri);
 
         log.debug("DONE: " + uri);
     }
@@ -74,8 +74,14 @@ import java.io.IOException;
 import java.net.URI;
 import java.security.AccessControlException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 
@@ -85,12 +91,11 @@ import ca.nrc.cadc.caom2.Observation;
 import ca.nrc.cadc.caom2.ObservationURI;
 import ca.nrc.cadc.caom2.Plane;
 import ca.nrc.cadc.caom2.compute.ComputeUtil;
-import ca.nrc.cadc.caom2.compute.PolygonUtil;
 import ca.nrc.cadc.caom2.persistence.DatabaseObservationDAO;
+import ca.nrc.cadc.caom2.persistence.HullCache;
 import ca.nrc.cadc.caom2.persistence.ObservationDAO;
 import ca.nrc.cadc.caom2.persistence.SQLGenerator;
 import ca.nrc.cadc.caom2.repo.CaomRepoConfig;
-import ca.nrc.cadc.caom2.types.Polygon;
 import ca.nrc.cadc.caom2.util.CaomValidator;
 import ca.nrc.cadc.cred.client.CredUtil;
 import ca.nrc.cadc.net.ResourceNotFoundException;
@@ -120,11 +125,19 @@ public abstract class RepoAction extends RestAction
 
     private final GroupURI CADC_GROUP_URI  = new GroupURI("ivo://cadc.nrc.ca/gms?CADC");
 
+    // max threads computing plane metadata for all requests
+    static final int MAX_COMPUTE_THREADS = 8;
+
+    // shared so that concurrent requests cannot use more than the available cores
+    private static final ForkJoinPool computePool = 
+            new ForkJoinPool(Math.min(Runtime.getRuntime().availableProcessors(), MAX_COMPUTE_THREADS));
+
     private String collection;
     protected ObservationURI uri;
 
     private transient CaomRepoConfig.Item repoConfig;
     private transient ObservationDAO dao;
+    private transient EncodedOutputStream encodedOutput;
 
     protected RepoAction() { }
 
@@ -191,6 +204,44 @@ public abstract class RepoAction extends RestAction
         return dao;
     }
 
+    /**
+     * Open the response body with the content coding (gzip or deflate) accepted by 
+     * the caller. Sets the Content-Encoding header so it must be called before the 
+     * first write; call finish() on the returned stream after the last write.
+     *
+     * @return response output
+     * @throws IOException 
+     */
+    protected EncodedOutputStream getEncodedOutputStream()
+        throws IOException
+    {
+        ResponseEncoding re = ResponseEncoding.getInstance();
+        String encoding = re.getEncoding(syncInput.getHeaders("Accept-Encoding"));
+        syncOutput.setHeader("Vary", getVary());
+        if (encoding != null)
+            syncOutput.setHeader("Content-Encoding", encoding);
+        this.encodedOutput = new EncodedOutputStream(syncOutput.getOutputStream(), encoding, re.getLevel());
+        return encodedOutput;
+    }
+
+    /**
+     * @return request headers that select the representation of the response body
+     */
+    protected String getVary()
+    {
+        return "Accept-Encoding";
+    }
+
+    /**
+     * Release the compressor of the response body. Call in a finally block: after a 
+     * failure finish() may not have been called.
+     */
+    protected void endEncodedOutputStream()
+    {
+        if (encodedOutput != null)
+            encodedOutput.end();
+    }
+
     // read the input stream (POST and PUT) and extract the observation from the XML document
     protected Observation getInputObservation()
         throws IOException
@@ -282,6 +333,22 @@ public abstract class RepoAction extends RestAction
     protected void checkWritePermission(ObservationURI uri)
         throws AccessControlException, CertificateException,
                ResourceNotFoundException, IOException
+    {
+        checkWritePermission(uri.getCollection());
+    }
+    
+    /**
+     * Check if the caller can create or modify resources in the specified collection.
+     *
+     * @param collection
+     * @throws AccessControlException
+     * @throws java.security.cert.CertificateException
+     * @throws ca.nrc.cadc.net.ResourceNotFoundException
+     * @throws java.io.IOException
+     */
+    protected void checkWritePermission(String collection)
+        throws AccessControlException, CertificateException,
+               ResourceNotFoundException, IOException
     {
         initState();
         if (!writable)
@@ -291,10 +358,10 @@ public abstract class RepoAction extends RestAction
             throw new IllegalStateException(OFFLINE_MSG);
         }
 
-        CaomRepoConfig.Item i = getConfig(uri.getCollection());
+        CaomRepoConfig.Item i = getConfig(collection);
         if (i == null)
             throw new ResourceNotFoundException(
-                    "not found: " + uri);
+                    "not found: " + collection);
 
         try
         {
@@ -329,38 +396,97 @@ public abstract class RepoAction extends RestAction
             // this used to be in the CaomValidator but computation was removed from the core model
             // however the concept of transient state is likely to be removed in the near future so
             // this is temporary to keep current behaviour
-            for (Plane p : obs.getPlanes())
+            if (obs.getPlanes().size() < 2)
             {
-                try
-                {
-                    ComputeUtil.clearTransientState(p);
-                    ComputeUtil.computeTransientState(obs, p);
-                    if (p.position != null && p.position.bounds != null)
-                    {
-                        Polygon poly = PolygonUtil.toPolygon(p.position.bounds);
-                        PolygonUtil.getOuterHull(poly);
-                    }
-                }
-                catch(Error er)
-                {
-                    throw new RuntimeException("failed to compute metadata for plane " + p.getProductID(), er);
-                }
-                catch(Exception ex)
-                {
-                    throw new IllegalArgumentException("failed to compute metadata for plane " + p.getProductID(), ex);
-                }
+                for (Plane p : obs.getPlanes())
+                    compute(obs, p);
             }
+            else
+                computeParallel(obs);
             // end: temporary
         } 
         catch (IllegalArgumentException ex)
         {
         	log.debug(ex.getMessage(), ex);
-        	throw new IllegalArgumentException("invalid input: " + uri, ex);
+        	throw new IllegalArgumentException("invalid input: " + obs.getURI(), ex);
         }
         catch (RuntimeException ex)
         {
         	log.debug(ex.getMessage(), ex);
-        	throw new RuntimeException("invalid input: " + uri, ex);
+        	throw new RuntimeException("invalid input: " + obs.getURI(), ex);
+        }
+    }
+
+    // compute planes in the shared pool; the first failure in plane order is thrown
+    // after all planes are done
+    private void computeParallel(final Observation obs)
+    {
+        long t = System.currentTimeMillis();
+        List<Future<Object>> tasks = new ArrayList<Future<Object>>(obs.getPlanes().size());
+        for (final Plane p : obs.getPlanes())
+        {
+            tasks.add(computePool.submit(new Callable<Object>()
+            {
+                @Override
+                public Object call()
+                {
+                    compute(obs, p);
+                    return null;
+                }
+            }));
+        }
+        
+        RuntimeException fail = null;
+        try
+        {
+            for (Future<Object> f : tasks)
+            {
+                try
+                {
+                    f.get();
+                }
+                catch (ExecutionException ex)
+                {
+                    if (fail == null)
+                    {
+                        if (ex.getCause() instanceof RuntimeException)
+                            fail = (RuntimeException) ex.getCause();
+                        else
+                            fail = new RuntimeException("failed to compute metadata", ex.getCause());
+                    }
+                }
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            for (Future<Object> f : tasks)
+                f.cancel(true);
+            throw new RuntimeException("interrupted while computing metadata", ex);
+        }
+        if (fail != null)
+            throw fail;
+        
+        long dt = System.currentTimeMillis() - t;
+        log.debug("compute: " + obs.getURI() + " " + tasks.size() + " planes " + dt + "ms");
+    }
+    
+    static void compute(Observation obs, Plane p)
+    {
+        try
+        {
+            ComputeUtil.clearTransientState(p);
+            ComputeUtil.computeTransientState(obs, p);
+            // cached for safeSetPolygon when the plane is stored
+            if (p.position != null && p.position.bounds != null)
+                HullCache.getInstance().getOuterHull(p.position.bounds);
+        }
+        catch(Error er)
+        {
+            throw new RuntimeException("failed to compute metadata for plane " + p.getProductID(), er);
+        }
+        catch(Exception ex)
+        {
+            throw new IllegalArgumentException("failed to compute metadata for plane " + p.getProductID(), ex);
         }
     }
 
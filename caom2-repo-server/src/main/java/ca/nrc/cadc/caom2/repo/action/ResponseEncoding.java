@@ -0,0 +1,292 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2016.                            (c) 2016.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.caom2.repo.action;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Content coding of responses: choose gzip or deflate from the Accept-Encoding 
+ * request header and keep byte counts before and after compression. The compression 
+ * level is set with the system property ca.nrc.cadc.caom2.repo.action.ResponseEncoding.level
+ * (1-9, 0 to disable compression) or through JMX.
+ *
+ * @author pdowler
+ */
+public class ResponseEncoding implements ResponseEncodingMBean
+{
+    private static final Logger log = Logger.getLogger(ResponseEncoding.class);
+    
+    public static final String OBJECT_NAME = "ca.nrc.cadc.caom2.repo:type=ResponseEncoding";
+    public static final String LEVEL_KEY = ResponseEncoding.class.getName() + ".level";
+    
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    
+    // xml and tsv compress well at the low levels, higher levels mostly cost cpu
+    public static final int DEFAULT_LEVEL = 4;
+    
+    private static final ResponseEncoding INSTANCE = new ResponseEncoding(getConfiguredLevel());
+    
+    static
+    {
+        INSTANCE.register();
+    }
+    
+    private int level;
+    private long responses;
+    private long encodedResponses;
+    private long bytes;
+    private long encodedBytes;
+    // bytes before and after compression of the encoded responses
+    private long encodedInput;
+    private long encodedOutput;
+    
+    ResponseEncoding(int level)
+    {
+        setLevel(level);
+    }
+    
+    public static ResponseEncoding getInstance()
+    {
+        return INSTANCE;
+    }
+    
+    private static int getConfiguredLevel()
+    {
+        String val = System.getProperty(LEVEL_KEY);
+        if (val == null)
+            return DEFAULT_LEVEL;
+        try
+        {
+            return Integer.parseInt(val.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            log.warn("invalid " + LEVEL_KEY + ": " + val + " using " + DEFAULT_LEVEL);
+            return DEFAULT_LEVEL;
+        }
+    }
+    
+    private void register()
+    {
+        try
+        {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName(OBJECT_NAME);
+            if (!mbs.isRegistered(on))
+                mbs.registerMBean(this, on);
+            log.debug("registered: " + OBJECT_NAME);
+        }
+        catch (Exception ex)
+        {
+            log.warn("failed to register MBean " + OBJECT_NAME + ": " + ex);
+        }
+    }
+    
+    /**
+     * Choose the content coding for a response.
+     * 
+     * @param acceptEncoding values of the Accept-Encoding header
+     * @return GZIP, DEFLATE, or null for no coding
+     */
+    public String getEncoding(List<String> acceptEncoding)
+    {
+        if (getLevel() == 0 || acceptEncoding == null)
+            return null;
+        
+        // q values, -1 if not listed
+        double gzip = -1.0;
+        double deflate = -1.0;
+        double any = -1.0;
+        for (String header : acceptEncoding)
+        {
+            for (String s : header.split(","))
+            {
+                String[] parts = s.split(";");
+                String coding = parts[0].trim().toLowerCase();
+                double q = 1.0;
+                for (int i = 1; i < parts.length; i++)
+                {
+                    String p = parts[i].trim();
+                    if (p.startsWith("q="))
+                    {
+                        try
+                        {
+                            q = Double.parseDouble(p.substring(2));
+                        }
+                        catch (NumberFormatException ex)
+                        {
+                            q = 0.0;
+                        }
+                    }
+                }
+                if (GZIP.equals(coding) || "x-gzip".equals(coding))
+                    gzip = q;
+                else if (DEFLATE.equals(coding))
+                    deflate = q;
+                else if ("*".equals(coding))
+                    any = q;
+            }
+        }
+        if (gzip < 0.0)
+            gzip = any;
+        if (deflate < 0.0)
+            deflate = any;
+        if (gzip > 0.0 && gzip >= deflate)
+            return GZIP;
+        if (deflate > 0.0)
+            return DEFLATE;
+        return null;
+    }
+    
+    /**
+     * Record a completed response.
+     * 
+     * @param encoding content coding or null
+     * @param numBytes bytes before compression
+     * @param numEncodedBytes bytes after compression
+     */
+    synchronized void add(String encoding, long numBytes, long numEncodedBytes)
+    {
+        responses++;
+        bytes += numBytes;
+        encodedBytes += numEncodedBytes;
+        if (encoding != null)
+        {
+            encodedResponses++;
+            encodedInput += numBytes;
+            encodedOutput += numEncodedBytes;
+        }
+    }
+    
+    @Override
+    public synchronized long getResponses()
+    {
+        return responses;
+    }
+    
+    @Override
+    public synchronized long getEncodedResponses()
+    {
+        return encodedResponses;
+    }
+    
+    @Override
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+    
+    @Override
+    public synchronized long getEncodedBytes()
+    {
+        return encodedBytes;
+    }
+    
+    @Override
+    public synchronized double getCompressionRatio()
+    {
+        if (encodedOutput == 0L)
+            return 0.0;
+        return ((double) encodedInput) / encodedOutput;
+    }
+    
+    @Override
+    public synchronized int getLevel()
+    {
+        return level;
+    }
+    
+    @Override
+    public synchronized void setLevel(int level)
+    {
+        if (level < 0 || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("invalid compression level: " + level);
+        this.level = level;
+    }
+    
+    @Override
+    public synchronized void clear()
+    {
+        responses = 0L;
+        encodedResponses = 0L;
+        bytes = 0L;
+        encodedBytes = 0L;
+        encodedInput = 0L;
+        encodedOutput = 0L;
+    }
+}
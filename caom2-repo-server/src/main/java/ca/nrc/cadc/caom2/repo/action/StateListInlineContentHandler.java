@@ -0,0 +1,201 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2017.                            (c) 2017.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.caom2.repo.action;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.csvreader.CsvReader;
+
+import ca.nrc.cadc.caom2.ObservationState;
+import ca.nrc.cadc.caom2.ObservationStateBucket;
+import ca.nrc.cadc.caom2.ObservationURI;
+import ca.nrc.cadc.date.DateUtil;
+import ca.nrc.cadc.io.ByteCountInputStream;
+import ca.nrc.cadc.io.ByteLimitExceededException;
+import ca.nrc.cadc.rest.InlineContentException;
+import ca.nrc.cadc.rest.InlineContentHandler;
+
+/**
+ * Parse a tab-separated list of observation states or state buckets. State 
+ * records use the same format as the observation list output (collection, 
+ * observationID, maxLastModified, accMetaChecksum) with an optional (empty)
+ * maxLastModified. Bucket records are (start, end, digest). All records in a 
+ * document must be of the same type.
+ * 
+ * @author pdowler
+ */
+public class StateListInlineContentHandler implements InlineContentHandler
+{
+    private static Logger log = Logger.getLogger(StateListInlineContentHandler.class);
+
+    // 64MB document size limit: roughly 1M states
+    private static final long DOCUMENT_SIZE_MAX = 67108864L;
+
+    public static final String CONTENT_TYPE = "text/tab-separated-values";
+    
+    public static final String STATES_KEY = "obs_states";
+    public static final String BUCKETS_KEY = "obs_buckets";
+
+    public StateListInlineContentHandler() { }
+
+    public Content accept(String name, String contentType, InputStream inputStream)
+        throws InlineContentException, IOException
+    {
+        if (inputStream == null)
+            throw new IOException("The InputStream is closed");
+
+        ByteCountInputStream sizeLimitInputStream =
+            new ByteCountInputStream(inputStream, DOCUMENT_SIZE_MAX);
+
+        DateFormat df = DateUtil.getDateFormat(DateUtil.IVOA_DATE_FORMAT, DateUtil.UTC);
+        List<ObservationState> states = new ArrayList<ObservationState>();
+        List<ObservationStateBucket> buckets = new ArrayList<ObservationStateBucket>();
+        CsvReader reader = new CsvReader(new InputStreamReader(sizeLimitInputStream, "US-ASCII"), '\t');
+        try
+        {
+            while (reader.readRecord())
+            {
+                int n = reader.getColumnCount();
+                if (n == 4)
+                {
+                    ObservationState s = new ObservationState(new ObservationURI(reader.get(0), reader.get(1)));
+                    s.maxLastModified = parseDate(df, reader.get(2));
+                    s.accMetaChecksum = parseURI(reader.get(3));
+                    states.add(s);
+                }
+                else if (n == 3)
+                {
+                    ObservationStateBucket b = new ObservationStateBucket(parseDate(df, reader.get(0)), parseDate(df, reader.get(1)));
+                    b.digest = parseURI(reader.get(2));
+                    buckets.add(b);
+                }
+                else if (n > 0)
+                    throw new InlineContentException("invalid record: expected 3 or 4 columns, found " + n);
+                
+                if (!states.isEmpty() && !buckets.isEmpty())
+                    throw new InlineContentException("invalid input: cannot mix state and bucket records");
+            }
+        }
+        catch(ParseException | URISyntaxException | IllegalArgumentException ex)
+        {
+            throw new InlineContentException("failed to parse state list", ex);
+        }
+        catch(ByteLimitExceededException ex)
+        {
+            log.debug(ex.getMessage(), ex);
+            throw new ByteLimitExceededException("too large: ", ex.getLimit());
+        }
+        finally
+        {
+            reader.close();
+        }
+        
+        InlineContentHandler.Content content = new InlineContentHandler.Content();
+        if (buckets.isEmpty())
+        {
+            content.name = STATES_KEY;
+            content.value = states;
+        }
+        else
+        {
+            content.name = BUCKETS_KEY;
+            content.value = buckets;
+        }
+        log.debug("accept: " + states.size() + " states, " + buckets.size() + " buckets");
+        return content;
+    }
+    
+    private Date parseDate(DateFormat df, String s)
+        throws ParseException
+    {
+        if (s == null || s.isEmpty())
+            return null;
+        return df.parse(s);
+    }
+    
+    private URI parseURI(String s)
+        throws URISyntaxException
+    {
+        if (s == null || s.isEmpty())
+            return null;
+        return new URI(s);
+    }
+}
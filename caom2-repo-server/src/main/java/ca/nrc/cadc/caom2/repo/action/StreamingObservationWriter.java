@@ -0,0 +1,265 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2016.                            (c) 2016.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.caom2.repo.action;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.log4j.Logger;
+
+import ca.nrc.cadc.caom2.Observation;
+import ca.nrc.cadc.caom2.Plane;
+import ca.nrc.cadc.caom2.persistence.ObservationStreamHandler;
+import ca.nrc.cadc.caom2.xml.ObservationWriter;
+
+/**
+ * Write an observation document one plane at a time. Each plane is written with the 
+ * ObservationWriter as the only plane of the observation and the plane element is 
+ * copied to the output, so the result is identical to writing the complete observation
+ * with the same ObservationWriter while only one plane is in memory. Planes must be 
+ * passed in the order of Observation.getPlanes (productID).
+ *
+ * @author pdowler
+ */
+public class StreamingObservationWriter implements ObservationStreamHandler
+{
+    private static final Logger log = Logger.getLogger(StreamingObservationWriter.class);
+    
+    private static final byte[] PLANES = new byte[] { 'p', 'l', 'a', 'n', 'e', 's', '>' };
+    
+    private final ObservationWriter writer;
+    private final OutputStream out;
+    private final DocumentBuffer buf = new DocumentBuffer();
+    
+    private Observation obs;
+    private byte[] tail;
+    private int numPlanes;
+
+    public StreamingObservationWriter(ObservationWriter writer, OutputStream out)
+    {
+        this.writer = writer;
+        this.out = out;
+    }
+
+    @Override
+    public void start(Observation obs)
+        throws IOException
+    {
+        this.obs = obs;
+        this.tail = null;
+        this.numPlanes = 0;
+    }
+
+    @Override
+    public void plane(Plane plane)
+        throws IOException
+    {
+        obs.getPlanes().clear();
+        obs.getPlanes().add(plane);
+        buf.reset();
+        writer.write(obs, buf);
+        obs.getPlanes().clear();
+        
+        byte[] doc = buf.getBuffer();
+        int len = buf.size();
+        int[] range = findPlane(doc, len);
+        if (tail == null)
+        {
+            // everything before the plane is the same for all planes
+            out.write(doc, 0, range[0]);
+            tail = new byte[len - range[1]];
+            System.arraycopy(doc, range[1], tail, 0, tail.length);
+        }
+        out.write(doc, range[0], range[1] - range[0]);
+        numPlanes++;
+    }
+
+    @Override
+    public void end(Observation obs)
+        throws IOException
+    {
+        if (tail == null)
+        {
+            // no planes
+            buf.reset();
+            writer.write(obs, buf);
+            out.write(buf.getBuffer(), 0, buf.size());
+        }
+        else
+            out.write(tail);
+        out.flush();
+        log.debug("wrote " + obs.getURI() + " planes: " + numPlanes);
+        this.obs = null;
+        this.tail = null;
+    }
+
+    /**
+     * Find the plane element in a document with one plane. With a pretty format 
+     * the range is the complete lines of the plane element so the ranges of several
+     * planes can be concatenated. The tags and line breaks are ASCII so the UTF-8
+     * document is scanned in place.
+     * 
+     * @param doc UTF-8 document
+     * @param len length of the document in doc
+     * @return start and end offset of the plane element
+     */
+    static int[] findPlane(byte[] doc, int len)
+    {
+        // markup characters are always escaped in content so the tags are unique:
+        // start is after the first planes tag and end at the last one
+        int start = -1;
+        int end = -1;
+        for (int i = 0; i < len; i++)
+        {
+            if (doc[i] == '<')
+            {
+                int tagEnd = matchPlanesTag(doc, len, i);
+                if (tagEnd > 0)
+                {
+                    if (start < 0)
+                        start = tagEnd;
+                    else
+                        end = i;
+                    i = tagEnd - 1;
+                }
+            }
+        }
+        if (start < 0 || end < 0)
+            throw new IllegalStateException("BUG: planes element not found in document");
+        
+        int nl = lastIndexOf(doc, '\n', indexOf(doc, len, '<', start));
+        if (nl >= start)
+            start = nl + 1;
+        nl = lastIndexOf(doc, '\n', end);
+        if (nl > lastIndexOf(doc, '>', end - 1))
+            end = nl + 1;
+        return new int[] { start, end };
+    }
+    
+    // match </?(\w+:)?planes> at i; returns the offset after the tag or -1
+    private static int matchPlanesTag(byte[] doc, int len, int i)
+    {
+        int j = i + 1;
+        if (j < len && doc[j] == '/')
+            j++;
+        int k = j;
+        while (k < len && isWordChar(doc[k]))
+            k++;
+        if (k > j && k < len && doc[k] == ':')
+            j = k + 1;
+        for (byte b : PLANES)
+        {
+            if (j >= len || doc[j] != b)
+                return -1;
+            j++;
+        }
+        return j;
+    }
+    
+    private static boolean isWordChar(byte b)
+    {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '_';
+    }
+    
+    private static int indexOf(byte[] doc, int len, char c, int from)
+    {
+        for (int i = from; i < len; i++)
+        {
+            if (doc[i] == c)
+                return i;
+        }
+        return -1;
+    }
+    
+    private static int lastIndexOf(byte[] doc, char c, int from)
+    {
+        for (int i = Math.min(from, doc.length - 1); i >= 0; i--)
+        {
+            if (doc[i] == c)
+                return i;
+        }
+        return -1;
+    }
+    
+    // reusable buffer with access to the content without a copy
+    private static class DocumentBuffer extends ByteArrayOutputStream
+    {
+        DocumentBuffer()
+        {
+            super(8192);
+        }
+        
+        byte[] getBuffer()
+        {
+            return buf;
+        }
+    }
+}
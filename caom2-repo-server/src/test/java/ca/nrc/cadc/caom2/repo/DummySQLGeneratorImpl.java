@@ -72,6 +72,7 @@ package ca.nrc.cadc.caom2.repo;
 
 import java.net.URI;
 import java.util.Date;
+import java.util.List;
 import java.util.UUID;
 
 import org.apache.log4j.Logger;
@@ -82,8 +83,11 @@ import ca.nrc.cadc.caom2.CaomEntity;
 import ca.nrc.cadc.caom2.DeletedEntity;
 import ca.nrc.cadc.caom2.ObservationURI;
 import ca.nrc.cadc.caom2.access.ReadAccess;
+import ca.nrc.cadc.caom2.persistence.EntityBatchDelete;
+import ca.nrc.cadc.caom2.persistence.EntityBatchPut;
 import ca.nrc.cadc.caom2.persistence.EntityDelete;
 import ca.nrc.cadc.caom2.persistence.EntityPut;
+import ca.nrc.cadc.caom2.persistence.ObservationStreamHandler;
 import ca.nrc.cadc.caom2.persistence.SQLGenerator;
 import ca.nrc.cadc.caom2.persistence.skel.Skeleton;
 
@@ -133,6 +137,12 @@ public class DummySQLGeneratorImpl implements SQLGenerator
         throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
     }
 
+    @Override
+    public String getSelectSQL(Class type, List<UUID> ids)
+    {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
     @Override
     public String getSelectLastModifiedRangeSQL(Class type, Date date, Date date1, Integer intgr)
     {
@@ -163,12 +173,42 @@ public class DummySQLGeneratorImpl implements SQLGenerator
         throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
     }
 
+    @Override
+    public String getStreamSelectSQL(ObservationURI uri)
+    {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    @Override
+    public ResultSetExtractor getObservationStreamExtractor(ObservationStreamHandler handler)
+    {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
     @Override
     public RowMapper getObservationStateMapper()
     {
         throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
     }
 
+    @Override
+    public String getObservationStateSQL(ObservationURI uri)
+    {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    @Override
+    public String getObservationBucketSQL(String collection, Date minLastModified, Date maxLastModified, long bucketSize)
+    {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
+    @Override
+    public ResultSetExtractor getObservationBucketExtractor(long bucketSize)
+    {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
     @Override
     public Class<? extends Skeleton> getSkeletonClass(Class type)
     {
@@ -187,6 +227,12 @@ public class DummySQLGeneratorImpl implements SQLGenerator
         throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
     }
 
+    @Override
+    public RowMapper getReadAccessSkeletonMapper(Class<? extends Skeleton> type)
+    {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
     @Override
     public RowMapper getDeletedEntityMapper(Class<? extends DeletedEntity> type)
     {
@@ -205,12 +251,24 @@ public class DummySQLGeneratorImpl implements SQLGenerator
         throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
     }
 
+    @Override
+    public EntityBatchPut getEntityBatchPut(Class<? extends CaomEntity> type, boolean bln)
+    {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
     @Override
     public EntityDelete getEntityDelete(Class<? extends CaomEntity> type, boolean bln)
     {
         throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
     }
 
+    @Override
+    public EntityBatchDelete getEntityBatchDelete(Class<? extends CaomEntity> type)
+    {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
     @Override
     public String literal(Object o)
     {
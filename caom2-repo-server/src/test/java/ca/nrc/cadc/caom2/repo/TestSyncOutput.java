@@ -128,6 +128,11 @@ public class TestSyncOutput extends SyncOutput
         return new String(bytes);
     }
 
+    public byte[] getBytes()
+    {
+        return ((ByteArrayOutputStream) outputStream).toByteArray();
+    }
+
     public int getCode()
     {
         return code;
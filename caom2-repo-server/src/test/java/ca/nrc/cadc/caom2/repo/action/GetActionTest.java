@@ -74,9 +74,13 @@ import static org.easymock.EasyMock.mock;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.reset;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.security.AccessControlException;
+import java.security.MessageDigest;
 import java.security.cert.CertificateException;
 import java.text.DateFormat;
 import java.util.ArrayList;
@@ -84,6 +88,10 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -91,15 +99,24 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.easymock.EasyMock;
 import org.easymock.EasyMockRunner;
+import org.easymock.IAnswer;
 import org.easymock.MockType;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import ca.nrc.cadc.caom2.Observation;
 import ca.nrc.cadc.caom2.ObservationState;
+import ca.nrc.cadc.caom2.ObservationURI;
+import ca.nrc.cadc.caom2.SimpleObservation;
+import ca.nrc.cadc.caom2.binary.BinaryObservationReader;
+import ca.nrc.cadc.caom2.binary.BinaryObservationWriter;
 import ca.nrc.cadc.caom2.persistence.ObservationDAO;
+import ca.nrc.cadc.caom2.persistence.ObservationStreamHandler;
 import ca.nrc.cadc.caom2.repo.TestSyncOutput;
+import ca.nrc.cadc.caom2.util.CaomUtil;
+import ca.nrc.cadc.caom2.xml.XmlConstants;
 import ca.nrc.cadc.date.DateUtil;
 import ca.nrc.cadc.log.WebServiceLogInfo;
 import ca.nrc.cadc.net.ResourceNotFoundException;
@@ -147,6 +164,7 @@ public class GetActionTest
 
         Enumeration<String> params = Collections.emptyEnumeration();
         expect(mockRequest.getParameterNames()).andReturn(params);
+        expect(mockRequest.getHeaders("Accept-Encoding")).andReturn(Collections.<String>emptyEnumeration()).anyTimes();
         replay(mockDao, mockRequest);
         getAction.setSyncInput(new SyncInput(mockRequest, getAction.getInlineContentHandler()));
         getAction.doAction();
@@ -179,6 +197,7 @@ public class GetActionTest
         obsList.add(new ObservationState("TEST", "6789", date2, check2));
         Enumeration<String> params = Collections.emptyEnumeration();
         expect(mockRequest.getParameterNames()).andReturn(params);
+        expect(mockRequest.getHeaders("Accept-Encoding")).andReturn(Collections.<String>emptyEnumeration()).anyTimes();
 
         // since no maxRec argument given, expect the default one
         expect(mockDao.getObservationList("TEST", null, null,
@@ -216,6 +235,7 @@ public class GetActionTest
         String endDate = "2011-11-11T11:11:11.111";
         params = Collections.enumeration(keys);
         expect(mockRequest.getParameterNames()).andReturn(params);
+        expect(mockRequest.getHeaders("Accept-Encoding")).andReturn(Collections.<String>emptyEnumeration()).anyTimes();
         expect(mockRequest.getParameterValues("MAXREC")).
             andReturn(new String[]{"3"});
         expect(mockRequest.getParameterValues("Start")).
@@ -236,6 +256,378 @@ public class GetActionTest
 
 
 
+    @Test
+    public void testGetObservationCached() throws Exception
+    {
+        ObservationCache cache = ObservationCache.getInstance();
+        cache.clear();
+        
+        ObservationURI uri = new ObservationURI("TEST", "foo");
+        URI check1 = URI.create("md5:5b71d023d4729575d550536dce8439e6");
+        URI check2 = URI.create("md5:aedbcf5e27a17fc2daa5a0e0d7840009");
+        ObservationState s1 = new ObservationState("TEST", "foo", new Date(), check1);
+        ObservationState s2 = new ObservationState("TEST", "foo", new Date(), check2);
+        
+        reset(mockDao);
+        // first: load and cache, second: cached, third: checksum changed so reload
+        expect(mockDao.getState(uri)).andReturn(s1).times(2);
+        expect(mockDao.getState(uri)).andReturn(s2);
+        expect(mockDao.stream(EasyMock.eq(uri), EasyMock.<ObservationStreamHandler>anyObject()))
+            .andAnswer(new StreamAnswer(new SimpleObservation("TEST", "foo"), null, 0L)).times(2);
+        replay(mockDao);
+        
+        String[] content = new String[3];
+        for (int i = 0; i < 3; i++)
+        {
+            HttpServletRequest mockRequest = mock(HttpServletRequest.class);
+            expect(mockRequest.getMethod()).andReturn("GET");
+            expect(mockRequest.getPathInfo()).andReturn("/TEST/foo");
+            Enumeration<String> params = Collections.emptyEnumeration();
+            expect(mockRequest.getParameterNames()).andReturn(params);
+            expect(mockRequest.getHeaders("Accept")).andReturn(Collections.<String>emptyEnumeration()).anyTimes();
+            expect(mockRequest.getHeaders("Accept-Encoding")).andReturn(Collections.<String>emptyEnumeration()).anyTimes();
+            replay(mockRequest);
+            
+            GetAction getAction = new TestGetAction(mockDao);
+            TestSyncOutput out = new TestSyncOutput();
+            getAction.setSyncOutput(out);
+            getAction.setSyncInput(new SyncInput(mockRequest, getAction.getInlineContentHandler()));
+            getAction.run();
+            content[i] = out.getContent();
+            log.debug("content " + i + ":\n" + content[i]);
+        }
+        
+        Assert.assertTrue(content[0].contains("foo"));
+        Assert.assertEquals(content[0], content[1]);
+        Assert.assertEquals(content[0], content[2]);
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getStale());
+        Assert.assertEquals(1, cache.getEntries());
+        EasyMock.verify(mockDao);
+        
+        cache.invalidate(uri);
+        Assert.assertEquals(0, cache.getEntries());
+        Assert.assertEquals(0L, cache.getBytes());
+    }
+
+    @Test
+    public void testGetCompressed() throws Exception
+    {
+        ObservationCache.getInstance().clear();
+        ObservationURI uri = new ObservationURI("TEST", "gz");
+        URI check = URI.create("md5:5b71d023d4729575d550536dce8439e6");
+        reset(mockDao);
+        expect(mockDao.getState(uri)).andReturn(new ObservationState("TEST", "gz", new Date(), check)).anyTimes();
+        expect(mockDao.stream(EasyMock.eq(uri), EasyMock.<ObservationStreamHandler>anyObject()))
+            .andAnswer(new StreamAnswer(new SimpleObservation("TEST", "gz"), null, 0L)).times(1);
+        replay(mockDao);
+
+        // first loads, second from cache
+        String[] accept = new String[] { null, "gzip", "deflate", "gzip;q=0.5, deflate", "identity, gzip;q=0" };
+        String[] expected = new String[] { null, "gzip", "deflate", "deflate", null };
+        String doc = null;
+        for (int i = 0; i < accept.length; i++)
+        {
+            HttpServletRequest mockRequest = mock(HttpServletRequest.class);
+            expect(mockRequest.getMethod()).andReturn("GET");
+            expect(mockRequest.getPathInfo()).andReturn("/TEST/gz");
+            Enumeration<String> params = Collections.emptyEnumeration();
+            expect(mockRequest.getParameterNames()).andReturn(params);
+            List<String> ae = new ArrayList<String>();
+            if (accept[i] != null)
+                ae.add(accept[i]);
+            expect(mockRequest.getHeaders("Accept")).andReturn(Collections.<String>emptyEnumeration()).anyTimes();
+            expect(mockRequest.getHeaders("Accept-Encoding")).andReturn(Collections.enumeration(ae)).anyTimes();
+            replay(mockRequest);
+
+            GetAction getAction = new TestGetAction(mockDao);
+            TestSyncOutput out = new TestSyncOutput();
+            getAction.setSyncOutput(out);
+            getAction.setSyncInput(new SyncInput(mockRequest, getAction.getInlineContentHandler()));
+            getAction.run();
+
+            Assert.assertEquals(accept[i], expected[i], out.getHeaders().get("Content-Encoding"));
+            Assert.assertEquals("Accept, Accept-Encoding", out.getHeaders().get("Vary"));
+            InputStream in = new ByteArrayInputStream(out.getBytes());
+            if ("gzip".equals(expected[i]))
+                in = new GZIPInputStream(in);
+            else if ("deflate".equals(expected[i]))
+                in = new InflaterInputStream(in);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n = in.read(buf);
+            while (n > 0)
+            {
+                bos.write(buf, 0, n);
+                n = in.read(buf);
+            }
+            String content = bos.toString("UTF-8");
+            if (doc == null)
+                doc = content;
+            Assert.assertTrue(content.contains("gz"));
+            Assert.assertEquals(doc, content);
+        }
+        EasyMock.verify(mockDao);
+    }
+
+    @Test
+    public void testGetBinary() throws Exception
+    {
+        ObservationCache.getInstance().clear();
+        ObservationURI uri = new ObservationURI("TEST", "bin");
+        Observation obs = new SimpleObservation("TEST", "bin");
+        obs.type = "OBJECT";
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        CaomUtil.assignMetaChecksum(obs, obs.computeMetaChecksum(md), "metaChecksum");
+        CaomUtil.assignMetaChecksum(obs, obs.computeAccMetaChecksum(md), "accMetaChecksum");
+        URI check = obs.getAccMetaChecksum();
+
+        reset(mockDao);
+        expect(mockDao.getState(uri)).andReturn(new ObservationState("TEST", "bin", new Date(), check)).anyTimes();
+        AtomicInteger loads = new AtomicInteger();
+        expect(mockDao.stream(EasyMock.eq(uri), EasyMock.<ObservationStreamHandler>anyObject()))
+            .andAnswer(new StreamAnswer(obs, loads, 0L)).anyTimes();
+        replay(mockDao);
+
+        // first loads, second from cache, then refused and 2.2: xml
+        String client = BinaryObservationWriter.CONTENT_TYPE + ", text/x-caom+xml;q=0.9";
+        String[] accept = new String[] { client, BinaryObservationWriter.CONTENT_TYPE,
+            BinaryObservationWriter.CONTENT_TYPE + ";q=0, text/x-caom+xml", client };
+        for (int i = 0; i < accept.length; i++)
+        {
+            HttpServletRequest mockRequest = mock(HttpServletRequest.class);
+            expect(mockRequest.getMethod()).andReturn("GET");
+            expect(mockRequest.getPathInfo()).andReturn("/TEST/bin");
+            Enumeration<String> params = Collections.emptyEnumeration();
+            expect(mockRequest.getParameterNames()).andReturn(params);
+            expect(mockRequest.getHeaders("Accept")).andReturn(Collections.enumeration(Collections.singletonList(accept[i]))).anyTimes();
+            expect(mockRequest.getHeaders("Accept-Encoding")).andReturn(Collections.<String>emptyEnumeration()).anyTimes();
+            replay(mockRequest);
+
+            GetAction getAction = (i == 3 ? new TestGetAction22(mockDao) : new TestGetAction(mockDao));
+            TestSyncOutput out = new TestSyncOutput();
+            getAction.setSyncOutput(out);
+            getAction.setSyncInput(new SyncInput(mockRequest, getAction.getInlineContentHandler()));
+            getAction.run();
+
+            // 2.2 documents are always xml
+            if (i < 3)
+                Assert.assertEquals("Accept, Accept-Encoding", out.getHeaders().get("Vary"));
+            else
+                Assert.assertEquals("Accept-Encoding", out.getHeaders().get("Vary"));
+            if (i < 2)
+            {
+                Assert.assertEquals(BinaryObservationWriter.CONTENT_TYPE, out.getHeaders().get("Content-Type"));
+                Observation actual = new BinaryObservationReader().read(new ByteArrayInputStream(out.getBytes()));
+                Assert.assertEquals(uri, actual.getURI());
+                Assert.assertEquals(check, actual.getAccMetaChecksum());
+                Assert.assertEquals(check, actual.computeAccMetaChecksum(md));
+                Assert.assertEquals("binary loads", 1, loads.get());
+            }
+            else
+            {
+                Assert.assertEquals(GetAction.CAOM_MIMETYPE, out.getHeaders().get("Content-Type"));
+                Assert.assertTrue(out.getContent().contains("bin"));
+            }
+        }
+        EasyMock.verify(mockDao);
+    }
+
+    static final int HERD_SIZE = 32;
+    static final long HERD_LOAD_TIME = 200L;
+
+    @Test
+    public void testGetObservationCoalesced() throws Exception
+    {
+        ObservationCache.getInstance().clear();
+        final AtomicInteger loads = new AtomicInteger();
+
+        // no accMetaChecksum: never cached so every request has to load
+        ObservationURI uri = new ObservationURI("TEST", "herd");
+        ObservationState state = new ObservationState("TEST", "herd", new Date(), null);
+        reset(mockDao);
+        expect(mockDao.getState(uri)).andReturn(state).anyTimes();
+        expect(mockDao.stream(EasyMock.eq(uri), EasyMock.<ObservationStreamHandler>anyObject()))
+            .andAnswer(new StreamAnswer(new SimpleObservation("TEST", "herd"), loads, HERD_LOAD_TIME)).anyTimes();
+        replay(mockDao);
+
+        long t = System.currentTimeMillis();
+        TestSyncOutput[] out = runHerd("/TEST/herd");
+        long dt = System.currentTimeMillis() - t;
+        log.info("herd: " + HERD_SIZE + " requests " + loads.get() + " loads " + dt + "ms");
+
+        String expected = out[0].getContent();
+        Assert.assertTrue(expected.contains("herd"));
+        for (TestSyncOutput o : out)
+            Assert.assertEquals(expected, o.getContent());
+        Assert.assertTrue("loads: " + loads.get(), loads.get() < HERD_SIZE);
+    }
+
+    @Test
+    public void testGetObservationCoalescedFail() throws Exception
+    {
+        ObservationCache.getInstance().clear();
+        final AtomicInteger loads = new AtomicInteger();
+
+        // deleted after getState: all waiters get the not found from the shared load
+        ObservationURI uri = new ObservationURI("TEST", "gone");
+        ObservationState state = new ObservationState("TEST", "gone", new Date(), null);
+        reset(mockDao);
+        expect(mockDao.getState(uri)).andReturn(state).anyTimes();
+        expect(mockDao.stream(EasyMock.eq(uri), EasyMock.<ObservationStreamHandler>anyObject()))
+            .andAnswer(new StreamAnswer(null, loads, HERD_LOAD_TIME)).anyTimes();
+        replay(mockDao);
+
+        TestSyncOutput[] out = runHerd("/TEST/gone");
+        for (TestSyncOutput o : out)
+            Assert.assertEquals(404, o.getCode());
+        Assert.assertTrue("loads: " + loads.get(), loads.get() < HERD_SIZE);
+    }
+
+    @Test
+    public void testGetObservationTooLarge() throws Exception
+    {
+        ObservationCache cache = ObservationCache.getInstance();
+        cache.clear();
+        final AtomicInteger loads = new AtomicInteger();
+        try
+        {
+            // max entry size smaller than the document: not shared, every request 
+            // streams once and the first request remembers it is too large
+            cache.setMaxBytes(ObservationCache.MAX_ENTRY_FRACTION * 64L);
+            ObservationURI uri = new ObservationURI("TEST", "large");
+            URI check = URI.create("md5:5b71d023d4729575d550536dce8439e6");
+            ObservationState state = new ObservationState("TEST", "large", new Date(), check);
+            reset(mockDao);
+            expect(mockDao.getState(uri)).andReturn(state).anyTimes();
+            expect(mockDao.stream(EasyMock.eq(uri), EasyMock.<ObservationStreamHandler>anyObject()))
+                .andAnswer(new StreamAnswer(new SimpleObservation("TEST", "large"), loads, 10L)).anyTimes();
+            replay(mockDao);
+
+            TestSyncOutput[] out = runHerd("/TEST/large");
+            String expected = out[0].getContent();
+            Assert.assertTrue(expected.contains("large"));
+            Assert.assertTrue(expected.length() > cache.getMaxEntrySize());
+            for (TestSyncOutput o : out)
+                Assert.assertEquals(expected, o.getContent());
+            Assert.assertEquals(HERD_SIZE, loads.get());
+            Assert.assertEquals(0, cache.getEntries());
+            Assert.assertEquals(1, cache.getLargeEntries());
+            Assert.assertTrue(cache.isLarge(XmlConstants.CAOM2_3_NAMESPACE, uri, check));
+
+            // later requests skip the buffer
+            out = runHerd("/TEST/large");
+            Assert.assertEquals(expected, out[0].getContent());
+            Assert.assertEquals(2 * HERD_SIZE, loads.get());
+
+            // changed observation: try to buffer again
+            Assert.assertFalse(cache.isLarge(XmlConstants.CAOM2_3_NAMESPACE, uri, URI.create("md5:0")));
+        }
+        finally
+        {
+            cache.setMaxBytes(ObservationCache.DEFAULT_MAX_BYTES);
+        }
+    }
+
+    // run HERD_SIZE concurrent requests for the same path
+    private TestSyncOutput[] runHerd(String path) throws Exception
+    {
+        final CountDownLatch start = new CountDownLatch(1);
+        final TestSyncOutput[] out = new TestSyncOutput[HERD_SIZE];
+        Thread[] threads = new Thread[HERD_SIZE];
+        for (int i = 0; i < HERD_SIZE; i++)
+        {
+            HttpServletRequest mockRequest = mock(HttpServletRequest.class);
+            expect(mockRequest.getMethod()).andReturn("GET");
+            expect(mockRequest.getPathInfo()).andReturn(path);
+            Enumeration<String> params = Collections.emptyEnumeration();
+            expect(mockRequest.getParameterNames()).andReturn(params);
+            expect(mockRequest.getHeaders("Accept")).andReturn(Collections.<String>emptyEnumeration()).anyTimes();
+            expect(mockRequest.getHeaders("Accept-Encoding")).andReturn(Collections.<String>emptyEnumeration()).anyTimes();
+            replay(mockRequest);
+
+            final GetAction getAction = new TestGetAction(mockDao);
+            out[i] = new TestSyncOutput();
+            getAction.setSyncOutput(out[i]);
+            getAction.setSyncInput(new SyncInput(mockRequest, getAction.getInlineContentHandler()));
+            threads[i] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        getAction.run();
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        log.error("interrupted", ex);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread th : threads)
+            th.join();
+        return out;
+    }
+
+    // mock ObservationDAO.stream: pass obs to the handler or not found if null
+    private static class StreamAnswer implements IAnswer<Boolean>
+    {
+        private Observation obs;
+        private AtomicInteger loads;
+        private long delay;
+
+        StreamAnswer(Observation obs, AtomicInteger loads, long delay)
+        {
+            this.obs = obs;
+            this.loads = loads;
+            this.delay = delay;
+        }
+
+        @Override
+        public Boolean answer() throws Throwable
+        {
+            if (loads != null)
+                loads.incrementAndGet();
+            if (delay > 0L)
+                Thread.sleep(delay);
+            if (obs == null)
+                return Boolean.FALSE;
+            ObservationStreamHandler handler = (ObservationStreamHandler) EasyMock.getCurrentArguments()[1];
+            handler.start(obs);
+            handler.end(obs);
+            return Boolean.TRUE;
+        }
+    }
+
+    private class TestGetAction22 extends GetAction22
+    {
+        ObservationDAO dao;
+
+        TestGetAction22(ObservationDAO dao)
+        {
+            super();
+            setLogInfo(new TestLogInfo());
+            this.dao = dao;
+        }
+
+        @Override
+        protected void checkReadPermission(String collection)
+                throws AccessControlException, CertificateException,
+                       ResourceNotFoundException, IOException
+        { }
+
+        @Override
+        protected ObservationDAO getDAO()
+        {
+            return dao;
+        }
+    }
+
     private class TestLogInfo extends WebServiceLogInfo
     {
 
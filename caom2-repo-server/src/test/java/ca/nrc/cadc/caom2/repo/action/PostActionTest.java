@@ -0,0 +1,462 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2017.                            (c) 2017.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.caom2.repo.action;
+
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.mock;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.reset;
+import static org.easymock.EasyMock.verify;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.security.AccessControlException;
+import java.security.cert.CertificateException;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.easymock.EasyMock;
+import org.easymock.EasyMockRunner;
+import org.easymock.MockType;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import ca.nrc.cadc.caom2.Observation;
+import ca.nrc.cadc.caom2.ObservationState;
+import ca.nrc.cadc.caom2.ObservationStateBucket;
+import ca.nrc.cadc.caom2.ObservationStateDiff;
+import ca.nrc.cadc.caom2.ObservationURI;
+import ca.nrc.cadc.caom2.SimpleObservation;
+import ca.nrc.cadc.caom2.persistence.ObservationDAO;
+import ca.nrc.cadc.caom2.persistence.TransactionManager;
+import ca.nrc.cadc.caom2.repo.TestSyncOutput;
+import ca.nrc.cadc.caom2.xml.ObservationWriter;
+import ca.nrc.cadc.date.DateUtil;
+import ca.nrc.cadc.log.WebServiceLogInfo;
+import ca.nrc.cadc.net.ResourceNotFoundException;
+import ca.nrc.cadc.rest.SyncInput;
+import ca.nrc.cadc.util.Log4jInit;
+
+/**
+ *
+ * @author pdowler
+ */
+@RunWith(EasyMockRunner.class)
+public class PostActionTest
+{
+    private static final Logger log = Logger.getLogger(PostActionTest.class);
+
+    private ObservationDAO mockDao;
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.caom2", Level.INFO);
+    }
+
+    private DateFormat df = DateUtil.getDateFormat(DateUtil.IVOA_DATE_FORMAT, DateUtil.UTC);
+
+    @Before
+    public void setup()
+    {
+        mockDao = EasyMock.createMock(MockType.NICE, ObservationDAO.class);
+    }
+
+    private ObservationState createState(String id, Date d, String checksum)
+    {
+        ObservationState ret = new ObservationState(new ObservationURI("TEST", id));
+        ret.maxLastModified = d;
+        ret.accMetaChecksum = URI.create(checksum);
+        return ret;
+    }
+
+    @Test
+    public void testStateDiff() throws Exception
+    {
+        HttpServletRequest mockRequest = mock(HttpServletRequest.class);
+        Date d1 = df.parse("2010-10-10T10:10:10.100");
+        Date d2 = df.parse("2011-11-11T11:11:11.111");
+        Date d3 = df.parse("2012-12-12T12:12:12.120");
+
+        List<ObservationState> repo = new ArrayList<ObservationState>();
+        repo.add(createState("a", d1, "md5:5b71d023d4729575d550536dce8439e6"));
+        repo.add(createState("b", d2, "md5:aedbcf5e27a17fc2daa5a0e0d7840009"));
+        repo.add(createState("c", d3, "md5:e3e48b1a3ba6d3d2bd1d1e0b9e7a4b0c"));
+
+        // client: a same, b different, c missing, d extra
+        List<ObservationState> input = new ArrayList<ObservationState>();
+        input.add(createState("d", d1, "md5:00000000000000000000000000000001"));
+        input.add(createState("b", d2, "md5:00000000000000000000000000000002"));
+        input.add(createState("a", d1, "md5:5b71d023d4729575d550536dce8439e6"));
+
+        PostAction action = new TestPostAction(mockDao, input, null);
+        TestSyncOutput out = new TestSyncOutput();
+        action.setSyncOutput(out);
+
+        reset(mockDao);
+        expect(mockRequest.getMethod()).andReturn("POST");
+        expect(mockRequest.getPathInfo()).andReturn("/TEST");
+        expect(mockRequest.getContentType()).andReturn("application/x-www-form-urlencoded");
+        Enumeration<String> params = Collections.emptyEnumeration();
+        expect(mockRequest.getParameterNames()).andReturn(params);
+        expect(mockDao.getObservationList("TEST", null, null, GetAction.MAX_OBS_LIST_SIZE + 1)).andReturn(repo);
+        replay(mockDao, mockRequest);
+
+        action.setSyncInput(new SyncInput(mockRequest, action.getInlineContentHandler()));
+        action.doAction();
+
+        String expected = "missing\tTEST\tc\t" + df.format(d3) + "\tmd5:e3e48b1a3ba6d3d2bd1d1e0b9e7a4b0c\n"
+                + "extra\tTEST\td\t" + df.format(d1) + "\tmd5:00000000000000000000000000000001\n"
+                + "different\tTEST\tb\t" + df.format(d2) + "\tmd5:aedbcf5e27a17fc2daa5a0e0d7840009\n";
+        String content = out.getContent();
+        log.debug("\n--diff content start--\n" + content + "\n--diff content end--");
+        Assert.assertEquals(expected, content);
+    }
+
+    static final long DAY = 24 * 3600 * 1000L;
+
+    // repository bucket as computed by ObservationDAO.getObservationBuckets
+    private ObservationStateBucket createBucket(long index, long size, List<ObservationState> states)
+    {
+        ObservationStateBucket ret = new ObservationStateBucket(new Date(index * size), new Date((index + 1) * size - 1L));
+        ret.count = states.size();
+        ret.digest = ObservationStateDiff.getDigest(states);
+        return ret;
+    }
+
+    @Test
+    public void testBucketDiff() throws Exception
+    {
+        HttpServletRequest mockRequest = mock(HttpServletRequest.class);
+        long day0 = df.parse("2010-10-10T00:00:00.000").getTime() / DAY;
+        Date start = new Date(day0 * DAY + 3600 * 1000L);
+        Date end = new Date((day0 + 3) * DAY + 7200 * 1000L);
+
+        List<ObservationState> repo0 = new ArrayList<ObservationState>();
+        repo0.add(createState("a", new Date(start.getTime() + 1000L), "md5:5b71d023d4729575d550536dce8439e6"));
+        List<ObservationState> repo1 = new ArrayList<ObservationState>();
+        repo1.add(createState("b", new Date((day0 + 1) * DAY), "md5:aedbcf5e27a17fc2daa5a0e0d7840009"));
+        List<ObservationState> repo2 = new ArrayList<ObservationState>();
+        repo2.add(createState("c", new Date((day0 + 2) * DAY + 5L), "md5:e3e48b1a3ba6d3d2bd1d1e0b9e7a4b0c"));
+        URI empty = ObservationStateDiff.getDigest(new ArrayList<ObservationState>());
+
+        // grid of day buckets clipped to [start,end]: same, different, missing here, extra here
+        List<ObservationStateBucket> input = new ArrayList<ObservationStateBucket>();
+        ObservationStateBucket b0 = new ObservationStateBucket(start, new Date((day0 + 1) * DAY - 1L));
+        b0.digest = ObservationStateDiff.getDigest(repo0);
+        ObservationStateBucket b1 = new ObservationStateBucket(new Date((day0 + 1) * DAY), new Date((day0 + 2) * DAY - 1L));
+        b1.digest = URI.create("md5:00000000000000000000000000000002");
+        ObservationStateBucket b2 = new ObservationStateBucket(new Date((day0 + 2) * DAY), new Date((day0 + 3) * DAY - 1L));
+        b2.digest = empty;
+        ObservationStateBucket b3 = new ObservationStateBucket(new Date((day0 + 3) * DAY), end);
+        b3.digest = URI.create("md5:00000000000000000000000000000003");
+        // input order does not matter
+        input.add(b3);
+        input.add(b0);
+        input.add(b2);
+        input.add(b1);
+
+        List<ObservationStateBucket> repo = new ArrayList<ObservationStateBucket>();
+        repo.add(createBucket(day0, DAY, repo0));
+        repo.add(createBucket(day0 + 1, DAY, repo1));
+        repo.add(createBucket(day0 + 2, DAY, repo2));
+
+        PostAction action = new TestPostAction(mockDao, null, input);
+        TestSyncOutput out = new TestSyncOutput();
+        action.setSyncOutput(out);
+
+        reset(mockDao);
+        expect(mockRequest.getMethod()).andReturn("POST");
+        expect(mockRequest.getPathInfo()).andReturn("/TEST");
+        expect(mockRequest.getContentType()).andReturn("application/x-www-form-urlencoded");
+        Enumeration<String> params = Collections.emptyEnumeration();
+        expect(mockRequest.getParameterNames()).andReturn(params);
+        // one aggregate query for the whole grid
+        expect(mockDao.getObservationBuckets("TEST", start, end, DAY)).andReturn(repo).once();
+        replay(mockDao, mockRequest);
+
+        action.setSyncInput(new SyncInput(mockRequest, action.getInlineContentHandler()));
+        action.doAction();
+
+        String expected = df.format(b1.getStart()) + "\t" + df.format(b1.getEnd()) + "\t1\t" + ObservationStateDiff.getDigest(repo1).toASCIIString() + "\n"
+                + df.format(b2.getStart()) + "\t" + df.format(b2.getEnd()) + "\t1\t" + ObservationStateDiff.getDigest(repo2).toASCIIString() + "\n"
+                + df.format(b3.getStart()) + "\t" + df.format(b3.getEnd()) + "\t0\t" + empty.toASCIIString() + "\n";
+        Assert.assertEquals(expected, out.getContent());
+        verify(mockDao);
+    }
+
+    @Test
+    public void testBucketDiffNotGrid() throws Exception
+    {
+        HttpServletRequest mockRequest = mock(HttpServletRequest.class);
+        Date d1 = df.parse("2010-10-10T10:10:10.100");
+        Date d2 = df.parse("2011-11-11T11:11:11.111");
+        Date d3 = df.parse("2012-12-12T12:12:12.120");
+
+        List<ObservationState> repo1 = new ArrayList<ObservationState>();
+        repo1.add(createState("a", d1, "md5:5b71d023d4729575d550536dce8439e6"));
+        List<ObservationState> repo2 = new ArrayList<ObservationState>();
+        repo2.add(createState("b", d2, "md5:aedbcf5e27a17fc2daa5a0e0d7840009"));
+
+        // buckets that are not aligned: one aggregate query per bucket
+        List<ObservationStateBucket> input = new ArrayList<ObservationStateBucket>();
+        ObservationStateBucket b1 = new ObservationStateBucket(d1, new Date(d2.getTime() - 1L));
+        b1.digest = ObservationStateDiff.getDigest(repo1);
+        input.add(b1);
+        ObservationStateBucket b2 = new ObservationStateBucket(d2, d3);
+        b2.digest = URI.create("md5:00000000000000000000000000000002");
+        input.add(b2);
+
+        PostAction action = new TestPostAction(mockDao, null, input);
+        TestSyncOutput out = new TestSyncOutput();
+        action.setSyncOutput(out);
+
+        reset(mockDao);
+        expect(mockRequest.getMethod()).andReturn("POST");
+        expect(mockRequest.getPathInfo()).andReturn("/TEST");
+        expect(mockRequest.getContentType()).andReturn("application/x-www-form-urlencoded");
+        Enumeration<String> params = Collections.emptyEnumeration();
+        expect(mockRequest.getParameterNames()).andReturn(params);
+        expect(mockDao.getObservationBuckets("TEST", b1.getStart(), b1.getEnd(), Long.MAX_VALUE))
+            .andReturn(Collections.singletonList(createBucket(0L, Long.MAX_VALUE, repo1)));
+        expect(mockDao.getObservationBuckets("TEST", b2.getStart(), b2.getEnd(), Long.MAX_VALUE))
+            .andReturn(Collections.singletonList(createBucket(0L, Long.MAX_VALUE, repo2)));
+        replay(mockDao, mockRequest);
+
+        action.setSyncInput(new SyncInput(mockRequest, action.getInlineContentHandler()));
+        action.doAction();
+
+        String expected = df.format(d2) + "\t" + df.format(d3) + "\t1\t" + ObservationStateDiff.getDigest(repo2).toASCIIString() + "\n";
+        Assert.assertEquals(expected, out.getContent());
+        verify(mockDao);
+    }
+
+    private void writeDocument(ByteArrayOutputStream out, Observation obs)
+        throws IOException
+    {
+        ByteArrayOutputStream doc = new ByteArrayOutputStream();
+        ObservationWriter w = new ObservationWriter();
+        w.write(obs, doc);
+        out.write((doc.size() + "\n").getBytes("US-ASCII"));
+        doc.writeTo(out);
+    }
+
+    @Test
+    public void testBulk() throws Exception
+    {
+        HttpServletRequest mockRequest = mock(HttpServletRequest.class);
+        TransactionManager mockTxn = EasyMock.createMock(MockType.NICE, TransactionManager.class);
+
+        Observation o1 = new SimpleObservation("TEST", "a");
+        Observation o2 = new SimpleObservation("OTHER", "b");
+        Observation o3 = new SimpleObservation("TEST", "c");
+        ByteArrayOutputStream bulk = new ByteArrayOutputStream();
+        writeDocument(bulk, o1);
+        writeDocument(bulk, o2);
+        writeDocument(bulk, o3);
+
+        PostAction action = new TestPostAction(mockDao, null, null);
+        final TestSyncOutput out = new TestSyncOutput();
+        final boolean[] outputBeforeEOF = new boolean[1];
+        ((TestPostAction) action).bulk = new ByteArrayInputStream(bulk.toByteArray())
+        {
+            @Override
+            public synchronized int read(byte[] b, int off, int len)
+            {
+                // status must not be written while the client is still sending
+                if (!out.getHeaders().isEmpty())
+                    outputBeforeEOF[0] = true;
+                return super.read(b, off, len);
+            }
+        };
+        action.setSyncOutput(out);
+
+        reset(mockDao);
+        expect(mockRequest.getMethod()).andReturn("POST");
+        expect(mockRequest.getPathInfo()).andReturn("/TEST");
+        expect(mockRequest.getContentType()).andReturn("application/x-www-form-urlencoded");
+        Enumeration<String> params = Collections.emptyEnumeration();
+        expect(mockRequest.getParameterNames()).andReturn(params);
+        expect(mockDao.getTransactionManager()).andReturn(mockTxn).anyTimes();
+        // documents are parsed: match in order of the calls
+        mockDao.put(EasyMock.<Observation>anyObject());
+        mockDao.put(EasyMock.<Observation>anyObject());
+        expectLastCall().andThrow(new RuntimeException("test failure"));
+        replay(mockDao, mockRequest, mockTxn);
+
+        action.setSyncInput(new SyncInput(mockRequest, action.getInlineContentHandler()));
+        action.doAction();
+
+        String content = out.getContent();
+        log.debug("\n--bulk content start--\n" + content + "\n--bulk content end--");
+        String[] lines = content.split("\n");
+        Assert.assertEquals(3, lines.length);
+        Assert.assertTrue(lines[0], lines[0].startsWith("0\tok\tcaom:TEST/a\t"));
+        Assert.assertTrue(lines[1], lines[1].startsWith("1\tinvalid\tcaom:OTHER/b\t"));
+        Assert.assertEquals("2\tfailed\tcaom:TEST/c\ttest failure", lines[2]);
+        Assert.assertFalse("output started before the end of input", outputBeforeEOF[0]);
+        EasyMock.verify(mockDao);
+    }
+
+    @Test
+    public void testReadDocument() throws Exception
+    {
+        InputStream in = new ByteArrayInputStream("3\nabc0\n\n".getBytes("US-ASCII"));
+        Assert.assertEquals("abc", new String(PostAction.readDocument(in), "US-ASCII"));
+        Assert.assertEquals(0, PostAction.readDocument(in).length);
+        Assert.assertNull(PostAction.readDocument(in));
+
+        String[] invalid = new String[] { "\nabc", "x\nabc", "5\nabc", "12", "99999999999\n" };
+        for (String s : invalid)
+        {
+            try
+            {
+                PostAction.readDocument(new ByteArrayInputStream(s.getBytes("US-ASCII")));
+                Assert.fail("expected IllegalArgumentException: " + s);
+            }
+            catch (IllegalArgumentException expected)
+            {
+                log.debug("caught expected: " + expected);
+            }
+        }
+    }
+
+    private class TestLogInfo extends WebServiceLogInfo
+    {
+
+    }
+
+    // test subclass with mock dao, input, and permission check
+    private class TestPostAction extends PostAction
+    {
+        ObservationDAO dao;
+        List<ObservationState> states;
+        List<ObservationStateBucket> buckets;
+        InputStream bulk;
+
+        TestPostAction(ObservationDAO dao, List<ObservationState> states, List<ObservationStateBucket> buckets)
+        {
+            super();
+            setLogInfo(new TestLogInfo());
+            this.dao = dao;
+            this.states = states;
+            this.buckets = buckets;
+        }
+
+        @Override
+        protected void checkReadPermission(String collection)
+                throws AccessControlException, CertificateException,
+                       ResourceNotFoundException, IOException
+        { }
+
+        @Override
+        protected void checkWritePermission(String collection)
+                throws AccessControlException, CertificateException,
+                       ResourceNotFoundException, IOException
+        { }
+
+        @Override
+        protected ObservationDAO getDAO()
+        {
+            return dao;
+        }
+
+        @Override
+        protected List<ObservationState> getInputStates()
+        {
+            return states;
+        }
+
+        @Override
+        protected List<ObservationStateBucket> getInputBuckets()
+        {
+            return buckets;
+        }
+
+        @Override
+        protected InputStream getInputBulk()
+        {
+            return bulk;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2016.                            (c) 2016.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.caom2.repo.action;
+
+import ca.nrc.cadc.caom2.Artifact;
+import ca.nrc.cadc.caom2.Chunk;
+import ca.nrc.cadc.caom2.Observation;
+import ca.nrc.cadc.caom2.Part;
+import ca.nrc.cadc.caom2.Plane;
+import ca.nrc.cadc.caom2.ProductType;
+import ca.nrc.cadc.caom2.ReleaseType;
+import ca.nrc.cadc.caom2.SimpleObservation;
+import ca.nrc.cadc.caom2.xml.ObservationWriter;
+import ca.nrc.cadc.caom2.xml.XmlConstants;
+import ca.nrc.cadc.util.Log4jInit;
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author pdowler
+ */
+public class StreamingObservationWriterTest
+{
+    private static final Logger log = Logger.getLogger(StreamingObservationWriterTest.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.caom2.repo", Level.INFO);
+    }
+
+    public StreamingObservationWriterTest() { }
+
+    private Observation getTestObservation(int numPlanes)
+    {
+        Observation obs = new SimpleObservation("TEST", "stream");
+        for (int i = 0; i < numPlanes; i++)
+        {
+            Plane p = new Plane("p" + i);
+            for (int j = 0; j < 2; j++)
+            {
+                Artifact a = new Artifact(URI.create("ad:TEST/p" + i + "-" + j), ProductType.SCIENCE, ReleaseType.DATA);
+                Part pa = new Part(0);
+                pa.getChunks().add(new Chunk());
+                a.getParts().add(pa);
+                p.getArtifacts().add(a);
+            }
+            obs.getPlanes().add(p);
+        }
+        return obs;
+    }
+
+    private void doTest(ObservationWriter writer, int numPlanes)
+        throws Exception
+    {
+        Observation obs = getTestObservation(numPlanes);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        writer.write(obs, expected);
+
+        // same order as the stream query
+        List<Plane> planes = new ArrayList<Plane>(obs.getPlanes());
+        obs.getPlanes().clear();
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        StreamingObservationWriter sw = new StreamingObservationWriter(writer, actual);
+        sw.start(obs);
+        for (Plane p : planes)
+            sw.plane(p);
+        sw.end(obs);
+
+        log.debug("planes: " + numPlanes + "\n" + actual.toString("UTF-8"));
+        Assert.assertEquals(expected.toString("UTF-8"), actual.toString("UTF-8"));
+        Assert.assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    }
+
+    @Test
+    public void testSameAsObservationWriter()
+    {
+        try
+        {
+            for (int n : new int[] { 0, 1, 3 })
+            {
+                doTest(new ObservationWriter(), n);
+                doTest(new ObservationWriter("caom2", XmlConstants.CAOM2_2_NAMESPACE, false), n);
+            }
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
+    @Test
+    public void testFindPlane()
+    {
+        try
+        {
+            String pretty = "<a:obs>\n  <a:planes>\n    <a:plane>x</a:plane>\n  </a:planes>\n</a:obs>\n";
+            int[] r = StreamingObservationWriter.findPlane(pretty.getBytes("UTF-8"), pretty.length());
+            Assert.assertEquals("    <a:plane>x</a:plane>\n", pretty.substring(r[0], r[1]));
+
+            String compact = "<obs><planes><plane>x</plane></planes></obs>";
+            r = StreamingObservationWriter.findPlane(compact.getBytes("UTF-8"), compact.length());
+            Assert.assertEquals("<plane>x</plane>", compact.substring(r[0], r[1]));
+            
+            // byte offsets with multi-byte characters and a buffer larger than the document
+            String utf8 = "<obs><title>caf\u00e9</title><planes><plane>\u00e9</plane></planes></obs>";
+            byte[] doc = utf8.getBytes("UTF-8");
+            byte[] buf = new byte[doc.length + 32];
+            System.arraycopy(doc, 0, buf, 0, doc.length);
+            r = StreamingObservationWriter.findPlane(buf, doc.length);
+            Assert.assertEquals("<plane>\u00e9</plane>", new String(doc, r[0], r[1] - r[0], "UTF-8"));
+            
+            // not a planes tag
+            String other = "<obs><xplanes/><planes><plane>x</plane></planes></obs>";
+            r = StreamingObservationWriter.findPlane(other.getBytes("UTF-8"), other.length());
+            Assert.assertEquals("<plane>x</plane>", other.substring(r[0], r[1]));
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2017.                            (c) 2017.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.caom2.repo.action;
+
+import ca.nrc.cadc.caom2.Artifact;
+import ca.nrc.cadc.caom2.Chunk;
+import ca.nrc.cadc.caom2.Observation;
+import ca.nrc.cadc.caom2.Part;
+import ca.nrc.cadc.caom2.Plane;
+import ca.nrc.cadc.caom2.ProductType;
+import ca.nrc.cadc.caom2.ReleaseType;
+import ca.nrc.cadc.caom2.SimpleObservation;
+import ca.nrc.cadc.caom2.wcs.Axis;
+import ca.nrc.cadc.caom2.wcs.Coord2D;
+import ca.nrc.cadc.caom2.wcs.CoordAxis1D;
+import ca.nrc.cadc.caom2.wcs.CoordAxis2D;
+import ca.nrc.cadc.caom2.wcs.CoordFunction1D;
+import ca.nrc.cadc.caom2.wcs.CoordFunction2D;
+import ca.nrc.cadc.caom2.wcs.Dimension2D;
+import ca.nrc.cadc.caom2.wcs.RefCoord;
+import ca.nrc.cadc.caom2.wcs.SpatialWCS;
+import ca.nrc.cadc.caom2.wcs.SpectralWCS;
+import ca.nrc.cadc.util.Log4jInit;
+import java.net.URI;
+import java.util.Iterator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compare sequential and parallel computation of plane metadata for an observation
+ * with many planes.
+ *
+ * @author pdowler
+ */
+public class ValidateBenchmark
+{
+    private static final Logger log = Logger.getLogger(ValidateBenchmark.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.caom2.repo", Level.INFO);
+    }
+
+    static final int NUM_PLANES = 200;
+    static final int NUM_CHUNKS = 4;
+    static final int NUM_RUNS = 5;
+
+    public ValidateBenchmark() { }
+
+    private Observation getTestObservation()
+    {
+        Observation obs = new SimpleObservation("TEST", "bench");
+        for (int i = 0; i < NUM_PLANES; i++)
+        {
+            Plane p = new Plane("p" + i);
+            Artifact a = new Artifact(URI.create("ad:TEST/p" + i), ProductType.SCIENCE, ReleaseType.DATA);
+            Part pa = new Part(0);
+            for (int c = 0; c < NUM_CHUNKS; c++)
+                pa.getChunks().add(getChunk(10.0 + i * 0.01 + c * 0.1, 20.0 + c * 0.1));
+            a.getParts().add(pa);
+            p.getArtifacts().add(a);
+            obs.getPlanes().add(p);
+        }
+        return obs;
+    }
+
+    private Chunk getChunk(double ra, double dec)
+    {
+        Chunk c = new Chunk();
+        c.positionAxis1 = 1;
+        c.positionAxis2 = 2;
+        c.position = new SpatialWCS(new CoordAxis2D(new Axis("RA---TAN", "deg"), new Axis("DEC--TAN", "deg")));
+        c.position.coordsys = "ICRS";
+        Coord2D ref = new Coord2D(new RefCoord(512.0, ra), new RefCoord(1024.0, dec));
+        c.position.getAxis().function = new CoordFunction2D(new Dimension2D(1024, 2048), ref, 1.0e-4, 0.0, 0.0, 1.0e-4);
+
+        c.energyAxis = 3;
+        c.energy = new SpectralWCS(new CoordAxis1D(new Axis("WAVE", "m")), "TOPOCENT");
+        c.energy.getAxis().function = new CoordFunction1D(1024L, 1.0e-10, new RefCoord(0.5, 400.0e-9));
+        return c;
+    }
+
+    @Test
+    public void testComputePlanes()
+    {
+        try
+        {
+            RepoAction action = new RepoAction()
+            {
+                @Override
+                public void doAction() throws Exception { }
+            };
+
+            // warm up
+            Observation seq = getTestObservation();
+            Observation par = getTestObservation();
+            for (Plane p : seq.getPlanes())
+                RepoAction.compute(seq, p);
+            action.validate(par);
+
+            long tseq = 0L;
+            long tpar = 0L;
+            for (int i = 0; i < NUM_RUNS; i++)
+            {
+                long t = System.currentTimeMillis();
+                for (Plane p : seq.getPlanes())
+                    RepoAction.compute(seq, p);
+                tseq += System.currentTimeMillis() - t;
+
+                t = System.currentTimeMillis();
+                action.validate(par);
+                tpar += System.currentTimeMillis() - t;
+            }
+            log.info("compute " + NUM_PLANES + " planes x " + NUM_CHUNKS + " chunks: sequential " + tseq / NUM_RUNS + "ms"
+                    + " parallel " + tpar / NUM_RUNS + "ms (" + RepoAction.MAX_COMPUTE_THREADS + " max threads, "
+                    + Runtime.getRuntime().availableProcessors() + " cores)");
+
+            Iterator<Plane> si = seq.getPlanes().iterator();
+            Iterator<Plane> pi = par.getPlanes().iterator();
+            while (si.hasNext())
+            {
+                Plane sp = si.next();
+                Plane pp = pi.next();
+                Assert.assertEquals(sp.getProductID(), pp.getProductID());
+                Assert.assertNotNull(pp.position);
+                Assert.assertEquals(sp.position.bounds, pp.position.bounds);
+                Assert.assertEquals(sp.energy.bounds, pp.energy.bounds);
+            }
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2011.                            (c) 2011.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+package ca.nrc.cadc.caom2.repo.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Decode gzip or deflate content coding of responses from the repository service
+ * and count bytes received before (bytes) and after (decoded bytes) decompression 
+ * for all clients in the JVM.
+ *
+ * @author pdowler
+ */
+public class ContentDecoder
+{
+    private static final Logger log = Logger.getLogger(ContentDecoder.class);
+
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final AtomicLong responses = new AtomicLong();
+    private static final AtomicLong encodedResponses = new AtomicLong();
+    private static final AtomicLong bytes = new AtomicLong();
+    private static final AtomicLong decodedBytes = new AtomicLong();
+
+    private ContentDecoder() { }
+
+    /**
+     * Decode a complete response body.
+     * 
+     * @param content response body as received
+     * @param contentEncoding value of the Content-Encoding header, may be null
+     * @return decoded body
+     * @throws IOException if the content is not valid for the coding
+     */
+    public static ByteArrayOutputStream decode(ByteArrayOutputStream content, String contentEncoding)
+        throws IOException
+    {
+        if (!isEncoded(contentEncoding))
+        {
+            count(contentEncoding, content.size(), content.size());
+            return content;
+        }
+        ByteArrayOutputStream ret = new ByteArrayOutputStream(4 * content.size());
+        InputStream in = getDecoder(new ByteArrayInputStream(content.toByteArray()), contentEncoding);
+        byte[] buf = new byte[8192];
+        int n = in.read(buf);
+        while (n > 0)
+        {
+            ret.write(buf, 0, n);
+            n = in.read(buf);
+        }
+        in.close();
+        count(contentEncoding, content.size(), ret.size());
+        return ret;
+    }
+
+    /**
+     * Decode a response body while it is read. Bytes are counted as they are read.
+     * 
+     * @param in response body
+     * @param contentEncoding value of the Content-Encoding header, may be null
+     * @return decoded body
+     * @throws IOException 
+     */
+    public static InputStream decode(InputStream in, String contentEncoding)
+        throws IOException
+    {
+        responses.incrementAndGet();
+        if (!isEncoded(contentEncoding))
+            return new CountingInputStream(new CountingInputStream(in, bytes), decodedBytes);
+        encodedResponses.incrementAndGet();
+        return new CountingInputStream(getDecoder(new CountingInputStream(in, bytes), contentEncoding), decodedBytes);
+    }
+
+    private static boolean isEncoded(String contentEncoding)
+    {
+        if (contentEncoding == null)
+            return false;
+        String ce = contentEncoding.trim().toLowerCase();
+        return !ce.isEmpty() && !"identity".equals(ce);
+    }
+
+    private static InputStream getDecoder(InputStream in, String contentEncoding)
+        throws IOException
+    {
+        String ce = contentEncoding.trim().toLowerCase();
+        if ("gzip".equals(ce) || "x-gzip".equals(ce))
+            return new GZIPInputStream(in);
+        if ("deflate".equals(ce))
+            return new InflaterInputStream(in);
+        throw new IOException("unsupported Content-Encoding: " + contentEncoding);
+    }
+
+    private static void count(String contentEncoding, long numBytes, long numDecoded)
+    {
+        responses.incrementAndGet();
+        if (isEncoded(contentEncoding))
+            encodedResponses.incrementAndGet();
+        bytes.addAndGet(numBytes);
+        decodedBytes.addAndGet(numDecoded);
+        log.debug("Content-Encoding: " + contentEncoding + " bytes: " + numBytes + " decoded: " + numDecoded);
+    }
+
+    public static long getResponses()
+    {
+        return responses.get();
+    }
+
+    public static long getEncodedResponses()
+    {
+        return encodedResponses.get();
+    }
+
+    /**
+     * @return bytes received
+     */
+    public static long getBytes()
+    {
+        return bytes.get();
+    }
+
+    /**
+     * @return bytes after decoding
+     */
+    public static long getDecodedBytes()
+    {
+        return decodedBytes.get();
+    }
+
+    // add bytes read to a counter
+    private static class CountingInputStream extends FilterInputStream
+    {
+        private final AtomicLong counter;
+
+        CountingInputStream(InputStream in, AtomicLong counter)
+        {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read()
+            throws IOException
+        {
+            int ret = super.read();
+            if (ret >= 0)
+                counter.incrementAndGet();
+            return ret;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+            throws IOException
+        {
+            int ret = super.read(b, off, len);
+            if (ret > 0)
+                counter.addAndGet(ret);
+            return ret;
+        }
+
+        @Override
+        public long skip(long n)
+            throws IOException
+        {
+            long ret = super.skip(n);
+            if (ret > 0)
+                counter.addAndGet(ret);
+            return ret;
+        }
+    }
+}
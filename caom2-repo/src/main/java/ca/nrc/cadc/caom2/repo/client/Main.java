@@ -68,8 +68,22 @@
 package ca.nrc.cadc.caom2.repo.client;
 
 
+import ca.nrc.cadc.auth.SSLUtil;
+import ca.nrc.cadc.caom2.Observation;
+import ca.nrc.cadc.caom2.xml.ObservationReader;
 import ca.nrc.cadc.util.ArgumentMap;
 import ca.nrc.cadc.util.Log4jInit;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import javax.security.auth.Subject;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
@@ -111,11 +125,14 @@ public class Main
                 System.exit(0);
             }
 
+            if (am.isSet("bulk"))
+            {
+                int failed = doBulk(am);
+                System.exit(failed == 0 ? 0 : 1);
+            }
+
             // TODO: implement useful command-line fatures here: 
             
-            // setup
-            // am.getValue("resourceID")
-            // am.getValue("collection")
             
             // get list
             // am.isSet("list")
@@ -131,10 +148,143 @@ public class Main
         }
     }
     
+    // store observations from XML files with bulk requests; returns number that failed
+    private static int doBulk(ArgumentMap am)
+        throws Exception
+    {
+        String resourceID = am.getValue("resourceID");
+        final String collection = am.getValue("collection");
+        String bulk = am.getValue("bulk");
+        final String mode = am.getValue("mode");
+        if (resourceID == null || collection == null || bulk == null)
+        {
+            usage();
+            System.exit(1);
+        }
+        
+        final List<File> files = new ArrayList<File>();
+        File f = new File(bulk);
+        if (f.isDirectory())
+        {
+            File[] fs = f.listFiles();
+            Arrays.sort(fs);
+            for (File xml : fs)
+            {
+                if (xml.isFile() && xml.getName().endsWith(".xml"))
+                    files.add(xml);
+            }
+        }
+        else
+            files.add(f);
+        
+        Subject subject = new Subject();
+        String cert = am.getValue("cert");
+        if (cert != null)
+            subject = SSLUtil.createSubject(new File(cert));
+        
+        final RepoClient client = new RepoClient(URI.create(resourceID), 1);
+        final FileIterator iter = new FileIterator(files.iterator());
+        List<BulkStatus> status = Subject.doAs(subject, new PrivilegedExceptionAction<List<BulkStatus>>()
+        {
+            @Override
+            public List<BulkStatus> run() throws Exception
+            {
+                return client.putObservations(collection, iter, mode);
+            }
+        });
+        
+        int ok = 0;
+        int failed = iter.unreadable.size();
+        for (BulkStatus s : status)
+        {
+            // index is the position in the documents sent; the service may add a 
+            // record for the request itself (e.g. invalid bulk document)
+            String name = "bulk request";
+            if (s.getIndex() >= 0 && s.getIndex() < iter.sent.size())
+                name = iter.sent.get(s.getIndex()).getName();
+            if (s.isOK())
+            {
+                log.info(name + " " + s);
+                ok++;
+            }
+            else
+            {
+                log.error(name + " " + s);
+                failed++;
+            }
+        }
+        log.warn("bulk: " + files.size() + " files, " + ok + " ok, " + failed + " failed");
+        return files.size() - ok;
+    }
+    
+    // read one observation per file when the client needs it; files that cannot
+    // be read are skipped and recorded
+    private static class FileIterator implements Iterator<Observation>
+    {
+        private Iterator<File> files;
+        private ObservationReader reader = new ObservationReader();
+        private Observation next;
+        
+        // files in the order the observations were returned
+        final List<File> sent = new ArrayList<File>();
+        final List<File> unreadable = new ArrayList<File>();
+        
+        FileIterator(Iterator<File> files)
+        {
+            this.files = files;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            while (next == null && files.hasNext())
+            {
+                File f = files.next();
+                try
+                {
+                    InputStream in = new FileInputStream(f);
+                    try
+                    {
+                        next = reader.read(in);
+                        sent.add(f);
+                    }
+                    finally
+                    {
+                        in.close();
+                    }
+                }
+                catch (Exception ex)
+                {
+                    log.error(f.getName() + " failed to read: " + ex);
+                    unreadable.add(f);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Observation next()
+        {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Observation ret = next;
+            next = null;
+            return ret;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+    
     private static void usage()
     {
         StringBuilder sb = new StringBuilder();
         sb.append("\n\nusage: caom2-repo [-v|--verbose|-d|--debug] [-h|--help] ...");
+        sb.append("\n\n  --bulk=<dir|file> --resourceID=<uri> --collection=<name> [--mode=put|create|update] [--cert=<pem file>]");
+        sb.append("\n        store observations from XML files (*.xml in dir) with bulk requests");
         // TODO: add something useful
         log.warn(sb.toString());
     }
@@ -69,11 +69,18 @@
 
 package ca.nrc.cadc.caom2.repo.client;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.security.AccessControlException;
 import java.text.DateFormat;
@@ -89,17 +96,26 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
+import javax.net.ssl.HttpsURLConnection;
 import javax.security.auth.Subject;
 
 import org.apache.log4j.Logger;
 
+import com.csvreader.CsvReader;
+import com.csvreader.CsvWriter;
+
 import ca.nrc.cadc.auth.AuthMethod;
 import ca.nrc.cadc.auth.AuthenticationUtil;
+import ca.nrc.cadc.auth.SSLUtil;
 import ca.nrc.cadc.caom2.Observation;
 import ca.nrc.cadc.caom2.ObservationState;
+import ca.nrc.cadc.caom2.ObservationStateBucket;
+import ca.nrc.cadc.caom2.ObservationStateDiff;
 import ca.nrc.cadc.caom2.ObservationURI;
+import ca.nrc.cadc.caom2.xml.ObservationWriter;
 import ca.nrc.cadc.date.DateUtil;
 import ca.nrc.cadc.net.HttpDownload;
+import ca.nrc.cadc.net.NetUtil;
 import ca.nrc.cadc.reg.Standards;
 import ca.nrc.cadc.reg.client.RegistryClient;
 
@@ -109,6 +125,12 @@ public class RepoClient
     private static final Logger log = Logger.getLogger(RepoClient.class);
     private static final URI standardID = Standards.CAOM2REPO_OBS_23;
 
+    public static final String BULK_CONTENT_TYPE = "application/x-caom2-bulk";
+
+    // max observations per bulk request: the service writes status records while
+    // the request is uploaded and those must fit in the socket buffers
+    static final int BULK_REQUEST_SIZE = 1000;
+
     private final DateFormat df = DateUtil.getDateFormat(DateUtil.IVOA_DATE_FORMAT, DateUtil.UTC);
 
     private URI resourceID = null;
@@ -172,6 +194,7 @@ public class RepoClient
         {
             url = new URL(surl);
             HttpDownload get = new HttpDownload(url, bos);
+            get.setRequestProperty("Accept-Encoding", ContentDecoder.ACCEPT_ENCODING);
 
             get.run();
             if (get.getThrowable() != null)
@@ -180,11 +203,16 @@ public class RepoClient
                     throw (AccessControlException) get.getThrowable();
                 throw new RuntimeException("failed to get observation list", get.getThrowable());
             }
+            bos = ContentDecoder.decode(bos, get.getContentEncoding());
         }
         catch (MalformedURLException e)
         {
             throw new RuntimeException("BUG: failed to generate observation list url", e);
         }
+        catch (IOException e)
+        {
+            throw new RuntimeException("failed to decode observation list", e);
+        }
 
         List<ObservationState> list = null;
         try
@@ -215,11 +243,27 @@ public class RepoClient
     {
         init();
 
-        // startDate = null;
-        // end = df.parse("2017-06-20T09:03:15.360");
-        List<WorkerResponse> list = new ArrayList<WorkerResponse>();
-
         List<ObservationState> stateList = getObservationList(collection, startDate, end, numberOfObservations);
+        return getList(stateList);
+    }
+
+    /**
+     * Get the observations for the specified states.
+     *
+     * @param stateList
+     *            observations to get
+     * @return list of responses in the same order as the input
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public List<WorkerResponse> getList(List<ObservationState> stateList)
+            throws InterruptedException, ExecutionException
+    {
+        init();
+
+        List<WorkerResponse> list = new ArrayList<WorkerResponse>();
+        if (stateList.isEmpty())
+            return list;
 
         // Create tasks for each file
         List<Callable<WorkerResponse>> tasks = new ArrayList<Callable<WorkerResponse>>();
@@ -323,6 +367,265 @@ public class RepoClient
         }
     }
 
+    /**
+     * Compare a list of observation states with the repository. The comparison is 
+     * done by the service and only the differences are returned: missing contains
+     * states in the repository and not in the input, extra contains input states not 
+     * in the repository, and different contains repository states where the 
+     * accMetaChecksum does not match.
+     * 
+     * @param collection
+     * @param start optional start of maxLastModified range
+     * @param end optional end of maxLastModified range
+     * @param states states to compare
+     * @return differences
+     * @throws AccessControlException 
+     */
+    public ObservationStateDiff getStateDiff(String collection, Date start, Date end, List<ObservationState> states)
+            throws AccessControlException
+    {
+        init();
+
+        String surl = baseServiceURL.toExternalForm() + File.separator + collection;
+        String sep = "?";
+        if (start != null)
+        {
+            surl = surl + sep + "start=" + df.format(start);
+            sep = "&";
+        }
+        if (end != null)
+            surl = surl + sep + "end=" + df.format(end);
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try
+        {
+            CsvWriter writer = new CsvWriter(new OutputStreamWriter(content, "US-ASCII"), '\t');
+            for (ObservationState s : states)
+            {
+                writer.write(s.getURI().getCollection());
+                writer.write(s.getURI().getObservationID());
+                writer.write(s.maxLastModified == null ? "" : df.format(s.maxLastModified));
+                writer.write(s.accMetaChecksum == null ? "" : s.accMetaChecksum.toASCIIString());
+                writer.endRecord();
+            }
+            writer.flush();
+
+            ObservationStateDiff ret = new ObservationStateDiff();
+            CsvReader reader = new CsvReader(new InputStreamReader(post(surl, content.toByteArray()), "US-ASCII"), '\t');
+            while (reader.readRecord())
+            {
+                ObservationState os = new ObservationState(new ObservationURI(reader.get(1), reader.get(2)));
+                String sdate = reader.get(3);
+                if (!sdate.isEmpty())
+                    os.maxLastModified = df.parse(sdate);
+                String scs = reader.get(4);
+                if (!scs.isEmpty())
+                    os.accMetaChecksum = new URI(scs);
+                String status = reader.get(0);
+                if ("missing".equals(status))
+                    ret.missing.add(os);
+                else if ("extra".equals(status))
+                    ret.extra.add(os);
+                else if ("different".equals(status))
+                    ret.different.add(os);
+                else
+                    throw new RuntimeException("unexpected diff status: " + status);
+            }
+            reader.close();
+            return ret;
+        }
+        catch (ParseException | URISyntaxException | IOException e)
+        {
+            throw new RuntimeException("failed to get state diff for " + collection, e);
+        }
+    }
+
+    /**
+     * Compare state buckets with the repository. The input buckets must have the
+     * digest computed with ObservationStateDiff.getDigest. The returned list contains
+     * the repository count and digest for each bucket that does not match.
+     * 
+     * @param collection
+     * @param buckets
+     * @return buckets that do not match
+     * @throws AccessControlException 
+     */
+    public List<ObservationStateBucket> getBucketDiff(String collection, List<ObservationStateBucket> buckets)
+            throws AccessControlException
+    {
+        init();
+
+        String surl = baseServiceURL.toExternalForm() + File.separator + collection;
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try
+        {
+            CsvWriter writer = new CsvWriter(new OutputStreamWriter(content, "US-ASCII"), '\t');
+            for (ObservationStateBucket b : buckets)
+            {
+                writer.write(df.format(b.getStart()));
+                writer.write(df.format(b.getEnd()));
+                writer.write(b.digest == null ? "" : b.digest.toASCIIString());
+                writer.endRecord();
+            }
+            writer.flush();
+
+            List<ObservationStateBucket> ret = new ArrayList<ObservationStateBucket>();
+            CsvReader reader = new CsvReader(new InputStreamReader(post(surl, content.toByteArray()), "US-ASCII"), '\t');
+            while (reader.readRecord())
+            {
+                ObservationStateBucket b = new ObservationStateBucket(df.parse(reader.get(0)), df.parse(reader.get(1)));
+                b.count = Long.parseLong(reader.get(2));
+                b.digest = new URI(reader.get(3));
+                ret.add(b);
+            }
+            reader.close();
+            return ret;
+        }
+        catch (ParseException | URISyntaxException | IOException e)
+        {
+            throw new RuntimeException("failed to get bucket diff for " + collection, e);
+        }
+    }
+
+    /**
+     * Store observations in a collection with bulk requests. The service parses and 
+     * validates the observations in parallel and commits them in groups; each 
+     * observation is stored (or fails) independently. Observations are streamed to the
+     * service in requests of up to 1000 observations.
+     * 
+     * @param collection
+     * @param observations observations to store, all in the collection
+     * @param mode put (create or update), create (only new observations), or update 
+     *          (only existing observations); null for put
+     * @return one status per observation in input order; a request the service could
+     *          not read ends with a failed status indexed after its last observation
+     * @throws AccessControlException 
+     */
+    public List<BulkStatus> putObservations(String collection, Iterator<Observation> observations, String mode)
+            throws AccessControlException
+    {
+        init();
+
+        String surl = baseServiceURL.toExternalForm() + File.separator + collection;
+        if (mode != null)
+            surl = surl + "?mode=" + mode;
+
+        List<BulkStatus> ret = new ArrayList<BulkStatus>();
+        ObservationWriter w = new ObservationWriter();
+        int offset = 0;
+        try
+        {
+            while (observations.hasNext())
+            {
+                long t = System.currentTimeMillis();
+                HttpURLConnection conn = openConnection(new URL(surl), BULK_CONTENT_TYPE);
+                conn.setChunkedStreamingMode(8192);
+                OutputStream out = conn.getOutputStream();
+                ByteArrayOutputStream doc = new ByteArrayOutputStream();
+                int num = 0;
+                while (num < BULK_REQUEST_SIZE && observations.hasNext())
+                {
+                    doc.reset();
+                    w.write(observations.next(), doc);
+                    out.write((doc.size() + "\n").getBytes("US-ASCII"));
+                    doc.writeTo(out);
+                    num++;
+                }
+                out.close();
+
+                // the service only writes the status once the whole request is read
+                InputStream in = getResponse(conn);
+                List<BulkStatus> status = readBulkStatus(in, offset);
+                in.close();
+                if (status.size() < num)
+                    log.warn("bulk: " + num + " observations, " + status.size() + " status records");
+                ret.addAll(status);
+                offset += num;
+                long dt = System.currentTimeMillis() - t;
+                log.debug("bulk: " + collection + " " + num + " observations " + dt + "ms");
+            }
+            return ret;
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("failed to store observations in " + collection, e);
+        }
+    }
+
+    // parse bulk status records: index, status, uri, message
+    static List<BulkStatus> readBulkStatus(InputStream in, int offset)
+        throws IOException
+    {
+        List<BulkStatus> ret = new ArrayList<BulkStatus>();
+        CsvReader reader = new CsvReader(new InputStreamReader(in, "US-ASCII"), '\t');
+        while (reader.readRecord())
+        {
+            int index = offset + Integer.parseInt(reader.get(0));
+            String suri = reader.get(2);
+            URI uri = null;
+            if (!suri.isEmpty())
+                uri = URI.create(suri);
+            String msg = reader.get(3);
+            if (msg.isEmpty())
+                msg = null;
+            ret.add(new BulkStatus(index, uri, reader.get(1), msg));
+        }
+        reader.close();
+        return ret;
+    }
+
+    private HttpURLConnection openConnection(URL url, String contentType)
+        throws IOException
+    {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        if (conn instanceof HttpsURLConnection)
+        {
+            Subject s = AuthenticationUtil.getCurrentSubject();
+            if (s != null)
+                ((HttpsURLConnection) conn).setSSLSocketFactory(SSLUtil.getSocketFactory(s));
+        }
+        conn.setRequestMethod("POST");
+        conn.setInstanceFollowRedirects(false);
+        conn.setDoOutput(true);
+        conn.setDoInput(true);
+        conn.setRequestProperty("Content-Type", contentType);
+        conn.setRequestProperty("Accept-Encoding", ContentDecoder.ACCEPT_ENCODING);
+        return conn;
+    }
+
+    private InputStream getResponse(HttpURLConnection conn)
+        throws IOException
+    {
+        int code = conn.getResponseCode();
+        if (code == 401 || code == 403)
+            throw new AccessControlException("permission denied: " + NetUtil.getErrorBody(conn));
+        if (code != 200)
+            throw new IOException("POST " + conn.getURL() + " failed: " + code + " " + NetUtil.getErrorBody(conn));
+        return ContentDecoder.decode(conn.getInputStream(), conn.getContentEncoding());
+    }
+
+    // post a tab-separated-values document and return the response body
+    private InputStream post(String surl, byte[] content)
+        throws IOException
+    {
+        HttpURLConnection conn = openConnection(new URL(surl), "text/tab-separated-values");
+        OutputStream out = conn.getOutputStream();
+        out.write(content);
+        out.close();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        InputStream in = getResponse(conn);
+        byte[] buf = new byte[8192];
+        int n = in.read(buf);
+        while (n > 0)
+        {
+            bos.write(buf, 0, n);
+            n = in.read(buf);
+        }
+        in.close();
+        return new ByteArrayInputStream(bos.toByteArray());
+    }
+
     private List<ObservationState> transformByteArrayOutputStreamIntoListOfObservationState(
             final ByteArrayOutputStream bos, DateFormat sdf, char separator, char endOfLine)
 
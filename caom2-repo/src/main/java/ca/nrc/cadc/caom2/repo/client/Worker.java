@@ -69,8 +69,10 @@
 
 package ca.nrc.cadc.caom2.repo.client;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
@@ -83,6 +85,8 @@ import org.apache.log4j.Logger;
 import ca.nrc.cadc.auth.RunnableAction;
 import ca.nrc.cadc.caom2.Observation;
 import ca.nrc.cadc.caom2.ObservationState;
+import ca.nrc.cadc.caom2.binary.BinaryObservationReader;
+import ca.nrc.cadc.caom2.binary.BinaryObservationWriter;
 import ca.nrc.cadc.caom2.xml.ObservationParsingException;
 import ca.nrc.cadc.caom2.xml.ObservationReader;
 import ca.nrc.cadc.net.HttpDownload;
@@ -92,6 +96,9 @@ public class Worker implements Callable<WorkerResponse>
 
     private static final Logger log = Logger.getLogger(Worker.class);
 
+    // prefer the compact binary format, services that do not support it send xml
+    public static final String ACCEPT = BinaryObservationWriter.CONTENT_TYPE + ", text/x-caom+xml;q=0.9";
+
     private ObservationState state = null;
     private Subject subject = null;
     private String BASE_HTTP_URL = null;
@@ -123,6 +130,8 @@ public class Worker implements Callable<WorkerResponse>
             throw new RuntimeException("Unable to create URL object for " + surl);
         }
         HttpDownload get = new HttpDownload(url, bos);
+        get.setRequestProperty("Accept", ACCEPT);
+        get.setRequestProperty("Accept-Encoding", ContentDecoder.ACCEPT_ENCODING);
 
         if (subject != null)
         {
@@ -134,17 +143,17 @@ public class Worker implements Callable<WorkerResponse>
             get.run();
         }
 
-        ObservationReader obsReader = new ObservationReader();
         Observation o = null;
         Exception exception = null;
         WorkerResponse wr = new WorkerResponse(null, state, null);
+        wr.setResponseBytes(bos.size());
 
         try
         {
-            o = obsReader.read(bos.toString());
+            o = read(get, bos);
             wr.setObservation(o);
         }
-        catch (ObservationParsingException e)
+        catch (ObservationParsingException | IOException e)
         {
             String oid = state.getURI().getObservationID();
             exception = new Exception(
@@ -169,6 +178,8 @@ public class Worker implements Callable<WorkerResponse>
             throw new RuntimeException("Unable to create URL object for " + surl);
         }
         HttpDownload get = new HttpDownload(url, bos);
+        get.setRequestProperty("Accept", ACCEPT);
+        get.setRequestProperty("Accept-Encoding", ContentDecoder.ACCEPT_ENCODING);
 
         if (subject != null)
         {
@@ -180,17 +191,17 @@ public class Worker implements Callable<WorkerResponse>
             get.run();
         }
 
-        ObservationReader obsReader = new ObservationReader();
         Observation o = null;
         Exception exception = null;
         WorkerResponse wr = new WorkerResponse(null, state, null);
+        wr.setResponseBytes(bos.size());
 
         try
         {
-            o = obsReader.read(bos.toString());
+            o = read(get, bos);
             wr.setObservation(o);
         }
-        catch (ObservationParsingException e)
+        catch (ObservationParsingException | IOException e)
         {
             String oid = state.getURI().getObservationID();
             exception = new Exception(
@@ -201,4 +212,18 @@ public class Worker implements Callable<WorkerResponse>
         return wr;
     }
 
-}
\ No newline at end of file
+    // decode the response body in the format chosen by the service
+    private Observation read(HttpDownload get, ByteArrayOutputStream bos)
+        throws IOException, ObservationParsingException
+    {
+        ByteArrayOutputStream doc = ContentDecoder.decode(bos, get.getContentEncoding());
+        String contentType = get.getContentType();
+        if (contentType != null && contentType.startsWith(BinaryObservationWriter.CONTENT_TYPE))
+        {
+            BinaryObservationReader r = new BinaryObservationReader();
+            return r.read(new ByteArrayInputStream(doc.toByteArray()));
+        }
+        ObservationReader obsReader = new ObservationReader();
+        return obsReader.read(doc.toString());
+    }
+}
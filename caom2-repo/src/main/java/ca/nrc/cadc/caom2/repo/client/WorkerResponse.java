@@ -78,6 +78,7 @@ public class WorkerResponse
     private Observation observation = null;
     private ObservationState observationState = null;
     private Exception error = null;
+    private long responseBytes = -1L;
 
     public WorkerResponse(Observation obs, ObservationState obsState, Exception err)
     {
@@ -116,6 +117,19 @@ public class WorkerResponse
         this.error = error;
     }
 
+    /**
+     * @return size of the response body as received (before decoding), -1 if unknown
+     */
+    public long getResponseBytes()
+    {
+        return responseBytes;
+    }
+
+    public void setResponseBytes(long responseBytes)
+    {
+        this.responseBytes = responseBytes;
+    }
+
     @Override
     public String toString()
     {
@@ -72,9 +72,15 @@ package ca.nrc.cadc.caom2.repo.client;
 import ca.nrc.cadc.auth.AuthenticationUtil;
 import ca.nrc.cadc.auth.RunnableAction;
 import ca.nrc.cadc.caom2.ObservationState;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -115,6 +121,95 @@ public class RepoClientTest
         }
     }
 
+    @Test
+    public void testReadBulkStatus()
+    {
+        try
+        {
+            String content = "0\tok\tcaom:TEST/a\t\n"
+                    + "1\tinvalid\t\tfailed to parse\n"
+                    + "2\tfailed\tcaom:TEST/c\tcommit failed\n";
+            List<BulkStatus> status = RepoClient.readBulkStatus(new ByteArrayInputStream(content.getBytes("US-ASCII")), 10);
+            Assert.assertEquals(3, status.size());
+            
+            Assert.assertEquals(10, status.get(0).getIndex());
+            Assert.assertTrue(status.get(0).isOK());
+            Assert.assertEquals(URI.create("caom:TEST/a"), status.get(0).getURI());
+            Assert.assertNull(status.get(0).getMessage());
+            
+            Assert.assertEquals(11, status.get(1).getIndex());
+            Assert.assertEquals(BulkStatus.INVALID, status.get(1).getStatus());
+            Assert.assertNull(status.get(1).getURI());
+            Assert.assertEquals("failed to parse", status.get(1).getMessage());
+            
+            Assert.assertEquals(12, status.get(2).getIndex());
+            Assert.assertEquals(BulkStatus.FAILED, status.get(2).getStatus());
+            Assert.assertFalse(status.get(2).isOK());
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
+    @Test
+    public void testDecode()
+    {
+        try
+        {
+            String doc = "TEST\tfoo\t2017-01-01T00:00:00.000\tmd5:5b71d023d4729575d550536dce8439e6\n";
+            doc = doc + doc + doc + doc;
+            byte[] plain = doc.getBytes("US-ASCII");
+            
+            ByteArrayOutputStream gz = new ByteArrayOutputStream();
+            GZIPOutputStream gzo = new GZIPOutputStream(gz);
+            gzo.write(plain);
+            gzo.close();
+            ByteArrayOutputStream df = new ByteArrayOutputStream();
+            DeflaterOutputStream dfo = new DeflaterOutputStream(df);
+            dfo.write(plain);
+            dfo.close();
+            
+            long bytes = ContentDecoder.getBytes();
+            long decoded = ContentDecoder.getDecodedBytes();
+            Assert.assertEquals(doc, ContentDecoder.decode(gz, "gzip").toString("US-ASCII"));
+            Assert.assertEquals(doc, ContentDecoder.decode(df, "deflate").toString("US-ASCII"));
+            ByteArrayOutputStream id = new ByteArrayOutputStream();
+            id.write(plain);
+            Assert.assertSame(id, ContentDecoder.decode(id, null));
+            Assert.assertEquals(bytes + gz.size() + df.size() + plain.length, ContentDecoder.getBytes());
+            Assert.assertEquals(decoded + 3 * plain.length, ContentDecoder.getDecodedBytes());
+            
+            // streaming
+            InputStream in = ContentDecoder.decode(new ByteArrayInputStream(gz.toByteArray()), "gzip");
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[64];
+            int n = in.read(buf);
+            while (n > 0)
+            {
+                bos.write(buf, 0, n);
+                n = in.read(buf);
+            }
+            Assert.assertEquals(doc, bos.toString("US-ASCII"));
+            
+            try
+            {
+                ContentDecoder.decode(id, "br");
+                Assert.fail("expected IOException for unsupported encoding");
+            }
+            catch (IOException expected)
+            {
+                log.debug("caught expected: " + expected);
+            }
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
     @Test
     public void testGetObservationList()
     {
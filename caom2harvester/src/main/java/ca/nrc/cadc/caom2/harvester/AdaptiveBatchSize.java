@@ -0,0 +1,104 @@
+package ca.nrc.cadc.caom2.harvester;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Choose the number of observations in the next batch from the size of recent
+ * observations (entities per tree), the measured time per observation, and the max
+ * heap. The heap limit uses a fixed estimate of the heap used per entity, so it only
+ * depends on the observations and not on garbage collection. The batch size can at
+ * most double from one batch to the next and always stays within the configured bounds.
+ *
+ * @author pdowler
+ */
+public class AdaptiveBatchSize
+{
+    private static Logger log = Logger.getLogger(AdaptiveBatchSize.class);
+
+    // target wall time for one batch
+    static final long TARGET_LATENCY = 60000L;
+
+    // max fraction of the max heap one batch can use
+    static final double HEAP_FRACTION = 0.25;
+
+    // estimate of the heap used per entity (observation, plane, artifact, part, chunk)
+    static final long ENTITY_BYTES = 4096L;
+
+    // weight of the most recent batch in the moving averages
+    private static final double ALPHA = 0.5;
+
+    private final int minSize;
+    private final int maxSize;
+
+    private double entitiesPerObs = -1.0;
+    private double msPerObs = -1.0;
+
+    public AdaptiveBatchSize(int minSize, int maxSize)
+    {
+        if (minSize < 1 || maxSize < minSize)
+            throw new IllegalArgumentException("invalid batch size bounds: " + minSize + "," + maxSize);
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+    }
+
+    public int getMinSize()
+    {
+        return minSize;
+    }
+
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    public int clamp(int size)
+    {
+        return Math.max(minSize, Math.min(maxSize, size));
+    }
+
+    /**
+     * Compute the size of the next batch.
+     *
+     * @param cur current batch size
+     * @param found number of observations in the last batch
+     * @param entities number of entities (observation, planes, artifacts, parts, chunks) in the last batch
+     * @param latency wall time of the last batch in milliseconds
+     * @return next batch size
+     */
+    public int next(int cur, int found, long entities, long latency)
+    {
+        return next(cur, found, entities, latency, Runtime.getRuntime().maxMemory());
+    }
+
+    // package access for tests
+    int next(int cur, int found, long entities, long latency, long maxHeap)
+    {
+        if (found <= 0)
+            return clamp(cur);
+
+        entitiesPerObs = average(entitiesPerObs, ((double) entities) / found);
+        msPerObs = average(msPerObs, ((double) latency) / found);
+
+        long byLatency = (long) (TARGET_LATENCY / Math.max(msPerObs, 1.0));
+
+        double batchBytes = Math.max(entitiesPerObs, 1.0) * ENTITY_BYTES;
+        long byHeap = (long) (HEAP_FRACTION * maxHeap / batchBytes);
+
+        long next = Math.min(byLatency, byHeap);
+        next = Math.min(next, 2L * cur);
+        int ret = clamp((int) Math.min(next, Integer.MAX_VALUE));
+
+        log.info("batch size: " + cur + " -> " + ret + " [" + minSize + "," + maxSize + "]"
+                + " tree: " + String.format("%.1f", entitiesPerObs) + " entities/obs"
+                + " time: " + String.format("%.1f", msPerObs) + " ms/obs (limit " + byLatency + ")"
+                + " heap: " + (maxHeap / (1024L * 1024L)) + "MB max (limit " + byHeap + ")");
+        return ret;
+    }
+
+    private double average(double prev, double cur)
+    {
+        if (prev < 0.0)
+            return cur;
+        return ALPHA * cur + (1.0 - ALPHA) * prev;
+    }
+}
@@ -2,7 +2,13 @@ package ca.nrc.cadc.caom2.harvester;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.sql.DataSource;
 
@@ -68,6 +74,18 @@ public class CaomHarvester implements Runnable
      * planeDataDeleter
      */
     private DeletionHarvester planeMetaDeleter;
+    private boolean concurrent = false;
+
+    // daemon mode poll interval (ms)
+    static final long MIN_INTERVAL = 5000L;
+    public static final long DEFAULT_MAX_INTERVAL = 600000L;
+    private boolean daemon = false;
+    private long maxInterval = DEFAULT_MAX_INTERVAL;
+
+    // package access for tests
+    CaomHarvester()
+    {
+    }
 
     /**
      * Harvest everything.
@@ -100,9 +118,7 @@ public class CaomHarvester implements Runnable
     {
         Integer entityBatchSize = batchSize * batchFactor;
 
-        DBConfig dbrc = new DBConfig();
-        ConnectionConfig cc = dbrc.getConnectionConfig(dest[0], dest[1]);
-        DataSource ds = DBUtil.getDataSource(cc);
+        DataSource ds = getDataSource(dest);
         this.initdb = new InitDatabase(ds, dest[1], dest[2]);
 
         this.obsHarvester = new ObservationHarvester(src, dest, batchSize, full, dryrun);
@@ -170,9 +186,7 @@ public class CaomHarvester implements Runnable
             int batchSize, int batchFactor, boolean full, boolean skip, Date maxDate)
             throws IOException, URISyntaxException
     {
-        DBConfig dbrc = new DBConfig();
-        ConnectionConfig cc = dbrc.getConnectionConfig(dest[0], dest[1]);
-        DataSource ds = DBUtil.getDataSource(cc);
+        DataSource ds = getDataSource(dest);
         this.initdb = new InitDatabase(ds, dest[1], dest[2]);
 
         this.obsHarvester = new ObservationHarvester(resourceId, collection, nthreads, dest, batchSize, full, dryrun);
@@ -264,6 +278,86 @@ public class CaomHarvester implements Runnable
         obsHarvester.setComputePlaneMetadata(compute);
     }
 
+    /**
+     * Run independent harvesters concurrently. The steps run in the same order as
+     * the sequential harvest; the observation access control tuples are harvested
+     * (and deleted) in parallel with the plane access control tuples. This only applies
+     * when harvesting from a database: there is no access control harvest from a
+     * repository service.
+     * 
+     * @param concurrent
+     */
+    public void setConcurrent(boolean concurrent)
+    {
+        if (concurrent && observationMetaHarvester == null && planeDataHarvester == null && planeMetaHarvester == null)
+        {
+            log.warn("concurrent mode ignored: no access control harvest from " + getSource());
+            return;
+        }
+        this.concurrent = concurrent;
+    }
+
+    /**
+     * Only compute plane metadata for planes that are new or changed.
+     * 
+     * @param skipUnchangedPlanes
+     */
+    public void setSkipUnchangedPlanes(boolean skipUnchangedPlanes)
+    {
+        obsHarvester.setSkipUnchangedPlanes(skipUnchangedPlanes);
+    }
+
+    /**
+     * Adapt the observation batch size within the specified bounds.
+     * 
+     * @param minSize min observations per batch
+     * @param maxSize max observations per batch
+     */
+    public void setAdaptiveBatchSize(int minSize, int maxSize)
+    {
+        obsHarvester.setAdaptiveBatchSize(minSize, maxSize);
+    }
+
+    /**
+     * Split the observation harvest into time shards that are claimed by worker threads
+     * in this and other processes.
+     * 
+     * @param shardSize shard size in milliseconds
+     * @param workers number of worker threads
+     */
+    public void setSharded(long shardSize, int workers)
+    {
+        obsHarvester.setSharded(shardSize, workers);
+    }
+
+    /**
+     * Keep running harvest cycles until Harvester.requestShutdown() is called. The 
+     * time between cycles adapts to the amount of work found in the previous cycle.
+     * 
+     * @param daemon
+     * @param maxInterval max time between cycles in milliseconds
+     */
+    public void setDaemon(boolean daemon, long maxInterval)
+    {
+        this.daemon = daemon;
+        this.maxInterval = Math.max(MIN_INTERVAL, maxInterval);
+    }
+
+    /**
+     * Stop each harvester after the specified number of batches per harvest cycle so
+     * that other collections can be harvested.
+     * 
+     * @param maxRunBatches max batches per harvester per cycle; 0 for no limit
+     */
+    public void setMaxRunBatches(int maxRunBatches)
+    {
+        for (Harvester h : getHarvesters())
+        {
+            if (h != null)
+                h.setMaxRunBatches(maxRunBatches);
+        }
+    }
+
     // undocumented for use be developers that want to setup a CaomHarvester with only some components or hard-coded
     // config not supported by command-line arguments
     public static CaomHarvester getTestHarvester(boolean dryrun, boolean compute, String[] src, String[] dest, Integer batchSize,
@@ -278,7 +372,20 @@ public class CaomHarvester implements Runnable
     @Override
     public void run()
     {
+        boolean init = init();
+        if (daemon)
+            runDaemon(init);
+        else
+            harvest(init);
+    }
 
+    /**
+     * Check runtime requirements and create or upgrade the destination database.
+     * 
+     * @return true if the database was created
+     */
+    boolean init()
+    {
         if (obsHarvester.getComputePlaneMetadata())
         {
             // make sure wcslib can be loaded
@@ -300,83 +407,150 @@ public class CaomHarvester implements Runnable
             if (created)
                 init = true; // database is empty so can bypass processing old deletions
         }
+        return init;
+    }
+
+    /**
+     * @return name of the harvest source
+     */
+    String getSource()
+    {
+        return obsHarvester.source;
+    }
+
+    /**
+     * @return true if any harvester found a full batch in the last harvest cycle
+     */
+    boolean hasBacklog()
+    {
+        for (Harvester h : getHarvesters())
+        {
+            if (h != null && h.isRunFull())
+                return true;
+        }
+        return false;
+    }
+
+    private Harvester[] getHarvesters()
+    {
+        return new Harvester[] { obsDeleter, obsHarvester, observationMetaDeleter,
+            observationMetaHarvester, planeDataDeleter, planeDataHarvester, planeMetaDeleter, planeMetaHarvester };
+    }
+
+    // shared pool if enabled
+    private static DataSource getDataSource(String[] desc) throws IOException
+    {
+        DataSource ret = SharedDataSources.get(desc[0], desc[1]);
+        if (ret == null)
+        {
+            DBConfig dbrc = new DBConfig();
+            ConnectionConfig cc = dbrc.getConnectionConfig(desc[0], desc[1]);
+            ret = DBUtil.getDataSource(cc);
+        }
+        return ret;
+    }
+
+    // loop the harvest cycle with the same harvesters (DAOs and connections) until
+    // shutdown is requested; the harvesters finish the current batch before returning
+    private void runDaemon(boolean init)
+    {
+        log.info("daemon mode: poll interval " + MIN_INTERVAL / 1000L + "-" + maxInterval / 1000L + "s");
+        long interval = MIN_INTERVAL;
+        boolean first = true;
+        while (!Harvester.isShutdown())
+        {
+            long t = System.currentTimeMillis();
+            boolean ok = false;
+            try
+            {
+                harvest(first && init);
+                ok = true;
+            }
+            catch (RuntimeException ex)
+            {
+                log.error("harvest cycle failed", ex);
+            }
+            first = false;
+            long dt = System.currentTimeMillis() - t;
+
+            interval = getNextInterval(interval, ok, maxInterval);
+            log.info("harvest cycle: " + dt + "ms next: " + interval / 1000L + "s");
+
+            try
+            {
+                Harvester.awaitShutdown(interval);
+            }
+            catch (InterruptedException ex)
+            {
+                log.warn("interrupted: stopping");
+                break;
+            }
+        }
+        log.info("daemon mode: shutdown complete");
+    }
+
+    // next poll interval from the progress of the last cycle of this harvester
+    long getNextInterval(long interval, boolean ok, long maxInterval)
+    {
+        int found = 0;
+        boolean fullBatch = false;
+        for (Harvester h : getHarvesters())
+        {
+            if (h != null)
+            {
+                found += h.getRunFound();
+                fullBatch = fullBatch || h.isRunFull();
+            }
+        }
+        log.debug("cycle found: " + found + " full batch: " + fullBatch);
+        return getNextInterval(interval, ok, found, fullBatch, maxInterval);
+    }
+
+    // poll right away when a batch came back full (backlog), sooner when something 
+    // was found, and back off when nothing was found; after a failed cycle wait the
+    // max interval and hope the problem is transient
+    static long getNextInterval(long interval, boolean ok, int found, boolean fullBatch, long maxInterval)
+    {
+        if (!ok)
+            return maxInterval;
+        if (fullBatch)
+            return MIN_INTERVAL;
+        if (found > 0)
+            return Math.max(MIN_INTERVAL, interval / 2);
+        return Math.min(maxInterval, interval * 2);
+    }
+
+    void harvest(boolean init)
+    {
+        if (concurrent)
+        {
+            runConcurrent(init);
+            return;
+        }
 
         // clean up old access control tuples before harvest to avoid conflicts
         // from delete+create
         if (observationMetaDeleter != null)
         {
-            boolean initDel = init;
-            if (!init)
-            {
-                log.warn("in observationMetaDeleter != null and !init");
-
-                // check if we have ever harvested before
-                HarvestState hs = observationMetaHarvester.harvestState.get(observationMetaHarvester.source,
-                        observationMetaHarvester.cname);
-                initDel = (hs.curID == null && hs.curLastModified == null); // never
-                                                                            // harvested
-                                                                            // from
-                                                                            // source
-                                                                            // before
-            }
-            observationMetaDeleter.setInitHarvestState(initDel);
+            initDeleter(observationMetaDeleter, observationMetaHarvester, init);
             observationMetaDeleter.run();
-            log.info("init: " + observationMetaDeleter.cname);
         }
         if (planeDataDeleter != null)
         {
-            boolean initDel = init;
-            if (!init)
-            {
-                // check if we have ever harvested before
-                HarvestState hs = planeDataHarvester.harvestState.get(planeDataHarvester.source,
-                        planeDataHarvester.cname);
-                initDel = (hs.curID == null && hs.curLastModified == null); // never
-                                                                            // harvested
-                                                                            // from
-                                                                            // source
-                                                                            // before
-            }
-            planeDataDeleter.setInitHarvestState(initDel);
+            initDeleter(planeDataDeleter, planeDataHarvester, init);
             planeDataDeleter.run();
-            log.info("init: " + planeDataDeleter.cname);
         }
         if (planeMetaDeleter != null)
         {
-            boolean initDel = init;
-            if (!init)
-            {
-                // check if we have ever harvested before
-                HarvestState hs = planeMetaHarvester.harvestState.get(planeMetaHarvester.source,
-                        planeMetaHarvester.cname);
-                initDel = (hs.curID == null && hs.curLastModified == null); // never
-                                                                            // harvested
-                                                                            // from
-                                                                            // source
-                                                                            // before
-            }
-            planeMetaDeleter.setInitHarvestState(initDel);
+            initDeleter(planeMetaDeleter, planeMetaHarvester, init);
             planeMetaDeleter.run();
-            log.info("init: " + planeMetaDeleter.cname);
         }
 
         // delete observations before harvest to avoid observationURI conflicts
         // from delete+create
         if (obsDeleter != null)
         {
-            boolean initDel = init;
-            if (!init)
-            {
-                // check if we have ever harvested before
-                HarvestState hs = obsHarvester.harvestState.get(obsHarvester.source, obsHarvester.cname);
-                initDel = (hs.curID == null && hs.curLastModified == null); // never
-                                                                            // harvested
-                                                                            // from
-                                                                            // source
-                                                                            // before
-            }
-            log.info("init: " + obsDeleter.source + " " + obsDeleter.cname);
-            obsDeleter.setInitHarvestState(initDel);
+            initDeleter(obsDeleter, obsHarvester, init);
             obsDeleter.run();
         }
 
@@ -403,4 +577,128 @@ public class CaomHarvester implements Runnable
         }
 
     }
-}
\ No newline at end of file
+
+    // set the deletion harvest state to now if the entities were never harvested from 
+    // this source before: there cannot be anything older to delete
+    private void initDeleter(DeletionHarvester deleter, Harvester harvester, boolean init)
+    {
+        boolean initDel = init;
+        if (!init && harvester != null)
+        {
+            // check if we have ever harvested before
+            HarvestState hs = harvester.harvestState.get(harvester.source, harvester.cname);
+            initDel = (hs.curID == null && hs.curLastModified == null); // never harvested from source before
+        }
+        log.info("init: " + deleter.source + " " + deleter.cname);
+        deleter.setInitHarvestState(initDel);
+    }
+
+    // the harvest runs in the same order as the sequential harvest:
+    //   access control deletions, observation deletions, observation harvest,
+    //   access control harvest
+    // because access control deletions and harvest update the asset tables that
+    // the observation deleter and harvester delete and rewrite; only the access 
+    // control harvesters (and deleters) run concurrently, each in its own thread 
+    // with the DAOs (and connections) of its harvester
+    private void runConcurrent(boolean init)
+    {
+        long t = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try
+        {
+            runPhase(pool, getPhase(getDeleter(observationMetaDeleter, observationMetaHarvester, init),
+                    getDeleter(planeDataDeleter, planeDataHarvester, init),
+                    getDeleter(planeMetaDeleter, planeMetaHarvester, init)));
+
+            if (obsDeleter != null)
+            {
+                initDeleter(obsDeleter, obsHarvester, init);
+                obsDeleter.run();
+            }
+            if (obsHarvester != null)
+                obsHarvester.run();
+
+            runPhase(pool, getPhase(observationMetaHarvester, planeDataHarvester, planeMetaHarvester));
+        }
+        finally
+        {
+            pool.shutdownNow();
+            long dt = System.currentTimeMillis() - t;
+            log.debug("concurrent harvest: " + dt + "ms");
+        }
+    }
+
+    private Runnable getDeleter(final DeletionHarvester deleter, final Harvester harvester, final boolean init)
+    {
+        if (deleter == null)
+            return null;
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                initDeleter(deleter, harvester, init);
+                deleter.run();
+            }
+        };
+    }
+
+    // tasks for one phase of the concurrent harvest: the plane data and plane meta
+    // steps both update the same Plane rows (in no particular order) so they run one 
+    // after the other in one task; the observation step updates Observation rows and 
+    // runs in parallel with them
+    static List<Runnable> getPhase(Runnable observationStep, final Runnable planeDataStep, final Runnable planeMetaStep)
+    {
+        List<Runnable> ret = new ArrayList<Runnable>();
+        if (observationStep != null)
+            ret.add(observationStep);
+        if (planeDataStep != null && planeMetaStep != null)
+        {
+            ret.add(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    planeDataStep.run();
+                    planeMetaStep.run();
+                }
+            });
+        }
+        else if (planeDataStep != null)
+            ret.add(planeDataStep);
+        else if (planeMetaStep != null)
+            ret.add(planeMetaStep);
+        return ret;
+    }
+
+    // run the tasks concurrently and wait for all of them so a failure does not 
+    // leave work running in the background
+    static void runPhase(ExecutorService pool, List<Runnable> tasks)
+    {
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (Runnable r : tasks)
+        {
+            futures.add(pool.submit(r));
+        }
+        RuntimeException fail = null;
+        for (Future<?> f : futures)
+        {
+            try
+            {
+                f.get();
+            }
+            catch (ExecutionException ex)
+            {
+                log.error("harvest failed", ex.getCause());
+                if (fail == null)
+                    fail = new RuntimeException("harvest failed", ex.getCause());
+            }
+            catch (InterruptedException ex)
+            {
+                throw new RuntimeException("interrupted", ex);
+            }
+        }
+        if (fail != null)
+            throw fail;
+    }
+}
@@ -258,6 +258,17 @@ public class CaomValidator implements Runnable
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Enable bucket validation: compare digests per time bucket first and only
+     * validate observations in buckets that differ.
+     * 
+     * @param bucketSize initial bucket size in milliseconds, null to disable
+     */
+    public void setBucketSize(Long bucketSize)
+    {
+        obsValidator.setBucketSize(bucketSize);
+    }
+
     @Override
     public void run()
     {
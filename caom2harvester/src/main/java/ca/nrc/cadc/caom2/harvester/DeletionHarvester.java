@@ -1,12 +1,10 @@
 package ca.nrc.cadc.caom2.harvester;
 
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.UUID;
 
@@ -20,6 +18,7 @@ import ca.nrc.cadc.caom2.DeletedPlaneMetaReadAccess;
 import ca.nrc.cadc.caom2.access.ObservationMetaReadAccess;
 import ca.nrc.cadc.caom2.access.PlaneDataReadAccess;
 import ca.nrc.cadc.caom2.access.PlaneMetaReadAccess;
+import ca.nrc.cadc.caom2.access.ReadAccess;
 import ca.nrc.cadc.caom2.harvester.state.HarvestState;
 import ca.nrc.cadc.caom2.persistence.AbstractDAO;
 import ca.nrc.cadc.caom2.persistence.DatabaseObservationDAO;
@@ -37,8 +36,13 @@ public class DeletionHarvester extends Harvester implements Runnable
 
     private static Logger log = Logger.getLogger(DeletionHarvester.class);
 
+    // number of deletions per transaction and HarvestState update
+    private static final int DELETE_GROUP_SIZE = 100;
+
     private AbstractDAO deletedDAO;
-    private WrapperDAO entityDAO;
+    private DatabaseObservationDAO obsDAO;
+    private DatabaseReadAccessDAO raDAO;
+    private Class<? extends ReadAccess> raClass;
     private TransactionManager txnManager;
 
     private boolean initHarvestState;
@@ -151,7 +155,7 @@ public class DeletionHarvester extends Harvester implements Runnable
             DatabaseObservationDAO dao = new DatabaseObservationDAO();
             dao.setConfig(config2);
             this.txnManager = dao.getTransactionManager();
-            this.entityDAO = new WrapperDAO(dao, null);
+            this.obsDAO = dao;
             initHarvestState(dao.getDataSource(), entityClass);
         }
         else if (DeletedPlaneMetaReadAccess.class.equals(entityClass))
@@ -159,7 +163,8 @@ public class DeletionHarvester extends Harvester implements Runnable
             DatabaseReadAccessDAO dao = new DatabaseReadAccessDAO();
             dao.setConfig(config2);
             this.txnManager = dao.getTransactionManager();
-            this.entityDAO = new WrapperDAO(dao, PlaneMetaReadAccess.class);
+            this.raDAO = dao;
+            this.raClass = PlaneMetaReadAccess.class;
             initHarvestState(dao.getDataSource(), entityClass);
         }
         else if (DeletedPlaneDataReadAccess.class.equals(entityClass))
@@ -167,7 +172,8 @@ public class DeletionHarvester extends Harvester implements Runnable
             DatabaseReadAccessDAO dao = new DatabaseReadAccessDAO();
             dao.setConfig(config2);
             this.txnManager = dao.getTransactionManager();
-            this.entityDAO = new WrapperDAO(dao, PlaneDataReadAccess.class);
+            this.raDAO = dao;
+            this.raClass = PlaneDataReadAccess.class;
             initHarvestState(dao.getDataSource(), entityClass);
         }
         else if (DeletedObservationMetaReadAccess.class.equals(entityClass))
@@ -175,7 +181,8 @@ public class DeletionHarvester extends Harvester implements Runnable
             DatabaseReadAccessDAO dao = new DatabaseReadAccessDAO();
             dao.setConfig(config2);
             this.txnManager = dao.getTransactionManager();
-            this.entityDAO = new WrapperDAO(dao, ObservationMetaReadAccess.class);
+            this.raDAO = dao;
+            this.raClass = ObservationMetaReadAccess.class;
             initHarvestState(dao.getDataSource(), entityClass);
         }
         else
@@ -200,7 +207,7 @@ public class DeletionHarvester extends Harvester implements Runnable
             DatabaseObservationDAO dao = new DatabaseObservationDAO();
             dao.setConfig(config2);
             this.txnManager = dao.getTransactionManager();
-            this.entityDAO = new WrapperDAO(dao, null);
+            this.obsDAO = dao;
             initHarvestState(dao.getDataSource(), entityClass);
         }
         else if (DeletedPlaneMetaReadAccess.class.equals(entityClass))
@@ -208,7 +215,8 @@ public class DeletionHarvester extends Harvester implements Runnable
             DatabaseReadAccessDAO dao = new DatabaseReadAccessDAO();
             dao.setConfig(config2);
             this.txnManager = dao.getTransactionManager();
-            this.entityDAO = new WrapperDAO(dao, PlaneMetaReadAccess.class);
+            this.raDAO = dao;
+            this.raClass = PlaneMetaReadAccess.class;
             initHarvestState(dao.getDataSource(), entityClass);
         }
         else if (DeletedPlaneDataReadAccess.class.equals(entityClass))
@@ -216,7 +224,8 @@ public class DeletionHarvester extends Harvester implements Runnable
             DatabaseReadAccessDAO dao = new DatabaseReadAccessDAO();
             dao.setConfig(config2);
             this.txnManager = dao.getTransactionManager();
-            this.entityDAO = new WrapperDAO(dao, PlaneDataReadAccess.class);
+            this.raDAO = dao;
+            this.raClass = PlaneDataReadAccess.class;
             initHarvestState(dao.getDataSource(), entityClass);
         }
         else if (DeletedObservationMetaReadAccess.class.equals(entityClass))
@@ -224,7 +233,8 @@ public class DeletionHarvester extends Harvester implements Runnable
             DatabaseReadAccessDAO dao = new DatabaseReadAccessDAO();
             dao.setConfig(config2);
             this.txnManager = dao.getTransactionManager();
-            this.entityDAO = new WrapperDAO(dao, ObservationMetaReadAccess.class);
+            this.raDAO = dao;
+            this.raClass = ObservationMetaReadAccess.class;
             initHarvestState(dao.getDataSource(), entityClass);
         }
         else
@@ -241,64 +251,6 @@ public class DeletionHarvester extends Harvester implements Runnable
         // TODO
     }
 
-    /**
-     * invoke delete(Long) method on an arbitrary object via reflection
-     *
-     */
-    private class WrapperDAO
-    {
-
-        private Object dao;
-        private Method deleteMethod;
-        private Class<?> targetClass;
-
-        WrapperDAO(Object dao, Class<?> targetClass)
-        {
-            this.dao = dao;
-            this.targetClass = targetClass;
-
-            try
-            {
-                if (targetClass != null)
-                    this.deleteMethod = dao.getClass().getMethod("delete", Class.class, UUID.class);
-                else
-                    this.deleteMethod = dao.getClass().getMethod("delete", UUID.class);
-
-            }
-            catch (NoSuchMethodException bug)
-            {
-                throw new RuntimeException("BUG", bug);
-            }
-            log.debug("created wrapper to call " + dao.getClass().getSimpleName() + ".delete(Long)");
-        }
-
-        public void delete(UUID id)
-        {
-            log.debug("invoking " + deleteMethod + " with id=" + id);
-            try
-            {
-                if (targetClass != null)
-                    deleteMethod.invoke(dao, targetClass, id);
-                else
-                    deleteMethod.invoke(dao, id);
-            }
-            catch (IllegalAccessException bug)
-            {
-                throw new RuntimeException("BUG", bug);
-            }
-            catch (InvocationTargetException bug)
-            {
-                throw new RuntimeException("BUG", bug);
-            }
-        }
-
-        @Override
-        public String toString()
-        {
-            return deleteMethod.toString();
-        }
-    }
-
     /**
      * run
      */
@@ -308,19 +260,19 @@ public class DeletionHarvester extends Harvester implements Runnable
         log.info("START: " + entityClass.getSimpleName());
         try
         {
-            if (service)
-            {
-                init(uri, collection, nthreads);
-            }
-            else
+            if (deletedDAO == null) // keep DAOs and connections across runs
             {
-                init();
+                if (service)
+                    init(uri, collection, nthreads);
+                else
+                    init();
             }
         }
         catch (Throwable oops)
         {
             throw new RuntimeException("failed to init connections and state", oops);
         }
+        startRun();
         boolean go = true;
         while (go)
         {
@@ -338,6 +290,8 @@ public class DeletionHarvester extends Harvester implements Runnable
             full = false; // do not start at min(lastModified) again
             if (dryrun)
                 go = false; // no state update -> infinite loop
+            if (!trackBatch(num.found))
+                go = false;
         }
         try
         {
@@ -426,44 +380,55 @@ public class DeletionHarvester extends Harvester implements Runnable
 
             ret.found = entityList.size();
             log.info("found: " + entityList.size());
-            ListIterator<DeletedEntity> iter = entityList.listIterator();
-            while (iter.hasNext())
-            {
-                DeletedEntity de = iter.next();
-                iter.remove(); // allow garbage collection asap
 
+            // stop at the end of the previous batch
+            List<DeletedEntity> todo = new ArrayList<DeletedEntity>(entityList.size());
+            for (DeletedEntity de : entityList)
+            {
                 if (de.id.equals(state.curID))
                 {
                     log.info("skip: " + de.getClass().getSimpleName() + " " + de.id + " -- was end of last batch");
                     break;
                 }
+                todo.add(de);
+            }
 
-                if (!dryrun)
-                    txnManager.startTransaction();
-                boolean ok = false;
-                try
+            for (int i = 0; i < todo.size() && !ret.abort; i += DELETE_GROUP_SIZE)
+            {
+                List<DeletedEntity> group = todo.subList(i, Math.min(i + DELETE_GROUP_SIZE, todo.size()));
+                DeletedEntity last = group.get(group.size() - 1);
+                List<UUID> ids = new ArrayList<UUID>(group.size());
+                for (DeletedEntity de : group)
                 {
                     log.info("put: " + de.getClass().getSimpleName() + " " + de.id + " " + format(de.lastModified));
-                    if (!dryrun)
-                    {
-                        state.curLastModified = de.lastModified;
-                        state.curID = de.id;
-
-                        // keep a record of the deletion
-                        // dORM.put(de);
-
-                        // perform the actual deletion
-                        entityDAO.delete(de.id);
+                    ids.add(de.id);
+                }
+                if (dryrun)
+                {
+                    ret.ingested += group.size();
+                    continue;
+                }
 
-                        // track progress
-                        harvestState.put(state);
+                txnManager.startTransaction();
+                boolean ok = false;
+                try
+                {
+                    // perform the actual deletions
+                    if (obsDAO != null)
+                        obsDAO.delete(ids);
+                    else
+                        raDAO.delete(raClass, ids);
+
+                    // track progress: one update per group
+                    state.curLastModified = last.lastModified;
+                    state.curID = last.id;
+                    harvestState.put(state);
 
-                        log.debug("committing transaction");
-                        txnManager.commitTransaction();
-                        log.debug("commit: OK");
-                    }
+                    log.debug("committing transaction");
+                    txnManager.commitTransaction();
+                    log.debug("commit: OK");
                     ok = true;
-                    ret.ingested++;
+                    ret.ingested += group.size();
                 }
                 catch (Throwable t)
                 {
@@ -471,11 +436,13 @@ public class DeletionHarvester extends Harvester implements Runnable
                 }
                 finally
                 {
-                    if (!ok && !dryrun)
+                    if (!ok)
                     {
-                        log.warn("failed to process " + de + ": trying to rollback the transaction");
+                        log.warn("failed to process " + group.size() + " deletions ending with " + last
+                                + ": trying to rollback the transaction");
                         txnManager.rollbackTransaction();
                         log.warn("rollback: OK");
+                        ret.failed += group.size();
                         ret.abort = true;
                     }
                 }
@@ -0,0 +1,441 @@
+package ca.nrc.cadc.caom2.harvester;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import ca.nrc.cadc.caom2.repo.client.ContentDecoder;
+
+/**
+ * Metrics for all harvesters in the JVM: latency histograms per stage, counters, and
+ * the harvest lag (now - maxLastModified of the last committed observation) per source.
+ * The transfer counters of the repository client (ContentDecoder) are included.
+ * Metrics are available through JMX and can be written to a file in the Prometheus
+ * text format.
+ *
+ * @author pdowler
+ */
+public class HarvestMetrics implements HarvestMetricsMBean
+{
+    private static Logger log = Logger.getLogger(HarvestMetrics.class);
+
+    public static final String OBJECT_NAME = "ca.nrc.cadc.caom2.harvester:type=HarvestMetrics";
+
+    public static final String QUERY = "query";
+    public static final String COMPUTE = "compute";
+    public static final String PUT = "put";
+    public static final String COMMIT = "commit";
+
+    // histogram bucket upper bounds in milliseconds
+    static final long[] BUCKETS = new long[] { 1L, 5L, 10L, 50L, 100L, 500L, 1000L, 5000L, 10000L, 60000L, 300000L };
+
+    private static final HarvestMetrics INSTANCE = new HarvestMetrics();
+
+    private final Map<String, Histogram> stages = new TreeMap<String, Histogram>();
+    private final AtomicLong observations = new AtomicLong();
+    private final AtomicLong entities = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    // source and cname -> last committed maxLastModified
+    private final Map<String, Date> committed = new TreeMap<String, Date>();
+
+    private ScheduledExecutorService exporter;
+    private File exportFile;
+
+    // package access for tests: harvesters use the shared instance
+    HarvestMetrics()
+    {
+        for (String s : new String[] { QUERY, COMPUTE, PUT, COMMIT })
+            stages.put(s, new Histogram());
+    }
+
+    public static HarvestMetrics getInstance()
+    {
+        return INSTANCE;
+    }
+
+    static class Histogram
+    {
+        private final long[] counts = new long[BUCKETS.length + 1];
+        private long count;
+        private long sum;
+
+        synchronized void observe(long ms)
+        {
+            int i = 0;
+            while (i < BUCKETS.length && ms > BUCKETS[i])
+                i++;
+            counts[i]++;
+            count++;
+            sum += ms;
+        }
+
+        synchronized long getCount()
+        {
+            return count;
+        }
+
+        synchronized double getMean()
+        {
+            if (count == 0)
+                return 0.0;
+            return ((double) sum) / count;
+        }
+
+        synchronized void write(PrintWriter w, String name, String labels)
+        {
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++)
+            {
+                cumulative += counts[i];
+                w.println(name + "_bucket{" + labels + ",le=\"" + (BUCKETS[i] / 1000.0) + "\"} " + cumulative);
+            }
+            cumulative += counts[BUCKETS.length];
+            w.println(name + "_bucket{" + labels + ",le=\"+Inf\"} " + cumulative);
+            w.println(name + "_sum{" + labels + "} " + (sum / 1000.0));
+            w.println(name + "_count{" + labels + "} " + count);
+        }
+    }
+
+    /**
+     * Record the duration of one stage.
+     *
+     * @param stage one of QUERY, COMPUTE, PUT, COMMIT
+     * @param ms duration in milliseconds
+     */
+    public void observe(String stage, long ms)
+    {
+        Histogram h = stages.get(stage);
+        if (h == null)
+            throw new IllegalArgumentException("unknown stage: " + stage);
+        h.observe(ms);
+    }
+
+    /**
+     * Count one successfully harvested observation.
+     *
+     * @param numEntities number of entities in the observation tree
+     */
+    public void addObservation(long numEntities)
+    {
+        observations.incrementAndGet();
+        entities.addAndGet(numEntities);
+    }
+
+    /**
+     * @param num bytes read from the source: response bodies as received from a
+     * repository service or the estimated size of the rows read from a database
+     * (only if enabled with JdbcStatistics.setEstimateBytes)
+     */
+    public void addBytes(long num)
+    {
+        if (num > 0)
+            bytes.addAndGet(num);
+    }
+
+    public void addFailed()
+    {
+        failed.incrementAndGet();
+    }
+
+    /**
+     * Record the maxLastModified of the last committed entity.
+     *
+     * @param source
+     * @param cname
+     * @param lastModified
+     */
+    public void setCommitted(String source, String cname, Date lastModified)
+    {
+        if (lastModified == null)
+            return;
+        synchronized (committed)
+        {
+            committed.put(source + " " + cname, lastModified);
+        }
+    }
+
+    /**
+     * Register with the platform MBeanServer.
+     */
+    public void register()
+    {
+        try
+        {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName(OBJECT_NAME);
+            if (!mbs.isRegistered(on))
+                mbs.registerMBean(this, on);
+            log.debug("registered: " + OBJECT_NAME);
+        }
+        catch (Exception ex)
+        {
+            log.warn("failed to register MBean " + OBJECT_NAME + ": " + ex);
+        }
+    }
+
+    /**
+     * Rewrite the file with the Prometheus text format at a fixed interval.
+     *
+     * @param f output file
+     * @param interval milliseconds between writes
+     */
+    public synchronized void startExport(File f, long interval)
+    {
+        if (exporter != null)
+            throw new IllegalStateException("export already started: " + exportFile);
+        this.exportFile = f;
+        this.exporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "HarvestMetrics-export");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        exporter.scheduleAtFixedRate(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                export();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        log.info("metrics export: " + f + " every " + interval / 1000L + "s");
+    }
+
+    /**
+     * Stop the periodic export and write the final values.
+     */
+    public synchronized void stopExport()
+    {
+        if (exporter == null)
+            return;
+        exporter.shutdownNow();
+        exporter = null;
+        export();
+    }
+
+    // write to a temporary file and rename so readers never see a partial file
+    private void export()
+    {
+        File f = exportFile;
+        File tmp = new File(f.getPath() + ".tmp");
+        try
+        {
+            Writer w = new FileWriter(tmp);
+            try
+            {
+                writePrometheus(w);
+            }
+            finally
+            {
+                w.close();
+            }
+            if (!tmp.renameTo(f))
+            {
+                f.delete();
+                if (!tmp.renameTo(f))
+                    log.warn("failed to rename " + tmp + " to " + f);
+            }
+        }
+        catch (IOException ex)
+        {
+            log.warn("failed to write metrics: " + f + ": " + ex);
+        }
+    }
+
+    /**
+     * Write all metrics in the Prometheus text format.
+     *
+     * @param out
+     */
+    public void writePrometheus(Writer out)
+    {
+        PrintWriter w = new PrintWriter(out);
+        String h = "caom2harvester_stage_seconds";
+        w.println("# HELP " + h + " harvest stage latency");
+        w.println("# TYPE " + h + " histogram");
+        for (Map.Entry<String, Histogram> me : stages.entrySet())
+            me.getValue().write(w, h, "stage=\"" + me.getKey() + "\"");
+
+        writeCounter(w, "caom2harvester_observations_total", "observations harvested", observations.get());
+        writeCounter(w, "caom2harvester_entities_total", "entities in harvested observations", entities.get());
+        writeCounter(w, "caom2harvester_read_bytes_total", "bytes of observations read from the source", bytes.get());
+        writeCounter(w, "caom2harvester_failed_total", "observations that failed to harvest", failed.get());
+        writeCounter(w, "caom2harvester_repo_responses_total", "responses from repository services", 
+                ContentDecoder.getResponses());
+        writeCounter(w, "caom2harvester_repo_encoded_responses_total", "compressed responses from repository services", 
+                ContentDecoder.getEncodedResponses());
+        writeCounter(w, "caom2harvester_repo_received_bytes_total", "bytes received from repository services", 
+                ContentDecoder.getBytes());
+        writeCounter(w, "caom2harvester_repo_decoded_bytes_total", "bytes from repository services after decompression", 
+                ContentDecoder.getDecodedBytes());
+
+        String g = "caom2harvester_harvest_lag_seconds";
+        w.println("# HELP " + g + " now - maxLastModified of the last committed entity");
+        w.println("# TYPE " + g + " gauge");
+        long now = System.currentTimeMillis();
+        synchronized (committed)
+        {
+            for (Map.Entry<String, Date> me : committed.entrySet())
+            {
+                String[] sc = me.getKey().split(" ");
+                long lag = (now - me.getValue().getTime()) / 1000L;
+                w.println(g + "{source=\"" + escape(sc[0]) + "\",cname=\"" + escape(sc[1]) + "\"} " + lag);
+            }
+        }
+        w.flush();
+    }
+
+    private void writeCounter(PrintWriter w, String name, String help, long value)
+    {
+        w.println("# HELP " + name + " " + help);
+        w.println("# TYPE " + name + " counter");
+        w.println(name + " " + value);
+    }
+
+    private String escape(String s)
+    {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    // MBean
+
+    @Override
+    public long getObservations()
+    {
+        return observations.get();
+    }
+
+    @Override
+    public long getEntities()
+    {
+        return entities.get();
+    }
+
+    @Override
+    public long getBytes()
+    {
+        return bytes.get();
+    }
+
+    @Override
+    public long getFailed()
+    {
+        return failed.get();
+    }
+
+    @Override
+    public long getRepoResponses()
+    {
+        return ContentDecoder.getResponses();
+    }
+
+    @Override
+    public long getRepoReceivedBytes()
+    {
+        return ContentDecoder.getBytes();
+    }
+
+    @Override
+    public long getRepoDecodedBytes()
+    {
+        return ContentDecoder.getDecodedBytes();
+    }
+
+    @Override
+    public long getQueryCount()
+    {
+        return stages.get(QUERY).getCount();
+    }
+
+    @Override
+    public double getQueryTimeMean()
+    {
+        return stages.get(QUERY).getMean();
+    }
+
+    @Override
+    public long getComputeCount()
+    {
+        return stages.get(COMPUTE).getCount();
+    }
+
+    @Override
+    public double getComputeTimeMean()
+    {
+        return stages.get(COMPUTE).getMean();
+    }
+
+    @Override
+    public long getPutCount()
+    {
+        return stages.get(PUT).getCount();
+    }
+
+    @Override
+    public double getPutTimeMean()
+    {
+        return stages.get(PUT).getMean();
+    }
+
+    @Override
+    public long getCommitCount()
+    {
+        return stages.get(COMMIT).getCount();
+    }
+
+    @Override
+    public double getCommitTimeMean()
+    {
+        return stages.get(COMMIT).getMean();
+    }
+
+    @Override
+    public long getMaxHarvestLag()
+    {
+        long now = System.currentTimeMillis();
+        long ret = -1L;
+        synchronized (committed)
+        {
+            for (Date d : committed.values())
+                ret = Math.max(ret, (now - d.getTime()) / 1000L);
+        }
+        return ret;
+    }
+
+    @Override
+    public String[] getHarvestLag()
+    {
+        long now = System.currentTimeMillis();
+        List<String> ret = new ArrayList<String>();
+        synchronized (committed)
+        {
+            for (Map.Entry<String, Date> me : committed.entrySet())
+                ret.add(me.getKey() + " " + (now - me.getValue().getTime()) / 1000L);
+        }
+        return ret.toArray(new String[ret.size()]);
+    }
+}
@@ -0,0 +1,58 @@
+package ca.nrc.cadc.caom2.harvester;
+
+/**
+ * JMX view of the harvester metrics. Times are in milliseconds.
+ *
+ * @author pdowler
+ */
+public interface HarvestMetricsMBean
+{
+    long getObservations();
+
+    long getEntities();
+
+    long getBytes();
+
+    long getFailed();
+
+    /**
+     * @return responses from repository services
+     */
+    long getRepoResponses();
+
+    /**
+     * @return bytes received from repository services
+     */
+    long getRepoReceivedBytes();
+
+    /**
+     * @return bytes from repository services after decompression
+     */
+    long getRepoDecodedBytes();
+
+    long getQueryCount();
+
+    double getQueryTimeMean();
+
+    long getComputeCount();
+
+    double getComputeTimeMean();
+
+    long getPutCount();
+
+    double getPutTimeMean();
+
+    long getCommitCount();
+
+    double getCommitTimeMean();
+
+    /**
+     * @return max harvest lag in seconds over all sources, -1 if nothing was committed yet
+     */
+    long getMaxHarvestLag();
+
+    /**
+     * @return harvest lag per source in seconds
+     */
+    String[] getHarvestLag();
+}
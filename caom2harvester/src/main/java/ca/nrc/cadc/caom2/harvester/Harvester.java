@@ -47,6 +47,18 @@ public abstract class Harvester implements Runnable
     protected String[] dest;
     protected HarvestStateDAO harvestState;
 
+    // progress of the most recent run() for adaptive scheduling
+    protected int runFound;
+    protected boolean runFull;
+
+    // fair scheduling: max batches per run (0: no limit)
+    protected int maxRunBatches = 0;
+    private int runBatches;
+
+    // graceful shutdown: harvesters finish the current batch and return
+    private static final Object shutdownLock = new Object();
+    private static boolean shutdown = false;
+
     protected Harvester()
     {
     }
@@ -86,6 +98,10 @@ public abstract class Harvester implements Runnable
         ret.put("server", desc[0]);
         ret.put("database", desc[1]);
         ret.put("schema", desc[2]);
+
+        DataSource shared = SharedDataSources.get(desc[0], desc[1]);
+        if (shared != null)
+            ret.put("dataSource", shared);
         return ret;
     }
 
@@ -114,6 +130,107 @@ public abstract class Harvester implements Runnable
         }
     }
 
+    /**
+     * Request that all harvesters stop after the current batch.
+     */
+    public static void requestShutdown()
+    {
+        synchronized (shutdownLock)
+        {
+            shutdown = true;
+            shutdownLock.notifyAll();
+        }
+    }
+
+    // package access for tests
+    static void resetShutdown()
+    {
+        synchronized (shutdownLock)
+        {
+            shutdown = false;
+        }
+    }
+
+    public static boolean isShutdown()
+    {
+        synchronized (shutdownLock)
+        {
+            return shutdown;
+        }
+    }
+
+    /**
+     * Wait until the timeout expires or a shutdown is requested.
+     *
+     * @param timeout
+     *            max time to wait in milliseconds
+     * @return true if shutdown was requested
+     * @throws InterruptedException
+     */
+    public static boolean awaitShutdown(long timeout) throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + timeout;
+        synchronized (shutdownLock)
+        {
+            long rem = timeout;
+            while (!shutdown && rem > 0)
+            {
+                shutdownLock.wait(rem);
+                rem = end - System.currentTimeMillis();
+            }
+            return shutdown;
+        }
+    }
+
+    /**
+     * Stop each run after the specified number of batches so other work can be
+     * scheduled. The next run continues from the persisted harvest state.
+     *
+     * @param maxRunBatches max number of batches per run; 0 for no limit
+     */
+    public void setMaxRunBatches(int maxRunBatches)
+    {
+        this.maxRunBatches = maxRunBatches;
+    }
+
+    protected void startRun()
+    {
+        this.runFound = 0;
+        this.runFull = false;
+        this.runBatches = 0;
+    }
+
+    // track a batch and return false if the run should stop because of a shutdown request
+    // or the batch limit
+    protected boolean trackBatch(int found)
+    {
+        runFound += found;
+        runBatches++;
+        if (batchSize != null && found >= batchSize.intValue())
+            runFull = true;
+        if (isShutdown())
+        {
+            log.info("shutdown requested: " + cname + " stopping after batch");
+            return false;
+        }
+        if (maxRunBatches > 0 && runBatches >= maxRunBatches)
+        {
+            log.debug("batch limit: " + source + " " + cname + " stopping after " + runBatches + " batches");
+            return false;
+        }
+        return true;
+    }
+
+    public int getRunFound()
+    {
+        return runFound;
+    }
+
+    public boolean isRunFull()
+    {
+        return runFull;
+    }
+
     DateFormat df = DateUtil.getDateFormat(DateUtil.ISO_DATE_FORMAT, DateUtil.UTC);
 
     protected String format(Date d)
@@ -1,9 +1,13 @@
 package ca.nrc.cadc.caom2.harvester;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import javax.security.auth.Subject;
 
@@ -30,7 +34,10 @@ public class Main
 
     private static final Integer DEFAULT_BATCH_SIZE = new Integer(100);
     private static final Integer DEFAULT_BATCH_FACTOR = new Integer(2500);
+    private static final long DEFAULT_SHARD_SIZE = 30L; // days
+    private static final int DEFAULT_METRICS_INTERVAL = 60; // seconds
     private static int exitValue = 0;
+    private static final CountDownLatch daemonDone = new CountDownLatch(1);
 
     public static void main(String[] args)
     {
@@ -74,6 +81,9 @@ public class Main
             boolean threads = am.isSet("threads");
 
             boolean compute = am.isSet("compute");
+            boolean computeChanged = "changed".equals(am.getValue("compute"));
+            boolean concurrent = am.isSet("concurrent");
+            boolean daemon = am.isSet("daemon");
 
             // setup optional authentication for harvesting from a web service
             Subject subject = null;
@@ -119,7 +129,10 @@ public class Main
 
             boolean nodest = (dest == null || dest.trim().length() == 0);
 
-            if ((nosrc && noresourceId) || nodest)
+            String configFile = am.getValue("config");
+            boolean multi = (configFile != null && configFile.trim().length() > 0);
+
+            if (!multi && ((nosrc && noresourceId) || nodest))
             {
                 usage();
                 if (nosrc && noresourceId)
@@ -131,36 +144,40 @@ public class Main
             }
 
             String[] srcDS = new String[3];
-            if (service)
-            {
-                srcDS[0] = sresourceId;
-                srcDS[1] = scollection;
-                srcDS[2] = nthreads + "";
-            }
-            else
-            {
-                srcDS = src.split("[.]");
-            }
-            String[] destDS = dest.split("[.]");
-            if (srcDS.length != 3 || destDS.length != 3)
+            String[] destDS = new String[3];
+            if (!multi)
             {
-                usage();
-                if (srcDS.length != 3)
-                    if (!service)
-                    {
-                        log.warn("malformed --source value, found " + src + " expected: server.database.schema"
-                                + " e.g. SYBASE.mydb.dbo");
-                    }
-                    else
-                    {
-                        log.warn("malformed --resourceID value, found " + sresourceId + " expected: service_url"
-                                + " e.g. 'ivo://cadc.nrc.ca/caom2repo'");
-
-                    }
-                if (destDS.length != 3)
-                    log.warn("malformed --destination value, found " + dest + " expected: server.database.schema"
-                            + " e.g. cvodb0.cvodb.caom2");
-                System.exit(1);
+                if (service)
+                {
+                    srcDS[0] = sresourceId;
+                    srcDS[1] = scollection;
+                    srcDS[2] = nthreads + "";
+                }
+                else
+                {
+                    srcDS = src.split("[.]");
+                }
+                destDS = dest.split("[.]");
+                if (srcDS.length != 3 || destDS.length != 3)
+                {
+                    usage();
+                    if (srcDS.length != 3)
+                        if (!service)
+                        {
+                            log.warn("malformed --source value, found " + src + " expected: server.database.schema"
+                                    + " e.g. SYBASE.mydb.dbo");
+                        }
+                        else
+                        {
+                            log.warn("malformed --resourceID value, found " + sresourceId + " expected: service_url"
+                                    + " e.g. 'ivo://cadc.nrc.ca/caom2repo'");
+
+                        }
+                    if (destDS.length != 3)
+                        log.warn("malformed --destination value, found " + dest + " expected: server.database.schema"
+                                + " e.g. cvodb0.cvodb.caom2");
+                    System.exit(1);
+                }
             }
 
             Integer batchSize = null;
@@ -224,7 +241,211 @@ public class Main
                 }
             }
 
+            Long bucketSize = null;
+            String sbucket = am.getValue("bucketSize");
+            if (sbucket != null && sbucket.trim().length() > 0)
+            {
+                try
+                {
+                    bucketSize = Long.parseLong(sbucket) * 24 * 3600 * 1000L;
+                }
+                catch (NumberFormatException nex)
+                {
+                    usage();
+                    log.error("value for --bucketSize must be an integer, found: " + sbucket);
+                    System.exit(1);
+                }
+            }
+
+            long maxInterval = CaomHarvester.DEFAULT_MAX_INTERVAL;
+            String sinterval = am.getValue("maxInterval");
+            if (sinterval != null && sinterval.trim().length() > 0)
+            {
+                try
+                {
+                    maxInterval = Long.parseLong(sinterval) * 1000L;
+                }
+                catch (NumberFormatException nex)
+                {
+                    usage();
+                    log.error("value for --maxInterval must be an integer, found: " + sinterval);
+                    System.exit(1);
+                }
+            }
+
+            int shards = 0;
+            String sshards = am.getValue("shards");
+            if (sshards != null && sshards.trim().length() > 0)
+            {
+                try
+                {
+                    shards = Integer.parseInt(sshards);
+                }
+                catch (NumberFormatException nex)
+                {
+                    usage();
+                    log.error("value for --shards must be an integer, found: " + sshards);
+                    System.exit(1);
+                }
+            }
+            long shardSize = DEFAULT_SHARD_SIZE * 24 * 3600 * 1000L;
+            String sshardSize = am.getValue("shardSize");
+            if (sshardSize != null && sshardSize.trim().length() > 0)
+            {
+                try
+                {
+                    shardSize = Long.parseLong(sshardSize) * 24 * 3600 * 1000L;
+                }
+                catch (NumberFormatException nex)
+                {
+                    usage();
+                    log.error("value for --shardSize must be an integer, found: " + sshardSize);
+                    System.exit(1);
+                }
+            }
+
+            // adaptive batch size: --batchSize is the initial size
+            Integer minBatchSize = null;
+            Integer maxBatchSize = null;
+            if (am.isSet("minBatchSize") || am.isSet("maxBatchSize"))
+            {
+                minBatchSize = getInt(am, "minBatchSize", 1);
+                maxBatchSize = getInt(am, "maxBatchSize", Math.max(minBatchSize, 10 * batchSize));
+                if (maxBatchSize < minBatchSize)
+                {
+                    usage();
+                    log.error("--maxBatchSize must be >= --minBatchSize");
+                    System.exit(1);
+                }
+            }
+
+            // connection pools: always with --config, optional otherwise
+            if (!multi && !am.isSet("poolSize") && (am.isSet("statementCache") || am.isSet("prepareThreshold")))
+            {
+                usage();
+                log.error("--statementCache and --prepareThreshold require a connection pool (--poolSize or --config)");
+                System.exit(1);
+            }
+            if (am.isSet("statementCache"))
+                SharedDataSources.setStatementCacheSize(getInt(am, "statementCache",
+                        SharedDataSources.DEFAULT_STATEMENT_CACHE, 0));
+            if (am.isSet("prepareThreshold"))
+                SharedDataSources.setPrepareThreshold(getInt(am, "prepareThreshold", 0, 0));
+            if (!multi && am.isSet("poolSize"))
+            {
+                if (validate)
+                {
+                    usage();
+                    log.warn("cannot specify --poolSize with --validate");
+                    System.exit(1);
+                }
+                SharedDataSources.enable(getInt(am, "poolSize", 1));
+            }
+
+            if (shards > 0 && (full || skip || validate))
+            {
+                usage();
+                log.warn("cannot specify --shards with --full, --skip, or --validate");
+                System.exit(1);
+            }
+
+            if (daemon && validate)
+            {
+                usage();
+                log.warn("cannot specify both --daemon and --validate");
+                System.exit(1);
+            }
+
+            if (multi && (validate || skip))
+            {
+                usage();
+                log.warn("cannot specify --config with --validate or --skip");
+                System.exit(1);
+            }
+
             if (!validate)
+            {
+                HarvestMetrics.getInstance().register();
+                String metricsFile = am.getValue("metricsFile");
+                if (metricsFile != null && metricsFile.trim().length() > 0)
+                {
+                    long metricsInterval = getInt(am, "metricsInterval", DEFAULT_METRICS_INTERVAL) * 1000L;
+                    HarvestMetrics.getInstance().startExport(new File(metricsFile), metricsInterval);
+                }
+            }
+
+            if (multi)
+            {
+                int workers = getInt(am, "workers", MultiCollectionHarvester.DEFAULT_WORKERS);
+                int poolSize = getInt(am, "poolSize", 2 * workers);
+                int turnBatches = getInt(am, "turnBatches", MultiCollectionHarvester.DEFAULT_TURN_BATCHES);
+                SharedDataSources.enable(poolSize);
+
+                MultiCollectionHarvester mh = null;
+                try
+                {
+                    List<CaomHarvester> harvesters = new ArrayList<CaomHarvester>();
+                    for (MultiCollectionHarvester.Entry e : MultiCollectionHarvester.readConfig(new File(configFile)))
+                    {
+                        log.info("config: " + e);
+                        CaomHarvester ch;
+                        if (e.resourceID != null)
+                        {
+                            ch = new CaomHarvester(dryrun, compute, e.resourceID, e.collection, nthreads, e.dest,
+                                    batchSize, batchFactor, full, false, maxDate);
+                        }
+                        else
+                        {
+                            ch = new CaomHarvester(dryrun, compute, e.src, e.dest, batchSize, batchFactor, full, false,
+                                    maxDate);
+                        }
+                        ch.setConcurrent(concurrent);
+                        ch.setSkipUnchangedPlanes(computeChanged);
+                        if (shards > 0)
+                            ch.setSharded(shardSize, shards);
+                        if (minBatchSize != null)
+                            ch.setAdaptiveBatchSize(minBatchSize, maxBatchSize);
+                        harvesters.add(ch);
+                    }
+                    mh = new MultiCollectionHarvester(harvesters, workers, turnBatches);
+                    mh.setDaemon(daemon, maxInterval);
+                }
+                catch (IOException ioex)
+                {
+                    log.error("failed to init: " + ioex.getMessage());
+                    exitValue = -1;
+                    System.exit(exitValue);
+                }
+
+                exitValue = 2; // in case we get killed
+                Runtime.getRuntime().addShutdownHook(new Thread(new ShutdownHook()));
+                if (daemon)
+                    Runtime.getRuntime().addShutdownHook(new Thread(new DaemonShutdownHook()));
+
+                try
+                {
+                    if (subject != null)
+                    {
+                        Subject.doAs(subject, new RunnableAction(mh));
+                    }
+                    else // anon
+                    {
+                        mh.run();
+                    }
+                }
+                finally
+                {
+                    SharedDataSources.close();
+                    daemonDone.countDown();
+                }
+                if (mh.getFailed() > 0)
+                {
+                    log.error("harvest failed for " + mh.getFailed() + " collections");
+                    exitValue = 1;
+                    System.exit(exitValue);
+                }
+            }
+            else if (!validate)
             {
                 CaomHarvester ch = null;
                 try
@@ -239,6 +460,13 @@ public class Main
                         ch = new CaomHarvester(dryrun, compute, srcDS, destDS, batchSize, batchFactor, full, skip,
                                 maxDate);
                     }
+                    ch.setConcurrent(concurrent);
+                    ch.setSkipUnchangedPlanes(computeChanged);
+                    if (shards > 0)
+                        ch.setSharded(shardSize, shards);
+                    if (minBatchSize != null)
+                        ch.setAdaptiveBatchSize(minBatchSize, maxBatchSize);
+                    ch.setDaemon(daemon, maxInterval);
                 }
                 catch (IOException ioex)
                 {
@@ -250,14 +478,24 @@ public class Main
 
                 exitValue = 2; // in case we get killed
                 Runtime.getRuntime().addShutdownHook(new Thread(new ShutdownHook()));
+                if (daemon)
+                    Runtime.getRuntime().addShutdownHook(new Thread(new DaemonShutdownHook()));
 
-                if (subject != null)
+                try
                 {
-                    Subject.doAs(subject, new RunnableAction(ch));
+                    if (subject != null)
+                    {
+                        Subject.doAs(subject, new RunnableAction(ch));
+                    }
+                    else // anon
+                    {
+                        ch.run();
+                    }
                 }
-                else // anon
+                finally
                 {
-                    ch.run();
+                    SharedDataSources.close();
+                    daemonDone.countDown();
                 }
             }
             else
@@ -275,6 +513,7 @@ public class Main
                     {
                         cv = new CaomValidator(dryrun, srcDS, destDS, batchSize, batchFactor, full, skip, maxDate);
                     }
+                    cv.setBucketSize(bucketSize);
                 }
                 catch (IOException ioex)
                 {
@@ -320,12 +559,67 @@ public class Main
         @Override
         public void run()
         {
+            HarvestMetrics.getInstance().stopExport();
             if (exitValue != 0)
                 log.error("terminating with exit status " + exitValue);
         }
 
     }
 
+    // stop the harvest loop after the current batches and wait for it to finish so
+    // HarvestState is checkpointed before the JVM exits
+    private static class DaemonShutdownHook implements Runnable
+    {
+
+        DaemonShutdownHook()
+        {
+        }
+
+        @Override
+        public void run()
+        {
+            log.info("shutdown requested: waiting for current batches to finish");
+            Harvester.requestShutdown();
+            try
+            {
+                daemonDone.await();
+            }
+            catch (InterruptedException ex)
+            {
+                log.warn("interrupted while waiting for harvest to stop");
+            }
+        }
+
+    }
+
+    // parse an optional positive integer argument
+    private static int getInt(ArgumentMap am, String name, int defaultValue)
+    {
+        return getInt(am, name, defaultValue, 1);
+    }
+
+    // parse an optional integer argument >= min
+    private static int getInt(ArgumentMap am, String name, int defaultValue, int min)
+    {
+        String val = am.getValue(name);
+        if (val == null || val.trim().length() == 0)
+            return defaultValue;
+        try
+        {
+            int ret = Integer.parseInt(val);
+            if (ret >= min)
+                return ret;
+        }
+        catch (NumberFormatException nex)
+        {
+            log.debug("invalid --" + name + ": " + val);
+        }
+        usage();
+        log.error("value for --" + name + " must be an integer >= " + min + ", found: " + val);
+        System.exit(1);
+        return defaultValue; // not reached
+    }
+
     private static void usage()
     {
         StringBuilder sb = new StringBuilder();
@@ -336,12 +630,21 @@ public class Main
         sb.append("\n           --source=<server.database.schema>");
         sb.append("\n           --destination=<server.database.schema>");
         sb.append("\n          note: harvesting source is specified by either --resourceID or --source");
+        sb.append("\n   or:     --config=<file> with one collection per line:");
+        sb.append("\n               <resourceID> <collection> <server.database.schema>");
+        sb.append("\n               <server.database.schema> <server.database.schema>");
+        sb.append("\n           --workers=<number of collections harvested at the same time> (default: ");
+        sb.append(MultiCollectionHarvester.DEFAULT_WORKERS).append(")");
+        sb.append("\n           --poolSize=<max connections per database shared by all collections> (default: 2 x workers)");
+        sb.append("\n           --turnBatches=<batches per collection before moving on to the next> (default: ");
+        sb.append(MultiCollectionHarvester.DEFAULT_TURN_BATCHES).append(")");
         sb.append("\n                --collection and --threads apply to --resourceID mode only");
         sb.append("\n\nOptions:");
         sb.append("\n     --full : restart at the first (oldest) observation (default: false)");
         sb.append("\n     --skip : redo previously skipped (failed) observations (default: false)");
         sb.append(
                 "\n     --compute : compute additional Plane metadata from WCS using the caom2-compute library [deprecated]");
+        sb.append("\n     --compute=changed : only compute Plane metadata for new planes and planes with a different accMetaChecksum");
         sb.append("\n\nOptional authentication:");
         sb.append("\n     [--netrc|--cert=<pem file>]");
         sb.append("\n     --netrc : read username and password(s) from ~/.netrc file");
@@ -352,7 +655,26 @@ public class Main
         sb.append(DEFAULT_BATCH_SIZE).append(")");
         sb.append("\n     --batchFactor=<multiplier to batchSize when getting single-table entities> (default: ");
         sb.append(DEFAULT_BATCH_FACTOR).append(")");
+        sb.append("\n     --minBatchSize=<n> --maxBatchSize=<n> : adapt the observation batch size to observation size,");
+        sb.append("\n                          harvest rate, and free heap within these bounds (default: off)");
         sb.append("\n     --dryrun : check for work but don't do anything");
+        sb.append("\n     --concurrent : run the access control deletion and harvest steps in parallel (--source mode only)");
+        sb.append("\n     --daemon : keep running and poll the source for changes (stop with SIGTERM)");
+        sb.append("\n     --maxInterval=<max seconds between polls in --daemon mode> (default: ");
+        sb.append(CaomHarvester.DEFAULT_MAX_INTERVAL / 1000L).append(")");
+        sb.append("\n     --shards=<workers> : split the observation harvest into time shards claimed by this many workers");
+        sb.append("\n                          (other processes with the same destination share the shards)");
+        sb.append("\n     --shardSize=<days per shard> (default: ").append(DEFAULT_SHARD_SIZE).append(")");
+        sb.append("\n     --poolSize=<max connections per database> : use a connection pool (default: no pool unless --config)");
+        sb.append("\n     --statementCache=<prepared statements cached per pooled connection> (requires a pool, default: ");
+        sb.append(SharedDataSources.DEFAULT_STATEMENT_CACHE).append(", 0 to disable)");
+        sb.append("\n     --prepareThreshold=<executions before PostgreSQL uses a server-side prepared statement>");
+        sb.append("\n                          (default: driver default, 0 to disable, 1 recommended with the statement cache)");
+        sb.append("\n     --metricsFile=<file> : periodically rewrite metrics in Prometheus text format (also available via JMX)");
+        sb.append("\n     --metricsInterval=<seconds between writes> (default: ").append(DEFAULT_METRICS_INTERVAL).append(")");
+        sb.append("\n\nValidation:");
+        sb.append("\n     --validate : compare source and destination and record differences as skipped observations");
+        sb.append("\n     --bucketSize=<days> : compare digests per time bucket and only validate buckets that differ");
         log.warn(sb.toString());
     }
 }
\ No newline at end of file
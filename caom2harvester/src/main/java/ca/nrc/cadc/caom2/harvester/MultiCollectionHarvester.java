@@ -0,0 +1,309 @@
+package ca.nrc.cadc.caom2.harvester;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Harvest many collections in one JVM with a bounded number of worker threads. Each
+ * collection is harvested in turns of a limited number of batches; a collection with
+ * more work goes to the back of the queue so a large collection cannot starve the
+ * small ones.
+ *
+ * @author pdowler
+ */
+public class MultiCollectionHarvester implements Runnable
+{
+    private static Logger log = Logger.getLogger(MultiCollectionHarvester.class);
+
+    public static final int DEFAULT_WORKERS = 4;
+    public static final int DEFAULT_TURN_BATCHES = 10;
+    private static final long WAIT_TERMINATION = 30000L;
+
+    private final List<CaomHarvester> harvesters;
+    private final int workers;
+
+    private boolean daemon = false;
+    private long maxInterval = CaomHarvester.DEFAULT_MAX_INTERVAL;
+
+    private ExecutorService pool;
+    private ScheduledExecutorService timer;
+    private CountDownLatch remaining;
+    private int failed;
+
+    /**
+     * One line of the config file:
+     *
+     * <pre>
+     * resourceID collection server.database.schema
+     * server.database.schema server.database.schema
+     * </pre>
+     *
+     * for harvesting from a repository service or a database.
+     */
+    public static class Entry
+    {
+        public String resourceID;
+        public String collection;
+        public String[] src;
+        public String[] dest;
+
+        @Override
+        public String toString()
+        {
+            if (resourceID != null)
+                return "Entry[" + resourceID + "," + collection + " -> " + dest[0] + "." + dest[1] + "." + dest[2] + "]";
+            return "Entry[" + src[0] + "." + src[1] + "." + src[2] + " -> " + dest[0] + "." + dest[1] + "." + dest[2] + "]";
+        }
+    }
+
+    /**
+     * @param harvesters one harvester per collection
+     * @param workers max number of collections harvested at the same time
+     * @param turnBatches max batches per harvester per turn
+     */
+    public MultiCollectionHarvester(List<CaomHarvester> harvesters, int workers, int turnBatches)
+    {
+        this.harvesters = harvesters;
+        this.workers = Math.max(1, workers);
+        for (CaomHarvester ch : harvesters)
+            ch.setMaxRunBatches(turnBatches);
+    }
+
+    /**
+     * Keep harvesting until Harvester.requestShutdown() is called. Each collection is
+     * polled at its own adaptive interval.
+     *
+     * @param daemon
+     * @param maxInterval max time between cycles of one collection in milliseconds
+     */
+    public void setDaemon(boolean daemon, long maxInterval)
+    {
+        this.daemon = daemon;
+        this.maxInterval = Math.max(CaomHarvester.MIN_INTERVAL, maxInterval);
+    }
+
+    /**
+     * Parse a config file. Blank lines and lines starting with # are ignored.
+     *
+     * @param f
+     * @return config entries
+     * @throws IOException if the file cannot be read or a line is invalid
+     */
+    public static List<Entry> readConfig(File f) throws IOException
+    {
+        List<Entry> ret = new ArrayList<Entry>();
+        BufferedReader r = new BufferedReader(new FileReader(f));
+        try
+        {
+            String line = r.readLine();
+            int num = 1;
+            while (line != null)
+            {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#"))
+                {
+                    String[] tokens = line.split("\\s+");
+                    Entry e = new Entry();
+                    if (tokens.length == 3)
+                    {
+                        e.resourceID = tokens[0];
+                        e.collection = tokens[1];
+                        e.dest = tokens[2].split("[.]");
+                    }
+                    else if (tokens.length == 2)
+                    {
+                        e.src = tokens[0].split("[.]");
+                        e.dest = tokens[1].split("[.]");
+                    }
+                    if (e.dest == null || e.dest.length != 3 || (e.src != null && e.src.length != 3))
+                        throw new IOException("invalid config: " + f + " line " + num + ": " + line);
+                    ret.add(e);
+                }
+                line = r.readLine();
+                num++;
+            }
+        }
+        finally
+        {
+            r.close();
+        }
+        return ret;
+    }
+
+    /**
+     * @return number of collections that failed
+     */
+    public int getFailed()
+    {
+        return failed;
+    }
+
+    @Override
+    public void run()
+    {
+        log.info("START: " + harvesters.size() + " collections workers: " + workers + " daemon: " + daemon);
+        long t = System.currentTimeMillis();
+
+        // sequential init: harvesters may share a destination database
+        List<Turn> turns = new ArrayList<Turn>();
+        for (CaomHarvester ch : harvesters)
+        {
+            try
+            {
+                turns.add(new Turn(ch, ch.init()));
+            }
+            catch (RuntimeException ex)
+            {
+                log.error("failed to init: " + ch.getSource(), ex);
+                failed++;
+            }
+        }
+
+        this.pool = Executors.newFixedThreadPool(workers);
+        this.timer = Executors.newSingleThreadScheduledExecutor();
+        this.remaining = new CountDownLatch(turns.size());
+        try
+        {
+            for (Turn turn : turns)
+                pool.submit(turn);
+
+            if (daemon)
+            {
+                // turns may be waiting in the timer: stop on shutdown request
+                while (!Harvester.awaitShutdown(maxInterval))
+                    log.debug("daemon: " + remaining.getCount() + " collections active");
+            }
+            else
+                remaining.await();
+        }
+        catch (InterruptedException ex)
+        {
+            log.warn("interrupted: stopping");
+        }
+        finally
+        {
+            timer.shutdownNow();
+            pool.shutdown();
+            try
+            {
+                // current turns stop after the current batch
+                while (!pool.awaitTermination(WAIT_TERMINATION, TimeUnit.MILLISECONDS))
+                    log.info("waiting for current turns to finish");
+            }
+            catch (InterruptedException ignore)
+            {
+                log.debug("interrupted while waiting for current turns");
+            }
+            long dt = System.currentTimeMillis() - t;
+            log.info("DONE: " + harvesters.size() + " collections failed: " + failed + " " + dt + "ms");
+        }
+    }
+
+    private synchronized void fail()
+    {
+        failed++;
+    }
+
+    // put the turn at the back of the queue; false if it cannot run again
+    private boolean requeue(Turn turn)
+    {
+        if (Harvester.isShutdown())
+            return false;
+        try
+        {
+            pool.submit(turn);
+            return true;
+        }
+        catch (RejectedExecutionException ex)
+        {
+            return false;
+        }
+    }
+
+    private class Turn implements Runnable
+    {
+        private CaomHarvester harvester;
+        private boolean init;
+        private long interval = CaomHarvester.MIN_INTERVAL;
+
+        Turn(CaomHarvester harvester, boolean init)
+        {
+            this.harvester = harvester;
+            this.init = init;
+        }
+
+        @Override
+        public void run()
+        {
+            long t = System.currentTimeMillis();
+            boolean ok = false;
+            try
+            {
+                harvester.harvest(init);
+                ok = true;
+            }
+            catch (RuntimeException ex)
+            {
+                log.error("harvest failed: " + harvester.getSource(), ex);
+            }
+            init = false;
+            long dt = System.currentTimeMillis() - t;
+
+            boolean again;
+            if (ok && harvester.hasBacklog())
+            {
+                log.info("turn: " + harvester.getSource() + " " + dt + "ms backlog: requeue");
+                again = requeue(this);
+            }
+            else if (daemon && !Harvester.isShutdown())
+            {
+                interval = harvester.getNextInterval(interval, ok, maxInterval);
+                log.info("turn: " + harvester.getSource() + " " + dt + "ms next: " + interval / 1000L + "s");
+                again = schedule();
+            }
+            else
+            {
+                if (!ok)
+                    fail();
+                log.info("turn: " + harvester.getSource() + " " + dt + "ms done");
+                again = false;
+            }
+            if (!again)
+                remaining.countDown();
+        }
+
+        private boolean schedule()
+        {
+            final Turn turn = this;
+            try
+            {
+                timer.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        if (!requeue(turn))
+                            remaining.countDown();
+                    }
+                }, interval, TimeUnit.MILLISECONDS);
+                return true;
+            }
+            catch (RejectedExecutionException ex)
+            {
+                return false;
+            }
+        }
+    }
+}
@@ -1,21 +1,21 @@
 package ca.nrc.cadc.caom2.harvester;
 
-import ca.nrc.cadc.caom2.Observation;
+import ca.nrc.cadc.caom2.ObservationState;
 
 public class ObservationError
 {
-    private Observation obs = null;
+    private ObservationState state = null;
     private String error = null;
 
-    public ObservationError(Observation o, String e)
+    public ObservationError(ObservationState s, String e)
     {
-        obs = o;
+        state = s;
         error = e;
     }
 
-    public Observation getObs()
+    public ObservationState getState()
     {
-        return obs;
+        return state;
     }
 
     public String getError()
@@ -26,6 +26,6 @@ public class ObservationError
     @Override
     public String toString()
     {
-        return (String) (obs != null ? obs.getURI().getURI() : obs + ": " + error);
+        return state != null ? state.getURI().getURI().toASCIIString() : state + ": " + error;
     }
 }
@@ -9,6 +9,7 @@ import java.net.URISyntaxException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -25,13 +26,19 @@ import org.springframework.jdbc.UncategorizedSQLException;
 
 import ca.nrc.cadc.caom2.Artifact;
 import ca.nrc.cadc.caom2.Observation;
+import ca.nrc.cadc.caom2.ObservationState;
 import ca.nrc.cadc.caom2.ObservationURI;
+import ca.nrc.cadc.caom2.Part;
 import ca.nrc.cadc.caom2.Plane;
 import ca.nrc.cadc.caom2.compute.ComputeUtil;
 import ca.nrc.cadc.caom2.harvester.state.HarvestSkipURI;
 import ca.nrc.cadc.caom2.harvester.state.HarvestSkipURIDAO;
 import ca.nrc.cadc.caom2.harvester.state.HarvestState;
 import ca.nrc.cadc.caom2.persistence.DatabaseObservationDAO;
+import ca.nrc.cadc.caom2.persistence.HullCache;
+import ca.nrc.cadc.caom2.persistence.JdbcStatistics;
+import ca.nrc.cadc.caom2.persistence.skel.ObservationSkeleton;
+import ca.nrc.cadc.caom2.persistence.skel.PlaneSkeleton;
 import ca.nrc.cadc.caom2.repo.client.RepoClient;
 import ca.nrc.cadc.caom2.repo.client.WorkerResponse;
 import ca.nrc.cadc.caom2.util.CaomValidator;
@@ -57,6 +64,24 @@ public class ObservationHarvester extends Harvester
     private Date maxDate;
     private boolean doCollisionCheck = false;
     private boolean computePlaneMetadata = false;
+    private boolean skipUnchangedPlanes = false;
+    private int nthreads;
+
+    // null: fixed batchSize
+    private AdaptiveBatchSize adaptiveBatchSize;
+
+    private final HarvestMetrics metrics = HarvestMetrics.getInstance();
+    private final JdbcStatistics jdbcStats = JdbcStatistics.getInstance();
+
+    // sharded harvest: split the window into shards that are claimed by workers
+    private long shardSize = 0L;
+    private int shardWorkers = 1;
+
+    // shard harvest: progress is tracked in a separate HarvestState
+    private String shardKey;
+    private Date minDate;
+    private volatile boolean stopped;
+    private boolean runAborted;
 
     HarvestSkipURIDAO harvestSkip = null;
 
@@ -99,6 +124,137 @@ public class ObservationHarvester extends Harvester
         this.computePlaneMetadata = computePlaneMetadata;
     }
 
+    /**
+     * Only compute plane metadata for new planes and planes where the accMetaChecksum
+     * differs from the destination. The stored computed metadata of unchanged planes is 
+     * kept because a plane is only updated when its checksums change.
+     * 
+     * @param skipUnchangedPlanes
+     */
+    public void setSkipUnchangedPlanes(boolean skipUnchangedPlanes)
+    {
+        this.skipUnchangedPlanes = skipUnchangedPlanes;
+    }
+
+    /**
+     * Adapt the batch size to the size of recent observations, the time per observation,
+     * and the free heap. The configured batchSize is used for the first batch.
+     * 
+     * @param minSize min observations per batch
+     * @param maxSize max observations per batch
+     */
+    public void setAdaptiveBatchSize(int minSize, int maxSize)
+    {
+        this.adaptiveBatchSize = new AdaptiveBatchSize(minSize, maxSize);
+        if (batchSize == null)
+            batchSize = maxSize;
+        else
+            batchSize = adaptiveBatchSize.clamp(batchSize);
+    }
+
+    /**
+     * Split the harvest window into shards of the specified size and harvest them with
+     * the specified number of workers. Shards are claimed through leases in the destination
+     * database so workers in other processes can harvest the same collection.
+     * 
+     * @param shardSize shard size in milliseconds
+     * @param workers number of worker threads
+     */
+    public void setSharded(long shardSize, int workers)
+    {
+        this.shardSize = shardSize;
+        this.shardWorkers = workers;
+    }
+
+    // harvest a single shard and track progress in the HarvestState named by key
+    void setShard(String key, Date start, Date end)
+    {
+        this.shardKey = key;
+        this.minDate = start;
+        this.maxDate = end;
+        this.stopped = false;
+    }
+
+    // stop after the current batch
+    void stop()
+    {
+        this.stopped = true;
+    }
+
+    boolean isStopped()
+    {
+        return stopped;
+    }
+
+    boolean isRunAborted()
+    {
+        return runAborted;
+    }
+
+    // create a harvester with the same source, destination, and options for one shard
+    ObservationHarvester createShardHarvester() throws IOException, URISyntaxException
+    {
+        ObservationHarvester ret;
+        if (service)
+            ret = new ObservationHarvester(resourceId, collection, nthreads, dest, batchSize, false, dryrun);
+        else
+            ret = new ObservationHarvester(src, dest, batchSize, false, dryrun);
+        ret.doCollisionCheck = doCollisionCheck;
+        ret.computePlaneMetadata = computePlaneMetadata;
+        ret.skipUnchangedPlanes = skipUnchangedPlanes;
+        if (adaptiveBatchSize != null)
+            ret.setAdaptiveBatchSize(adaptiveBatchSize.getMinSize(), adaptiveBatchSize.getMaxSize());
+        return ret;
+    }
+
+    // start and end of the window for a sharded harvest, or null if there is nothing to harvest:
+    // start at the current state or the earliest observation in the source
+    Date[] getShardWindow()
+    {
+        Date end = new Date(System.currentTimeMillis() - 5 * 60000L);
+        if (maxDate != null && maxDate.before(end))
+            end = maxDate;
+
+        HarvestState state = harvestState.get(source, cname);
+        Date start = state.curLastModified;
+        if (start == null)
+        {
+            if (service)
+            {
+                List<ObservationState> first = srcObservationService.getObservationList(collection, null, end, 1);
+                if (!first.isEmpty())
+                    start = first.get(0).maxLastModified;
+            }
+            else
+            {
+                List<Observation> first = srcObservationDAO.getList(Observation.class, null, end, 1, 1);
+                if (!first.isEmpty())
+                    start = first.get(0).getMaxLastModified();
+            }
+        }
+        if (start == null || start.after(end))
+            return null;
+        return new Date[] { start, end };
+    }
+
+    // all shards are done: continue incremental harvest from the end of the window
+    void advanceState(Date end)
+    {
+        HarvestState state = harvestState.get(source, cname);
+        if (state.curLastModified == null || state.curLastModified.before(end))
+        {
+            state.curLastModified = end;
+            state.curID = null;
+            harvestState.put(state);
+            log.info("harvest state: " + format(end));
+        }
+    }
+
+    DataSource getDestDataSource()
+    {
+        return destObservationDAO.getDataSource();
+    }
+
     public boolean getComputePlaneMetadata()
     {
         return computePlaneMetadata;
@@ -121,6 +277,7 @@ public class ObservationHarvester extends Harvester
         this.collection = collection;
         this.resourceId = uri;
         this.service = true;
+        this.nthreads = threads;
         Map<String, Object> config2 = getConfigDAO(dest);
         this.srcObservationService = new RepoClient(new URI(uri), threads);
         this.destObservationDAO = new DatabaseObservationDAO();
@@ -144,6 +301,15 @@ public class ObservationHarvester extends Harvester
     @Override
     public void run()
     {
+        if (shardSize > 0L && shardKey == null)
+        {
+            ShardedObservationHarvester sharded = new ShardedObservationHarvester(this, shardSize, shardWorkers);
+            sharded.run();
+            runFound = sharded.getFound();
+            runFull = sharded.isFull();
+            return;
+        }
+
         log.info("START: " + Observation.class.getSimpleName());
         try
         {
@@ -154,10 +320,14 @@ public class ObservationHarvester extends Harvester
             throw new RuntimeException("failed to init connections and state", oops);
         }
 
+        startRun();
+        runAborted = false;
         boolean go = true;
         while (go)
         {
+            long tBatch = System.currentTimeMillis();
             Progress num = doit();
+            tBatch = System.currentTimeMillis() - tBatch;
 
             if (num.found > 0)
                 log.debug("***************** finished batch: " + num + " *******************");
@@ -171,13 +341,23 @@ public class ObservationHarvester extends Harvester
             // num.abort = true;
             // }
             if (num.abort)
+            {
                 log.error("batched aborted");
+                runAborted = true;
+            }
             go = (num.found > 0 && !num.abort && !num.done);
             if (batchSize != null && num.found < batchSize.intValue() / 2)
                 go = false;
             full = false; // do not start at beginning again
             if (dryrun)
                 go = false; // no state update -> infinite loop
+            if (!trackBatch(num.found))
+                go = false;
+            if (stopped)
+                go = false;
+
+            if (adaptiveBatchSize != null && !skipped && go)
+                batchSize = adaptiveBatchSize.next(batchSize, num.found, num.entities, tBatch);
         }
         try
         {
@@ -201,6 +381,9 @@ public class ObservationHarvester extends Harvester
         int failed = 0;
         int handled = 0;
 
+        // for adaptive batch size
+        long entities = 0;
+
         @Override
         public String toString()
         {
@@ -210,9 +393,18 @@ public class ObservationHarvester extends Harvester
 
     private Date startDate;
 
+    // service mode: response bytes of the current batch
+    private long serviceBytes;
+
+    // service mode: unchanged observations in the current batch
+    private int numUnchanged;
+    private ObservationState lastUnchanged;
+
     private Progress doit()
     {
         Progress ret = new Progress();
+        numUnchanged = 0;
+        lastUnchanged = null;
 
         BufferedReader stdin = null;
         if (interactive)
@@ -230,13 +422,14 @@ public class ObservationHarvester extends Harvester
             expectedNum = batchSize.intValue();
         try
         {
-            System.gc(); // hint
+            long bytesStart = jdbcStats.getThreadBytesRead();
+            serviceBytes = 0L;
             t = System.currentTimeMillis();
 
             HarvestState state = null;
 
             if (!skipped)
-                state = harvestState.get(source, Observation.class.getSimpleName());
+                state = harvestState.get(source, (shardKey != null ? shardKey : cname));
 
             tState = System.currentTimeMillis() - t;
             t = System.currentTimeMillis();
@@ -244,7 +437,11 @@ public class ObservationHarvester extends Harvester
             if (full)
                 startDate = null;
             else if (!skipped)
+            {
                 startDate = state.curLastModified;
+                if (startDate == null)
+                    startDate = minDate;
+            }
             // else: skipped: keep startDate across multiple batches since we
             // don't persist harvest
             // state
@@ -277,13 +474,7 @@ public class ObservationHarvester extends Harvester
                 }
                 else
                 {
-                    tmp = new ArrayList<Observation>();
-                    List<WorkerResponse> l = srcObservationService.getList(collection, startDate, end, batchSize + 1);
-                    for (WorkerResponse wr : l)
-                    {
-                        if (wr != null && wr.getObservation() != null)
-                            tmp.add(wr.getObservation());
-                    }
+                    tmp = getServiceList(startDate, end, batchSize + 1);
                 }
                 entityList = wrap(tmp);
             }
@@ -310,15 +501,7 @@ public class ObservationHarvester extends Harvester
                         }
                         else
                         {
-                            tmp = new ArrayList<Observation>();
-                            List<WorkerResponse> l = null;
-                            l = srcObservationService.getList(collection, startDate, end, tmpBatchSize);
-                            for (WorkerResponse wr : l)
-                            {
-                                if (wr != null && wr.getObservation() != null)
-                                    tmp.add(wr.getObservation());
-                            }
-
+                            tmp = getServiceList(startDate, end, tmpBatchSize);
                         }
 
                         entityList = wrap(tmp);
@@ -329,6 +512,16 @@ public class ObservationHarvester extends Harvester
                 }
             }
 
+            if (!skipped)
+            {
+                for (SkippedWrapperURI<Observation> ow : entityList)
+                    ret.entities += countEntities(ow.entity);
+                if (service)
+                    metrics.addBytes(serviceBytes);
+                else
+                    metrics.addBytes(jdbcStats.getThreadBytesRead() - bytesStart);
+            }
+
             log.info("!entityList.isEmpty() && !skipped: " + (!entityList.isEmpty() && !skipped));
 
             // avoid re-processing the last successful one stored in
@@ -352,10 +545,11 @@ public class ObservationHarvester extends Harvester
                 }
             }
 
-            ret.found = entityList.size();
-            log.info("found: " + entityList.size());
+            ret.found = entityList.size() + numUnchanged;
+            log.info("found: " + entityList.size() + " unchanged: " + numUnchanged);
 
             tQuery = System.currentTimeMillis() - t;
+            metrics.observe(HarvestMetrics.QUERY, tQuery);
             t = System.currentTimeMillis();
 
             ListIterator<SkippedWrapperURI<Observation>> iter = entityList.listIterator();
@@ -438,11 +632,28 @@ public class ObservationHarvester extends Harvester
                             if (computePlaneMetadata)
                             {
                                 log.debug("computePlaneMetadata: " + o.getObservationID());
+                                long tc = System.currentTimeMillis();
+                                ObservationSkeleton skel = null;
+                                if (skipUnchangedPlanes)
+                                    skel = destObservationDAO.getSkeleton(o.getID());
                                 for (Plane p : o.getPlanes())
+                                {
+                                    if (skel != null && isUnchanged(p, skel))
+                                    {
+                                        log.debug("computePlaneMetadata: unchanged " + p.getProductID());
+                                        continue;
+                                    }
                                     ComputeUtil.computeTransientState(o, p);
+                                    // cached for the put
+                                    if (p.position != null && p.position.bounds != null)
+                                        HullCache.getInstance().getOuterHull(p.position.bounds);
+                                }
+                                metrics.observe(HarvestMetrics.COMPUTE, System.currentTimeMillis() - tc);
                             }
 
+                            long tp = System.currentTimeMillis();
                             destObservationDAO.put(o);
+                            metrics.observe(HarvestMetrics.PUT, System.currentTimeMillis() - tp);
 
                             if (hs != null) // success in redo mode
                             {
@@ -459,8 +670,15 @@ public class ObservationHarvester extends Harvester
                         }
 
                         log.debug("committing transaction");
+                        long tc = System.currentTimeMillis();
                         destObservationDAO.getTransactionManager().commitTransaction();
+                        metrics.observe(HarvestMetrics.COMMIT, System.currentTimeMillis() - tc);
                         log.debug("commit: OK");
+
+                        if (o != null)
+                            metrics.addObservation(countEntities(o));
+                        if (state != null && hs == null && shardKey == null)
+                            metrics.setCommitted(source, cname, state.curLastModified);
                     }
                     ok = true;
                     ret.ingested++;
@@ -586,6 +804,7 @@ public class ObservationHarvester extends Harvester
                             ret.abort = true;
                         }
                         ret.failed++;
+                        metrics.addFailed();
                     }
 
                     if (interactive)
@@ -617,6 +836,29 @@ public class ObservationHarvester extends Harvester
                 if (ret.abort)
                     return ret;
             }
+
+            // advance past unchanged observations at the end of the batch
+            if (state != null && !dryrun && isAdvance(state, lastUnchanged))
+            {
+                destObservationDAO.getTransactionManager().startTransaction();
+                try
+                {
+                    state.curLastModified = lastUnchanged.maxLastModified;
+                    state.curID = destObservationDAO.getID(lastUnchanged.getURI());
+                    harvestState.put(state);
+                    destObservationDAO.getTransactionManager().commitTransaction();
+                    log.debug("advance past unchanged: " + lastUnchanged);
+                    if (shardKey == null)
+                        metrics.setCommitted(source, cname, state.curLastModified);
+                }
+                catch (Throwable oops)
+                {
+                    log.warn("failed to update HarvestState", oops);
+                    destObservationDAO.getTransactionManager().rollbackTransaction();
+                    ret.abort = true;
+                    return ret;
+                }
+            }
             if (ret.found < expectedNum)
                 ret.done = true;
         }
@@ -635,6 +877,109 @@ public class ObservationHarvester extends Harvester
         return ret;
     }
 
+    // service mode: list the states and only get observations that are new or changed
+    private List<Observation> getServiceList(Date start, Date end, Integer num)
+        throws InterruptedException, ExecutionException
+    {
+        numUnchanged = 0;
+        lastUnchanged = null;
+        List<ObservationState> states = srcObservationService.getObservationList(collection, start, end, num);
+        if (states.isEmpty())
+            return new ArrayList<Observation>();
+
+        // unchanged observations are not fetched so the loop detection on the fetched
+        // list may not see a full batch with a single timestamp: check the listing
+        while (states.size() >= num && states.size() > 1
+                && states.get(0).maxLastModified.equals(states.get(states.size() - 1).maxLastModified))
+        {
+            num = 2 * num;
+            log.info("(loop) temporary harvest window: " + format(start) + " :: " + format(end) + " [" + num + "]");
+            states = srcObservationService.getObservationList(collection, start, end, num);
+        }
+
+        // destination copies have the same maxLastModified so one range query finds
+        // all unchanged observations; if it is truncated we just fetch a few extra
+        Date d1 = states.get(0).maxLastModified;
+        Date d2 = states.get(states.size() - 1).maxLastModified;
+        List<ObservationState> dst = destObservationDAO.getObservationList(collection, d1, d2, 2 * num);
+        ServiceListDiff diff = diff(states, dst);
+        numUnchanged = diff.numUnchanged;
+        lastUnchanged = diff.lastUnchanged;
+        List<ObservationState> fetch = diff.fetch;
+        log.debug("getServiceList: " + states.size() + " listed, " + fetch.size() + " new or changed");
+
+        List<Observation> ret = new ArrayList<Observation>(fetch.size());
+        List<WorkerResponse> l = srcObservationService.getList(fetch);
+        for (WorkerResponse wr : l)
+        {
+            if (wr != null && wr.getObservation() != null)
+                ret.add(wr.getObservation());
+            if (wr != null && wr.getResponseBytes() > 0)
+                serviceBytes += wr.getResponseBytes();
+        }
+        return ret;
+    }
+
+    // service mode: listed states that are new or changed compared to the destination
+    static class ServiceListDiff
+    {
+        final List<ObservationState> fetch = new ArrayList<ObservationState>();
+        int numUnchanged = 0;
+
+        // last listed state if the listing ends with unchanged observations
+        ObservationState lastUnchanged;
+    }
+
+    // compare the source listing to the destination states; observations missing from
+    // the destination list (new or truncated) are fetched
+    static ServiceListDiff diff(List<ObservationState> states, List<ObservationState> dst)
+    {
+        Map<URI, ObservationState> dstMap = new HashMap<URI, ObservationState>();
+        for (ObservationState s : dst)
+        {
+            dstMap.put(s.getURI().getURI(), s);
+        }
+
+        ServiceListDiff ret = new ServiceListDiff();
+        for (ObservationState s : states)
+        {
+            ObservationState d = dstMap.get(s.getURI().getURI());
+            if (d != null && s.accMetaChecksum != null && s.accMetaChecksum.equals(d.accMetaChecksum)
+                    && s.maxLastModified.equals(d.maxLastModified))
+            {
+                ret.numUnchanged++;
+                ret.lastUnchanged = s;
+            }
+            else
+            {
+                ret.fetch.add(s);
+                ret.lastUnchanged = null;
+            }
+        }
+        return ret;
+    }
+
+    // the state can advance past unchanged observations at the end of the batch
+    static boolean isAdvance(HarvestState state, ObservationState lastUnchanged)
+    {
+        if (lastUnchanged == null)
+            return false;
+        return state.curLastModified == null || lastUnchanged.maxLastModified.after(state.curLastModified);
+    }
+
+    // the plane and all its children have the same checksum in the destination
+    private boolean isUnchanged(Plane p, ObservationSkeleton skel)
+    {
+        if (p.getAccMetaChecksum() == null)
+            return false;
+        for (PlaneSkeleton ps : skel.planes)
+        {
+            if (p.getID().equals(ps.id))
+                return p.getAccMetaChecksum().equals(ps.accMetaChecksum);
+        }
+        return false;
+    }
+
     private String computeTreeSize(Observation o)
     {
         StringBuilder sb = new StringBuilder();
@@ -655,6 +1000,25 @@ public class ObservationHarvester extends Harvester
         return sb.toString();
     }
 
+    // number of entities in the observation tree
+    private long countEntities(Observation o)
+    {
+        long ret = 1;
+        for (Plane p : o.getPlanes())
+        {
+            ret++;
+            for (Artifact a : p.getArtifacts())
+            {
+                ret++;
+                for (Part pa : a.getParts())
+                {
+                    ret += 1 + pa.getChunks().size();
+                }
+            }
+        }
+        return ret;
+    }
+
     private void detectLoop(List<SkippedWrapperURI<Observation>> entityList)
     {
         if (entityList.size() < 2)
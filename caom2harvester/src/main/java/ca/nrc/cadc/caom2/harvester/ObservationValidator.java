@@ -11,7 +11,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
+import java.util.TreeMap;
 
 import javax.sql.DataSource;
 
@@ -23,6 +23,8 @@ import org.springframework.jdbc.UncategorizedSQLException;
 
 import ca.nrc.cadc.caom2.Observation;
 import ca.nrc.cadc.caom2.ObservationState;
+import ca.nrc.cadc.caom2.ObservationStateBucket;
+import ca.nrc.cadc.caom2.ObservationStateDiff;
 import ca.nrc.cadc.caom2.harvester.state.HarvestSkipURI;
 import ca.nrc.cadc.caom2.harvester.state.HarvestSkipURIDAO;
 import ca.nrc.cadc.caom2.persistence.DatabaseObservationDAO;
@@ -47,6 +49,13 @@ public class ObservationValidator extends Harvester
     private Date maxDate;
     HarvestSkipURIDAO harvestSkip = null;
 
+    // bucket validation: compare digests per time bucket and only validate
+    // observations in buckets that differ
+    private static final long MIN_BUCKET_SIZE = 1000L; // 1 sec
+    private static final int BUCKET_SPLIT = 24;
+    private Long bucketSize;
+    private Date windowEnd;
+
     public ObservationValidator(String resourceId, String collection, int nthreads, String[] dest, Integer batchSize,
             boolean full, boolean dryrun) throws IOException, URISyntaxException
     {
@@ -74,6 +83,18 @@ public class ObservationValidator extends Harvester
     {
     }
 
+    /**
+     * Enable bucket validation. The observations are summarised by maxLastModified
+     * time bucket on both sides and only buckets with different digests are 
+     * validated; large buckets are recursively split into smaller ones.
+     * 
+     * @param bucketSize initial bucket size in milliseconds, null to disable
+     */
+    public void setBucketSize(Long bucketSize)
+    {
+        this.bucketSize = bucketSize;
+    }
+
     private void init() throws IOException, URISyntaxException
     {
         Map<String, Object> config1 = getConfigDAO(src);
@@ -104,6 +125,149 @@ public class ObservationValidator extends Harvester
     {
         log.info("START VALIDATION: " + Observation.class.getSimpleName());
 
+        if (bucketSize != null)
+        {
+            runBuckets();
+            return;
+        }
+        runWindow();
+
+        log.info("DONE: " + entityClass.getSimpleName() + "\n");
+    }
+
+    private void runBuckets()
+    {
+        Date end = getEnd();
+        List<ObservationStateBucket> buckets = findMismatchedBuckets(curLastModified, end, bucketSize);
+        log.info("bucket validation: " + buckets.size() + " mismatched buckets");
+        for (ObservationStateBucket b : buckets)
+        {
+            log.info("validate bucket: " + format(b.getStart()) + " :: " + format(b.getEnd()) + " [" + b.count + "]");
+            curLastModified = b.getStart();
+            windowEnd = b.getEnd();
+            runWindow();
+        }
+        windowEnd = null;
+
+        log.info("DONE: " + entityClass.getSimpleName() + "\n");
+    }
+
+    // compare bucket digests and recursively narrow the buckets that differ
+    private List<ObservationStateBucket> findMismatchedBuckets(Date start, Date end, long size)
+    {
+        long t = System.currentTimeMillis();
+        List<ObservationStateBucket> dst = destObservationDAO.getObservationBuckets(collection, start, end, size);
+        Map<Long, ObservationStateBucket> dstMap = toMap(dst, size);
+        List<ObservationStateBucket> diff = new ArrayList<ObservationStateBucket>();
+        if (!this.service)
+        {
+            List<ObservationStateBucket> src = srcObservationDAO.getObservationBuckets(collection, start, end, size);
+            Map<Long, ObservationStateBucket> srcMap = toMap(src, size);
+            for (Map.Entry<Long, ObservationStateBucket> me : srcMap.entrySet())
+            {
+                ObservationStateBucket sb = me.getValue();
+                ObservationStateBucket db = dstMap.get(me.getKey());
+                if (db == null || !sb.digest.equals(db.digest))
+                    diff.add(sb);
+            }
+            for (Map.Entry<Long, ObservationStateBucket> me : dstMap.entrySet())
+            {
+                if (!srcMap.containsKey(me.getKey()))
+                    diff.add(me.getValue());
+            }
+        }
+        else
+        {
+            if (start == null)
+            {
+                // first source observation: empty buckets before this are not interesting
+                List<ObservationState> first = srcObservationService.getObservationList(collection, null, end, 1);
+                if (!first.isEmpty())
+                    start = first.get(0).maxLastModified;
+                if (!dst.isEmpty() && (start == null || dst.get(0).getStart().before(start)))
+                    start = dst.get(0).getStart();
+                if (start == null)
+                    return diff; // both sides empty
+            }
+            // all buckets in the range so the service can detect buckets with no local content
+            URI empty = ObservationStateDiff.getDigest(new ArrayList<ObservationState>());
+            List<ObservationStateBucket> grid = new ArrayList<ObservationStateBucket>();
+            for (long b = start.getTime() / size; b <= end.getTime() / size; b++)
+            {
+                ObservationStateBucket gb = clip(new ObservationStateBucket(new Date(b * size), new Date((b + 1) * size - 1L)), start, end);
+                ObservationStateBucket db = dstMap.get(b);
+                gb.digest = (db == null ? empty : db.digest);
+                grid.add(gb);
+            }
+            diff.addAll(srcObservationService.getBucketDiff(collection, grid));
+        }
+        log.debug("findMismatchedBuckets: " + format(start) + " :: " + format(end) + " size: " + size
+                + " mismatched: " + diff.size() + " " + (System.currentTimeMillis() - t) + "ms");
+
+        List<ObservationStateBucket> ret = new ArrayList<ObservationStateBucket>();
+        for (ObservationStateBucket b : diff)
+        {
+            ObservationStateBucket db = dstMap.get(b.getStart().getTime() / size);
+            long count = b.count;
+            if (db != null && db.count > count)
+                count = db.count;
+            ObservationStateBucket cb = clip(b, start, end);
+            cb.count = count;
+            cb.digest = b.digest;
+            if (count > batchSize && size / BUCKET_SPLIT >= MIN_BUCKET_SIZE)
+                ret.addAll(findMismatchedBuckets(cb.getStart(), cb.getEnd(), size / BUCKET_SPLIT));
+            else
+                ret.add(cb);
+        }
+        Collections.sort(ret, new Comparator<ObservationStateBucket>()
+        {
+            @Override
+            public int compare(ObservationStateBucket o1, ObservationStateBucket o2)
+            {
+                return o1.getStart().compareTo(o2.getStart());
+            }
+        });
+        return ret;
+    }
+
+    private Map<Long, ObservationStateBucket> toMap(List<ObservationStateBucket> buckets, long size)
+    {
+        Map<Long, ObservationStateBucket> ret = new TreeMap<Long, ObservationStateBucket>();
+        for (ObservationStateBucket b : buckets)
+        {
+            ret.put(b.getStart().getTime() / size, b);
+        }
+        return ret;
+    }
+
+    // restrict bucket to the query range
+    private ObservationStateBucket clip(ObservationStateBucket b, Date start, Date end)
+    {
+        Date s = b.getStart();
+        Date e = b.getEnd();
+        if (start != null && s.before(start))
+            s = start;
+        if (end != null && e.after(end))
+            e = end;
+        ObservationStateBucket ret = new ObservationStateBucket(s, e);
+        ret.count = b.count;
+        ret.digest = b.digest;
+        return ret;
+    }
+
+    private Date getEnd()
+    {
+        Date end = maxDate;
+        Date fiveMinAgo = new Date(System.currentTimeMillis() - 5 * 60000L); // 5
+                                                                             // minutes
+                                                                             // ago;
+        if (end == null || end.getTime() > fiveMinAgo.getTime())
+            end = fiveMinAgo;
+        return end;
+    }
+
+    private void runWindow()
+    {
         boolean go = true;
         while (go)
         {
@@ -114,15 +278,11 @@ public class ObservationValidator extends Harvester
 
             if (num.abort)
                 log.error("batched aborted");
-            go = (num.found > 0 && !num.abort && !num.done);
-            if (batchSize != null && num.found < batchSize.intValue() / 2)
-                go = false;
+            go = (!num.abort && !num.done);
             full = false; // do not start at beginning again
             if (dryrun)
                 go = false; // no state update -> infinite loop
         }
-
-        log.info("DONE: " + entityClass.getSimpleName() + "\n");
     }
 
     private static class Progress
@@ -154,9 +314,6 @@ public class ObservationValidator extends Harvester
         long tQuery = -1;
         long tTransaction = -1;
 
-        int expectedNum = Integer.MAX_VALUE;
-        if (batchSize != null)
-            expectedNum = batchSize.intValue();
         try
         {
             System.gc(); // hint
@@ -169,8 +326,9 @@ public class ObservationValidator extends Harvester
             startDate = curLastModified;
 
             Date end = maxDate;
+            if (windowEnd != null)
+                end = windowEnd;
             List<SkippedWrapperURI<ObservationError>> entityListSrc = null;
-            List<SkippedWrapperURI<Observation>> entityListSrcComplete = null;
 
             Date fiveMinAgo = new Date(System.currentTimeMillis() - 5 * 60000L); // 5
                                                                                  // minutes
@@ -186,64 +344,42 @@ public class ObservationValidator extends Harvester
 
             log.info("harvest window: " + format(startDate) + " :: " + format(end) + " [" + batchSize + "]");
 
-            List<ObservationState> tmpSrcState = null;
-            List<ObservationState> tmpDstState = null;
-            List<Observation> tmpSrc = null;
-            List<Observation> tmpDst = null;
-
-            tmpDstState = destObservationDAO.getObservationList(collection, startDate, end, batchSize + 1);
-            tmpDst = destObservationDAO.getList(Observation.class, startDate, end, batchSize + 1);
-
+            List<ObservationState> srcState = null;
+            List<ObservationState> dstState = destObservationDAO.getObservationList(collection, startDate, end, batchSize + 1);
             if (!this.service)
-            {
-                tmpSrcState = srcObservationDAO.getObservationList(collection, startDate, end, batchSize + 1);
-                tmpSrc = srcObservationDAO.getList(Observation.class, startDate, end, batchSize + 1);
-            }
+                srcState = srcObservationDAO.getObservationList(collection, startDate, end, batchSize + 1);
             else
-            {
-                tmpSrcState = srcObservationService.getObservationList(collection, startDate, end, batchSize + 1);
-
-                List<WorkerResponse> aux = srcObservationService.getList(collection, startDate, end, batchSize + 1);
-                tmpSrc = new ArrayList<Observation>();
-                for (WorkerResponse wr : aux)
-                {
-                    if (wr != null && wr.getObservation() == null)
-                        continue;
-                    tmpSrc.add(wr.getObservation());
-                }
+                srcState = srcObservationService.getObservationList(collection, startDate, end, batchSize + 1);
 
+            StateWindow w = new StateWindow(startDate, srcState, dstState, batchSize);
+            if (w.refetch)
+            {
+                // more than batchSize states share one maxLastModified: compare all of them
+                log.info("harvest window: " + format(startDate) + " :: " + format(startDate) + " [all]");
+                w.dst = destObservationDAO.getObservationList(collection, startDate, startDate, null);
+                if (!this.service)
+                    w.src = srcObservationDAO.getObservationList(collection, startDate, startDate, null);
+                else
+                    w.src = srcObservationService.getObservationList(collection, startDate, startDate, Integer.MAX_VALUE);
             }
+            srcState = w.src;
+            dstState = w.dst;
 
-            List<Observation> copy = new ArrayList<Observation>();
-            copy.addAll(tmpSrc);
-
-            List<ObservationError> errlist = calculateErroneousObservations(tmpSrcState, tmpDstState, tmpSrc, tmpDst);
-            // log.info("************************** errlistState.size() = " +
-            // errlistState.size());
+            List<ObservationError> errlist = calculateErroneousObservations(srcState, dstState);
             log.info("************************** errlist.size() = " + errlist.size());
-            // log.info("************************** tmpSrcState.size() = " +
-            // tmpSrcState.size());
-            // log.info("************************** tmpDstState.size() = " +
-            // tmpDstState.size());
-            // log.info("************************** tmpSrc.size() = " +
-            // tmpSrc.size());
-            // log.info("************************** tmpDst.size() = " +
-            // tmpDst.size());
 
             tQuery = System.currentTimeMillis() - t;
             t = System.currentTimeMillis();
 
             entityListSrc = wrap(errlist);
 
-            entityListSrcComplete = wrapObservation(copy);
-            if (entityListSrcComplete.size() > 0)
-            {
-                curLastModified = entityListSrcComplete.get(entityListSrcComplete.size() - 1).entity
-                        .getMaxLastModified();
-            }
+            if (w.next != null)
+                curLastModified = w.next;
 
-            ret.found = copy.size();
-            log.info("found: " + copy.size());
+            int found = Math.max(srcState.size(), dstState.size());
+            ret.found = found;
+            ret.done = !w.truncated;
+            log.info("found: " + found);
 
             ListIterator<SkippedWrapperURI<ObservationError>> iter = entityListSrc.listIterator();
             while (iter.hasNext())
@@ -261,15 +397,15 @@ public class ObservationValidator extends Harvester
                     {
                         if (o != null)
                         {
-                            skipMsg = o.toString();// + ": " + o.getError();
+                            skipMsg = o.getError();
                             try
                             {
                                 log.debug("starting HarvestSkipURI transaction");
                                 boolean putSkip = true;
-                                HarvestSkipURI skip = harvestSkip.get(source, cname, o.getObs().getURI().getURI());
+                                HarvestSkipURI skip = harvestSkip.get(source, cname, o.getState().getURI().getURI());
                                 if (skip == null)
                                 {
-                                    skip = new HarvestSkipURI(source, cname, o.getObs().getURI().getURI(), skipMsg);
+                                    skip = new HarvestSkipURI(source, cname, o.getState().getURI().getURI(), skipMsg);
                                 }
                                 else
                                 {
@@ -351,13 +487,13 @@ public class ObservationValidator extends Harvester
                             && str.contains("duplicate key value violates unique constraint \"i_observationuri\""))
                     {
                         log.error("CONTENT PROBLEM - duplicate observation: " + " "
-                                + o.getObs().getURI().getURI().toASCIIString());
+                                + o.getState().getURI().getURI().toASCIIString());
                     }
                     else if (oops instanceof UncategorizedSQLException)
                     {
                         if (str.contains("spherepoly_from_array"))
                         {
-                            log.error("UNDETECTED illegal polygon: " + o.getObs().getURI().getURI());
+                            log.error("UNDETECTED illegal polygon: " + o.getState().getURI().getURI());
                         }
                         else
                             log.error("unexpected exception", oops);
@@ -366,7 +502,7 @@ public class ObservationValidator extends Harvester
                             && str.contains("keywords"))
                     {
                         log.error("CONTENT PROBLEM - invalid keywords: " + " "
-                                + o.getObs().getURI().getURI().toASCIIString());
+                                + o.getState().getURI().getURI().toASCIIString());
                     }
                     else
                         log.error("unexpected exception", oops);
@@ -377,12 +513,6 @@ public class ObservationValidator extends Harvester
                 if (ret.abort)
                     return ret;
             }
-            if (ret.found < expectedNum)
-                ret.done = true;
-        }
-        catch (InterruptedException | ExecutionException e)
-        {
-            e.printStackTrace();
         }
         finally
         {
@@ -394,148 +524,123 @@ public class ObservationValidator extends Harvester
         return ret;
     }
 
-    Comparator<ObservationState> cState = new Comparator<ObservationState>()
+    /**
+     * The part of a pair of state lists (in maxLastModified order) that can be
+     * compared. When either list was truncated at batchSize, states at or after
+     * the last timestamp of the truncated list may be missing from it, so both
+     * lists are cut before that timestamp and the next window starts there.
+     */
+    static class StateWindow
     {
-        @Override
-        public int compare(ObservationState o1, ObservationState o2)
-        {
-            return o1.getURI().getObservationID().compareTo(o2.getURI().getObservationID());
-        }
-
-    };
-    Comparator<Observation> c = new Comparator<Observation>()
-    {
-        @Override
-        public int compare(Observation o1, Observation o2)
-        {
-            return o1.getURI().getObservationID().compareTo(o2.getURI().getObservationID());
-        }
-
-    };
+        List<ObservationState> src;
+        List<ObservationState> dst;
+        Date next;
+        boolean truncated;
+        boolean refetch;
 
-    private List<ObservationError> calculateErroneousObservations(List<ObservationState> tmpSrcState,
-            List<ObservationState> tmpDstState, List<Observation> tmpSrc, List<Observation> tmpDst)
-    {
-        List<ObservationError> listErroneous = new ArrayList<ObservationError>();
-        Collections.sort(tmpSrcState, cState);
-        Collections.sort(tmpDstState, cState);
-        Collections.sort(tmpSrc, c);
-        Collections.sort(tmpDst, c);
-
-        List<Observation> copyTmpSrc = new ArrayList<Observation>();
-        copyTmpSrc.addAll(tmpSrc);
-        List<ObservationState> copyTmpSrcState = new ArrayList<ObservationState>();
-        copyTmpSrcState.addAll(tmpSrcState);
-        List<Observation> copyTmpDst = new ArrayList<Observation>();
-        copyTmpDst.addAll(tmpDst);
-        List<ObservationState> copyTmpDstState = new ArrayList<ObservationState>();
-        copyTmpDstState.addAll(tmpDstState);
-
-        for (int i = 0; i < tmpSrcState.size(); i++)
+        StateWindow(Date start, List<ObservationState> src, List<ObservationState> dst, int batchSize)
         {
-            ObservationState osSrc = tmpSrcState.get(i);
-            Observation oSrc = tmpSrc.get(i);
+            Date limit = null;
+            if (src.size() > batchSize)
+                limit = src.get(src.size() - 1).maxLastModified;
+            if (dst.size() > batchSize)
+            {
+                Date d = dst.get(dst.size() - 1).maxLastModified;
+                if (limit == null || d.before(limit))
+                    limit = d;
+            }
+            this.truncated = (limit != null);
 
-            if (!osSrc.getURI().getObservationID().equals(oSrc.getURI().getObservationID()))
+            if (!truncated)
             {
-                log.debug("WRONG (not found): " + osSrc.getURI().getObservationID());
-                ObservationError oe = new ObservationError(oSrc, "Observation " + oSrc.getObservationID()
-                        + " not found in repo but present as ObservationState");
-                listErroneous.add(oe);
-                tmpSrcState.remove(osSrc);
-                if (i >= 0)
-                {
-                    i--;
-                }
-                continue;
+                this.src = src;
+                this.dst = dst;
+                if (!src.isEmpty())
+                    this.next = src.get(src.size() - 1).maxLastModified;
+            }
+            else if (start != null && !limit.after(start))
+            {
+                // all states of a truncated list have the start timestamp:
+                // the caller must get all of them and the next window starts after it
+                this.src = src;
+                this.dst = dst;
+                this.refetch = true;
+                this.next = new Date(start.getTime() + 1L);
             }
             else
             {
-                if (!(osSrc.accMetaChecksum != null && oSrc.getAccMetaChecksum() != null
-                        && osSrc.accMetaChecksum.equals(oSrc.getAccMetaChecksum())))
-                {
-                    log.debug("WRONG MD5: " + osSrc.getURI().getObservationID());
-                    ObservationError oe = new ObservationError(oSrc, "Observation " + oSrc.getObservationID()
-                            + " has different accumulated checksum in ObservationState and in Observation");
-                    listErroneous.add(oe);
-                    tmpSrcState.remove(osSrc);
-                    if (i >= 0)
-                    {
-                        i--;
-                    }
-                    continue;
-                }
-                else
-                {
-                    log.debug("CORRECT MD5: " + osSrc.getURI().getObservationID());
-                    tmpSrcState.remove(osSrc);
-                    tmpSrc.remove(oSrc);
-                    if (i >= 0)
-                    {
-                        i--;
-                    }
-                }
+                this.src = trim(src, limit);
+                this.dst = trim(dst, limit);
+                this.next = limit;
             }
         }
 
-        tmpSrc.clear();
-        tmpSrc.addAll(copyTmpSrc);
-        tmpSrcState.clear();
-        tmpSrcState.addAll(copyTmpSrcState);
+        // drop the states at or after the limit
+        private static List<ObservationState> trim(List<ObservationState> states, Date limit)
+        {
+            int n = states.size();
+            while (n > 0 && !states.get(n - 1).maxLastModified.before(limit))
+                n--;
+            return states.subList(0, n);
+        }
+    }
+
+    private List<ObservationError> calculateErroneousObservations(List<ObservationState> srcState,
+            List<ObservationState> dstState)
+    {
+        List<ObservationError> listErroneous = new ArrayList<ObservationError>();
 
-        for (int i = 0; i < tmpSrc.size(); i++)
+        ObservationStateDiff diff = new ObservationStateDiff(srcState, dstState);
+        log.debug("validate: " + srcState.size() + " vs " + dstState.size() + " missing: " + diff.missing.size()
+                + " extra: " + diff.extra.size() + " different: " + diff.different.size());
+
+        for (ObservationState s : diff.missing)
+        {
+            log.debug("WRONG (not found): " + s.getURI().getObservationID());
+            listErroneous.add(new ObservationError(s, "Observation " + s.getURI().getObservationID()
+                    + " present in source but not found in destination data base"));
+        }
+        for (ObservationState s : diff.extra)
+        {
+            log.debug("WRONG (extra): " + s.getURI().getObservationID());
+            listErroneous.add(new ObservationError(s, "Observation " + s.getURI().getObservationID()
+                    + " present in destination data base but not found in source"));
+        }
+        for (ObservationState s : diff.different)
         {
-            Observation oSrc = tmpSrc.get(i);
-            Observation oDst = tmpDst.get(i);
+            log.debug("WRONG MD5: " + s.getURI().getObservationID());
+            listErroneous.add(new ObservationError(s, diagnose(s)));
+        }
+        return listErroneous;
+    }
 
-            if (!oSrc.getURI().getObservationID().equals(oDst.getURI().getObservationID()))
-            {
-                log.debug("WRONG (not found): " + oSrc.getURI().getObservationID());
-                ObservationError oe = new ObservationError(oSrc, "Observation " + oSrc.getObservationID()
-                        + " present in repo but not found in destination data base");
-                listErroneous.add(oe);
-                tmpSrc.remove(oSrc);
-                if (i >= 0)
-                {
-                    i--;
-                }
-                continue;
-            }
+    // fetch the source observation to check if the source state is consistent
+    private String diagnose(ObservationState s)
+    {
+        String oid = s.getURI().getObservationID();
+        Observation o = null;
+        try
+        {
+            if (!this.service)
+                o = srcObservationDAO.get(s.getURI());
             else
             {
-                if (!(oSrc.getAccMetaChecksum() != null && oDst.getAccMetaChecksum() != null
-                        && oSrc.getAccMetaChecksum().equals(oDst.getAccMetaChecksum())))
-                {
-                    log.debug("WRONG MD5: " + oSrc.getURI().getObservationID());
-                    ObservationError oe = new ObservationError(oSrc, "Observation " + oSrc.getObservationID()
-                            + " has different accumulated checksum in repo and in destination database");
-                    listErroneous.add(oe);
-                    tmpSrc.remove(oSrc);
-                    if (i >= 0)
-                    {
-                        i--;
-                    }
-                    continue;
-                }
-                else
-                {
-                    log.debug("CORRECT MD5: " + oSrc.getURI().getObservationID());
-                    tmpSrc.remove(oSrc);
-                    tmpDst.remove(oDst);
-                    if (i >= 0)
-                    {
-                        i--;
-                    }
-                }
+                WorkerResponse wr = srcObservationService.get(s.getURI());
+                if (wr != null)
+                    o = wr.getObservation();
             }
         }
+        catch (RuntimeException ex)
+        {
+            log.debug("failed to get " + s.getURI() + " from source", ex);
+        }
 
-        tmpSrc.clear();
-        tmpSrc.addAll(copyTmpSrc);
-        tmpDst.clear();
-        tmpDst.addAll(copyTmpDst);
-
-        return listErroneous;
+        if (o == null)
+            return "Observation " + oid + " has different accumulated checksum in source and in destination database"
+                    + " (source observation not available)";
+        if (s.accMetaChecksum == null || !s.accMetaChecksum.equals(o.getAccMetaChecksum()))
+            return "Observation " + oid + " has different accumulated checksum in ObservationState and in Observation";
+        return "Observation " + oid + " has different accumulated checksum in source and in destination database";
     }
 
     private List<SkippedWrapperURI<ObservationError>> wrap(List<ObservationError> obsList)
@@ -548,15 +653,6 @@ public class ObservationValidator extends Harvester
         }
         return ret;
     }
-    private List<SkippedWrapperURI<Observation>> wrapObservation(List<Observation> obsList)
-    {
-        List<SkippedWrapperURI<Observation>> ret = new ArrayList<SkippedWrapperURI<Observation>>(obsList.size());
-        for (Observation o : obsList)
-        {
-            ret.add(new SkippedWrapperURI<Observation>(o, null));
-        }
-        return ret;
-    }
 
     @Override
     protected void initHarvestState(DataSource ds, @SuppressWarnings("rawtypes") Class c)
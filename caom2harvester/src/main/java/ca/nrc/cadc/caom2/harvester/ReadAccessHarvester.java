@@ -8,6 +8,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.UUID;
 
 import org.apache.log4j.Logger;
 import org.springframework.dao.DataIntegrityViolationException;
@@ -121,6 +122,7 @@ public class ReadAccessHarvester extends Harvester
             throw new RuntimeException("failed to init connections and state", oops);
         }
 
+        startRun();
         boolean go = true;
         while (go)
         {
@@ -138,6 +140,8 @@ public class ReadAccessHarvester extends Harvester
             full = false; // do not start at min(lastModified) again
             if (dryrun)
                 go = false;
+            if (!trackBatch(num.found))
+                go = false;
             // go = false;// single loop for testing
         }
         try
@@ -233,6 +237,13 @@ public class ReadAccessHarvester extends Harvester
             ret.found = entityList.size();
             log.info("found: " + entityList.size());
 
+            if (!skipped && !dryrun && !entityList.isEmpty() && putBatch(entityList, state))
+            {
+                ret.ingested = entityList.size();
+                entityList.clear();
+            }
+            // else: one tuple per transaction so failures can be isolated and skipped
+
             ListIterator<SkippedWrapper<ReadAccess>> iter = entityList.listIterator();
             while (iter.hasNext())
             {
@@ -370,6 +381,53 @@ public class ReadAccessHarvester extends Harvester
         return ret;
     }
 
+    // put the whole batch in one transaction with a single HarvestState update
+    private boolean putBatch(List<SkippedWrapper<ReadAccess>> entityList, HarvestState state)
+    {
+        List<ReadAccess> ras = new ArrayList<ReadAccess>(entityList.size());
+        for (SkippedWrapper<ReadAccess> sra : entityList)
+        {
+            ras.add(sra.entity);
+        }
+        ReadAccess first = ras.get(0);
+        ReadAccess last = ras.get(ras.size() - 1);
+        log.info("put: " + ras.size() + " " + entityClass.getSimpleName() + " " + format(first.getLastModified())
+                + " .. " + format(last.getLastModified()));
+
+        Date prevLastModified = state.curLastModified;
+        UUID prevID = state.curID;
+        destAccessDAO.getTransactionManager().startTransaction();
+        boolean ok = false;
+        try
+        {
+            destAccessDAO.put(ras);
+
+            state.curLastModified = last.getLastModified();
+            state.curID = last.getID();
+            harvestState.put(state);
+
+            log.debug("committing transaction");
+            destAccessDAO.getTransactionManager().commitTransaction();
+            log.debug("commit: OK");
+            ok = true;
+        }
+        catch (Throwable t)
+        {
+            log.warn("batch put failed, retrying one at a time: " + t);
+        }
+        finally
+        {
+            if (!ok)
+            {
+                destAccessDAO.getTransactionManager().rollbackTransaction();
+                log.warn("rollback: OK");
+                state.curLastModified = prevLastModified;
+                state.curID = prevID;
+            }
+        }
+        return ok;
+    }
+
     private void detectLoop(List<SkippedWrapper<ReadAccess>> entityList)
     {
         if (entityList.size() < 2)
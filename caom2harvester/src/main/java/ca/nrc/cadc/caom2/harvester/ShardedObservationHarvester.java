@@ -0,0 +1,259 @@
+package ca.nrc.cadc.caom2.harvester;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import ca.nrc.cadc.caom2.harvester.state.HarvestLease;
+import ca.nrc.cadc.caom2.harvester.state.HarvestLeaseDAO;
+
+/**
+ * Harvest observations by splitting the harvest window into time shards. Workers
+ * claim shards through leases in the destination database and harvest each shard
+ * with its own HarvestState, so multiple threads and processes can harvest the same
+ * collection without overlap. When all shards are done the observation HarvestState
+ * is moved to the end of the window and the completed shards before it are deleted.
+ *
+ * @author pdowler
+ */
+public class ShardedObservationHarvester implements Runnable
+{
+    private static Logger log = Logger.getLogger(ShardedObservationHarvester.class);
+
+    // leases are renewed every LEASE_TIME/3 while a shard is harvested
+    private static final long LEASE_TIME = 10 * 60000L;
+
+    private final ObservationHarvester parent;
+    private final long shardSize;
+    private final int workers;
+    private final HarvestLeaseDAO leaseDAO;
+    private final String source;
+    private final String leaseName;
+    private final String owner;
+
+    private int found;
+    private boolean full;
+
+    public ShardedObservationHarvester(ObservationHarvester parent, long shardSize, int workers)
+    {
+        this.parent = parent;
+        this.shardSize = shardSize;
+        this.workers = Math.max(1, workers);
+        String[] dest = parent.dest;
+        this.leaseDAO = new HarvestLeaseDAO(parent.getDestDataSource(), dest[1], dest[2]);
+        this.source = parent.source;
+        // different shard sizes do not share leases
+        this.leaseName = parent.cname + ":" + shardSize;
+        // pid@host
+        this.owner = ManagementFactory.getRuntimeMXBean().getName();
+    }
+
+    public int getFound()
+    {
+        return found;
+    }
+
+    public boolean isFull()
+    {
+        return full;
+    }
+
+    @Override
+    public void run()
+    {
+        log.info("START: sharded " + parent.cname + " workers: " + workers);
+        long t = System.currentTimeMillis();
+        this.found = 0;
+        this.full = false;
+
+        Date[] window = parent.getShardWindow();
+        if (window == null)
+        {
+            log.info("DONE: sharded " + parent.cname + " nothing to harvest\n");
+            return;
+        }
+        log.info("shard window: " + parent.format(window[0]) + " :: " + parent.format(window[1])
+                + " shard size: " + shardSize / 1000L + "s");
+        leaseDAO.createShards(source, leaseName, window[0], window[1], shardSize);
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor();
+        try
+        {
+            List<Future<?>> tasks = new ArrayList<Future<?>>();
+            for (int i = 0; i < workers; i++)
+                tasks.add(pool.submit(new Worker(owner + "/" + i, renewer)));
+
+            RuntimeException fail = null;
+            for (Future<?> f : tasks)
+            {
+                try
+                {
+                    f.get();
+                }
+                catch (ExecutionException ex)
+                {
+                    log.error("shard worker failed", ex.getCause());
+                    if (fail == null)
+                        fail = new RuntimeException("sharded harvest failed", ex.getCause());
+                }
+                catch (InterruptedException ex)
+                {
+                    throw new RuntimeException("interrupted", ex);
+                }
+            }
+            if (fail != null)
+                throw fail;
+
+            // workers in other processes may still own shards
+            int remaining = leaseDAO.countRemaining(source, leaseName);
+            if (remaining == 0 && !parent.dryrun)
+            {
+                parent.advanceState(window[1]);
+                // the next window starts at window[1]: keep the shard that contains it
+                purge(window[1]);
+            }
+            else
+                log.info("shards not done: " + remaining);
+        }
+        finally
+        {
+            pool.shutdownNow();
+            renewer.shutdownNow();
+            long dt = System.currentTimeMillis() - t;
+            log.info("DONE: sharded " + parent.cname + " found: " + found + " " + dt + "ms\n");
+        }
+    }
+
+    // delete the HarvestState of the completed shards before the specified date, then
+    // the shards: a shard that is still there after a failure is purged next time
+    private void purge(Date before)
+    {
+        for (HarvestLease lease : leaseDAO.getShards(source, leaseName))
+        {
+            if (lease.done && lease.shardEnd.before(before))
+                parent.harvestState.delete(source, getShardKey(lease));
+        }
+        int n = leaseDAO.purge(source, leaseName, before);
+        log.debug("purged shards: " + n);
+    }
+
+    // name of the HarvestState of a shard
+    private String getShardKey(HarvestLease lease)
+    {
+        return leaseName + ":" + lease.shardStart.getTime();
+    }
+
+    private synchronized void track(ObservationHarvester h)
+    {
+        found += h.getRunFound();
+        full = full || h.isRunFull();
+    }
+
+    private class Worker implements Runnable
+    {
+        private String name;
+        private ScheduledExecutorService renewer;
+
+        Worker(String name, ScheduledExecutorService renewer)
+        {
+            this.name = name;
+            this.renewer = renewer;
+        }
+
+        @Override
+        public void run()
+        {
+            ObservationHarvester h;
+            try
+            {
+                h = parent.createShardHarvester();
+            }
+            catch (Exception ex)
+            {
+                throw new RuntimeException("failed to create shard harvester", ex);
+            }
+
+            boolean go = true;
+            while (go && !Harvester.isShutdown())
+            {
+                HarvestLease lease = leaseDAO.claim(source, leaseName, name, LEASE_TIME);
+                if (lease == null)
+                {
+                    log.debug(name + ": no shards available");
+                    break;
+                }
+
+                log.info(name + ": shard " + parent.format(lease.shardStart) + " :: " + parent.format(lease.shardEnd));
+                h.setShard(getShardKey(lease), lease.shardStart, lease.shardEnd);
+                ScheduledFuture<?> renew = renewer.scheduleAtFixedRate(new Renewal(lease, h),
+                        LEASE_TIME / 3, LEASE_TIME / 3, TimeUnit.MILLISECONDS);
+                boolean done = false;
+                try
+                {
+                    h.run();
+                    done = !h.isRunAborted() && !h.isStopped() && !Harvester.isShutdown() && !h.dryrun;
+                }
+                finally
+                {
+                    renew.cancel(false);
+                    track(h);
+                    if (done)
+                        leaseDAO.complete(lease);
+                    else
+                        leaseDAO.release(lease);
+                }
+
+                // a failed batch will most likely fail again: leave the shard for the next run
+                if (h.isRunAborted())
+                {
+                    log.warn(name + ": shard aborted, worker stopping");
+                    go = false;
+                }
+                // dryrun does not update state so the same shard would be claimed again
+                if (h.dryrun)
+                    go = false;
+            }
+        }
+    }
+
+    private class Renewal implements Runnable
+    {
+        private HarvestLease lease;
+        private ObservationHarvester harvester;
+
+        Renewal(HarvestLease lease, ObservationHarvester harvester)
+        {
+            this.lease = lease;
+            this.harvester = harvester;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                if (!leaseDAO.renew(lease, LEASE_TIME))
+                {
+                    log.warn("lost lease: " + lease + " stopping after current batch");
+                    harvester.stop();
+                }
+            }
+            catch (RuntimeException ex)
+            {
+                // the lease will expire unless a later renewal succeeds
+                log.error("failed to renew lease: " + lease, ex);
+            }
+        }
+    }
+}
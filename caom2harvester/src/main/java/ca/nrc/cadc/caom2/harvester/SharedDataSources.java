@@ -0,0 +1,150 @@
+package ca.nrc.cadc.caom2.harvester;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+import org.apache.tomcat.jdbc.pool.PoolProperties;
+
+import ca.nrc.cadc.db.ConnectionConfig;
+import ca.nrc.cadc.db.DBConfig;
+
+/**
+ * Connection pools shared by all harvesters in the JVM, one per server and database.
+ * Sharing is disabled until enable() is called; harvesters then use the shared pool
+ * instead of creating their own DataSource.
+ * <p>
+ * Each pool caches prepared statements per connection (the DAOs prepare the same 
+ * insert and update statements for every entity) so a statement is only parsed and
+ * planned once per connection. For PostgreSQL, the prepareThreshold connection property 
+ * sets how many executions of a statement it takes before the driver switches to a 
+ * server-side prepared statement; with the cache, 1 makes every cached statement a 
+ * server-side prepared statement.
+ *
+ * @author pdowler
+ */
+public class SharedDataSources
+{
+    private static Logger log = Logger.getLogger(SharedDataSources.class);
+
+    private static final Map<String, org.apache.tomcat.jdbc.pool.DataSource> pools =
+            new HashMap<String, org.apache.tomcat.jdbc.pool.DataSource>();
+    private static int poolSize = 0;
+
+    public static final int DEFAULT_STATEMENT_CACHE = 64;
+
+    // prepared statements cached per connection (0: no cache)
+    private static int statementCacheSize = DEFAULT_STATEMENT_CACHE;
+
+    // PostgreSQL prepareThreshold (null: driver default)
+    private static Integer prepareThreshold;
+
+    private SharedDataSources()
+    {
+    }
+
+    /**
+     * Enable shared connection pools.
+     *
+     * @param maxConnections max connections per server and database
+     */
+    public static synchronized void enable(int maxConnections)
+    {
+        if (maxConnections <= 0)
+            throw new IllegalArgumentException("invalid pool size: " + maxConnections);
+        poolSize = maxConnections;
+    }
+
+    /**
+     * Set the prepared statement cache size. Only affects pools created after this call.
+     *
+     * @param size max cached statements per connection, 0 to disable the cache
+     */
+    public static synchronized void setStatementCacheSize(int size)
+    {
+        if (size < 0)
+            throw new IllegalArgumentException("invalid statement cache size: " + size);
+        statementCacheSize = size;
+    }
+
+    /**
+     * Set the PostgreSQL prepareThreshold. Only affects pools created after this call.
+     *
+     * @param threshold executions before using a server-side prepared statement, 0 to never
+     *            use server-side prepared statements, null for the driver default
+     */
+    public static synchronized void setPrepareThreshold(Integer threshold)
+    {
+        if (threshold != null && threshold < 0)
+            throw new IllegalArgumentException("invalid prepareThreshold: " + threshold);
+        prepareThreshold = threshold;
+    }
+
+    public static synchronized boolean isEnabled()
+    {
+        return poolSize > 0;
+    }
+
+    /**
+     * Get the shared pool for a server and database.
+     *
+     * @param server
+     * @param database
+     * @return shared pool or null if sharing is not enabled
+     * @throws IOException if the connection config cannot be read
+     */
+    public static synchronized DataSource get(String server, String database) throws IOException
+    {
+        if (poolSize <= 0)
+            return null;
+
+        String key = server + "." + database;
+        org.apache.tomcat.jdbc.pool.DataSource ret = pools.get(key);
+        if (ret == null)
+        {
+            DBConfig dbrc = new DBConfig();
+            ConnectionConfig cc = dbrc.getConnectionConfig(server, database);
+            PoolProperties pp = new PoolProperties();
+            pp.setDriverClassName(cc.getDriver());
+            pp.setUrl(cc.getURL());
+            pp.setUsername(cc.getUsername());
+            pp.setPassword(cc.getPassword());
+            pp.setMaxActive(poolSize);
+            pp.setMaxIdle(poolSize);
+            pp.setMinIdle(0);
+            pp.setInitialSize(0);
+            pp.setTestOnBorrow(true);
+            pp.setValidationQuery("select 1");
+            pp.setValidationInterval(30000L);
+            if (statementCacheSize > 0)
+            {
+                // max is for the whole pool
+                int max = statementCacheSize * poolSize;
+                pp.setJdbcInterceptors("StatementCache(prepared=true,callable=false,max=" + max + ")");
+            }
+            if (prepareThreshold != null && cc.getDriver().contains(Harvester.POSTGRESQL))
+                pp.setConnectionProperties("prepareThreshold=" + prepareThreshold);
+            ret = new org.apache.tomcat.jdbc.pool.DataSource(pp);
+            pools.put(key, ret);
+            log.info("created shared connection pool: " + key + " max: " + poolSize
+                    + " statement cache: " + statementCacheSize + " prepareThreshold: " + prepareThreshold);
+        }
+        return ret;
+    }
+
+    /**
+     * Close all shared pools.
+     */
+    public static synchronized void close()
+    {
+        for (Map.Entry<String, org.apache.tomcat.jdbc.pool.DataSource> me : pools.entrySet())
+        {
+            log.debug("closing shared connection pool: " + me.getKey());
+            me.getValue().close();
+        }
+        pools.clear();
+    }
+}
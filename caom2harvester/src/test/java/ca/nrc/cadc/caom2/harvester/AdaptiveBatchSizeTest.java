@@ -0,0 +1,135 @@
+package ca.nrc.cadc.caom2.harvester;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.nrc.cadc.util.Log4jInit;
+
+/**
+ *
+ * @author pdowler
+ */
+public class AdaptiveBatchSizeTest
+{
+    private static final Logger log = Logger.getLogger(AdaptiveBatchSizeTest.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.caom2.harvester", Level.INFO);
+    }
+
+    // large enough that the heap is not the limit
+    private static final long BIG_HEAP = 1L << 40;
+
+    @Test
+    public void testBounds()
+    {
+        try
+        {
+            AdaptiveBatchSize abs = new AdaptiveBatchSize(10, 1000);
+            Assert.assertEquals(10, abs.clamp(1));
+            Assert.assertEquals(500, abs.clamp(500));
+            Assert.assertEquals(1000, abs.clamp(5000));
+
+            // nothing found: keep the current size
+            Assert.assertEquals(500, abs.next(500, 0, 0L, 1000L, BIG_HEAP));
+            Assert.assertEquals(1000, abs.next(5000, 0, 0L, 1000L, BIG_HEAP));
+
+            try
+            {
+                new AdaptiveBatchSize(0, 10);
+                Assert.fail("expected IllegalArgumentException");
+            }
+            catch (IllegalArgumentException expected)
+            {
+                log.debug("caught expected exception: " + expected);
+            }
+            try
+            {
+                new AdaptiveBatchSize(10, 5);
+                Assert.fail("expected IllegalArgumentException");
+            }
+            catch (IllegalArgumentException expected)
+            {
+                log.debug("caught expected exception: " + expected);
+            }
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
+    @Test
+    public void testDoubling()
+    {
+        try
+        {
+            // 1 ms/obs: latency limit 60000, so growth is limited to 2x per batch
+            AdaptiveBatchSize abs = new AdaptiveBatchSize(10, 100000);
+            Assert.assertEquals(200, abs.next(100, 100, 100L, 100L, BIG_HEAP));
+            Assert.assertEquals(400, abs.next(200, 200, 200L, 200L, BIG_HEAP));
+
+            // max clamp
+            abs = new AdaptiveBatchSize(10, 500);
+            Assert.assertEquals(500, abs.next(400, 400, 400L, 400L, BIG_HEAP));
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
+    @Test
+    public void testLatencyLimit()
+    {
+        try
+        {
+            // 600 ms/obs: 60s target -> 100
+            AdaptiveBatchSize abs = new AdaptiveBatchSize(10, 100000);
+            Assert.assertEquals(100, abs.next(1000, 1000, 1000L, 600000L, BIG_HEAP));
+
+            // 10 s/obs: 6 -> min clamp
+            abs = new AdaptiveBatchSize(10, 100000);
+            Assert.assertEquals(10, abs.next(1000, 100, 100L, 1000000L, BIG_HEAP));
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
+    @Test
+    public void testHeapLimit()
+    {
+        try
+        {
+            // 100 entities/obs: room for 50 observations in the heap fraction
+            long batchBytes = 100L * AdaptiveBatchSize.ENTITY_BYTES;
+            long maxHeap = (long) (50L * batchBytes / AdaptiveBatchSize.HEAP_FRACTION);
+            AdaptiveBatchSize abs = new AdaptiveBatchSize(10, 100000);
+            Assert.assertEquals(50, abs.next(1000, 1000, 100000L, 1000L, maxHeap));
+
+            // deterministic: same input gives the same size
+            abs = new AdaptiveBatchSize(10, 100000);
+            Assert.assertEquals(50, abs.next(1000, 1000, 100000L, 1000L, maxHeap));
+
+            // smaller trees: 1 entity/obs averaged with 100 -> 50.5 -> 99
+            Assert.assertEquals(99, abs.next(50, 50, 50L, 50L, maxHeap));
+
+            // min clamp
+            abs = new AdaptiveBatchSize(10, 100000);
+            Assert.assertEquals(10, abs.next(1000, 1000, 100000L, 1000L, maxHeap / 10L));
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+}
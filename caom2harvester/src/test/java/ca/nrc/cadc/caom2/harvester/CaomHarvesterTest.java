@@ -0,0 +1,190 @@
+package ca.nrc.cadc.caom2.harvester;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.nrc.cadc.util.Log4jInit;
+
+/**
+ *
+ * @author pdowler
+ */
+public class CaomHarvesterTest
+{
+    private static final Logger log = Logger.getLogger(CaomHarvesterTest.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.caom2.harvester", Level.INFO);
+    }
+
+    private static class Step implements Runnable
+    {
+        String name;
+        List<String> done;
+        CountDownLatch wait;
+        RuntimeException fail;
+
+        Step(String name, List<String> done)
+        {
+            this.name = name;
+            this.done = done;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                if (wait != null && !wait.await(10L, TimeUnit.SECONDS))
+                    throw new IllegalStateException(name + ": timeout");
+            }
+            catch (InterruptedException ex)
+            {
+                throw new RuntimeException(name + ": interrupted", ex);
+            }
+            if (fail != null)
+                throw fail;
+            done.add(name);
+        }
+    }
+
+    @Test
+    public void testGetPhase()
+    {
+        try
+        {
+            List<String> done = Collections.synchronizedList(new ArrayList<String>());
+            Step obs = new Step("obs", done);
+            Step data = new Step("data", done);
+            Step meta = new Step("meta", done);
+
+            // plane steps update the same Plane rows: one task, data before meta
+            List<Runnable> phase = CaomHarvester.getPhase(obs, data, meta);
+            Assert.assertEquals(2, phase.size());
+            Assert.assertSame(obs, phase.get(0));
+            phase.get(1).run();
+            Assert.assertEquals(2, done.size());
+            Assert.assertEquals("data", done.get(0));
+            Assert.assertEquals("meta", done.get(1));
+
+            phase = CaomHarvester.getPhase(null, data, null);
+            Assert.assertEquals(1, phase.size());
+            Assert.assertSame(data, phase.get(0));
+
+            phase = CaomHarvester.getPhase(obs, null, meta);
+            Assert.assertEquals(2, phase.size());
+            Assert.assertSame(obs, phase.get(0));
+            Assert.assertSame(meta, phase.get(1));
+
+            phase = CaomHarvester.getPhase(null, null, null);
+            Assert.assertTrue(phase.isEmpty());
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
+    @Test
+    public void testRunPhase()
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try
+        {
+            List<String> done = Collections.synchronizedList(new ArrayList<String>());
+            Step obs = new Step("obs", done);
+            Step data = new Step("data", done);
+            Step meta = new Step("meta", done);
+
+            // the tasks run in parallel: obs only finishes after the plane task started
+            final CountDownLatch started = new CountDownLatch(1);
+            obs.wait = started;
+            final Runnable planes = CaomHarvester.getPhase(null, data, meta).get(0);
+            List<Runnable> phase = new ArrayList<Runnable>();
+            phase.add(obs);
+            phase.add(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    started.countDown();
+                    planes.run();
+                }
+            });
+            CaomHarvester.runPhase(pool, phase);
+            Assert.assertEquals(3, done.size());
+            Assert.assertTrue(done.indexOf("data") < done.indexOf("meta"));
+
+            // a failure is reported after the other tasks finish
+            done.clear();
+            obs.wait = null;
+            data.fail = new IllegalStateException("data failed");
+            try
+            {
+                CaomHarvester.runPhase(pool, CaomHarvester.getPhase(obs, data, meta));
+                Assert.fail("expected RuntimeException");
+            }
+            catch (RuntimeException expected)
+            {
+                log.debug("caught expected exception: " + expected);
+                Assert.assertSame(data.fail, expected.getCause());
+            }
+            // obs ran, meta did not run after the failed data step
+            Assert.assertEquals(1, done.size());
+            Assert.assertEquals("obs", done.get(0));
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testGetNextInterval()
+    {
+        try
+        {
+            long max = 60000L;
+            long min = CaomHarvester.MIN_INTERVAL;
+
+            // full batch: poll right away
+            Assert.assertEquals(min, CaomHarvester.getNextInterval(40000L, true, 100, true, max));
+
+            // found: halve, not below MIN_INTERVAL
+            Assert.assertEquals(20000L, CaomHarvester.getNextInterval(40000L, true, 10, false, max));
+            Assert.assertEquals(min, CaomHarvester.getNextInterval(min + 1000L, true, 10, false, max));
+            Assert.assertEquals(min, CaomHarvester.getNextInterval(min, true, 10, false, max));
+
+            // not found: double, not above maxInterval
+            Assert.assertEquals(2 * min, CaomHarvester.getNextInterval(min, true, 0, false, max));
+            Assert.assertEquals(max, CaomHarvester.getNextInterval(40000L, true, 0, false, max));
+            Assert.assertEquals(max, CaomHarvester.getNextInterval(max, true, 0, false, max));
+
+            // failure: back off to maxInterval
+            Assert.assertEquals(max, CaomHarvester.getNextInterval(min, false, 0, false, max));
+            Assert.assertEquals(max, CaomHarvester.getNextInterval(min, false, 100, true, max));
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+}
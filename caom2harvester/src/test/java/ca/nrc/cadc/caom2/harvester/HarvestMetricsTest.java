@@ -0,0 +1,147 @@
+package ca.nrc.cadc.caom2.harvester;
+
+import java.io.StringWriter;
+import java.util.Date;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.nrc.cadc.util.Log4jInit;
+
+/**
+ *
+ * @author pdowler
+ */
+public class HarvestMetricsTest
+{
+    private static final Logger log = Logger.getLogger(HarvestMetricsTest.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.caom2.harvester", Level.INFO);
+    }
+
+    @Test
+    public void testCounters()
+    {
+        try
+        {
+            HarvestMetrics m = new HarvestMetrics();
+            m.addObservation(5L);
+            m.addObservation(7L);
+            m.addBytes(1000L);
+            m.addBytes(-1L); // unknown: ignored
+            m.addFailed();
+
+            Assert.assertEquals(2L, m.getObservations());
+            Assert.assertEquals(12L, m.getEntities());
+            Assert.assertEquals(1000L, m.getBytes());
+            Assert.assertEquals(1L, m.getFailed());
+
+            m.observe(HarvestMetrics.QUERY, 10L);
+            m.observe(HarvestMetrics.QUERY, 30L);
+            m.observe(HarvestMetrics.PUT, 3L);
+            Assert.assertEquals(2L, m.getQueryCount());
+            Assert.assertEquals(20.0, m.getQueryTimeMean(), 0.0001);
+            Assert.assertEquals(1L, m.getPutCount());
+            Assert.assertEquals(0L, m.getCommitCount());
+            Assert.assertEquals(0.0, m.getCommitTimeMean(), 0.0001);
+
+            try
+            {
+                m.observe("foo", 1L);
+                Assert.fail("expected IllegalArgumentException for unknown stage");
+            }
+            catch (IllegalArgumentException expected)
+            {
+                log.debug("caught expected exception: " + expected);
+            }
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
+    @Test
+    public void testHarvestLag()
+    {
+        try
+        {
+            HarvestMetrics m = new HarvestMetrics();
+            Assert.assertEquals(-1L, m.getMaxHarvestLag());
+
+            long now = System.currentTimeMillis();
+            m.setCommitted("src1", "Observation", new Date(now - 100 * 1000L));
+            m.setCommitted("src2", "Observation", new Date(now - 10 * 1000L));
+            m.setCommitted("src2", "Observation", null); // ignored
+            long lag = m.getMaxHarvestLag();
+            Assert.assertTrue("lag: " + lag, lag >= 100L && lag < 110L);
+            Assert.assertEquals(2, m.getHarvestLag().length);
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
+    @Test
+    public void testWritePrometheus()
+    {
+        try
+        {
+            HarvestMetrics m = new HarvestMetrics();
+            m.observe(HarvestMetrics.COMMIT, 1L);   // le 0.001
+            m.observe(HarvestMetrics.COMMIT, 7L);   // le 0.01
+            m.observe(HarvestMetrics.COMMIT, 400000L); // +Inf
+            m.addObservation(3L);
+            m.addBytes(2048L);
+            m.setCommitted("jdbc:src", "Observation", new Date());
+
+            StringWriter sw = new StringWriter();
+            m.writePrometheus(sw);
+            String text = sw.toString().replace("\r\n", "\n");
+            log.debug("prometheus:\n" + text);
+
+            String h = "caom2harvester_stage_seconds";
+            Assert.assertTrue(text.contains("# TYPE " + h + " histogram\n"));
+            // cumulative buckets
+            Assert.assertTrue(text.contains(h + "_bucket{stage=\"commit\",le=\"0.001\"} 1\n"));
+            Assert.assertTrue(text.contains(h + "_bucket{stage=\"commit\",le=\"0.005\"} 1\n"));
+            Assert.assertTrue(text.contains(h + "_bucket{stage=\"commit\",le=\"0.01\"} 2\n"));
+            Assert.assertTrue(text.contains(h + "_bucket{stage=\"commit\",le=\"300.0\"} 2\n"));
+            Assert.assertTrue(text.contains(h + "_bucket{stage=\"commit\",le=\"+Inf\"} 3\n"));
+            Assert.assertTrue(text.contains(h + "_sum{stage=\"commit\"} 400.008\n"));
+            Assert.assertTrue(text.contains(h + "_count{stage=\"commit\"} 3\n"));
+            Assert.assertTrue(text.contains(h + "_count{stage=\"query\"} 0\n"));
+
+            Assert.assertTrue(text.contains("# TYPE caom2harvester_observations_total counter\n"));
+            Assert.assertTrue(text.contains("caom2harvester_observations_total 1\n"));
+            Assert.assertTrue(text.contains("caom2harvester_entities_total 3\n"));
+            Assert.assertTrue(text.contains("caom2harvester_read_bytes_total 2048\n"));
+            Assert.assertTrue(text.contains("caom2harvester_failed_total 0\n"));
+            Assert.assertTrue(text.contains("# TYPE caom2harvester_repo_received_bytes_total counter\n"));
+            Assert.assertTrue(text.contains("caom2harvester_repo_received_bytes_total " + m.getRepoReceivedBytes() + "\n"));
+            Assert.assertTrue(text.contains("caom2harvester_repo_decoded_bytes_total " + m.getRepoDecodedBytes() + "\n"));
+
+            Assert.assertTrue(text.contains("# TYPE caom2harvester_harvest_lag_seconds gauge\n"));
+            Assert.assertTrue(text.contains("caom2harvester_harvest_lag_seconds{source=\"jdbc:src\",cname=\"Observation\"} "));
+
+            // every sample line is: name{labels} value
+            for (String line : text.split("\n"))
+            {
+                if (!line.startsWith("#"))
+                    Assert.assertTrue(line, line.matches("[a-z0-9_]+(\\{.*\\})? [-+.0-9E]+"));
+            }
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+}
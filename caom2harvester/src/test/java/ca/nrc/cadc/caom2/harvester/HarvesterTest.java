@@ -0,0 +1,141 @@
+package ca.nrc.cadc.caom2.harvester;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.nrc.cadc.util.Log4jInit;
+
+/**
+ *
+ * @author pdowler
+ */
+public class HarvesterTest
+{
+    private static final Logger log = Logger.getLogger(HarvesterTest.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.caom2.harvester", Level.INFO);
+    }
+
+    private static class TestHarvester extends Harvester
+    {
+        TestHarvester(int batchSize)
+        {
+            this.batchSize = batchSize;
+            this.cname = "Test";
+        }
+
+        @Override
+        public void run()
+        {
+        }
+    }
+
+    @Test
+    public void testTrackBatch()
+    {
+        try
+        {
+            TestHarvester h = new TestHarvester(10);
+            h.startRun();
+            Assert.assertTrue(h.trackBatch(5));
+            Assert.assertEquals(5, h.getRunFound());
+            Assert.assertFalse(h.isRunFull());
+
+            Assert.assertTrue(h.trackBatch(10));
+            Assert.assertEquals(15, h.getRunFound());
+            Assert.assertTrue(h.isRunFull());
+
+            // batch limit
+            h.setMaxRunBatches(2);
+            h.startRun();
+            Assert.assertEquals(0, h.getRunFound());
+            Assert.assertFalse(h.isRunFull());
+            Assert.assertTrue(h.trackBatch(10));
+            Assert.assertFalse(h.trackBatch(10));
+            Assert.assertEquals(20, h.getRunFound());
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
+    @Test
+    public void testTrackBatchShutdown()
+    {
+        try
+        {
+            TestHarvester h = new TestHarvester(10);
+            h.startRun();
+            Assert.assertTrue(h.trackBatch(10));
+
+            Harvester.requestShutdown();
+            Assert.assertTrue(Harvester.isShutdown());
+
+            // the current batch is tracked and the run stops
+            Assert.assertFalse(h.trackBatch(10));
+            Assert.assertEquals(20, h.getRunFound());
+            Assert.assertTrue(h.isRunFull());
+
+            // no wait after shutdown
+            long t = System.currentTimeMillis();
+            Assert.assertTrue(Harvester.awaitShutdown(60000L));
+            Assert.assertTrue(System.currentTimeMillis() - t < 10000L);
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+        finally
+        {
+            Harvester.resetShutdown();
+        }
+    }
+
+    @Test
+    public void testAwaitShutdown()
+    {
+        try
+        {
+            Assert.assertFalse(Harvester.isShutdown());
+            Assert.assertFalse(Harvester.awaitShutdown(10L));
+
+            Thread t = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        Thread.sleep(100L);
+                    }
+                    catch (InterruptedException ignore)
+                    {
+                        log.debug("interrupted");
+                    }
+                    Harvester.requestShutdown();
+                }
+            });
+            t.start();
+            long start = System.currentTimeMillis();
+            Assert.assertTrue(Harvester.awaitShutdown(60000L));
+            Assert.assertTrue(System.currentTimeMillis() - start < 10000L);
+            t.join();
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+        finally
+        {
+            Harvester.resetShutdown();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package ca.nrc.cadc.caom2.harvester;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.nrc.cadc.util.Log4jInit;
+
+/**
+ *
+ * @author pdowler
+ */
+public class MultiCollectionHarvesterTest
+{
+    private static final Logger log = Logger.getLogger(MultiCollectionHarvesterTest.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.caom2.harvester", Level.INFO);
+    }
+
+    private File writeConfig(String... lines)
+        throws IOException
+    {
+        File f = File.createTempFile("caom2harvester", ".config");
+        f.deleteOnExit();
+        FileWriter w = new FileWriter(f);
+        try
+        {
+            for (String s : lines)
+            {
+                w.write(s);
+                w.write("\n");
+            }
+        }
+        finally
+        {
+            w.close();
+        }
+        return f;
+    }
+
+    @Test
+    public void testReadConfig()
+    {
+        try
+        {
+            File f = writeConfig(
+                    "# service and database sources",
+                    "",
+                    "ivo://cadc.nrc.ca/caom2repo IRIS dest.caom2.iris",
+                    "   ",
+                    "  # indented comment",
+                    "src.caom2.dbo\tdest.caom2.other  ");
+            List<MultiCollectionHarvester.Entry> entries = MultiCollectionHarvester.readConfig(f);
+            Assert.assertEquals(2, entries.size());
+
+            MultiCollectionHarvester.Entry e = entries.get(0);
+            Assert.assertEquals("ivo://cadc.nrc.ca/caom2repo", e.resourceID);
+            Assert.assertEquals("IRIS", e.collection);
+            Assert.assertNull(e.src);
+            Assert.assertArrayEquals(new String[] { "dest", "caom2", "iris" }, e.dest);
+
+            e = entries.get(1);
+            Assert.assertNull(e.resourceID);
+            Assert.assertNull(e.collection);
+            Assert.assertArrayEquals(new String[] { "src", "caom2", "dbo" }, e.src);
+            Assert.assertArrayEquals(new String[] { "dest", "caom2", "other" }, e.dest);
+
+            f = writeConfig("# nothing", "");
+            Assert.assertTrue(MultiCollectionHarvester.readConfig(f).isEmpty());
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
+    @Test
+    public void testReadConfigInvalid()
+    {
+        String[] invalid = new String[] {
+            "dest.caom2.iris",
+            "ivo://cadc.nrc.ca/caom2repo IRIS dest.caom2.iris extra",
+            "ivo://cadc.nrc.ca/caom2repo IRIS dest.caom2",
+            "src.caom2 dest.caom2.other",
+            "src.caom2.dbo dest.caom2.other.extra"
+        };
+        for (String line : invalid)
+        {
+            try
+            {
+                File f = writeConfig("# valid first", "src.caom2.dbo dest.caom2.other", line);
+                MultiCollectionHarvester.readConfig(f);
+                Assert.fail("expected IOException: " + line);
+            }
+            catch (IOException expected)
+            {
+                log.debug("caught expected exception: " + expected);
+                Assert.assertTrue(expected.getMessage(), expected.getMessage().contains("line 3"));
+            }
+            catch (Exception unexpected)
+            {
+                log.error("unexpected exception", unexpected);
+                Assert.fail("unexpected exception: " + unexpected);
+            }
+        }
+    }
+
+    // harvester with a fixed number of turns with a full batch
+    private static class TestHarvester extends CaomHarvester
+    {
+        String name;
+        int backlog;
+        int maxRunBatches;
+        List<String> turns;
+
+        TestHarvester(String name, int backlog, List<String> turns)
+        {
+            this.name = name;
+            this.backlog = backlog;
+            this.turns = turns;
+        }
+
+        @Override
+        boolean init()
+        {
+            return false;
+        }
+
+        @Override
+        void harvest(boolean init)
+        {
+            turns.add(name);
+        }
+
+        @Override
+        boolean hasBacklog()
+        {
+            return backlog-- > 0;
+        }
+
+        @Override
+        String getSource()
+        {
+            return name;
+        }
+
+        @Override
+        public void setMaxRunBatches(int maxRunBatches)
+        {
+            this.maxRunBatches = maxRunBatches;
+        }
+    }
+
+    @Test
+    public void testTurns()
+    {
+        try
+        {
+            List<String> turns = Collections.synchronizedList(new ArrayList<String>());
+            List<CaomHarvester> harvesters = new ArrayList<CaomHarvester>();
+            harvesters.add(new TestHarvester("A", 3, turns));
+            harvesters.add(new TestHarvester("B", 1, turns));
+            harvesters.add(new TestHarvester("C", 0, turns));
+
+            // one worker: a collection with a backlog goes to the back of the queue
+            MultiCollectionHarvester mh = new MultiCollectionHarvester(harvesters, 1, 5);
+            mh.run();
+            Assert.assertEquals(0, mh.getFailed());
+            Assert.assertEquals("[A, B, C, A, B, A, A]", turns.toString());
+            for (CaomHarvester ch : harvesters)
+            {
+                Assert.assertEquals(5, ((TestHarvester) ch).maxRunBatches);
+            }
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+}
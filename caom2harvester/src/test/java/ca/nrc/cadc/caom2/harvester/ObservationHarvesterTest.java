@@ -0,0 +1,164 @@
+package ca.nrc.cadc.caom2.harvester;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.nrc.cadc.caom2.ObservationState;
+import ca.nrc.cadc.caom2.ObservationURI;
+import ca.nrc.cadc.caom2.harvester.state.HarvestState;
+import ca.nrc.cadc.util.Log4jInit;
+
+/**
+ *
+ * @author pdowler
+ */
+public class ObservationHarvesterTest
+{
+    private static final Logger log = Logger.getLogger(ObservationHarvesterTest.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.caom2.harvester", Level.INFO);
+    }
+
+    private static final long T0 = 1500000000000L;
+
+    private ObservationState createState(String id, long t, String checksum)
+        throws Exception
+    {
+        ObservationState ret = new ObservationState(new ObservationURI("TEST", id));
+        ret.maxLastModified = new Date(t);
+        if (checksum != null)
+            ret.accMetaChecksum = new URI("md5:" + checksum);
+        return ret;
+    }
+
+    @Test
+    public void testDiff()
+    {
+        try
+        {
+            List<ObservationState> states = new ArrayList<ObservationState>();
+            states.add(createState("a", T0, "1")); // unchanged
+            states.add(createState("b", T0 + 1L, "2")); // changed checksum
+            states.add(createState("c", T0 + 2L, "3")); // changed maxLastModified
+            states.add(createState("d", T0 + 3L, null)); // no checksum
+            states.add(createState("e", T0 + 4L, "5")); // new
+            states.add(createState("f", T0 + 5L, "6")); // unchanged
+
+            List<ObservationState> dst = new ArrayList<ObservationState>();
+            dst.add(createState("a", T0, "1"));
+            dst.add(createState("b", T0 + 1L, "22"));
+            dst.add(createState("c", T0 + 1L, "3"));
+            dst.add(createState("d", T0 + 3L, null));
+            dst.add(createState("f", T0 + 5L, "6"));
+
+            ObservationHarvester.ServiceListDiff diff = ObservationHarvester.diff(states, dst);
+            Assert.assertEquals(2, diff.numUnchanged);
+            Assert.assertEquals(4, diff.fetch.size());
+            Assert.assertEquals("b", diff.fetch.get(0).getURI().getObservationID());
+            Assert.assertEquals("c", diff.fetch.get(1).getURI().getObservationID());
+            Assert.assertEquals("d", diff.fetch.get(2).getURI().getObservationID());
+            Assert.assertEquals("e", diff.fetch.get(3).getURI().getObservationID());
+            Assert.assertNotNull(diff.lastUnchanged);
+            Assert.assertEquals("f", diff.lastUnchanged.getURI().getObservationID());
+
+            // ends with a changed observation: no trailing unchanged
+            states.add(createState("g", T0 + 6L, "7"));
+            diff = ObservationHarvester.diff(states, dst);
+            Assert.assertEquals(2, diff.numUnchanged);
+            Assert.assertEquals(5, diff.fetch.size());
+            Assert.assertNull(diff.lastUnchanged);
+
+            // empty destination: fetch everything
+            diff = ObservationHarvester.diff(states, new ArrayList<ObservationState>());
+            Assert.assertEquals(0, diff.numUnchanged);
+            Assert.assertEquals(states.size(), diff.fetch.size());
+            Assert.assertNull(diff.lastUnchanged);
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
+    @Test
+    public void testDiffTruncated()
+    {
+        try
+        {
+            // all unchanged, but the destination list was truncated by the 2*num limit
+            // (e.g. extra destination observations in the same range): the missing
+            // ones are fetched again
+            List<ObservationState> states = new ArrayList<ObservationState>();
+            List<ObservationState> dst = new ArrayList<ObservationState>();
+            for (int i = 0; i < 4; i++)
+            {
+                states.add(createState("obs" + i, T0 + i, Integer.toString(i)));
+            }
+            dst.add(createState("obs0", T0, "0"));
+            dst.add(createState("other", T0, "x"));
+            dst.add(createState("obs1", T0 + 1L, "1"));
+            dst.add(createState("other2", T0 + 1L, "x"));
+
+            ObservationHarvester.ServiceListDiff diff = ObservationHarvester.diff(states, dst);
+            Assert.assertEquals(2, diff.numUnchanged);
+            Assert.assertEquals(2, diff.fetch.size());
+            Assert.assertEquals("obs2", diff.fetch.get(0).getURI().getObservationID());
+            Assert.assertEquals("obs3", diff.fetch.get(1).getURI().getObservationID());
+            Assert.assertNull(diff.lastUnchanged);
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
+    @Test
+    public void testAdvance()
+    {
+        try
+        {
+            List<ObservationState> states = new ArrayList<ObservationState>();
+            for (int i = 0; i < 3; i++)
+            {
+                states.add(createState("obs" + i, T0 + i, Integer.toString(i)));
+            }
+
+            // whole batch unchanged
+            ObservationHarvester.ServiceListDiff diff = ObservationHarvester.diff(states, states);
+            Assert.assertEquals(3, diff.numUnchanged);
+            Assert.assertTrue(diff.fetch.isEmpty());
+
+            HarvestState state = new HarvestState();
+            Assert.assertTrue("initial state", ObservationHarvester.isAdvance(state, diff.lastUnchanged));
+
+            state.curLastModified = new Date(T0 + 1L);
+            Assert.assertTrue("before", ObservationHarvester.isAdvance(state, diff.lastUnchanged));
+
+            state.curLastModified = new Date(T0 + 2L);
+            Assert.assertFalse("same", ObservationHarvester.isAdvance(state, diff.lastUnchanged));
+
+            state.curLastModified = new Date(T0 + 3L);
+            Assert.assertFalse("after", ObservationHarvester.isAdvance(state, diff.lastUnchanged));
+
+            // batch ends with a changed observation: state tracks the last put
+            state.curLastModified = null;
+            Assert.assertFalse("no trailing unchanged", ObservationHarvester.isAdvance(state, null));
+        }
+        catch (Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+}
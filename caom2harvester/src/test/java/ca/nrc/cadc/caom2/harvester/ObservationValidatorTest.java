@@ -0,0 +1,120 @@
+package ca.nrc.cadc.caom2.harvester;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.nrc.cadc.caom2.ObservationState;
+import ca.nrc.cadc.caom2.ObservationURI;
+import ca.nrc.cadc.util.Log4jInit;
+
+/**
+ *
+ * @author pdowler
+ */
+public class ObservationValidatorTest
+{
+    private static final Logger log = Logger.getLogger(ObservationValidatorTest.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.caom2.harvester", Level.INFO);
+    }
+
+    private static final int BATCH_SIZE = 10;
+
+    private ObservationState getState(String id, long t)
+    {
+        ObservationState ret = new ObservationState(new ObservationURI("TEST", id));
+        ret.maxLastModified = new Date(t);
+        return ret;
+    }
+
+    // states with increasing maxLastModified starting at t
+    private List<ObservationState> getStates(String prefix, long t, int num, long step)
+    {
+        List<ObservationState> ret = new ArrayList<ObservationState>();
+        for (int i = 0; i < num; i++)
+        {
+            ret.add(getState(prefix + i, t + i * step));
+        }
+        return ret;
+    }
+
+    @Test
+    public void testNotTruncated()
+    {
+        Date start = new Date(1000L);
+        List<ObservationState> src = getStates("a", 1000L, 5, 10L);
+        List<ObservationState> dst = getStates("a", 1000L, 4, 10L);
+        ObservationValidator.StateWindow w = new ObservationValidator.StateWindow(start, src, dst, BATCH_SIZE);
+        Assert.assertFalse(w.truncated);
+        Assert.assertFalse(w.refetch);
+        Assert.assertEquals(5, w.src.size());
+        Assert.assertEquals(4, w.dst.size());
+        Assert.assertEquals(new Date(1040L), w.next);
+    }
+
+    @Test
+    public void testDestinationTruncatedEmptySource()
+    {
+        // destination has batchSize+1 states before the first source state
+        Date start = new Date(1000L);
+        List<ObservationState> dst = getStates("d", 1000L, BATCH_SIZE + 1, 10L);
+        List<ObservationState> src = getStates("s", 5000L, 3, 10L);
+        ObservationValidator.StateWindow w = new ObservationValidator.StateWindow(start, src, dst, BATCH_SIZE);
+        Assert.assertTrue(w.truncated);
+        Assert.assertFalse(w.refetch);
+        Assert.assertTrue("trimmed source", w.src.isEmpty());
+        Assert.assertEquals(BATCH_SIZE, w.dst.size());
+
+        // the window advances to the last destination timestamp
+        Date last = dst.get(dst.size() - 1).maxLastModified;
+        Assert.assertEquals(last, w.next);
+        Assert.assertTrue(w.next.after(start));
+    }
+
+    @Test
+    public void testTruncatedSharedTimestamp()
+    {
+        // all states of the truncated list share the start timestamp
+        Date start = new Date(1000L);
+        List<ObservationState> src = getStates("s", 1000L, BATCH_SIZE + 1, 0L);
+        List<ObservationState> dst = getStates("s", 1000L, 3, 0L);
+        ObservationValidator.StateWindow w = new ObservationValidator.StateWindow(start, src, dst, BATCH_SIZE);
+        Assert.assertTrue(w.truncated);
+        Assert.assertTrue(w.refetch);
+        Assert.assertTrue(w.next.after(start));
+
+        // no start: cut before the shared timestamp, then refetch from there
+        w = new ObservationValidator.StateWindow(null, src, dst, BATCH_SIZE);
+        Assert.assertTrue(w.truncated);
+        Assert.assertFalse(w.refetch);
+        Assert.assertTrue(w.src.isEmpty());
+        Assert.assertTrue(w.dst.isEmpty());
+        Assert.assertEquals(start, w.next);
+    }
+
+    @Test
+    public void testBothTruncated()
+    {
+        Date start = new Date(1000L);
+        List<ObservationState> src = getStates("a", 1000L, BATCH_SIZE + 1, 10L);
+        List<ObservationState> dst = getStates("a", 1000L, BATCH_SIZE + 1, 5L);
+        ObservationValidator.StateWindow w = new ObservationValidator.StateWindow(start, src, dst, BATCH_SIZE);
+        Assert.assertTrue(w.truncated);
+        Assert.assertEquals(new Date(1050L), w.next);
+        for (ObservationState s : w.src)
+        {
+            Assert.assertTrue(s.maxLastModified.before(w.next));
+        }
+        Assert.assertEquals(5, w.src.size());
+        Assert.assertEquals(BATCH_SIZE, w.dst.size());
+        log.debug("next: " + w.next);
+    }
+}
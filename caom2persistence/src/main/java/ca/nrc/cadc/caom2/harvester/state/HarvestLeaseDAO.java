@@ -0,0 +1,387 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2017.                            (c) 2017.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+
+package ca.nrc.cadc.caom2.harvester.state;
+
+import ca.nrc.cadc.caom2.persistence.Util;
+import ca.nrc.cadc.date.DateUtil;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import javax.sql.DataSource;
+import org.apache.log4j.Logger;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowMapper;
+
+/**
+ * Manage leases on the time windows (shards) of a sharded harvest. Shards are
+ * claimed with a conditional update so that workers in different processes never
+ * own the same shard at the same time.
+ * <p>
+ * The DAO only uses portable SQL but the HarvestLease table is only created by
+ * InitDatabase for PostgreSQL.
+ * 
+ * @author pdowler
+ */
+public class HarvestLeaseDAO
+{
+    private static Logger log = Logger.getLogger(HarvestLeaseDAO.class);
+
+    private static final String[] COLUMNS =
+    {
+        "source", "cname", "shardStart", "shardEnd", "owner", "expires", "done",
+        "lastModified", "leaseID"
+    };
+    
+    // number of candidate shards to try per claim
+    private static final int CLAIM_CANDIDATES = 8;
+    
+    private String tableName;
+    private JdbcTemplate jdbc;
+    private JdbcTemplate claimJdbc;
+    private RowMapper extractor;
+
+    private Calendar CAL = Calendar.getInstance(DateUtil.UTC);
+
+    public HarvestLeaseDAO(DataSource dataSource, String database, String schema)
+    {
+        this.jdbc = new JdbcTemplate(dataSource);
+        this.claimJdbc = new JdbcTemplate(dataSource);
+        claimJdbc.setMaxRows(CLAIM_CANDIDATES); // instead of vendor specific LIMIT/TOP
+        this.tableName = database + "." +  schema + ".HarvestLease";
+        this.extractor = new HarvestLeaseMapper();
+    }
+
+    /**
+     * Create the shards that cover the specified time window. Shard boundaries are 
+     * multiples of shardSize so every worker computes the same shards. Existing shards
+     * are kept; a shard that ends before the window end is extended and re-opened.
+     * 
+     * @param source
+     * @param cname
+     * @param start
+     * @param end
+     * @param shardSize shard size in milliseconds
+     */
+    public void createShards(String source, String cname, Date start, Date end, long shardSize)
+    {
+        if (shardSize <= 0)
+            throw new IllegalArgumentException("invalid shard size: " + shardSize);
+        
+        Map<Long, HarvestLease> existing = new HashMap<Long, HarvestLease>();
+        for (HarvestLease lease : getShards(source, cname))
+            existing.put(lease.shardStart.getTime(), lease);
+        
+        long k = start.getTime() / shardSize;
+        if (start.getTime() % shardSize < 0)
+            k--;
+        long t1 = k * shardSize;
+        while (t1 <= end.getTime())
+        {
+            Date s = new Date(t1);
+            Date e = new Date(Math.min(t1 + shardSize - 1L, end.getTime()));
+            HarvestLease cur = existing.get(t1);
+            if (cur == null)
+            {
+                HarvestLease lease = new HarvestLease(source, cname, s, e);
+                lease.id = UUID.randomUUID();
+                lease.lastModified = new Date();
+                String sql = SqlUtil.getInsertSQL(COLUMNS, tableName);
+                log.debug(sql);
+                try
+                {
+                    jdbc.update(sql, new ArgSetter(lease.source, lease.cname, lease.shardStart, lease.shardEnd,
+                            null, null, 0, lease.lastModified, lease.id));
+                }
+                catch(DataIntegrityViolationException ex)
+                {
+                    log.debug("createShards: " + s + " created by another worker");
+                }
+            }
+            else if (cur.shardEnd.before(e))
+            {
+                String sql = "UPDATE " + tableName + " SET shardEnd = ?, done = 0, lastModified = ?"
+                        + " WHERE leaseID = ? AND shardEnd < ?";
+                log.debug(sql);
+                jdbc.update(sql, new ArgSetter(e, new Date(), cur.id, e));
+            }
+            t1 += shardSize;
+        }
+    }
+
+    public List<HarvestLease> getShards(String source, String cname)
+    {
+        String sql = SqlUtil.getSelectSQL(COLUMNS, tableName) 
+                + " WHERE source = ? AND cname = ? ORDER BY shardStart";
+        log.debug(sql);
+        return toList(jdbc.query(sql, new ArgSetter(source, cname), extractor));
+    }
+    
+    /**
+     * @param source
+     * @param cname
+     * @return number of shards that are not done
+     */
+    public int countRemaining(String source, String cname)
+    {
+        String sql = "SELECT count(*) FROM " + tableName + " WHERE source = ? AND cname = ? AND done = 0";
+        log.debug(sql);
+        return jdbc.queryForInt(sql, new Object[] { source, cname });
+    }
+    
+    /**
+     * Claim a shard that is not done and not owned by an active lease.
+     * 
+     * @param source
+     * @param cname
+     * @param owner unique name of the claiming worker
+     * @param leaseTime lease duration in milliseconds
+     * @return the claimed lease or null if no shard is available
+     */
+    public HarvestLease claim(String source, String cname, String owner, long leaseTime)
+    {
+        boolean retry = true;
+        while (retry)
+        {
+            Date now = new Date();
+            String sql = SqlUtil.getSelectSQL(COLUMNS, tableName)
+                    + " WHERE source = ? AND cname = ? AND done = 0 AND (owner IS NULL OR expires < ?)"
+                    + " ORDER BY shardStart";
+            log.debug(sql);
+            List<HarvestLease> candidates = toList(claimJdbc.query(sql, new ArgSetter(source, cname, now), extractor));
+            if (candidates.isEmpty())
+                return null;
+            
+            for (HarvestLease lease : candidates)
+            {
+                Date expires = new Date(now.getTime() + leaseTime);
+                sql = "UPDATE " + tableName + " SET owner = ?, expires = ?, lastModified = ?"
+                        + " WHERE leaseID = ? AND done = 0 AND (owner IS NULL OR expires < ?)";
+                log.debug(sql);
+                int n = jdbc.update(sql, new ArgSetter(owner, expires, now, lease.id, now));
+                if (n == 1)
+                {
+                    lease.owner = owner;
+                    lease.expires = expires;
+                    lease.lastModified = now;
+                    log.debug("claim: " + lease);
+                    return lease;
+                }
+                log.debug("claim: lost " + lease + " to another worker");
+            }
+            // all candidates claimed by other workers: look again
+            retry = (candidates.size() == CLAIM_CANDIDATES);
+        }
+        return null;
+    }
+
+    /**
+     * Extend a lease.
+     * 
+     * @param lease
+     * @param leaseTime lease duration in milliseconds
+     * @return false if the lease was lost
+     */
+    public boolean renew(HarvestLease lease, long leaseTime)
+    {
+        Date now = new Date();
+        Date expires = new Date(now.getTime() + leaseTime);
+        String sql = "UPDATE " + tableName + " SET expires = ?, lastModified = ?"
+                + " WHERE leaseID = ? AND owner = ? AND done = 0";
+        log.debug(sql);
+        int n = jdbc.update(sql, new ArgSetter(expires, now, lease.id, lease.owner));
+        if (n == 1)
+        {
+            lease.expires = expires;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Mark a shard done and release the lease. The shard is only released if it
+     * was extended since it was claimed.
+     * 
+     * @param lease
+     * @return true if the shard was marked done
+     */
+    public boolean complete(HarvestLease lease)
+    {
+        String sql = "UPDATE " + tableName + " SET done = 1, owner = NULL, expires = NULL, lastModified = ?"
+                + " WHERE leaseID = ? AND owner = ? AND shardEnd = ?";
+        log.debug(sql);
+        int n = jdbc.update(sql, new ArgSetter(new Date(), lease.id, lease.owner, lease.shardEnd));
+        if (n == 1)
+        {
+            lease.done = true;
+            lease.owner = null;
+            lease.expires = null;
+            return true;
+        }
+        release(lease);
+        return false;
+    }
+
+    /**
+     * Release the lease without marking the shard done.
+     * 
+     * @param lease
+     */
+    public void release(HarvestLease lease)
+    {
+        String sql = "UPDATE " + tableName + " SET owner = NULL, expires = NULL, lastModified = ?"
+                + " WHERE leaseID = ? AND owner = ?";
+        log.debug(sql);
+        jdbc.update(sql, new ArgSetter(new Date(), lease.id, lease.owner));
+        lease.owner = null;
+        lease.expires = null;
+    }
+
+    /**
+     * Delete the shards that are done and end before the specified date. The caller
+     * must only purge shards that are before the harvest state of the whole window,
+     * otherwise createShards would create them again.
+     * 
+     * @param source
+     * @param cname
+     * @param before
+     * @return number of shards deleted
+     */
+    public int purge(String source, String cname, Date before)
+    {
+        String sql = "DELETE FROM " + tableName + " WHERE source = ? AND cname = ? AND done = 1 AND shardEnd < ?";
+        log.debug(sql);
+        return jdbc.update(sql, new ArgSetter(source, cname, before));
+    }
+
+    private List<HarvestLease> toList(List result)
+    {
+        List<HarvestLease> ret = new ArrayList<HarvestLease>(result.size());
+        for (Object o : result)
+            ret.add((HarvestLease) o);
+        return ret;
+    }
+    
+    // timestamps are always UTC
+    private class ArgSetter implements PreparedStatementSetter
+    {
+        private Object[] args;
+
+        ArgSetter(Object... args)
+        {
+            this.args = args;
+        }
+
+        public void setValues(PreparedStatement ps)
+            throws SQLException
+        {
+            int col = 1;
+            for (Object o : args)
+            {
+                if (o == null)
+                    ps.setNull(col++, Types.NULL);
+                else if (o instanceof Date)
+                    ps.setTimestamp(col++, new Timestamp(((Date) o).getTime()), CAL);
+                else
+                    ps.setObject(col++, o);
+            }
+        }
+    }
+
+    private class HarvestLeaseMapper implements RowMapper
+    {
+        public Object mapRow(ResultSet rs, int i) throws SQLException
+        {
+            HarvestLease ret = new HarvestLease();
+            int col = 1;
+            ret.source = rs.getString(col++);
+            ret.cname = rs.getString(col++);
+            ret.shardStart = Util.getDate(rs, col++, CAL);
+            ret.shardEnd = Util.getDate(rs, col++, CAL);
+            ret.owner = rs.getString(col++);
+            ret.expires = Util.getDate(rs, col++, CAL);
+            ret.done = (rs.getInt(col++) != 0);
+            ret.lastModified = Util.getDate(rs, col++, CAL);
+            ret.id = Util.getUUID(rs, col++);
+            return ret;
+        }
+    }
+}
@@ -95,6 +95,16 @@ public abstract class HarvestStateDAO
         jdbc.update(put);
     }
 
+    // delete the state from the database
+    public void delete(String source, String cname)
+    {
+        if (source == null || cname == null)
+            throw new IllegalArgumentException("null arg(s): " + source + "," + cname);
+        String sql = "DELETE FROM " + tableName + " WHERE source = ? AND cname = ?";
+        log.debug(sql);
+        jdbc.update(sql, new Object[] { source, cname });
+    }
+
     protected abstract void setUUID(PreparedStatement ps, int col, UUID val)
         throws SQLException;
 
@@ -96,6 +96,9 @@ abstract class AbstractCaomEntityDAO<T extends CaomEntity> extends AbstractDAO
     private static final Logger log = Logger.getLogger(AbstractCaomEntityDAO.class);
     protected boolean computeLastModified = true;
     
+    // max number of IDs in a single set-based statement
+    protected static final int MAX_BATCH_IDS = 1000;
+    
     protected MessageDigest digest;
 
     protected AbstractCaomEntityDAO() 
@@ -174,7 +177,8 @@ abstract class AbstractCaomEntityDAO<T extends CaomEntity> extends AbstractDAO
 
         try
         {
-            JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+            JdbcTemplate jdbc = new InstrumentedJdbcTemplate(dataSource);
+            startOperation(PlannerSettings.Operation.LIST, jdbc);
 
             // find the range of timestamps that gives batchSize entities
             Date endDate = maxLastModified;
@@ -193,6 +197,7 @@ abstract class AbstractCaomEntityDAO<T extends CaomEntity> extends AbstractDAO
             }
 
             // now query for the specified range of dates
+            startOperation(PlannerSettings.Operation.DEEP_READ, jdbc);
             sql = gen.getObservationSelectSQL(c, minlastModified, endDate, depth);
             if (log.isDebugEnabled())
                 log.debug("GET SQL: " + Util.formatSQL(sql));
@@ -215,6 +220,7 @@ abstract class AbstractCaomEntityDAO<T extends CaomEntity> extends AbstractDAO
         }
         finally
         {
+            endOperation();
             long dt = System.currentTimeMillis() - t;
             log.debug("GET: " + batchSize + " " + dt + "ms");
         }
@@ -230,7 +236,8 @@ abstract class AbstractCaomEntityDAO<T extends CaomEntity> extends AbstractDAO
         long t = System.currentTimeMillis();
         try
         {
-            JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+            JdbcTemplate jdbc = new InstrumentedJdbcTemplate(dataSource);
+            startOperation(PlannerSettings.Operation.LIST, jdbc);
 
             String sql = gen.getSelectSQL(rac, minLastModified, maxLastModified, batchSize);
             log.debug("GET SQL: " + sql);
@@ -252,6 +259,7 @@ abstract class AbstractCaomEntityDAO<T extends CaomEntity> extends AbstractDAO
         }
         finally
         {
+            endOperation();
             long dt = System.currentTimeMillis() - t;
             log.debug("GET: " + batchSize + " " + dt + "ms");
         }
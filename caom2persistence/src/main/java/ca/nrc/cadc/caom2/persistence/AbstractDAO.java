@@ -79,6 +79,7 @@ import java.util.TreeMap;
 import javax.naming.NamingException;
 import javax.sql.DataSource;
 import org.apache.log4j.Logger;
+import org.springframework.jdbc.core.JdbcTemplate;
 
 /**
  *
@@ -94,6 +95,7 @@ public class AbstractDAO
 
     protected DataSource dataSource;
     protected TransactionManager txnManager;
+    protected PlannerSettings plannerSettings;
 
     protected AbstractDAO() { }
     
@@ -132,18 +134,21 @@ public class AbstractDAO
     public Map<String, Class> getParams()
     {
         Map<String,Class> ret = new TreeMap<String,Class>();
+        ret.put("dataSource", DataSource.class); // shared by the caller
         ret.put("jndiDataSourceName", String.class);
-        ret.put("server", String.class); // fallback if no jndiDataSourceName
+        ret.put("server", String.class); // fallback if no dataSource or jndiDataSourceName
         ret.put("database", String.class);
         ret.put("schema", String.class);
         ret.put("forceUpdate", Boolean.class);
-        ret.put("disableHashJoin", Boolean.class);
+        ret.put("disableHashJoin", Boolean.class); // shortcut for enable_hashjoin=false in DEEP_READ
+        ret.put("plannerSettings", PlannerSettings.class);
         ret.put(SQLGenerator.class.getName(), Class.class);
         return ret;
     }
 
     public void setConfig(Map<String,Object> config)
     {
+        DataSource sharedDataSource = (DataSource) config.get("dataSource");
         String jndiDataSourceName = (String) config.get("jndiDataSourceName");
         String server = (String) config.get("server");
         String database = (String) config.get("database");
@@ -152,24 +157,35 @@ public class AbstractDAO
         Boolean force = (Boolean) config.get("forceUpdate");
         Boolean disableHashJoin = (Boolean) config.get("disableHashJoin");
         log.debug("disableHashJoin: " + disableHashJoin);
+        PlannerSettings ps = (PlannerSettings) config.get("plannerSettings");
+        if (disableHashJoin != null && disableHashJoin.booleanValue())
+        {
+            if (ps == null)
+                ps = new PlannerSettings();
+            ps.set(PlannerSettings.Operation.DEEP_READ, "enable_hashjoin", "false");
+        }
+        log.debug("plannerSettings: " + ps);
         
         Class<?> genClass = (Class<?>) config.get(SQLGenerator.class.getName());
         if (genClass == null)
             throw new IllegalArgumentException(SQLGenerator.class.getName() + " must be specified in config");
         try
         {
-            if (jndiDataSourceName != null)
-                this.dataSource = new DataSourceWrapper(database, DBUtil.findJNDIDataSource(jndiDataSourceName));
+            DataSourceWrapper dsw;
+            if (sharedDataSource != null)
+                dsw = new DataSourceWrapper(database, sharedDataSource);
+            else if (jndiDataSourceName != null)
+                dsw = new DataSourceWrapper(database, DBUtil.findJNDIDataSource(jndiDataSourceName));
             else
             {
                 DBConfig dbrc = new DBConfig();
                 ConnectionConfig cc = dbrc.getConnectionConfig(server, database);
                 // for some reason, we need to suppress close when wrapping with delegating DS
-                DataSourceWrapper dsw = new DataSourceWrapper(database, DBUtil.getDataSource(cc, true, true));
-                if (disableHashJoin != null)
-                    dsw.setDisableHashJoin(disableHashJoin);
-                this.dataSource =  dsw;
+                dsw = new DataSourceWrapper(database, DBUtil.getDataSource(cc, true, true));
             }
+            dsw.setPlannerSettings(ps);
+            this.plannerSettings = ps;
+            this.dataSource =  dsw;
         }
         catch(NamingException ex)
         {
@@ -195,6 +211,38 @@ public class AbstractDAO
         }
     }
 
+    /**
+     * Apply the planner settings for the next statements. Inside a transaction the 
+     * settings are applied immediately with SET LOCAL; otherwise they are applied
+     * when the next connection is checked out. Callers must call endOperation() when
+     * done.
+     * 
+     * @param op
+     * @param jdbc 
+     */
+    protected void startOperation(PlannerSettings.Operation op, JdbcTemplate jdbc)
+    {
+        if (plannerSettings == null)
+            return;
+        if (txnManager != null && txnManager.isOpen())
+        {
+            String sql = plannerSettings.getLocalSQL(op);
+            if (sql != null)
+            {
+                log.debug("startOperation: " + sql);
+                jdbc.execute(sql);
+            }
+        }
+        else if (dataSource instanceof DataSourceWrapper)
+            ((DataSourceWrapper) dataSource).setOperation(op);
+    }
+    
+    protected void endOperation()
+    {
+        if (plannerSettings != null && dataSource instanceof DataSourceWrapper)
+            ((DataSourceWrapper) dataSource).setOperation(null);
+    }
+
     protected void checkInit()
     {
         if (gen == null)
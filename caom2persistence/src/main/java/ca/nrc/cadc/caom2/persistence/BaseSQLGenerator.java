@@ -91,6 +91,8 @@ import ca.nrc.cadc.caom2.Metrics;
 import ca.nrc.cadc.caom2.Observation;
 import ca.nrc.cadc.caom2.ObservationIntentType;
 import ca.nrc.cadc.caom2.ObservationState;
+import ca.nrc.cadc.caom2.ObservationStateBucket;
+import ca.nrc.cadc.caom2.ObservationStateDiff;
 import ca.nrc.cadc.caom2.ObservationURI;
 import ca.nrc.cadc.caom2.Part;
 import ca.nrc.cadc.caom2.Plane;
@@ -158,6 +160,7 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Comparator;
 import java.util.Date;
@@ -169,6 +172,7 @@ import java.util.UUID;
 import org.apache.log4j.Logger;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementCreator;
 import org.springframework.jdbc.core.ResultSetExtractor;
@@ -609,6 +613,47 @@ public class BaseSQLGenerator implements SQLGenerator
         }
         return sb.toString();
     }
+    public String getStreamSelectSQL(ObservationURI uri)
+    {
+        StringBuilder sb = new StringBuilder();
+        String alias = getAlias(Observation.class);
+        sb.append("SELECT ");
+        sb.append(getObservationSelect(MAX_DEPTH, false));
+        sb.append(" WHERE ");
+        sb.append(alias);
+        sb.append(".").append("collection").append(" = ");
+        sb.append(literal(uri.getCollection()));
+        sb.append(" AND ");
+        sb.append(alias);
+        sb.append(".").append("observationID").append(" = ");
+        sb.append(literal(uri.getObservationID()));
+        // planes in productID order (the order of Observation.getPlanes) so a 
+        // handler can write each plane as soon as it is complete; otherwise the
+        // extractor sorts the planes
+        String productID = getAlias(Plane.class) + ".productID";
+        String order = getBinaryOrder(productID);
+        sb.append(" ORDER BY ");
+        sb.append(alias).append(".obsID,");
+        sb.append(order != null ? order : productID).append(",");
+        sb.append(getAlias(Plane.class)).append(".planeID,");
+        sb.append(getAlias(Artifact.class)).append(".artifactID,");
+        sb.append(getAlias(Part.class)).append(".partID");
+        return sb.toString();
+    }
+
+    /**
+     * Order by a string column in the order of String.compareTo, which is the order
+     * of the sorted sets in the model. The sort order of the server is configured
+     * outside the schema, so the default is to not rely on it.
+     * 
+     * @param column qualified column name
+     * @return order by expression, or null if the order cannot be guaranteed
+     */
+    protected String getBinaryOrder(String column)
+    {
+        return null;
+    }
+
     public String getSelectSQL(UUID id, int depth, boolean skeleton)
     {
         StringBuilder sb = new StringBuilder();
@@ -838,7 +883,85 @@ public class BaseSQLGenerator implements SQLGenerator
         sb.append(literal(id));
         return sb.toString();
     }
+    
+    public String getSelectSQL(Class clz, List<UUID> ids)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("SELECT ");
+        String[] cols = columnMap.get(clz);
+        for (int c=0; c<cols.length; c++)
+        {
+            if (c > 0)
+                sb.append(",");
+            sb.append(cols[c]);
+        }
+        sb.append(" FROM ");
+        sb.append(getTable(clz));
+        sb.append(" WHERE ");
+        sb.append(getPrimaryKeyColumn(clz));
+        sb.append(" IN ");
+        sb.append(getInList(ids));
+        return sb.toString();
+    }
+    
+    // ids are inlined as literals so the caller has to limit the size of the list
+    private String getInList(List<UUID> ids)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("(");
+        for (int i=0; i<ids.size(); i++)
+        {
+            if (i > 0)
+                sb.append(",");
+            sb.append(literal(ids.get(i)));
+        }
+        sb.append(")");
+        return sb.toString();
+    }
 
+    // max number of assets in a single set-based asset table update
+    private static final int MAX_ASSET_BATCH = 1000;
+    
+    // parent-child order of the tables in an observation
+    private static final Class[] ENTITY_HIERARCHY = new Class[]
+    {
+        Observation.class, Plane.class, Artifact.class, Part.class, Chunk.class
+    };
+    
+    // delete entities by PK and all their children: children are deleted first 
+    // using nested FK sub-queries so no skeleton is needed
+    List<String> getDeleteSQL(Class c, List<UUID> ids)
+    {
+        if (Observation.class.isAssignableFrom(c))
+            c = Observation.class;
+        String inList = getInList(ids);
+        
+        int level = -1;
+        for (int i=0; i<ENTITY_HIERARCHY.length; i++)
+        {
+            if (ENTITY_HIERARCHY[i].equals(c))
+                level = i;
+        }
+        
+        List<String> ret = new ArrayList<String>();
+        if (level >= 0)
+        {
+            for (int i = ENTITY_HIERARCHY.length - 1; i > level; i--)
+            {
+                String cond = inList;
+                for (int j = level + 1; j < i; j++)
+                {
+                    Class p = ENTITY_HIERARCHY[j];
+                    cond = "(SELECT " + getPrimaryKeyColumn(p) + " FROM " + getTable(p) 
+                        + " WHERE " + getForeignKeyColumn(p) + " IN " + cond + ")";
+                }
+                Class cc = ENTITY_HIERARCHY[i];
+                ret.add("DELETE FROM " + getTable(cc) + " WHERE " + getForeignKeyColumn(cc) + " IN " + cond);
+            }
+        }
+        ret.add("DELETE FROM " + getTable(c) + " WHERE " + getPrimaryKeyColumn(c) + " IN " + inList);
+        return ret;
+    }
 
     String getDeleteSQL(Class c, UUID id, boolean primaryKey)
     {
@@ -935,6 +1058,12 @@ public class BaseSQLGenerator implements SQLGenerator
     {
         throw new UnsupportedOperationException();
     }
+    
+    // add group names to num assets in one statement: parameters are (groups, assetID) pairs
+    protected String getUpdateAssetSQL(Class asset, Class ra, int num)
+    {
+        throw new UnsupportedOperationException();
+    }
     // test access
     String getReadAccessCol(Class raclz)
     {
@@ -966,6 +1095,14 @@ public class BaseSQLGenerator implements SQLGenerator
         throw new UnsupportedOperationException();
     }
 
+    public EntityBatchPut getEntityBatchPut(Class<? extends CaomEntity> c, boolean isUpdate)
+    {
+        if ( ReadAccess.class.isAssignableFrom(c))
+            return new ReadAccessBatchPut(isUpdate);
+        
+        throw new UnsupportedOperationException();
+    }
+
     public EntityDelete getEntityDelete(Class<? extends CaomEntity> c, boolean primaryKey)
     {
         if (ReadAccess.class.isAssignableFrom(c))
@@ -973,6 +1110,13 @@ public class BaseSQLGenerator implements SQLGenerator
         return new BaseEntityDelete(c, primaryKey);
     }
 
+    public EntityBatchDelete getEntityBatchDelete(Class<? extends CaomEntity> c)
+    {
+        if (ReadAccess.class.isAssignableFrom(c))
+            return new ReadAccessEntityBatchDelete(c);
+        return new BaseEntityBatchDelete(c);
+    }
+
     // delete single entity by primary key or foreign key
     private class BaseEntityDelete implements EntityDelete<CaomEntity>
     {
@@ -1083,6 +1227,111 @@ public class BaseSQLGenerator implements SQLGenerator
         }
     }
     
+    // delete many entities and their children by primary key: one statement per table
+    private class BaseEntityBatchDelete implements EntityBatchDelete<CaomEntity>
+    {
+        private Class<? extends CaomEntity> clz;
+        private List<UUID> ids;
+
+        public BaseEntityBatchDelete(Class<? extends CaomEntity> c)
+        {
+            this.clz = c;
+        }
+        
+        public void execute(JdbcTemplate jdbc)
+        {
+            if (ids == null || ids.isEmpty())
+                return;
+            for (String sql : getDeleteSQL(clz, ids))
+            {
+                log.debug("delete: " + sql);
+                int num = jdbc.update(sql);
+                log.debug("deleted: " + num);
+            }
+        }
+
+        public void setIDs(List<UUID> ids)
+        {
+            this.ids = ids;
+        }
+
+        public void setValues(List<CaomEntity> values)
+        {
+            throw new UnsupportedOperationException(); 
+        }
+    }
+    
+    // extended version to cleanup optimized persistence with one JDBC batch per asset table
+    private class ReadAccessEntityBatchDelete extends BaseEntityBatchDelete
+    {
+        private List<CaomEntity> values;
+        
+        public ReadAccessEntityBatchDelete(Class<? extends CaomEntity> c)
+        {
+            super(c);
+        }
+
+        @Override
+        public void setValues(List<CaomEntity> values)
+        {
+            this.values = values;
+        }
+
+        @Override
+        public void execute(JdbcTemplate jdbc)
+        {
+            super.execute(jdbc);
+            
+            if (!persistReadAccessWithAsset || values == null || values.isEmpty())
+                return;
+            
+            Class raClass = values.get(0).getClass();
+            if (ObservationMetaReadAccess.class.equals(raClass))
+            {
+                removeFromAsset(jdbc, Observation.class, raClass);
+            }
+            else if (PlaneDataReadAccess.class.equals(raClass))
+            {
+                removeFromAsset(jdbc, Plane.class, raClass);
+            }
+            else if (PlaneMetaReadAccess.class.equals(raClass))
+            {
+                removeFromAsset(jdbc, Plane.class, raClass);
+                removeFromAsset(jdbc, Artifact.class, raClass);
+                removeFromAsset(jdbc, Part.class, raClass);
+                removeFromAsset(jdbc, Chunk.class, raClass);
+            }
+        }
+        
+        private void removeFromAsset(JdbcTemplate jdbc, Class assetClass, Class raClass)
+        {
+            String sql = getUpdateAssetSQL(assetClass, raClass, false);
+            log.debug(sql);
+            jdbc.batchUpdate(sql, new BatchPreparedStatementSetter()
+            {
+                public void setValues(PreparedStatement ps, int i) throws SQLException
+                {
+                    ReadAccess ra = (ReadAccess) values.get(i);
+                    StringBuilder sb = null;
+                    if (log.isDebugEnabled())
+                        sb = new StringBuilder();
+                    safeSetString(sb, ps, 1, ra.getGroupName());
+                    if (useLongForUUID)
+                        safeSetLongUUID(sb, ps, 2, ra.getAssetID());
+                    else
+                        safeSetUUID(sb, ps, 2, ra.getAssetID());
+                    if (sb != null)
+                        log.debug(sb.toString());
+                }
+
+                public int getBatchSize()
+                {
+                    return values.size();
+                }
+            });
+        }
+    }
+    
     private class ObservationPut implements EntityPut<Observation>, PreparedStatementCreator
     {
         boolean update;
@@ -2230,16 +2479,7 @@ public class BaseSQLGenerator implements SQLGenerator
                 sb = new StringBuilder();
             if (putCount == 0) // complete
             {
-                int col = 1;
-                if (useLongForUUID)
-                    safeSetLongUUID(sb, ps, col++, ra.getAssetID());
-                else
-                    safeSetUUID(sb, ps, col++, ra.getAssetID());
-                safeSetString(sb, ps, col++, ra.getGroupID().toASCIIString());
-                safeSetDate(sb, ps, col++, ra.getLastModified(), UTC_CAL);
-                safeSetInteger(sb, ps, col++, ra.getStateCode());
-                safeSetURI(sb, ps, col++, ra.getMetaChecksum());
-                safeSetUUID(sb, ps, col++, ra.getID());
+                loadReadAccessValues(sb, ps, ra);
             }
             else // putCount > 1 : update asset table
             {
@@ -2255,6 +2495,134 @@ public class BaseSQLGenerator implements SQLGenerator
         }
     }
 
+    // values for getInsertSQL and getUpdateSQL of a ReadAccess tuple
+    private void loadReadAccessValues(StringBuilder sb, PreparedStatement ps, ReadAccess ra)
+        throws SQLException
+    {
+        int col = 1;
+        if (useLongForUUID)
+            safeSetLongUUID(sb, ps, col++, ra.getAssetID());
+        else
+            safeSetUUID(sb, ps, col++, ra.getAssetID());
+        safeSetString(sb, ps, col++, ra.getGroupID().toASCIIString());
+        safeSetDate(sb, ps, col++, ra.getLastModified(), UTC_CAL);
+        safeSetInteger(sb, ps, col++, ra.getStateCode());
+        safeSetURI(sb, ps, col++, ra.getMetaChecksum());
+        safeSetUUID(sb, ps, col++, ra.getID());
+    }
+    
+    // insert or update many tuples with one JDBC batch, then add the group names to
+    // the asset tables with one set-based statement per asset table
+    private class ReadAccessBatchPut implements EntityBatchPut<ReadAccess>
+    {
+        private boolean update;
+        private List<ReadAccess> values;
+        
+        ReadAccessBatchPut(boolean update) { this.update = update; }
+        
+        public void setValues(List<ReadAccess> values)
+        {
+            this.values = values;
+        }
+        
+        public void execute(JdbcTemplate jdbc)
+        {
+            if (values == null || values.isEmpty())
+                return;
+            
+            Class raClass = values.get(0).getClass();
+            String sql = null;
+            if (update)
+                sql = getUpdateSQL(raClass);
+            else
+                sql = getInsertSQL(raClass);
+            log.debug(sql);
+            jdbc.batchUpdate(sql, new BatchPreparedStatementSetter()
+            {
+                public void setValues(PreparedStatement ps, int i) throws SQLException
+                {
+                    StringBuilder sb = null;
+                    if (log.isDebugEnabled())
+                        sb = new StringBuilder();
+                    loadReadAccessValues(sb, ps, values.get(i));
+                    if (sb != null)
+                        log.debug(sb.toString());
+                }
+
+                public int getBatchSize()
+                {
+                    return values.size();
+                }
+            });
+            
+            if (!persistReadAccessWithAsset)
+                return;
+            
+            // merge group names so each asset is updated once per statement
+            Map<UUID, StringBuilder> groups = new TreeMap<UUID, StringBuilder>();
+            for (ReadAccess ra : values)
+            {
+                StringBuilder sb = groups.get(ra.getAssetID());
+                if (sb == null)
+                {
+                    sb = new StringBuilder();
+                    groups.put(ra.getAssetID(), sb);
+                }
+                else
+                    sb.append(" ");
+                sb.append(ra.getGroupName());
+            }
+            
+            if (ObservationMetaReadAccess.class.equals(raClass))
+            {
+                addToAsset(jdbc, Observation.class, raClass, groups, true);
+            }
+            else if (PlaneDataReadAccess.class.equals(raClass))
+            {
+                addToAsset(jdbc, Plane.class, raClass, groups, true);
+            }
+            else if (PlaneMetaReadAccess.class.equals(raClass))
+            {
+                addToAsset(jdbc, Plane.class, raClass, groups, true);
+                
+                // number of child assets is unknown: see ReadAccessPut
+                addToAsset(jdbc, Artifact.class, raClass, groups, false);
+                addToAsset(jdbc, Part.class, raClass, groups, false);
+                addToAsset(jdbc, Chunk.class, raClass, groups, false);
+            }
+        }
+        
+        private void addToAsset(JdbcTemplate jdbc, Class assetClass, Class raClass, 
+                Map<UUID, StringBuilder> groups, boolean check)
+        {
+            List<Object> args = new ArrayList<Object>();
+            int num = 0;
+            int n = 0;
+            for (Map.Entry<UUID, StringBuilder> me : groups.entrySet())
+            {
+                args.add(me.getValue().toString());
+                if (useLongForUUID)
+                    args.add(CaomUtil.uuidToLong(me.getKey()));
+                else
+                    args.add(me.getKey());
+                n++;
+                if (n == MAX_ASSET_BATCH || n + num == groups.size())
+                {
+                    String sql = getUpdateAssetSQL(assetClass, raClass, n);
+                    log.debug(sql);
+                    int count = jdbc.update(sql, args.toArray());
+                    log.debug("update asset count " + assetClass.getSimpleName() +" : " + count);
+                    if (check && count < n)
+                        throw new DataIntegrityViolationException("failed to update " + assetClass.getSimpleName() 
+                                + ": " + count + " of " + n + " assets found");
+                    num += n;
+                    n = 0;
+                    args.clear();
+                }
+            }
+        }
+    }
+    
     protected void safeSetDate(StringBuilder sb, PreparedStatement ps, int col, Date val, Calendar cal)
         throws SQLException
     {
@@ -2852,17 +3220,62 @@ public class BaseSQLGenerator implements SQLGenerator
         return new BaseObservationExtractor(this);
     }
 
+    public StreamingObservationExtractor getObservationStreamExtractor(ObservationStreamHandler handler)
+    {
+        // planes are sorted in memory unless the database returns them in productID order
+        return new StreamingObservationExtractor(this, handler, getBinaryOrder("productID") == null);
+    }
+
     @Override
     public RowMapper getObservationStateMapper()
     {
         return new ObservationStateMapper();
     }
+
+    @Override
+    public String getObservationStateSQL(ObservationURI uri)
+    {
+        String alias = getAlias(ObservationState.class);
+        StringBuilder sb = new StringBuilder();
+        sb.append("SELECT ");
+        sb.append(getColumns(ObservationState.class));
+        sb.append(" FROM ");
+        sb.append(getFrom(ObservationState.class));
+        sb.append(" WHERE ");
+        sb.append(alias).append(".collection = ").append(literal(uri.getCollection()));
+        sb.append(" AND ");
+        sb.append(alias).append(".observationID = ").append(literal(uri.getObservationID()));
+        return sb.toString();
+    }
+
+    // default: select states in time order and compute the digest in the extractor
+    @Override
+    public String getObservationBucketSQL(String collection, Date minLastModified, Date maxLastModified, long bucketSize)
+    {
+        return getSelectSQL(ObservationState.class, minLastModified, maxLastModified, null, collection);
+    }
+
+    @Override
+    public ResultSetExtractor getObservationBucketExtractor(long bucketSize)
+    {
+        return new ObservationStateBucketExtractor(bucketSize);
+    }
     
     public RowMapper getReadAccessMapper(Class<? extends ReadAccess> c)
     {
         return new ReadAccessMapper(c);
     }
 
+    public RowMapper getReadAccessSkeletonMapper(Class<? extends Skeleton> c)
+    {
+        if (c.equals(ObservationMetaReadAccessSkeleton.class)
+                || c.equals(PlaneMetaReadAccessSkeleton.class)
+                || c.equals(PlaneDataReadAccessSkeleton.class))
+            return new ReadAccessSkeletonExtractor(c);
+        
+        throw new UnsupportedOperationException("getReadAccessSkeletonMapper: " + c.getName());
+    }
+
     public Class<? extends Skeleton> getSkeletonClass(Class c)
     {
         if (c.equals(ObservationMetaReadAccess.class))
@@ -3778,8 +4191,55 @@ public class BaseSQLGenerator implements SQLGenerator
         }
     }
 
+    
+    // group states (in maxLastModified order) into buckets; only one bucket is held in memory
+    class ObservationStateBucketExtractor implements ResultSetExtractor
+    {
+        private long bucketSize;
+        
+        ObservationStateBucketExtractor(long bucketSize)
+        {
+            this.bucketSize = bucketSize;
+        }
+        
+        @Override
+        public Object extractData(ResultSet rs) 
+            throws SQLException, DataAccessException
+        {
+            ObservationStateMapper mapper = new ObservationStateMapper();
+            List<ObservationStateBucket> ret = new ArrayList<ObservationStateBucket>();
+            List<ObservationState> cur = new ArrayList<ObservationState>();
+            long curBucket = -1L;
+            int row = 0;
+            while (rs.next())
+            {
+                ObservationState s = (ObservationState) mapper.mapRow(rs, row++);
+                long b = s.maxLastModified.getTime() / bucketSize;
+                if (b != curBucket && !cur.isEmpty())
+                {
+                    ret.add(toBucket(curBucket, cur));
+                    cur.clear();
+                }
+                curBucket = b;
+                cur.add(s);
+            }
+            if (!cur.isEmpty())
+                ret.add(toBucket(curBucket, cur));
+            return ret;
+        }
+        
+        private ObservationStateBucket toBucket(long b, List<ObservationState> states)
+        {
+            Date start = new Date(b * bucketSize);
+            Date end = new Date((b + 1) * bucketSize - 1L);
+            ObservationStateBucket ret = new ObservationStateBucket(start, end);
+            ret.count = states.size();
+            ret.digest = ObservationStateDiff.getDigest(states);
+            return ret;
+        }
+    }
 
-    private class ReadAccessSkeletonExtractor implements ResultSetExtractor
+    private class ReadAccessSkeletonExtractor implements ResultSetExtractor, RowMapper
     {
         private Class<? extends Skeleton> c;
         public ReadAccessSkeletonExtractor(Class<? extends Skeleton> c)
@@ -3793,6 +4253,11 @@ public class BaseSQLGenerator implements SQLGenerator
                 return mapRow(rs);
             return null;
         }
+        
+        public Object mapRow(ResultSet rs, int row) throws SQLException
+        {
+            return mapRow(rs);
+        }
 
 
         private Skeleton mapRow(ResultSet rs)
@@ -79,7 +79,9 @@ import org.springframework.jdbc.datasource.DelegatingDataSource;
  * A simple DataSource wrapper that calls setCatalog on a Connection before returning
  * it. This is usually necessary to avoid creating a cross-database transaction if the 
  * DataSource is not connected to the target database already, such as when a connection
- * pool that accesses multiple databases is used.
+ * pool that accesses multiple databases is used. If PlannerSettings are configured, 
+ * the profile of the current operation (set per thread by the DAO) is applied to the
+ * connection session.
  * 
  * @author pdowler
  */
@@ -88,7 +90,8 @@ public class DataSourceWrapper  extends DelegatingDataSource
     private static final Logger log = Logger.getLogger(DataSourceWrapper.class);
     
     private final String catalogName;
-    private boolean disableHashJoin = false;
+    private PlannerSettings plannerSettings;
+    private final ThreadLocal<PlannerSettings.Operation> operation = new ThreadLocal<PlannerSettings.Operation>();
 
     public DataSourceWrapper(String catalogName, DataSource dataSource) 
     {
@@ -96,38 +99,63 @@ public class DataSourceWrapper  extends DelegatingDataSource
         this.catalogName = catalogName;
     }
 
-    public void setDisableHashJoin(boolean disableHashJoin)
+    public void setPlannerSettings(PlannerSettings plannerSettings)
     {
-        this.disableHashJoin = disableHashJoin;
+        this.plannerSettings = plannerSettings;
     }
 
+    public PlannerSettings getPlannerSettings()
+    {
+        return plannerSettings;
+    }
+    
+    /**
+     * Set the operation for connections checked out by the current thread.
+     * 
+     * @param op operation or null for default settings
+     */
+    void setOperation(PlannerSettings.Operation op)
+    {
+        if (op == null)
+            operation.remove();
+        else
+            operation.set(op);
+    }
     
     @Override
     public Connection getConnection() 
         throws SQLException
     {
         Connection cnx = super.getConnection();
-        cnx.setCatalog(this.catalogName);
-        if (disableHashJoin)
-        {
-            String sql = "set enable_hashjoin = false";
-            log.debug("*****" + sql + " *****");
-            cnx.createStatement().execute(sql);
-        }
+        init(cnx);
         return cnx;
     }
 
+    @Override
     public Connection getConnection(String un, String pw)
         throws SQLException
     {
         Connection cnx = super.getConnection(un, pw);
+        init(cnx);
+        return cnx;    
+    }
+    
+    private void init(Connection cnx)
+        throws SQLException
+    {
         cnx.setCatalog(this.catalogName);
-        if (disableHashJoin)
+        if (plannerSettings != null)
         {
-            String sql = "set enable_hashjoin = false";
-            log.debug("*****" + sql + " *****");
-            cnx.createStatement().execute(sql);
+            try
+            {
+                plannerSettings.apply(cnx, operation.get());
+            }
+            catch(SQLException ex)
+            {
+                log.debug("failed to apply planner settings: " + ex);
+                cnx.close();
+                throw ex;
+            }
         }
-        return cnx;    
     }
 }
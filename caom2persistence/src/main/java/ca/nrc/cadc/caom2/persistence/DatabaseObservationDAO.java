@@ -74,6 +74,7 @@ import ca.nrc.cadc.caom2.CaomEntity;
 import ca.nrc.cadc.caom2.Chunk;
 import ca.nrc.cadc.caom2.Observation;
 import ca.nrc.cadc.caom2.ObservationState;
+import ca.nrc.cadc.caom2.ObservationStateBucket;
 import ca.nrc.cadc.caom2.ObservationURI;
 import ca.nrc.cadc.caom2.Part;
 import ca.nrc.cadc.caom2.Plane;
@@ -86,7 +87,10 @@ import ca.nrc.cadc.caom2.persistence.skel.PlaneSkeleton;
 import ca.nrc.cadc.caom2.persistence.skel.Skeleton;
 import ca.nrc.cadc.caom2.util.CaomUtil;
 import ca.nrc.cadc.caom2.util.CaomValidator;
+import java.io.IOException;
 import java.net.URI;
+import java.sql.Connection;
+import java.sql.SQLException;
 
 import java.util.ArrayList;
 import java.util.Date;
@@ -95,8 +99,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import org.apache.log4j.Logger;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
 import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.TransientDataAccessResourceException;
 
 /**
  * Persistence layer operations.
@@ -107,8 +115,14 @@ public class DatabaseObservationDAO extends AbstractCaomEntityDAO<Observation> i
 {
     private static final Logger log = Logger.getLogger(DatabaseObservationDAO.class);
 
+    // rows per round trip in stream
+    static final int STREAM_FETCH_SIZE = 1000;
+
     private PlaneDAO planeDAO;
     
+    // existence requirement for put
+    private enum PutMode { ANY, CREATE, UPDATE }
+    
     public DatabaseObservationDAO() { }
 
     @Override
@@ -152,6 +166,35 @@ public class DatabaseObservationDAO extends AbstractCaomEntityDAO<Observation> i
         return null;
     }
 
+    /**
+     * Get the skeleton (IDs, checksums, timestamps) of a stored observation.
+     * 
+     * @param id
+     * @return skeleton or null if not found
+     */
+    public ObservationSkeleton getSkeleton(UUID id)
+    {
+        checkInit();
+        if (id == null)
+            throw new IllegalArgumentException("id cannot be null");
+        log.debug("GET skeleton: " + id);
+        long t = System.currentTimeMillis();
+        try
+        {
+            JdbcTemplate jdbc = new InstrumentedJdbcTemplate(dataSource);
+            String sql = gen.getSelectSQL(id, SQLGenerator.MAX_DEPTH, true);
+            log.debug("GET skeleton: " + sql);
+            startOperation(PlannerSettings.Operation.SKELETON_READ, jdbc);
+            return (ObservationSkeleton) jdbc.query(sql, gen.getSkeletonExtractor(ObservationSkeleton.class));
+        }
+        finally
+        {
+            endOperation();
+            long dt = System.currentTimeMillis() - t;
+            log.debug("GET skeleton: " + id + " " + dt + "ms");
+        }
+    }
+
     @Override
     public Observation get(UUID id)
     {
@@ -160,6 +203,32 @@ public class DatabaseObservationDAO extends AbstractCaomEntityDAO<Observation> i
         return get(null, id, SQLGenerator.MAX_DEPTH);
     }
 
+    public ObservationState getState(ObservationURI uri)
+    {
+        checkInit();
+        if (uri == null)
+            throw new IllegalArgumentException("uri cannot be null");
+        log.debug("GET state: " + uri);
+        long t = System.currentTimeMillis();
+        try
+        {
+            JdbcTemplate jdbc = new InstrumentedJdbcTemplate(dataSource);
+            String sql = gen.getObservationStateSQL(uri);
+            log.debug("GET state: " + sql);
+            startOperation(PlannerSettings.Operation.LIST, jdbc);
+            List result = jdbc.query(sql, gen.getObservationStateMapper());
+            if (result.isEmpty())
+                return null;
+            return (ObservationState) result.get(0);
+        }
+        finally
+        {
+            endOperation();
+            long dt = System.currentTimeMillis() - t;
+            log.debug("GET state: " + uri + " " + dt + "ms");
+        }
+    }
+
     public List<ObservationState> getObservationList(String collection, Date minLastModified, Date maxLastModified, Integer batchSize)
     {
         checkInit();
@@ -177,18 +246,51 @@ public class DatabaseObservationDAO extends AbstractCaomEntityDAO<Observation> i
             if (log.isDebugEnabled())
                 log.debug("GET: " + Util.formatSQL(sql));
 
-            JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+            JdbcTemplate jdbc = new InstrumentedJdbcTemplate(dataSource);
+            startOperation(PlannerSettings.Operation.LIST, jdbc);
             List result = jdbc.query(sql, gen.getObservationStateMapper());
             return (List<ObservationState>) result;
         }
         finally
         {
+            endOperation();
             long dt = System.currentTimeMillis() - t;
             log.debug("getObservationStates: " + collection + " " + batchSize + " " + dt + "ms");
         }
     }
     
     
+    public List<ObservationStateBucket> getObservationBuckets(String collection, Date minLastModified, Date maxLastModified, long bucketSize)
+    {
+        checkInit();
+        log.debug("getObservationBuckets: " + collection + " " + bucketSize);
+        
+        CaomValidator.assertValidPathComponent(DatabaseObservationDAO.class, "collection", collection);
+        if (bucketSize <= 0L)
+            throw new IllegalArgumentException("invalid bucketSize: " + bucketSize);
+        
+        long t = System.currentTimeMillis();
+        
+        try
+        {
+            String sql = gen.getObservationBucketSQL(collection, minLastModified, maxLastModified, bucketSize);
+            
+            if (log.isDebugEnabled())
+                log.debug("GET: " + Util.formatSQL(sql));
+
+            JdbcTemplate jdbc = new InstrumentedJdbcTemplate(dataSource);
+            startOperation(PlannerSettings.Operation.LIST, jdbc);
+            List result = (List) jdbc.query(sql, gen.getObservationBucketExtractor(bucketSize));
+            return (List<ObservationStateBucket>) result;
+        }
+        finally
+        {
+            endOperation();
+            long dt = System.currentTimeMillis() - t;
+            log.debug("getObservationBuckets: " + collection + " " + bucketSize + " " + dt + "ms");
+        }
+    }
+    
     // pdd: for harvester to get just the observation object and check timestamps
     public Observation getShallow(UUID id)
     {
@@ -227,6 +329,74 @@ public class DatabaseObservationDAO extends AbstractCaomEntityDAO<Observation> i
         return get(uri, null, SQLGenerator.MAX_DEPTH);
     }
 
+    /**
+     * Pass a stored observation to the handler one plane at a time. The rows are
+     * read with a cursor (fetch size STREAM_FETCH_SIZE) so the whole result is 
+     * never in memory.
+     * 
+     * @param uri
+     * @param handler
+     * @return true if the observation was found
+     * @throws IOException if the handler fails
+     */
+    @Override
+    public boolean stream(ObservationURI uri, final ObservationStreamHandler handler)
+        throws IOException
+    {
+        checkInit();
+        if (uri == null)
+            throw new IllegalArgumentException("uri cannot be null");
+        log.debug("STREAM: " + uri);
+        long t = System.currentTimeMillis();
+
+        try
+        {
+            final String sql = gen.getStreamSelectSQL(uri);
+            if (log.isDebugEnabled())
+                log.debug("STREAM: " + Util.formatSQL(sql));
+
+            JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+            startOperation(PlannerSettings.Operation.DEEP_READ, jdbc);
+            Object result = jdbc.execute(new ConnectionCallback()
+            {
+                @Override
+                public Object doInConnection(Connection con) 
+                    throws SQLException, DataAccessException
+                {
+                    // the postgresql driver only uses a cursor outside auto-commit
+                    boolean autoCommit = con.getAutoCommit();
+                    if (autoCommit)
+                        con.setAutoCommit(false);
+                    try
+                    {
+                        JdbcTemplate cur = new InstrumentedJdbcTemplate(new SingleConnectionDataSource(con, true));
+                        cur.setFetchSize(STREAM_FETCH_SIZE);
+                        return cur.query(sql, gen.getObservationStreamExtractor(handler));
+                    }
+                    finally
+                    {
+                        if (autoCommit)
+                        {
+                            con.rollback(); // read-only
+                            con.setAutoCommit(true);
+                        }
+                    }
+                }
+            });
+            return Boolean.TRUE.equals(result);
+        }
+        catch (StreamingObservationExtractor.HandlerException ex)
+        {
+            throw ex.getCause();
+        }
+        finally
+        {
+            endOperation();
+            long dt = System.currentTimeMillis() - t;
+            log.debug("STREAM: " + uri + " " + dt + "ms");
+        }
+    }
+
     private Observation get(ObservationURI uri, UUID id, int depth)
     {
         checkInit();
@@ -246,7 +416,8 @@ public class DatabaseObservationDAO extends AbstractCaomEntityDAO<Observation> i
             if (log.isDebugEnabled())
                 log.debug("GET: " + Util.formatSQL(sql));
 
-            JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+            JdbcTemplate jdbc = new InstrumentedJdbcTemplate(dataSource);
+            startOperation(PlannerSettings.Operation.DEEP_READ, jdbc);
             Object result = jdbc.query(sql, gen.getObservationExtractor());
             if (result == null)
                 return null;
@@ -270,6 +441,7 @@ public class DatabaseObservationDAO extends AbstractCaomEntityDAO<Observation> i
         }
         finally
         {
+            endOperation();
             long dt = System.currentTimeMillis() - t;
             log.debug("GET: " + uri + " " + dt + "ms");
         }
@@ -282,6 +454,38 @@ public class DatabaseObservationDAO extends AbstractCaomEntityDAO<Observation> i
      */
     @Override
     public void put(Observation obs)
+    {
+        put(obs, PutMode.ANY);
+    }
+    
+    /**
+     * Store a new observation. The existence check uses the same skeleton query
+     * as put.
+     * 
+     * @param obs
+     * @return false if an observation with the same URI or ID already exists
+     */
+    @Override
+    public boolean create(Observation obs)
+    {
+        return put(obs, PutMode.CREATE);
+    }
+    
+    /**
+     * Update an existing observation. The existence check uses the same skeleton 
+     * query as put.
+     * 
+     * @param obs
+     * @return false if no observation with the same URI exists
+     * @throws IllegalArgumentException if the stored observation has a different ID
+     */
+    @Override
+    public boolean update(Observation obs)
+    {
+        return put(obs, PutMode.UPDATE);
+    }
+    
+    private boolean put(Observation obs, PutMode mode)
     {
         if (readOnly)
             throw new UnsupportedOperationException("put in readOnly mode");
@@ -290,6 +494,7 @@ public class DatabaseObservationDAO extends AbstractCaomEntityDAO<Observation> i
             throw new IllegalArgumentException("arg cannot be null");
         log.debug("PUT: " + obs.getURI() + ", planes: " + obs.getPlanes().size());
         long t = System.currentTimeMillis();
+        JdbcStatistics.getInstance().startPut();
 
         boolean txnOpen = false;
         try
@@ -298,14 +503,40 @@ public class DatabaseObservationDAO extends AbstractCaomEntityDAO<Observation> i
             getTransactionManager().startTransaction();
             txnOpen = true;
             
-            JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+            JdbcTemplate jdbc = new InstrumentedJdbcTemplate(dataSource);
             // NOTE: this is by ID which means to update the caller must get(uri) then put(o)
             //       and if they do not get(uri) they can get a duplicate observation error
             //       if they violate unique keys... but if it was by uri, it would be the same
             //       result as if they skipped the get(uri)
-            String sql = gen.getSelectSQL(obs.getID(), SQLGenerator.MAX_DEPTH, true);
+            String sql;
+            if (PutMode.ANY.equals(mode))
+                sql = gen.getSelectSQL(obs.getID(), SQLGenerator.MAX_DEPTH, true);
+            else
+                sql = gen.getSelectSQL(obs.getURI(), SQLGenerator.MAX_DEPTH, true);
             log.debug("PUT: " + sql);
+            startOperation(PlannerSettings.Operation.SKELETON_READ, jdbc);
             ObservationSkeleton cur = (ObservationSkeleton) jdbc.query(sql, new ObservationSkeletonExtractor());
+            
+            String reject = null;
+            if (PutMode.CREATE.equals(mode) && cur != null)
+                reject = "already exists";
+            else if (PutMode.UPDATE.equals(mode) && cur == null)
+                reject = "not found";
+            if (reject != null)
+            {
+                log.debug("PUT " + mode + ": " + reject + ": " + obs.getURI());
+                getTransactionManager().rollbackTransaction();
+                txnOpen = false;
+                return false;
+            }
+            if (PutMode.UPDATE.equals(mode) && !cur.id.equals(obs.getID()))
+            {
+                getTransactionManager().rollbackTransaction();
+                txnOpen = false;
+                throw new IllegalArgumentException("cannot update " + obs.getURI() + ": stored ID " + cur.id 
+                        + " does not match " + obs.getID());
+            }
+            startOperation(PlannerSettings.Operation.WRITE, jdbc);
 
             // update metadata checksums, maybe modified timestamps
             boolean updateMax = updateEntity(obs, cur);
@@ -347,6 +578,7 @@ public class DatabaseObservationDAO extends AbstractCaomEntityDAO<Observation> i
             getTransactionManager().commitTransaction();
             log.debug("commit: OK");
             txnOpen = false;
+            return true;
         }
         catch(DataAccessException e)
         {
@@ -354,6 +586,9 @@ public class DatabaseObservationDAO extends AbstractCaomEntityDAO<Observation> i
             getTransactionManager().rollbackTransaction();
             log.debug("rollback: OK");
             txnOpen = false;
+            // concurrent create or ID used by another observation
+            if (PutMode.CREATE.equals(mode) && isDuplicateKey(e))
+                return false;
             throw e;
         }
         finally
@@ -364,6 +599,8 @@ public class DatabaseObservationDAO extends AbstractCaomEntityDAO<Observation> i
                 getTransactionManager().rollbackTransaction();
                 log.error("rollback: OK");
             }
+            JdbcStatistics.getInstance().endPut();
+            endOperation();
             long dt = System.currentTimeMillis() - t;
             log.debug("PUT: " + obs.getURI() + " " + dt + "ms");
         }
@@ -376,6 +613,19 @@ public class DatabaseObservationDAO extends AbstractCaomEntityDAO<Observation> i
      */
     @Override
     public void delete(ObservationURI uri)
+    {
+        deleteIfExists(uri);
+    }
+    
+    /**
+     * Delete a stored observation by URI. The existence check uses the same skeleton
+     * query as delete.
+     * 
+     * @param uri
+     * @return false if the observation was not found
+     */
+    @Override
+    public boolean deleteIfExists(ObservationURI uri)
     {
         if (readOnly)
             throw new UnsupportedOperationException("put in readOnly mode");
@@ -392,10 +642,12 @@ public class DatabaseObservationDAO extends AbstractCaomEntityDAO<Observation> i
             getTransactionManager().startTransaction();
             txnOpen = true;
             
-            JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+            JdbcTemplate jdbc = new InstrumentedJdbcTemplate(dataSource);
             String sql = gen.getSelectSQL(uri, SQLGenerator.MAX_DEPTH, true);
             log.debug("DELETE: " + sql);
+            startOperation(PlannerSettings.Operation.SKELETON_READ, jdbc);
             ObservationSkeleton skel = (ObservationSkeleton) jdbc.query(sql, gen.getSkeletonExtractor(ObservationSkeleton.class));
+            startOperation(PlannerSettings.Operation.WRITE, jdbc);
             if (skel != null)
                 delete(skel, jdbc);
             else
@@ -405,6 +657,7 @@ public class DatabaseObservationDAO extends AbstractCaomEntityDAO<Observation> i
             getTransactionManager().commitTransaction();
             log.debug("commit: OK");
             txnOpen = false;
+            return (skel != null);
         }
         catch(DataAccessException e)
         {
@@ -422,6 +675,7 @@ public class DatabaseObservationDAO extends AbstractCaomEntityDAO<Observation> i
                 getTransactionManager().rollbackTransaction();
                 log.error("rollback: OK");
             }
+            endOperation();
             long dt = System.currentTimeMillis() - t;
             log.debug("DELETE: " + uri + " " + dt + "ms");
         }
@@ -444,10 +698,12 @@ public class DatabaseObservationDAO extends AbstractCaomEntityDAO<Observation> i
             getTransactionManager().startTransaction();
             txnOpen = true;
             
-            JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+            JdbcTemplate jdbc = new InstrumentedJdbcTemplate(dataSource);
             String sql = gen.getSelectSQL(id, SQLGenerator.MAX_DEPTH, true);
             log.debug("DELETE: " + sql);
+            startOperation(PlannerSettings.Operation.SKELETON_READ, jdbc);
             ObservationSkeleton skel = (ObservationSkeleton) jdbc.query(sql, gen.getSkeletonExtractor(ObservationSkeleton.class));
+            startOperation(PlannerSettings.Operation.WRITE, jdbc);
             if (skel != null)
                 delete(skel, jdbc);
             else
@@ -474,11 +730,83 @@ public class DatabaseObservationDAO extends AbstractCaomEntityDAO<Observation> i
                 getTransactionManager().rollbackTransaction();
                 log.error("rollback: OK");
             }
+            endOperation();
             long dt = System.currentTimeMillis() - t;
             log.debug("DELETE: " + id + " " + dt + "ms");
         }
     }
 
+    /**
+     * Delete many stored observations by internal ID. Observations and all their
+     * children are deleted with set-based statements (no skeleton lookup) and 
+     * IDs that are not found are ignored. The deletes are done in a single 
+     * transaction; if the caller has already started a transaction this is
+     * nested inside it.
+     * 
+     * @param ids 
+     */
+    public void delete(List<UUID> ids)
+    {
+        if (readOnly)
+            throw new UnsupportedOperationException("delete in readOnly mode");
+        checkInit();
+        if (ids == null)
+            throw new IllegalArgumentException("ids cannot be null");
+        if (ids.isEmpty())
+            return;
+        log.debug("DELETE: " + ids.size() + " observations");
+        long t = System.currentTimeMillis();
+
+        boolean txnOpen = false;
+        try
+        {
+            log.debug("starting transaction");
+            getTransactionManager().startTransaction();
+            txnOpen = true;
+            
+            JdbcTemplate jdbc = new InstrumentedJdbcTemplate(dataSource);
+            startOperation(PlannerSettings.Operation.WRITE, jdbc);
+            EntityBatchDelete op = gen.getEntityBatchDelete(Observation.class);
+            for (int i = 0; i < ids.size(); i += MAX_BATCH_IDS)
+            {
+                op.setIDs(ids.subList(i, Math.min(i + MAX_BATCH_IDS, ids.size())));
+                op.execute(jdbc);
+            }
+            
+            log.debug("committing transaction");
+            getTransactionManager().commitTransaction();
+            log.debug("commit: OK");
+            txnOpen = false;
+        }
+        catch(DataAccessException e)
+        {
+            log.debug("failed to delete " + ids.size() + " observations: ", e);
+            getTransactionManager().rollbackTransaction();
+            log.debug("rollback: OK");
+            txnOpen = false;
+            throw e;
+        }
+        finally
+        {
+            if (txnOpen)
+            {
+                log.error("BUG - open transaction in finally");
+                getTransactionManager().rollbackTransaction();
+                log.error("rollback: OK");
+            }
+            endOperation();
+            long dt = System.currentTimeMillis() - t;
+            log.debug("DELETE: " + ids.size() + " observations " + dt + "ms");
+        }
+    }
+
+    private boolean isDuplicateKey(DataAccessException ex)
+    {
+        // TransientDataAccessResourceException: found this with jTDS driver
+        return (ex instanceof DataIntegrityViolationException || ex instanceof TransientDataAccessResourceException)
+                && ex.toString().contains("duplicate key");
+    }
+
     @Override
     protected void deleteChildren(Skeleton s, JdbcTemplate jdbc)
     {
@@ -72,8 +72,11 @@ package ca.nrc.cadc.caom2.persistence;
 import ca.nrc.cadc.caom2.access.ReadAccess;
 import ca.nrc.cadc.caom2.persistence.skel.Skeleton;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import org.apache.log4j.Logger;
 import org.springframework.dao.DataIntegrityViolationException;
@@ -111,7 +114,8 @@ public class DatabaseReadAccessDAO extends AbstractCaomEntityDAO<ReadAccess>
             if (log.isDebugEnabled())
                 log.debug("GET SQL: " + Util.formatSQL(sql));
 
-            JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+            JdbcTemplate jdbc = new InstrumentedJdbcTemplate(dataSource);
+            startOperation(PlannerSettings.Operation.LIST, jdbc);
             Object result = jdbc.query(sql, gen.getReadAccessMapper(c));
             if (result == null)
                 return null;
@@ -135,6 +139,7 @@ public class DatabaseReadAccessDAO extends AbstractCaomEntityDAO<ReadAccess>
         }
         finally
         {
+            endOperation();
             long dt = System.currentTimeMillis() - t;
             log.debug("GET: " + c.getSimpleName() + " " + assetID + "," + groupID + " " + dt + "ms");
         }
@@ -154,7 +159,8 @@ public class DatabaseReadAccessDAO extends AbstractCaomEntityDAO<ReadAccess>
             if (log.isDebugEnabled())
                 log.debug("GET SQL: " + Util.formatSQL(sql));
 
-            JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+            JdbcTemplate jdbc = new InstrumentedJdbcTemplate(dataSource);
+            startOperation(PlannerSettings.Operation.LIST, jdbc);
             Object result = jdbc.query(sql, gen.getReadAccessMapper(c));
             if (result == null)
                 return null;
@@ -178,6 +184,7 @@ public class DatabaseReadAccessDAO extends AbstractCaomEntityDAO<ReadAccess>
         }
         finally
         {
+            endOperation();
             long dt = System.currentTimeMillis() - t;
             log.debug("GET: " + c.getSimpleName() + " " + id + " " + dt + "ms");
         }
@@ -191,14 +198,17 @@ public class DatabaseReadAccessDAO extends AbstractCaomEntityDAO<ReadAccess>
             throw new IllegalArgumentException("arg cannot be null");
         log.debug("PUT: " + ra);
         long t = System.currentTimeMillis();
+        JdbcStatistics.getInstance().startPut();
 
         try
         {
-            JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+            JdbcTemplate jdbc = new InstrumentedJdbcTemplate(dataSource);
             Class skel = gen.getSkeletonClass(ra.getClass());
             String sql = gen.getSelectSQL(skel, ra.getID());
             log.debug("PUT: " + sql);
+            startOperation(PlannerSettings.Operation.SKELETON_READ, jdbc);
             Skeleton cur = (Skeleton) jdbc.query(sql, gen.getSkeletonExtractor(skel));
+            startOperation(PlannerSettings.Operation.WRITE, jdbc);
 
             updateEntity(ra, cur);
 
@@ -218,11 +228,113 @@ public class DatabaseReadAccessDAO extends AbstractCaomEntityDAO<ReadAccess>
         }
         finally
         {
+            JdbcStatistics.getInstance().endPut();
+            endOperation();
             long dt = System.currentTimeMillis() - t;
             log.debug("PUT: " + ra + " " + dt + "ms");
         }
     }
 
+    /**
+     * Put many read access tuples of a single type. The current skeletons are found
+     * with one query per MAX_BATCH_IDS tuples and the inserts and updates are done
+     * with JDBC batches; unchanged tuples are skipped unless forceUpdate is set. 
+     * The caller is responsible for transaction management.
+     * 
+     * @param ras
+     * @throws DuplicateEntityException 
+     */
+    public void put(List<ReadAccess> ras)
+        throws DuplicateEntityException
+    {
+        if (readOnly)
+            throw new UnsupportedOperationException("put in readOnly mode");
+        checkInit();
+        if (ras == null)
+            throw new IllegalArgumentException("arg cannot be null");
+        if (ras.isEmpty())
+            return;
+        Class<? extends ReadAccess> c = ras.get(0).getClass();
+        for (ReadAccess ra : ras)
+        {
+            if (!c.equals(ra.getClass()))
+                throw new IllegalArgumentException("cannot put mixed types: " + c.getSimpleName() 
+                        + " and " + ra.getClass().getSimpleName());
+        }
+        log.debug("PUT: " + c.getSimpleName() + " " + ras.size() + " tuples");
+        long t = System.currentTimeMillis();
+        JdbcStatistics.getInstance().startPut();
+
+        try
+        {
+            JdbcTemplate jdbc = new InstrumentedJdbcTemplate(dataSource);
+            Class skel = gen.getSkeletonClass(c);
+            EntityBatchPut insert = gen.getEntityBatchPut(c, false);
+            EntityBatchPut update = gen.getEntityBatchPut(c, true);
+            for (int i = 0; i < ras.size(); i += MAX_BATCH_IDS)
+            {
+                List<ReadAccess> batch = ras.subList(i, Math.min(i + MAX_BATCH_IDS, ras.size()));
+                List<UUID> ids = new ArrayList<UUID>(batch.size());
+                for (ReadAccess ra : batch)
+                {
+                    ids.add(ra.getID());
+                }
+                
+                // get current skeletons
+                String sql = gen.getSelectSQL(skel, ids);
+                if (log.isDebugEnabled())
+                    log.debug("PUT SQL: " + Util.formatSQL(sql));
+                startOperation(PlannerSettings.Operation.SKELETON_READ, jdbc);
+                List<Skeleton> skels = jdbc.query(sql, gen.getReadAccessSkeletonMapper(skel));
+                Map<UUID, Skeleton> curMap = new HashMap<UUID, Skeleton>();
+                for (Skeleton s : skels)
+                {
+                    curMap.put(s.id, s);
+                }
+                
+                List<ReadAccess> inserts = new ArrayList<ReadAccess>();
+                List<ReadAccess> updates = new ArrayList<ReadAccess>();
+                for (ReadAccess ra : batch)
+                {
+                    Skeleton cur = curMap.get(ra.getID());
+                    updateEntity(ra, cur);
+                    if (cur == null)
+                        inserts.add(ra);
+                    else if (forceUpdate || !ra.getMetaChecksum().equals(cur.metaChecksum))
+                        updates.add(ra);
+                    else
+                        log.debug("PUT skip: " + c.getSimpleName() + " " + ra.getID());
+                }
+                log.debug("PUT: " + inserts.size() + " inserts " + updates.size() + " updates");
+                
+                startOperation(PlannerSettings.Operation.WRITE, jdbc);
+                insert.setValues(inserts);
+                insert.execute(jdbc);
+                update.setValues(updates);
+                update.execute(jdbc);
+            }
+        }
+        catch(DataIntegrityViolationException ex)
+        {
+            if (ex.toString().contains("duplicate key"))
+                throw new DuplicateEntityException(c.getSimpleName() + " batch of " + ras.size(), ex);
+            throw ex;
+        }
+        catch(TransientDataAccessResourceException ex) // found this with jTDS driver
+        {
+            if (ex.toString().contains("duplicate key"))
+                throw new DuplicateEntityException(c.getSimpleName() + " batch of " + ras.size(), ex);
+            throw ex;
+        }
+        finally
+        {
+            JdbcStatistics.getInstance().endPut();
+            endOperation();
+            long dt = System.currentTimeMillis() - t;
+            log.debug("PUT: " + c.getSimpleName() + " " + ras.size() + " tuples " + dt + "ms");
+        }
+    }
+
     public void delete(Class<? extends ReadAccess> c, UUID id)
     {
         checkInit();
@@ -233,11 +345,12 @@ public class DatabaseReadAccessDAO extends AbstractCaomEntityDAO<ReadAccess>
 
         try
         {
-            JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+            JdbcTemplate jdbc = new InstrumentedJdbcTemplate(dataSource);
             // get current tuple
             ReadAccess cur = get(c, id);
             if (cur != null)
             {
+                startOperation(PlannerSettings.Operation.WRITE, jdbc);
                 EntityDelete op = gen.getEntityDelete(c, true);
                 op.setID(id);
                 op.setValue(cur);
@@ -246,11 +359,66 @@ public class DatabaseReadAccessDAO extends AbstractCaomEntityDAO<ReadAccess>
         }
         finally
         {
+            endOperation();
             long dt = System.currentTimeMillis() - t;
             log.debug("DELETE: " +  c.getSimpleName() + " " + id + " " + dt + "ms");
         }
     }
 
+    /**
+     * Delete many read access tuples of one type by ID. The current tuples are
+     * found with a single query and removed with set-based statements; IDs 
+     * that are not found are ignored.
+     * 
+     * @param c
+     * @param ids 
+     */
+    public void delete(Class<? extends ReadAccess> c, List<UUID> ids)
+    {
+        checkInit();
+        if (c == null || ids == null)
+            throw new IllegalArgumentException("args cannot be null");
+        if (ids.isEmpty())
+            return;
+        log.debug("DELETE: " + c.getSimpleName() + " " + ids.size() + " tuples");
+        long t = System.currentTimeMillis();
+
+        try
+        {
+            JdbcTemplate jdbc = new InstrumentedJdbcTemplate(dataSource);
+            EntityBatchDelete op = gen.getEntityBatchDelete(c);
+            for (int i = 0; i < ids.size(); i += MAX_BATCH_IDS)
+            {
+                List<UUID> batch = ids.subList(i, Math.min(i + MAX_BATCH_IDS, ids.size()));
+                
+                // get current tuples
+                String sql = gen.getSelectSQL(c, batch);
+                if (log.isDebugEnabled())
+                    log.debug("DELETE SQL: " + Util.formatSQL(sql));
+                startOperation(PlannerSettings.Operation.SKELETON_READ, jdbc);
+                List<ReadAccess> cur = jdbc.query(sql, gen.getReadAccessMapper(c));
+                if (!cur.isEmpty())
+                {
+                    startOperation(PlannerSettings.Operation.WRITE, jdbc);
+                    List<UUID> found = new ArrayList<UUID>(cur.size());
+                    for (ReadAccess ra : cur)
+                    {
+                        found.add(ra.getID());
+                    }
+                    op.setIDs(found);
+                    op.setValues(cur);
+                    op.execute(jdbc);
+                }
+            }
+        }
+        finally
+        {
+            endOperation();
+            long dt = System.currentTimeMillis() - t;
+            log.debug("DELETE: " +  c.getSimpleName() + " " + ids.size() + " tuples " + dt + "ms");
+        }
+    }
+
     private void updateEntity(ReadAccess ra, Skeleton s)
     {
         int nsc = ra.getStateCode();
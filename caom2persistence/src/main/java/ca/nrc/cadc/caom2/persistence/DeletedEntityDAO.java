@@ -94,7 +94,8 @@ public class DeletedEntityDAO<T extends DeletedEntity> extends AbstractDAO
         long t = System.currentTimeMillis();
         try
         {
-            JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+            JdbcTemplate jdbc = new InstrumentedJdbcTemplate(dataSource);
+            startOperation(PlannerSettings.Operation.LIST, jdbc);
 
             String sql = gen.getSelectSQL(c, minLastModified, maxLastModified, batchSize);
             if (log.isDebugEnabled())
@@ -115,6 +116,7 @@ public class DeletedEntityDAO<T extends DeletedEntity> extends AbstractDAO
         }
         finally
         {
+            endOperation();
             long dt = System.currentTimeMillis() - t;
             log.debug("GET: " + batchSize + " " + dt + "ms");
         }
@@ -0,0 +1,219 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2017.                            (c) 2017.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+
+package ca.nrc.cadc.caom2.persistence;
+
+import ca.nrc.cadc.caom2.compute.PolygonUtil;
+import ca.nrc.cadc.caom2.types.Polygon;
+import ca.nrc.cadc.caom2.types.Shape;
+import ca.nrc.cadc.caom2.types.Vertex;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.log4j.Logger;
+
+/**
+ * Cache of simple outer hulls of polygons. The hull is needed to validate the
+ * position bounds of a plane and again to store them (pg_sphere only supports simple
+ * polygons), so validation and persistence share this cache. Entries are keyed by 
+ * the polygon vertices so any copy of the same polygon finds the hull; the least 
+ * recently used entries are removed when the cache is full.
+ * 
+ * @author pdowler
+ */
+public class HullCache
+{
+    private static final Logger log = Logger.getLogger(HullCache.class);
+    
+    public static final int DEFAULT_SIZE = 4096;
+    
+    private static final HullCache INSTANCE = new HullCache(DEFAULT_SIZE);
+    
+    // PolygonUtil.getOuterHull returns null if there is no simple hull
+    private static final Object NO_HULL = new Object();
+    
+    private final Map<Key,Object> cache;
+    private long hits;
+    private long misses;
+
+    HullCache(final int maxSize)
+    {
+        this.cache = new LinkedHashMap<Key,Object>(64, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key,Object> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+    
+    public static HullCache getInstance()
+    {
+        return INSTANCE;
+    }
+    
+    /**
+     * Get the outer hull of the position bounds of a plane.
+     * 
+     * @param bounds
+     * @return simple outer hull or null if there is no simple hull
+     */
+    public Polygon getOuterHull(Shape bounds)
+    {
+        return getOuterHull(PolygonUtil.toPolygon(bounds));
+    }
+    
+    /**
+     * Get the outer hull of a polygon. The hull is computed if it is not in the cache.
+     * 
+     * @param poly
+     * @return simple outer hull or null if there is no simple hull
+     */
+    public Polygon getOuterHull(Polygon poly)
+    {
+        Key key = new Key(poly);
+        synchronized (this)
+        {
+            Object ret = cache.get(key);
+            if (ret != null)
+            {
+                hits++;
+                return (ret == NO_HULL ? null : (Polygon) ret);
+            }
+            misses++;
+        }
+        
+        // compute outside the lock: two threads may compute the same hull 
+        Polygon ret = PolygonUtil.getOuterHull(poly);
+        synchronized (this)
+        {
+            cache.put(key, (ret == null ? NO_HULL : ret));
+        }
+        if (ret == null)
+            log.debug("no simple outer hull: " + poly);
+        return ret;
+    }
+    
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+    
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+    
+    public synchronized void clear()
+    {
+        cache.clear();
+        hits = 0L;
+        misses = 0L;
+    }
+    
+    private static class Key
+    {
+        private final double[] coords;
+        private final int hash;
+        
+        Key(Polygon poly)
+        {
+            List<Vertex> verts = poly.getVertices();
+            this.coords = new double[3 * verts.size()];
+            int i = 0;
+            for (Vertex v : verts)
+            {
+                coords[i++] = v.cval1;
+                coords[i++] = v.cval2;
+                coords[i++] = v.getType().ordinal();
+            }
+            this.hash = Arrays.hashCode(coords);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (obj instanceof Key)
+            {
+                Key k = (Key) obj;
+                return hash == k.hash && Arrays.equals(coords, k.coords);
+            }
+            return false;
+        }
+    }
+}
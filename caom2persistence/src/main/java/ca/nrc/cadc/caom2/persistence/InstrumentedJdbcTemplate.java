@@ -0,0 +1,334 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2017.                            (c) 2017.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+
+package ca.nrc.cadc.caom2.persistence;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Date;
+import javax.sql.DataSource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCallback;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.SqlProvider;
+import org.springframework.jdbc.core.StatementCallback;
+
+/**
+ * JdbcTemplate that records execution time, rows, and statement kind of every 
+ * statement in JdbcStatistics. All query, update, and batchUpdate methods end up
+ * in one of the two execute methods overridden here. Queries with a RowMapper or
+ * RowCallbackHandler end up in one of the two query methods with a ResultSetExtractor;
+ * the extractor is wrapped so the rows it reads are counted, also when many rows
+ * are extracted into one object. The size of the values it reads is only estimated
+ * if enabled with JdbcStatistics.setEstimateBytes.
+ * 
+ * @author pdowler
+ */
+public class InstrumentedJdbcTemplate extends JdbcTemplate
+{
+    private final JdbcStatistics stats = JdbcStatistics.getInstance();
+    
+    // rows and bytes read by the extractor of the query in progress in this thread
+    private final ThreadLocal<long[]> rowCounter = new ThreadLocal<long[]>();
+    
+    public InstrumentedJdbcTemplate(DataSource dataSource)
+    {
+        super(dataSource);
+    }
+
+    @Override
+    public Object query(String sql, ResultSetExtractor rse)
+        throws DataAccessException
+    {
+        long[] prev = rowCounter.get();
+        long[] rows = new long[2];
+        rowCounter.set(rows);
+        try
+        {
+            return super.query(sql, new RowCountingExtractor(rse, rows, stats.isEstimateBytes()));
+        }
+        finally
+        {
+            rowCounter.set(prev);
+        }
+    }
+
+    @Override
+    public Object query(PreparedStatementCreator psc, PreparedStatementSetter pss, ResultSetExtractor rse)
+        throws DataAccessException
+    {
+        long[] prev = rowCounter.get();
+        long[] rows = new long[2];
+        rowCounter.set(rows);
+        try
+        {
+            return super.query(psc, pss, new RowCountingExtractor(rse, rows, stats.isEstimateBytes()));
+        }
+        finally
+        {
+            rowCounter.set(prev);
+        }
+    }
+
+    @Override
+    public Object execute(StatementCallback action)
+        throws DataAccessException
+    {
+        String sql = null;
+        if (action instanceof SqlProvider)
+            sql = ((SqlProvider) action).getSql();
+        long[] rows = takeRowCounter();
+        long t = System.currentTimeMillis();
+        boolean ok = false;
+        Object ret = null;
+        try
+        {
+            ret = super.execute(action);
+            ok = true;
+            return ret;
+        }
+        finally
+        {
+            stats.record(sql, System.currentTimeMillis() - t, ret, ok, getRows(rows), getBytes(rows));
+        }
+    }
+
+    @Override
+    public Object execute(PreparedStatementCreator psc, PreparedStatementCallback action)
+        throws DataAccessException
+    {
+        SqlCapture cap = new SqlCapture(psc);
+        long[] rows = takeRowCounter();
+        long t = System.currentTimeMillis();
+        boolean ok = false;
+        Object ret = null;
+        try
+        {
+            ret = super.execute(cap, action);
+            ok = true;
+            return ret;
+        }
+        finally
+        {
+            stats.record(cap.getSql(), System.currentTimeMillis() - t, ret, ok, getRows(rows), getBytes(rows));
+        }
+    }
+    
+    // the counter belongs to this statement only, not to statements executed 
+    // by the extractor
+    private long[] takeRowCounter()
+    {
+        long[] ret = rowCounter.get();
+        rowCounter.set(null);
+        return ret;
+    }
+    
+    private long getRows(long[] rows)
+    {
+        if (rows == null)
+            return -1L;
+        return rows[0];
+    }
+    
+    private long getBytes(long[] rows)
+    {
+        if (rows == null)
+            return -1L;
+        return rows[1];
+    }
+    
+    // counts the rows the wrapped extractor reads from the ResultSet (rows[0]) and
+    // optionally estimates the size of the column values it gets (rows[1])
+    static class RowCountingExtractor implements ResultSetExtractor
+    {
+        private ResultSetExtractor rse;
+        private long[] rows;
+        private boolean estimateBytes;
+        
+        RowCountingExtractor(ResultSetExtractor rse, long[] rows, boolean estimateBytes)
+        {
+            this.rse = rse;
+            this.rows = rows;
+            this.estimateBytes = estimateBytes;
+        }
+
+        public Object extractData(ResultSet rs) 
+            throws SQLException, DataAccessException
+        {
+            ResultSet crs = new CountingResultSet(rs, rows);
+            if (estimateBytes)
+            {
+                // every call goes through reflection: only when enabled
+                crs = (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), 
+                    new Class[] { ResultSet.class }, new SizeEstimator(crs, rows));
+            }
+            return rse.extractData(crs);
+        }
+    }
+    
+    // adds the estimated size of the column values read from the ResultSet to rows[1]
+    static class SizeEstimator implements InvocationHandler
+    {
+        private ResultSet rs;
+        private long[] rows;
+        
+        SizeEstimator(ResultSet rs, long[] rows)
+        {
+            this.rs = rs;
+            this.rows = rows;
+        }
+        
+        // estimated size of a column value
+        static long getSize(Object o)
+        {
+            if (o instanceof String)
+                return ((String) o).length();
+            if (o instanceof byte[])
+                return ((byte[]) o).length;
+            if (o instanceof Number || o instanceof Boolean || o instanceof Date)
+                return 8L;
+            return o.toString().length();
+        }
+        
+        public Object invoke(Object proxy, Method method, Object[] args) 
+            throws Throwable
+        {
+            try
+            {
+                Object ret = method.invoke(rs, args);
+                String name = method.getName();
+                if (ret != null && args != null && args.length > 0 && name.startsWith("get")
+                        && !"getMetaData".equals(name) && !"getStatement".equals(name))
+                    rows[1] += getSize(ret);
+                return ret;
+            }
+            catch(InvocationTargetException ex)
+            {
+                throw ex.getCause();
+            }
+        }
+    }
+    
+    // captures the SQL of creators that do not implement SqlProvider
+    private static class SqlCapture implements PreparedStatementCreator, SqlProvider, InvocationHandler
+    {
+        private PreparedStatementCreator psc;
+        private Connection con;
+        private String sql;
+        
+        SqlCapture(PreparedStatementCreator psc)
+        {
+            this.psc = psc;
+            if (psc instanceof SqlProvider)
+                this.sql = ((SqlProvider) psc).getSql();
+        }
+
+        public String getSql()
+        {
+            return sql;
+        }
+
+        public PreparedStatement createPreparedStatement(Connection conn) 
+            throws SQLException
+        {
+            if (sql != null)
+                return psc.createPreparedStatement(conn);
+            
+            this.con = conn;
+            Connection proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), 
+                    new Class[] { Connection.class }, this);
+            return psc.createPreparedStatement(proxy);
+        }
+        
+        public Object invoke(Object proxy, Method method, Object[] args) 
+            throws Throwable
+        {
+            if ("prepareStatement".equals(method.getName()) && args != null && args.length > 0)
+                this.sql = (String) args[0];
+            try
+            {
+                return method.invoke(con, args);
+            }
+            catch(InvocationTargetException ex)
+            {
+                throw ex.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,445 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2017.                            (c) 2017.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+
+package ca.nrc.cadc.caom2.persistence;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.log4j.Logger;
+
+/**
+ * Statistics for JDBC statements executed through InstrumentedJdbcTemplate: counts,
+ * latency histogram, rows read and written, and (if enabled) estimated bytes read per statement kind (verb and main table),
+ * plus the number of statements per observation or read access put. Statements that
+ * take longer than the slow threshold are logged.
+ * 
+ * @author pdowler
+ */
+public class JdbcStatistics implements JdbcStatisticsMBean
+{
+    private static final Logger log = Logger.getLogger(JdbcStatistics.class);
+    
+    public static final String OBJECT_NAME = "ca.nrc.cadc.caom2.persistence:type=JdbcStatistics";
+    
+    public static final long DEFAULT_SLOW_THRESHOLD = 1000L;
+    
+    // histogram bucket upper bounds in milliseconds
+    static final long[] BUCKETS = new long[] { 1L, 5L, 10L, 50L, 100L, 500L, 1000L, 5000L, 10000L };
+    
+    // max number of SQL strings with a cached kind: statements with literal values
+    // are all different
+    static final int MAX_KINDS = 1024;
+    
+    private static final Map<String,String> kinds = new ConcurrentHashMap<String,String>();
+    
+    private static final JdbcStatistics INSTANCE = new JdbcStatistics();
+    
+    static
+    {
+        INSTANCE.register();
+    }
+    
+    private final Map<String,StatementStats> stats = new TreeMap<String,StatementStats>();
+    private volatile long slowThreshold = DEFAULT_SLOW_THRESHOLD;
+    private volatile boolean estimateBytes = false;
+    private long slowCount;
+    
+    // per thread: put depth, statements in current put
+    private final ThreadLocal<int[]> putCounter = new ThreadLocal<int[]>()
+    {
+        @Override
+        protected int[] initialValue()
+        {
+            return new int[2];
+        }
+    };
+    private long puts;
+    private long putStatements;
+    private long maxPutStatements;
+    
+    // per thread: estimated bytes read
+    private final ThreadLocal<long[]> threadBytes = new ThreadLocal<long[]>()
+    {
+        @Override
+        protected long[] initialValue()
+        {
+            return new long[1];
+        }
+    };
+
+    private JdbcStatistics() { }
+    
+    public static JdbcStatistics getInstance()
+    {
+        return INSTANCE;
+    }
+    
+    private static class StatementStats
+    {
+        long count;
+        long errors;
+        long totalTime;
+        long maxTime;
+        long rowsRead;
+        long rowsWritten;
+        long bytesRead;
+        long[] hist = new long[BUCKETS.length + 1];
+        
+        @Override
+        public String toString()
+        {
+            StringBuilder sb = new StringBuilder();
+            sb.append("count=").append(count);
+            sb.append(" errors=").append(errors);
+            sb.append(" mean=").append(count > 0 ? totalTime / count : 0L).append("ms");
+            sb.append(" max=").append(maxTime).append("ms");
+            sb.append(" rowsRead=").append(rowsRead);
+            sb.append(" rowsWritten=").append(rowsWritten);
+            sb.append(" bytesRead=").append(bytesRead);
+            sb.append(" hist=[");
+            for (int i = 0; i < hist.length; i++)
+            {
+                if (i > 0)
+                    sb.append(",");
+                sb.append(hist[i]);
+            }
+            sb.append("]");
+            return sb.toString();
+        }
+    }
+    
+    private void register()
+    {
+        try
+        {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName(OBJECT_NAME);
+            if (!mbs.isRegistered(on))
+                mbs.registerMBean(this, on);
+        }
+        catch(Exception ex)
+        {
+            log.warn("failed to register MBean " + OBJECT_NAME + ": " + ex);
+        }
+    }
+    
+    /**
+     * Record one executed statement.
+     * 
+     * @param sql the statement (null if unknown)
+     * @param dt execution time in milliseconds
+     * @param result value returned by JdbcTemplate
+     * @param ok false if the statement failed
+     * @param rowsRead rows read from the ResultSet, -1 if the statement was not a 
+     * query with a ResultSetExtractor
+     * @param bytesRead estimated size of the values read from the ResultSet, -1 if unknown
+     */
+    void record(String sql, long dt, Object result, boolean ok, long rowsRead, long bytesRead)
+    {
+        String kind = getKind(sql);
+        long read = 0L;
+        long written = 0L;
+        if (rowsRead >= 0)
+            read = rowsRead;
+        else if (result instanceof Collection)
+            read = ((Collection) result).size();
+        else if (result instanceof int[])
+        {
+            for (int n : (int[]) result)
+                written += Math.max(n, 0);
+        }
+        else if (result instanceof Number && !kind.startsWith("SELECT"))
+            written = ((Number) result).longValue();
+        
+        int[] pc = putCounter.get();
+        if (pc[0] > 0)
+            pc[1]++;
+        if (bytesRead > 0)
+            threadBytes.get()[0] += bytesRead;
+        
+        boolean slow = (dt >= slowThreshold);
+        synchronized(this)
+        {
+            StatementStats s = stats.get(kind);
+            if (s == null)
+            {
+                s = new StatementStats();
+                stats.put(kind, s);
+            }
+            s.count++;
+            if (!ok)
+                s.errors++;
+            s.totalTime += dt;
+            s.maxTime = Math.max(s.maxTime, dt);
+            s.rowsRead += read;
+            s.rowsWritten += written;
+            if (bytesRead > 0)
+                s.bytesRead += bytesRead;
+            int i = 0;
+            while (i < BUCKETS.length && dt > BUCKETS[i])
+                i++;
+            s.hist[i]++;
+            if (slow)
+                slowCount++;
+        }
+        
+        if (slow)
+            log.warn("slow statement: " + kind + " " + dt + "ms" + (sql != null ? ": " + Util.formatSQL(sql) : ""));
+    }
+    
+    /**
+     * Start counting statements for a put. Nested puts are counted as part of the 
+     * outermost put.
+     */
+    public void startPut()
+    {
+        int[] pc = putCounter.get();
+        if (pc[0] == 0)
+            pc[1] = 0;
+        pc[0]++;
+    }
+    
+    public void endPut()
+    {
+        int[] pc = putCounter.get();
+        if (pc[0] == 0)
+            return;
+        pc[0]--;
+        if (pc[0] == 0)
+        {
+            synchronized(this)
+            {
+                puts++;
+                putStatements += pc[1];
+                maxPutStatements = Math.max(maxPutStatements, pc[1]);
+            }
+        }
+    }
+    
+    /**
+     * Get the estimated size of the values read by queries executed by the current 
+     * thread. Callers compute the difference before and after an operation. This is
+     * always 0 unless byte estimation is enabled.
+     * 
+     * @return estimated bytes read by the current thread
+     */
+    public long getThreadBytesRead()
+    {
+        return threadBytes.get()[0];
+    }
+    
+    /**
+     * Get the kind of a statement: the verb and the main table.
+     * 
+     * @param sql
+     * @return statement kind
+     */
+    static String getKind(String sql)
+    {
+        if (sql == null)
+            return "UNKNOWN";
+        String ret = kinds.get(sql);
+        if (ret == null)
+        {
+            ret = parseKind(sql);
+            if (kinds.size() < MAX_KINDS)
+                kinds.put(sql, ret);
+        }
+        return ret;
+    }
+    
+    private static String parseKind(String sql)
+    {
+        String s = sql.trim();
+        int i = s.indexOf(' ');
+        String verb = (i > 0 ? s.substring(0, i) : s).toUpperCase();
+        String table = null;
+        if ("SELECT".equals(verb) || "DELETE".equals(verb))
+            table = getToken(s, " FROM ");
+        else if ("INSERT".equals(verb))
+            table = getToken(s, " INTO ");
+        else if ("UPDATE".equals(verb))
+            table = getToken(s, "UPDATE ");
+        if (table == null)
+            return verb;
+        return verb + " " + table;
+    }
+    
+    private static String getToken(String s, String after)
+    {
+        int i = indexOfIgnoreCase(s, after);
+        if (i < 0)
+            return null;
+        i += after.length();
+        while (i < s.length() && s.charAt(i) == ' ')
+            i++;
+        int j = i;
+        while (j < s.length() && !Character.isWhitespace(s.charAt(j)) && s.charAt(j) != '(' && s.charAt(j) != ',')
+            j++;
+        if (j == i)
+            return null;
+        return s.substring(i, j);
+    }
+    
+    private static int indexOfIgnoreCase(String s, String str)
+    {
+        for (int i = 0; i + str.length() <= s.length(); i++)
+        {
+            if (s.regionMatches(true, i, str, 0, str.length()))
+                return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public synchronized String[] getStatementStats()
+    {
+        List<String> ret = new ArrayList<String>(stats.size());
+        for (Map.Entry<String,StatementStats> me : stats.entrySet())
+            ret.add(me.getKey() + ": " + me.getValue());
+        return ret.toArray(new String[ret.size()]);
+    }
+
+    @Override
+    public synchronized long getStatementCount()
+    {
+        long ret = 0L;
+        for (StatementStats s : stats.values())
+            ret += s.count;
+        return ret;
+    }
+
+    @Override
+    public synchronized long getSlowStatementCount()
+    {
+        return slowCount;
+    }
+
+    @Override
+    public long getSlowThreshold()
+    {
+        return slowThreshold;
+    }
+
+    @Override
+    public void setSlowThreshold(long ms)
+    {
+        this.slowThreshold = ms;
+    }
+
+    @Override
+    public boolean isEstimateBytes()
+    {
+        return estimateBytes;
+    }
+
+    @Override
+    public void setEstimateBytes(boolean enabled)
+    {
+        this.estimateBytes = enabled;
+    }
+
+    @Override
+    public synchronized long getPutCount()
+    {
+        return puts;
+    }
+
+    @Override
+    public synchronized double getStatementsPerPut()
+    {
+        if (puts == 0)
+            return 0.0;
+        return ((double) putStatements) / puts;
+    }
+
+    @Override
+    public synchronized long getMaxStatementsPerPut()
+    {
+        return maxPutStatements;
+    }
+
+    @Override
+    public synchronized void reset()
+    {
+        stats.clear();
+        slowCount = 0L;
+        puts = 0L;
+        putStatements = 0L;
+        maxPutStatements = 0L;
+    }
+}
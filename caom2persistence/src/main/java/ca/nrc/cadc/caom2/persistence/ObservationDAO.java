@@ -69,10 +69,12 @@
 
 package ca.nrc.cadc.caom2.persistence;
 
+import java.io.IOException;
 import java.util.Map;
 
 import ca.nrc.cadc.caom2.Observation;
 import ca.nrc.cadc.caom2.ObservationState;
+import ca.nrc.cadc.caom2.ObservationStateBucket;
 import ca.nrc.cadc.caom2.ObservationURI;
 import java.util.Date;
 import java.util.List;
@@ -129,6 +131,14 @@ public interface ObservationDAO
      */
     ObservationURI getURI(UUID id);
     
+    /**
+     * Get the state (maxLastModified and accMetaChecksum) of a single observation.
+     * 
+     * @param uri
+     * @return state or null if not found
+     */
+    ObservationState getState(ObservationURI uri);
+    
     /**
      * Get list of observation states in order of increasing maxlastModified timestamp.
      * @param collection
@@ -139,6 +149,18 @@ public interface ObservationDAO
      */
     List<ObservationState> getObservationList(String collection, Date minLastModified, Date maxLastModified, Integer batchSize);
     
+    /**
+     * Get observation state summary (count and digest) per maxLastModified time bucket
+     * in order of increasing time. Empty buckets are not included.
+     * 
+     * @param collection
+     * @param minLastModified
+     * @param maxLastModified
+     * @param bucketSize bucket size in milliseconds
+     * @return 
+     */
+    List<ObservationStateBucket> getObservationBuckets(String collection, Date minLastModified, Date maxLastModified, long bucketSize);
+    
     /**
      * Get a stored observation by UUID.
      * 
@@ -154,6 +176,18 @@ public interface ObservationDAO
      * @return the complete observation
      */
     Observation get(ObservationURI uri);
+    
+    /**
+     * Pass a stored observation to the handler one plane at a time. Only the current
+     * plane is kept in memory.
+     * 
+     * @param uri
+     * @param handler
+     * @return true if the observation was found
+     * @throws IOException if the handler fails
+     */
+    boolean stream(ObservationURI uri, ObservationStreamHandler handler)
+        throws IOException;
 
     /**
      * Store an observation.
@@ -161,6 +195,22 @@ public interface ObservationDAO
      * @param ce
      */
     void put(Observation ce);
+    
+    /**
+     * Store a new observation.
+     * 
+     * @param ce
+     * @return false if the observation already exists (nothing stored)
+     */
+    boolean create(Observation ce);
+    
+    /**
+     * Update a stored observation.
+     * 
+     * @param ce
+     * @return false if the observation does not exist (nothing stored)
+     */
+    boolean update(Observation ce);
 
     /**
      * Delete a stored observation by URI.
@@ -168,4 +218,12 @@ public interface ObservationDAO
      * @param uri
      */
     void delete(ObservationURI uri);
+    
+    /**
+     * Delete a stored observation by URI.
+     * 
+     * @param uri
+     * @return false if the observation does not exist
+     */
+    boolean deleteIfExists(ObservationURI uri);
 }
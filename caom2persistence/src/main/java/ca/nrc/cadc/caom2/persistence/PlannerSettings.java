@@ -0,0 +1,300 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2017.                            (c) 2017.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+
+package ca.nrc.cadc.caom2.persistence;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.regex.Pattern;
+import org.apache.log4j.Logger;
+
+/**
+ * Query planner settings (PostgreSQL run-time configuration parameters) applied per
+ * type of operation. Inside a transaction the settings of an operation are applied 
+ * with SET LOCAL and last until the end of the transaction. Outside a transaction
+ * the settings are applied to the session when a connection is checked out for the
+ * operation; the current settings of each physical connection are cached so a 
+ * checkout costs nothing unless the connection was last used with a different profile,
+ * and parameters that are not in the profile are reset to their default values.
+ * 
+ * @author pdowler
+ */
+public class PlannerSettings 
+{
+    private static final Logger log = Logger.getLogger(PlannerSettings.class);
+    
+    public enum Operation
+    {
+        /**
+         * Read complete observations (joins over the whole tree).
+         */
+        DEEP_READ,
+        
+        /**
+         * Read the skeleton of an entity before put or delete.
+         */
+        SKELETON_READ,
+        
+        /**
+         * Single table list queries (observation state, deleted entity, read access).
+         */
+        LIST,
+        
+        /**
+         * Insert, update, and delete.
+         */
+        WRITE
+    }
+    
+    private static final Pattern NAME = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_.]*");
+    private static final Pattern VALUE = Pattern.compile("[a-zA-Z0-9_.-]+");
+    
+    // physical connection -> session values set by us (non-default only)
+    private static final Map<Connection,Map<String,String>> sessionCache = new WeakHashMap<Connection,Map<String,String>>();
+    
+    private final Map<Operation,Map<String,String>> profiles = new EnumMap<Operation,Map<String,String>>(Operation.class);
+    
+    public PlannerSettings() 
+    { 
+        for (Operation op : Operation.values())
+            profiles.put(op, new TreeMap<String,String>());
+    }
+    
+    /**
+     * Set a planner parameter for an operation, e.g. 
+     * <code>set(Operation.DEEP_READ, "enable_hashjoin", "false")</code>.
+     * 
+     * @param op
+     * @param name parameter name
+     * @param value parameter value, null to remove the parameter from the profile
+     */
+    public void set(Operation op, String name, String value)
+    {
+        if (op == null || name == null)
+            throw new IllegalArgumentException("operation and name cannot be null");
+        if (!NAME.matcher(name).matches())
+            throw new IllegalArgumentException("invalid parameter name: " + name);
+        if (value == null)
+        {
+            profiles.get(op).remove(name);
+            return;
+        }
+        if (!VALUE.matcher(value).matches())
+            throw new IllegalArgumentException("invalid parameter value: " + name + "=" + value);
+        profiles.get(op).put(name, value);
+    }
+    
+    public Map<String,String> getProfile(Operation op)
+    {
+        return Collections.unmodifiableMap(profiles.get(op));
+    }
+    
+    /**
+     * Get the SQL to apply the profile of an operation inside the current transaction.
+     * Parameters that are set by the profile of another operation but not by this one
+     * are reset to their default value so settings from an earlier operation in the
+     * same transaction do not leak into this one.
+     * 
+     * @param op
+     * @return SET LOCAL statements or null if no profile sets any parameter
+     */
+    public String getLocalSQL(Operation op)
+    {
+        Map<String,String> p = profiles.get(op);
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String,String> me : p.entrySet())
+        {
+            if (sb.length() > 0)
+                sb.append("; ");
+            sb.append("SET LOCAL ").append(me.getKey()).append(" = ").append(me.getValue());
+        }
+        Set<String> reset = new TreeSet<String>();
+        for (Map.Entry<Operation,Map<String,String>> other : profiles.entrySet())
+        {
+            if (other.getKey() != op)
+                reset.addAll(other.getValue().keySet());
+        }
+        reset.removeAll(p.keySet());
+        for (String name : reset)
+        {
+            if (sb.length() > 0)
+                sb.append("; ");
+            sb.append("SET LOCAL ").append(name).append(" TO DEFAULT");
+        }
+        if (sb.length() == 0)
+            return null;
+        return sb.toString();
+    }
+    
+    /**
+     * Apply the profile of an operation to the session of a connection. A null operation
+     * resets all parameters previously set through this class.
+     * 
+     * @param con
+     * @param op operation or null
+     * @throws SQLException 
+     */
+    void apply(Connection con, Operation op)
+        throws SQLException
+    {
+        Map<String,String> want = Collections.emptyMap();
+        if (op != null)
+            want = profiles.get(op);
+        
+        Connection key = getPhysicalConnection(con);
+        Map<String,String> cur;
+        synchronized(sessionCache)
+        {
+            cur = sessionCache.get(key);
+        }
+        if (cur == null)
+            cur = Collections.emptyMap();
+        if (cur.equals(want))
+            return;
+        
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String,String> me : want.entrySet())
+        {
+            if (!me.getValue().equals(cur.get(me.getKey())))
+            {
+                if (sb.length() > 0)
+                    sb.append("; ");
+                sb.append("SET ").append(me.getKey()).append(" = ").append(me.getValue());
+            }
+        }
+        for (String name : cur.keySet())
+        {
+            if (!want.containsKey(name))
+            {
+                if (sb.length() > 0)
+                    sb.append("; ");
+                sb.append("SET ").append(name).append(" TO DEFAULT");
+            }
+        }
+        String sql = sb.toString();
+        log.debug("apply " + op + ": " + sql);
+        
+        synchronized(sessionCache)
+        {
+            // unknown state if the statement fails
+            sessionCache.remove(key);
+        }
+        Statement st = con.createStatement();
+        try
+        {
+            st.execute(sql);
+        }
+        finally
+        {
+            st.close();
+        }
+        synchronized(sessionCache)
+        {
+            sessionCache.put(key, new TreeMap<String,String>(want));
+        }
+    }
+    
+    // pools return a new proxy for each checkout
+    private static Connection getPhysicalConnection(Connection con)
+    {
+        try
+        {
+            if (con.isWrapperFor(Connection.class))
+            {
+                Connection ret = con.unwrap(Connection.class);
+                if (ret != null)
+                    return ret;
+            }
+        }
+        catch(SQLException ex)
+        {
+            log.debug("failed to unwrap " + con.getClass().getName() + ": " + ex);
+        }
+        catch(AbstractMethodError ex)
+        {
+            log.debug("failed to unwrap " + con.getClass().getName() + ": pre-JDBC4 driver");
+        }
+        return con;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "PlannerSettings" + profiles;
+    }
+}
@@ -69,9 +69,10 @@
 
 package ca.nrc.cadc.caom2.persistence;
 
+import ca.nrc.cadc.caom2.ObservationState;
+import ca.nrc.cadc.caom2.ObservationStateBucket;
 import ca.nrc.cadc.caom2.Plane;
 import ca.nrc.cadc.caom2.access.PlaneMetaReadAccess;
-import ca.nrc.cadc.caom2.compute.PolygonUtil;
 import ca.nrc.cadc.caom2.types.Interval;
 import ca.nrc.cadc.caom2.types.Point;
 import ca.nrc.cadc.caom2.types.Polygon;
@@ -79,11 +80,15 @@ import ca.nrc.cadc.caom2.types.SegmentType;
 import ca.nrc.cadc.caom2.types.SubInterval;
 import ca.nrc.cadc.caom2.types.Vertex;
 import ca.nrc.cadc.caom2.util.CaomUtil;
+import ca.nrc.cadc.date.DateUtil;
+import java.net.URI;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -93,6 +98,8 @@ import org.apache.log4j.Logger;
 import org.postgresql.geometric.PGpoint;
 import org.postgresql.geometric.PGpolygon;
 import org.postgresql.util.PGobject;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ResultSetExtractor;
 
 /**
  *
@@ -157,6 +164,98 @@ public class PostgreSQLGenerator extends BaseSQLGenerator
         return sb.toString();
     }
     
+    // add group names to many assets in one statement: the caller must merge the 
+    // group names for each asset since each row can only be updated once
+    @Override
+    protected String getUpdateAssetSQL(Class asset, Class ra, int num)
+    {
+        StringBuilder sb = new StringBuilder();
+        String col = getReadAccessCol(ra);
+        
+        sb.append("UPDATE ");
+        sb.append(getTable(asset));
+        sb.append(" SET ").append(col).append(" = ");
+        sb.append("(").append(col).append(" || v.groups::tsvector)");
+        sb.append(" FROM (VALUES ");
+        for (int i=0; i<num; i++)
+        {
+            if (i > 0)
+                sb.append(",");
+            sb.append("(?,?)");
+        }
+        sb.append(") AS v(groups, assetID)");
+        sb.append(" WHERE ");
+        if (PlaneMetaReadAccess.class.equals(ra) && !Plane.class.equals(asset))
+            sb.append(getPrimaryKeyColumn(Plane.class)); // HACK: only works because column name is the same in all tables
+        else      
+            sb.append(getPrimaryKeyColumn(asset));
+        sb.append(" = v.assetID");
+
+        return sb.toString();
+    }
+    
+    // the database collation (e.g. en_US) ignores case: use byte order
+    @Override
+    protected String getBinaryOrder(String column)
+    {
+        return column + " COLLATE \"C\"";
+    }
+    
+    // compute count and digest per bucket in the database: the digest must match 
+    // ObservationStateDiff.getDigest so observationID uses byte order (collate "C")
+    @Override
+    public String getObservationBucketSQL(String collection, Date minLastModified, Date maxLastModified, long bucketSize)
+    {
+        DateFormat df = DateUtil.getDateFormat(DateUtil.ISO_DATE_FORMAT, DateUtil.UTC);
+        String alias = getAlias(ObservationState.class);
+        String bucket = "floor(extract(epoch from " + alias + ".maxLastModified) * 1000 / " + bucketSize + ")::bigint";
+        
+        StringBuilder sb = new StringBuilder();
+        sb.append("SELECT ").append(bucket).append(" AS bucket, count(*), md5(string_agg(");
+        sb.append(alias).append(".observationID || E'\\t' || coalesce(").append(alias).append(".accMetaChecksum, '') || E'\\n', ''");
+        sb.append(" ORDER BY ").append(alias).append(".observationID COLLATE \"C\"))");
+        sb.append(" FROM ");
+        sb.append(getFrom(ObservationState.class));
+        sb.append(" WHERE ").append(alias).append(".collection = '").append(collection).append("'");
+        if (minLastModified != null)
+        {
+            sb.append(" AND ").append(alias).append(".maxLastModified >= '");
+            sb.append(df.format(minLastModified)).append("'");
+        }
+        if (maxLastModified != null)
+        {
+            sb.append(" AND ").append(alias).append(".maxLastModified <= '");
+            sb.append(df.format(maxLastModified)).append("'");
+        }
+        sb.append(" GROUP BY bucket ORDER BY bucket");
+        return sb.toString();
+    }
+
+    @Override
+    public ResultSetExtractor getObservationBucketExtractor(final long bucketSize)
+    {
+        return new ResultSetExtractor()
+        {
+            @Override
+            public Object extractData(ResultSet rs) 
+                throws SQLException, DataAccessException
+            {
+                List<ObservationStateBucket> ret = new ArrayList<ObservationStateBucket>();
+                while (rs.next())
+                {
+                    long b = rs.getLong(1);
+                    Date start = new Date(b * bucketSize);
+                    Date end = new Date((b + 1) * bucketSize - 1L);
+                    ObservationStateBucket osb = new ObservationStateBucket(start, end);
+                    osb.count = rs.getLong(2);
+                    osb.digest = URI.create("md5:" + rs.getString(3));
+                    ret.add(osb);
+                }
+                return ret;
+            }
+        };
+    }
+    
     @Override
     protected String literal(UUID value)
     {
@@ -256,7 +355,7 @@ public class PostgreSQLGenerator extends BaseSQLGenerator
         {
             log.debug("[safeSetPolygon] in: " + val);
             // pg_sphere only supports simple polygons
-            Polygon poly = PolygonUtil.getOuterHull(val);
+            Polygon poly = HullCache.getInstance().getOuterHull(val);
             log.debug("[safeSetPolygon] hull: " + poly);
             if (poly == null)
             {
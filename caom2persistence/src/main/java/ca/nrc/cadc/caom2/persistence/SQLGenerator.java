@@ -76,6 +76,7 @@ import ca.nrc.cadc.caom2.access.ReadAccess;
 import ca.nrc.cadc.caom2.persistence.skel.Skeleton;
 import java.net.URI;
 import java.util.Date;
+import java.util.List;
 import java.util.UUID;
 import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.RowMapper;
@@ -127,6 +128,15 @@ public interface SQLGenerator
     
     String getSelectSQL(Class c, UUID id);
     
+    /**
+     * Get SQL to select many entities of a single type by primary key.
+     * 
+     * @param c
+     * @param ids
+     * @return 
+     */
+    String getSelectSQL(Class c, List<UUID> ids);
+    
     String getSelectLastModifiedRangeSQL(Class c, Date minLastModified, Date maxLastModified, Integer batchSize);
 
     String getSelectSQL(Class c, Date minLastModified, Date maxLastModified, Integer batchSize);
@@ -136,13 +146,72 @@ public interface SQLGenerator
 
     ResultSetExtractor getObservationExtractor();
     
+    /**
+     * Get SQL to select a complete Observation ordered for getObservationStreamExtractor:
+     * the rows of each plane are together and planes are in productID order if the
+     * database can order them like String.compareTo.
+     * 
+     * @param uri
+     * @return
+     */
+    String getStreamSelectSQL(ObservationURI uri);
+    
+    /**
+     * Get extractor that passes the result of getStreamSelectSQL to the handler
+     * one plane at a time in productID order. The extractor returns Boolean.TRUE if 
+     * the observation was found.
+     * 
+     * @param handler
+     * @return 
+     */
+    ResultSetExtractor getObservationStreamExtractor(ObservationStreamHandler handler);
+    
     RowMapper getObservationStateMapper();
 
+    /**
+     * Get SQL to select the state of a single observation. The result is mapped
+     * by the getObservationStateMapper.
+     * 
+     * @param uri
+     * @return
+     */
+    String getObservationStateSQL(ObservationURI uri);
+
+    /**
+     * Get SQL to summarise observations in a collection by maxLastModified time bucket. 
+     * Bucket boundaries are multiples of bucketSize milliseconds since the epoch.
+     * 
+     * @param collection
+     * @param minLastModified
+     * @param maxLastModified
+     * @param bucketSize bucket size in milliseconds
+     * @return
+     */
+    String getObservationBucketSQL(String collection, Date minLastModified, Date maxLastModified, long bucketSize);
+    
+    /**
+     * Get extractor for the getObservationBucketSQL query. The extractor returns a
+     * List of ObservationStateBucket in time order; empty buckets are not included.
+     * 
+     * @param bucketSize bucket size in milliseconds
+     * @return
+     */
+    ResultSetExtractor getObservationBucketExtractor(long bucketSize);
+
     Class<? extends Skeleton> getSkeletonClass(Class c);
     
     ResultSetExtractor getSkeletonExtractor(Class<? extends Skeleton> c);
     
     RowMapper getReadAccessMapper(Class<? extends ReadAccess> c);
+    
+    /**
+     * Get a mapper for read access skeletons so many can be found with
+     * getSelectSQL(Class,List).
+     * 
+     * @param c
+     * @return 
+     */
+    RowMapper getReadAccessSkeletonMapper(Class<? extends Skeleton> c);
 
     RowMapper getDeletedEntityMapper(Class<? extends DeletedEntity> c);
 
@@ -150,7 +219,26 @@ public interface SQLGenerator
     
     EntityPut getEntityPut(Class<? extends CaomEntity> c, boolean isUpdate);
     
+    /**
+     * Get an insert or update operation for many entities of a single type. 
+     * Currently only supported for ReadAccess.
+     * 
+     * @param c
+     * @param isUpdate
+     * @return 
+     */
+    EntityBatchPut getEntityBatchPut(Class<? extends CaomEntity> c, boolean isUpdate);
+    
     EntityDelete getEntityDelete(Class<? extends CaomEntity> c, boolean primaryKey);
+    
+    /**
+     * Get a delete operation for many entities of a single type (and all their
+     * children) by primary key.
+     * 
+     * @param c
+     * @return 
+     */
+    EntityBatchDelete getEntityBatchDelete(Class<? extends CaomEntity> c);
 
     //String getDeleteSQL(Class c, UUID id, boolean primaryKey);
     
@@ -0,0 +1,304 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2017.                            (c) 2017.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+
+
+package ca.nrc.cadc.caom2.persistence;
+
+import ca.nrc.cadc.caom2.Artifact;
+import ca.nrc.cadc.caom2.Chunk;
+import ca.nrc.cadc.caom2.Observation;
+import ca.nrc.cadc.caom2.Part;
+import ca.nrc.cadc.caom2.Plane;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import org.apache.log4j.Logger;
+import org.springframework.jdbc.core.ResultSetExtractor;
+
+/**
+ * Class that uses PartialRowMapper(s) to pass a single Observation to an 
+ * ObservationStreamHandler one plane at a time, so only the current plane is
+ * kept in memory. The ResultSet must be ordered by plane. If the database cannot 
+ * order the planes by productID in the order of String.compareTo (the order of 
+ * Observation.getPlanes) the planes are kept until the end of the observation and
+ * passed to the handler in that order.
+ * 
+ * @author pdowler
+ */
+public class StreamingObservationExtractor implements ResultSetExtractor
+{
+    private static Logger log = Logger.getLogger(StreamingObservationExtractor.class);
+    
+    private PartialRowMapper<Observation> obsMapper;
+    private PartialRowMapper<Plane> planeMapper;
+    private PartialRowMapper<Artifact> artifactMapper;
+    private PartialRowMapper<Part> partMapper;
+    private PartialRowMapper<Chunk> chunkMapper;
+    
+    private ObservationStreamHandler handler;
+    
+    // planes kept for sorting; null: planes are passed to the handler as soon as
+    // they are complete
+    private List<Plane> planes;
+    
+    private static final Comparator<Plane> PRODUCT_ID_ORDER = new Comparator<Plane>()
+    {
+        @Override
+        public int compare(Plane p1, Plane p2)
+        {
+            return p1.getProductID().compareTo(p2.getProductID());
+        }
+    };
+    
+    /**
+     * Wrapper so a handler failure can pass through the JdbcTemplate.
+     */
+    static class HandlerException extends RuntimeException
+    {
+        HandlerException(IOException cause)
+        {
+            super(cause);
+        }
+        
+        @Override
+        public IOException getCause()
+        {
+            return (IOException) super.getCause();
+        }
+    }
+    
+    /**
+     * @param gen
+     * @param handler
+     * @param sortPlanes true if the ResultSet is not in productID order
+     */
+    public StreamingObservationExtractor(BaseSQLGenerator gen, ObservationStreamHandler handler, boolean sortPlanes)
+    {
+        this.obsMapper = gen.getObservationMapper();
+        this.planeMapper = gen.getPlaneMapper();
+        this.artifactMapper = gen.getArtifactMapper();
+        this.partMapper = gen.getPartMapper();
+        this.chunkMapper = gen.getChunkMapper();
+        this.handler = handler;
+        if (sortPlanes)
+            this.planes = new ArrayList<Plane>();
+    }
+
+    /**
+     * @param rs
+     * @return Boolean.TRUE if an observation was found
+     * @throws SQLException 
+     */
+    public Object extractData(ResultSet rs) 
+        throws SQLException
+    {
+        try
+        {
+            return extract(rs);
+        }
+        catch (IOException ex)
+        {
+            throw new HandlerException(ex);
+        }
+    }
+
+    private Boolean extract(ResultSet rs)
+        throws SQLException, IOException
+    {
+        int ncol = rs.getMetaData().getColumnCount();
+        log.debug("extractData: ncol=" +  ncol);
+        Observation curObs = null;
+        Plane curPlane = null;
+        Artifact curArtifact = null;
+        Part curPart = null;
+        Chunk curChunk = null;
+        int row = 0;
+        while ( rs.next() )
+        {
+            row++;
+            int col = 1;
+            Observation obs = obsMapper.mapRow(rs, row, col);
+            col += obsMapper.getColumnCount();
+            if (curObs == null)
+            {
+                curObs = obs;
+                log.debug("START observation: " + curObs.getID());
+                handler.start(curObs);
+            }
+            else if (!curObs.getID().equals(obs.getID()))
+                throw new RuntimeException("BUG: stream query returned more than one observation");
+            // else: obs content repeated due to join -- ignore it
+            
+            if (ncol > col) // more columns==depth>1: planes
+            {
+                Plane p = planeMapper.mapRow(rs, row, col);
+                col += planeMapper.getColumnCount();
+                if (p != null)
+                {
+                    if (curPlane == null || !curPlane.getID().equals(p.getID()))
+                    {
+                        if (curPlane != null) // found first row of next plane: previous plane is complete
+                            endPlane(curPlane);
+                        curPlane = p;
+                        curArtifact = null;
+                        curPart = null;
+                        curChunk = null;
+                        log.debug("START plane: " + curPlane.getID());
+                    }
+                    //else:  plane content repeated due to join -- ignore it
+                }
+                else
+                {
+                    log.debug("observation: " + curObs.getID() + ": no planes");
+                    curPlane = null;
+                }
+            }
+            if (curPlane != null && ncol > col) // more columns==depth>2: artifacts
+            {
+                Artifact a = artifactMapper.mapRow(rs, row, col);
+                col += artifactMapper.getColumnCount();
+                if (a != null)
+                {
+                    if (curArtifact == null || !curArtifact.getID().equals(a.getID()))
+                    {
+                        curArtifact = a;
+                        curPlane.getArtifacts().add(curArtifact);
+                        log.debug("START artifact: " + curArtifact.getID());
+                    }
+                    //else: artifact content repeated due to join -- ignore it
+                }
+                else
+                    curArtifact = null;
+            }
+            if (curArtifact != null && ncol > col) // more columns==depth>3: parts
+            {
+                Part p = partMapper.mapRow(rs, row, col);
+                col += partMapper.getColumnCount();
+                if (p != null)
+                {
+                    if (curPart == null || !curPart.getID().equals(p.getID()))
+                    {
+                        curPart = p;
+                        curArtifact.getParts().add(curPart);
+                        log.debug("START part: " + curPart.getID());
+                    }
+                    //else: part content repeated due to join -- ignore it
+                }
+                else
+                    curPart = null;
+            }
+            if (curPart != null && ncol > col) // more columns==depth>4: chunks
+            {
+                Chunk c = chunkMapper.mapRow(rs, row, col);
+                col += chunkMapper.getColumnCount();
+                if (c != null)
+                {
+                    if (curChunk == null || !curChunk.getID().equals(c.getID()))
+                    {
+                        curChunk = c;
+                        curPart.getChunks().add(curChunk);
+                    }
+                }
+                else
+                    curChunk = null;
+            }
+        }
+        
+        if (curObs == null)
+            return Boolean.FALSE;
+        
+        if (curPlane != null)
+            endPlane(curPlane);
+        if (planes != null)
+        {
+            Collections.sort(planes, PRODUCT_ID_ORDER);
+            for (Plane p : planes)
+                handler.plane(p);
+            planes.clear();
+        }
+        log.debug("END observation: " + curObs.getID() + " rows: " + row);
+        handler.end(curObs);
+        return Boolean.TRUE;
+    }
+    
+    private void endPlane(Plane p)
+        throws IOException
+    {
+        log.debug("END plane: " + p.getID());
+        if (planes != null)
+            planes.add(p);
+        else
+            handler.plane(p);
+    }
+}
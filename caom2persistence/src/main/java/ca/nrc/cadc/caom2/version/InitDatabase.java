@@ -105,6 +105,7 @@ public class InitDatabase
         "caom2.HarvestState.sql",
         "caom2.HarvestSkip.sql",
         "caom2.HarvestSkipURI.sql",
+        "caom2.HarvestLease.sql",
         "caom2.access.sql",
         "caom2.deleted.sql",
         "caom2.extra_indices.sql"
@@ -113,7 +114,8 @@ public class InitDatabase
     static String[] UPGRADE_SQL = new String[]
     {
         "caom2.upgrade-23.sql",    // alter existing tables
-        "caom2.HarvestSkipURI.sql" // new table
+        "caom2.HarvestSkipURI.sql", // new table
+        "caom2.HarvestLease.sql"    // new table
     };
     
     private final DataSource dataSource;
@@ -0,0 +1,18 @@
+create table caom2.HarvestLease
+(
+    source          varchar(256) not null,
+    cname           varchar(256) not null,
+    shardStart      timestamp not null,
+    shardEnd        timestamp not null,
+    owner           varchar(256),
+    expires         timestamp,
+    done            smallint not null,
+
+    lastModified    timestamp not null,
+    leaseID         uuid primary key
+)
+;
+
+create unique index HarvestLease_i1
+    on caom2.HarvestLease ( source,cname,shardStart )
+;
@@ -0,0 +1,271 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2017.                            (c) 2017.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+
+package ca.nrc.cadc.caom2.harvester.state;
+
+import ca.nrc.cadc.caom2.version.InitDatabase;
+import ca.nrc.cadc.db.ConnectionConfig;
+import ca.nrc.cadc.db.DBConfig;
+import ca.nrc.cadc.db.DBUtil;
+import ca.nrc.cadc.util.Log4jInit;
+import java.util.Date;
+import java.util.List;
+import javax.sql.DataSource;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author pdowler
+ */
+public class PostgresqlHarvestLeaseDAOTest
+{
+    private static final Logger log = Logger.getLogger(PostgresqlHarvestLeaseDAOTest.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.caom2.harvester", Level.INFO);
+    }
+
+    private static final long SHARD_SIZE = 1000000L;
+    
+    DataSource dataSource;
+    String database;
+    String schema;
+
+    public PostgresqlHarvestLeaseDAOTest()
+        throws Exception
+    {
+        try
+        {
+            this.database = "cadctest";
+            this.schema = "caom2";
+            DBConfig dbrc = new DBConfig();
+            ConnectionConfig cc = dbrc.getConnectionConfig("CAOM2_PG_TEST", database);
+            this.dataSource = DBUtil.getDataSource(cc);
+            
+            InitDatabase init = new InitDatabase(dataSource, "cadctest", "caom2");
+            init.doInit();
+        
+            String sql = "DELETE FROM " + database + "." + schema + ".HarvestLease";
+            log.debug("cleanup: " + sql);
+            dataSource.getConnection().createStatement().execute(sql);
+        }
+        catch(Exception ex)
+        {
+            log.error("failed to init DataSource", ex);
+        }
+    }
+
+    @Test
+    public void testCreateShards()
+    {
+        try
+        {
+            HarvestLeaseDAO dao = new HarvestLeaseDAO(dataSource, database, schema);
+            Date start = new Date(5 * SHARD_SIZE + 123L);
+            Date end = new Date(8 * SHARD_SIZE + 456L);
+            
+            dao.createShards("testCreateShards", "Integer", start, end, SHARD_SIZE);
+            List<HarvestLease> shards = dao.getShards("testCreateShards", "Integer");
+            Assert.assertEquals("shards", 4, shards.size());
+            Assert.assertEquals("aligned start", 5 * SHARD_SIZE, shards.get(0).shardStart.getTime());
+            Assert.assertEquals("shard end", 6 * SHARD_SIZE - 1L, shards.get(0).shardEnd.getTime());
+            Assert.assertEquals("last shard end", end, shards.get(3).shardEnd);
+            Assert.assertEquals("remaining", 4, dao.countRemaining("testCreateShards", "Integer"));
+            
+            // same shards: no change
+            dao.createShards("testCreateShards", "Integer", start, end, SHARD_SIZE);
+            shards = dao.getShards("testCreateShards", "Integer");
+            Assert.assertEquals("shards", 4, shards.size());
+            
+            // later end: last shard is extended
+            Date end2 = new Date(8 * SHARD_SIZE + 789L);
+            dao.createShards("testCreateShards", "Integer", start, end2, SHARD_SIZE);
+            shards = dao.getShards("testCreateShards", "Integer");
+            Assert.assertEquals("shards", 4, shards.size());
+            Assert.assertEquals("extended shard end", end2, shards.get(3).shardEnd);
+        }
+        catch(Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
+    @Test
+    public void testClaimComplete()
+    {
+        try
+        {
+            HarvestLeaseDAO dao = new HarvestLeaseDAO(dataSource, database, schema);
+            Date start = new Date(5 * SHARD_SIZE);
+            Date end = new Date(7 * SHARD_SIZE - 1L);
+            dao.createShards("testClaim", "Integer", start, end, SHARD_SIZE);
+            
+            HarvestLease l1 = dao.claim("testClaim", "Integer", "w1", 60000L);
+            Assert.assertNotNull(l1);
+            Assert.assertEquals("w1", l1.owner);
+            HarvestLease l2 = dao.claim("testClaim", "Integer", "w2", 60000L);
+            Assert.assertNotNull(l2);
+            Assert.assertFalse("different shards", l1.shardStart.equals(l2.shardStart));
+            
+            // all shards owned
+            HarvestLease l3 = dao.claim("testClaim", "Integer", "w3", 60000L);
+            Assert.assertNull(l3);
+            
+            Assert.assertTrue("renew", dao.renew(l1, 60000L));
+            Assert.assertTrue("complete", dao.complete(l1));
+            Assert.assertFalse("renew after complete", dao.renew(l1, 60000L));
+            Assert.assertEquals("remaining", 1, dao.countRemaining("testClaim", "Integer"));
+            
+            // released shard can be claimed again
+            dao.release(l2);
+            l3 = dao.claim("testClaim", "Integer", "w3", 60000L);
+            Assert.assertNotNull(l3);
+            Assert.assertEquals(l2.shardStart, l3.shardStart);
+            Assert.assertEquals("w3", l3.owner);
+        }
+        catch(Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
+    @Test
+    public void testClaimExpired()
+    {
+        try
+        {
+            HarvestLeaseDAO dao = new HarvestLeaseDAO(dataSource, database, schema);
+            Date start = new Date(5 * SHARD_SIZE);
+            Date end = new Date(6 * SHARD_SIZE - 1L);
+            dao.createShards("testClaimExpired", "Integer", start, end, SHARD_SIZE);
+            
+            HarvestLease l1 = dao.claim("testClaimExpired", "Integer", "w1", 10L);
+            Assert.assertNotNull(l1);
+            Thread.sleep(100L);
+            
+            HarvestLease l2 = dao.claim("testClaimExpired", "Integer", "w2", 60000L);
+            Assert.assertNotNull("expired lease", l2);
+            Assert.assertEquals(l1.shardStart, l2.shardStart);
+            
+            // lost lease
+            Assert.assertFalse("renew", dao.renew(l1, 60000L));
+            Assert.assertFalse("complete", dao.complete(l1));
+            Assert.assertEquals("remaining", 1, dao.countRemaining("testClaimExpired", "Integer"));
+        }
+        catch(Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
+    @Test
+    public void testPurge()
+    {
+        try
+        {
+            HarvestLeaseDAO dao = new HarvestLeaseDAO(dataSource, database, schema);
+            Date start = new Date(5 * SHARD_SIZE);
+            Date end = new Date(7 * SHARD_SIZE + 123L);
+            dao.createShards("testPurge", "Integer", start, end, SHARD_SIZE);
+            Assert.assertEquals("shards", 3, dao.getShards("testPurge", "Integer").size());
+            
+            HarvestLease l;
+            while ( (l = dao.claim("testPurge", "Integer", "w1", 60000L)) != null)
+                Assert.assertTrue("complete", dao.complete(l));
+            Assert.assertEquals("remaining", 0, dao.countRemaining("testPurge", "Integer"));
+            
+            // the shard that contains the end is kept
+            int n = dao.purge("testPurge", "Integer", end);
+            Assert.assertEquals("purged", 2, n);
+            List<HarvestLease> shards = dao.getShards("testPurge", "Integer");
+            Assert.assertEquals("shards", 1, shards.size());
+            Assert.assertEquals(7 * SHARD_SIZE, shards.get(0).shardStart.getTime());
+            
+            // shards that are not done are kept
+            Date end2 = new Date(9 * SHARD_SIZE);
+            dao.createShards("testPurge", "Integer", end, end2, SHARD_SIZE);
+            n = dao.purge("testPurge", "Integer", end2);
+            Assert.assertEquals("purged", 0, n);
+            Assert.assertEquals("shards", 3, dao.getShards("testPurge", "Integer").size());
+        }
+        catch(Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+}
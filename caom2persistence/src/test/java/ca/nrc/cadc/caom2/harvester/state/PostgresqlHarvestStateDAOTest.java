@@ -266,4 +266,37 @@ public class PostgresqlHarvestStateDAOTest
             Assert.fail("unexpected exception: " + unexpected);
         }
     }
+
+    @Test
+    public void testDelete()
+    {
+        try
+        {
+            HarvestStateDAO dao = new PostgresqlHarvestStateDAO(dataSource, database, schema);
+            HarvestState s = dao.get("testDelete", Integer.class.getName());
+            s.curLastModified = new Date();
+            dao.put(s);
+            HarvestState other = dao.get("testDelete", Long.class.getName());
+            other.curLastModified = new Date();
+            dao.put(other);
+
+            dao.delete("testDelete", Integer.class.getName());
+
+            HarvestState s2 = dao.get("testDelete", Integer.class.getName());
+            Assert.assertNotNull(s2);
+            Assert.assertNull(s2.curLastModified);
+            Assert.assertNull(s2.id);
+
+            HarvestState other2 = dao.get("testDelete", Long.class.getName());
+            Assert.assertEquals(other.id, other2.id);
+
+            // deleting a missing state is not an error
+            dao.delete("testDelete", Integer.class.getName());
+        }
+        catch(Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
 }
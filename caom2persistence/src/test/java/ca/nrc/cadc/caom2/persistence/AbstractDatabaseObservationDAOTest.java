@@ -102,6 +102,8 @@ import ca.nrc.cadc.caom2.Metrics;
 import ca.nrc.cadc.caom2.Observation;
 import ca.nrc.cadc.caom2.ObservationIntentType;
 import ca.nrc.cadc.caom2.ObservationState;
+import ca.nrc.cadc.caom2.ObservationStateBucket;
+import ca.nrc.cadc.caom2.ObservationStateDiff;
 import ca.nrc.cadc.caom2.ObservationURI;
 import ca.nrc.cadc.caom2.Part;
 import ca.nrc.cadc.caom2.Plane;
@@ -117,6 +119,8 @@ import ca.nrc.cadc.caom2.Target;
 import ca.nrc.cadc.caom2.TargetPosition;
 import ca.nrc.cadc.caom2.TargetType;
 import ca.nrc.cadc.caom2.Telescope;
+import ca.nrc.cadc.caom2.persistence.skel.ObservationSkeleton;
+import ca.nrc.cadc.caom2.persistence.skel.PlaneSkeleton;
 import ca.nrc.cadc.caom2.types.Point;
 import ca.nrc.cadc.caom2.wcs.Axis;
 import ca.nrc.cadc.caom2.wcs.Coord2D;
@@ -342,6 +346,78 @@ public abstract class AbstractDatabaseObservationDAOTest
         }
     }
     
+    @Test
+    public void testGetObservationBuckets()
+    {
+        try
+        {
+            String collection = "FOO";
+            Date start = new Date();
+            Thread.sleep(10);
+            
+            for (int i = 1; i <= 4; i++)
+            {
+                Observation obs = new SimpleObservation(collection, "bar" + i);
+                dao.put(obs);
+                Assert.assertTrue(dao.exists(obs.getURI()));
+                log.info("created: " + obs);
+                Thread.sleep(10);
+            }
+            Date end = new Date();
+            
+            List<ObservationState> states = dao.getObservationList(collection, start, end, null);
+            Assert.assertEquals(4, states.size());
+            
+            // day buckets: digest computed by the database must match the java implementation
+            long day = 24 * 3600 * 1000L;
+            List<ObservationStateBucket> result = dao.getObservationBuckets(collection, start, end, day);
+            // the states usually fall in one bucket but may straddle midnight UTC
+            long firstBucket = states.get(0).maxLastModified.getTime() / day;
+            long lastBucket = states.get(states.size() - 1).maxLastModified.getTime() / day;
+            Assert.assertEquals(lastBucket - firstBucket + 1, result.size());
+            long num = 0;
+            for (ObservationStateBucket b : result)
+            {
+                log.info("found: " + b);
+                List<ObservationState> expected = new ArrayList<ObservationState>();
+                for (ObservationState s : states)
+                {
+                    if (s.maxLastModified.getTime() / day == b.getStart().getTime() / day)
+                        expected.add(s);
+                }
+                Assert.assertEquals(expected.size(), b.count);
+                Assert.assertEquals(ObservationStateDiff.getDigest(expected), b.digest);
+                num += b.count;
+            }
+            Assert.assertEquals(4, num);
+            
+            // tiny buckets
+            result = dao.getObservationBuckets(collection, start, end, 1L);
+            Assert.assertEquals(4, result.size());
+            for (int i = 0; i < 4; i++)
+            {
+                ObservationStateBucket b = result.get(i);
+                Assert.assertEquals(1, b.count);
+                Assert.assertEquals(ObservationStateDiff.getDigest(states.subList(i, i + 1)), b.digest);
+            }
+            
+            try
+            {
+                dao.getObservationBuckets(null, start, end, day);
+                Assert.fail("expected IllegalArgumentException for null collection, got results");
+            }
+            catch(IllegalArgumentException ex)
+            {
+                log.info("caught expected exception: " + ex);
+            }
+        }            
+        catch(Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+    
     @Test
     public void testNestedTransaction()
     {
@@ -474,6 +550,189 @@ public abstract class AbstractDatabaseObservationDAOTest
         }
     }
 
+    @Test
+    public void testCreateUpdateDeleteIfExists()
+    {
+        try
+        {
+            Observation orig = getTestObservation(false, 5, false, true);
+            
+            // UPDATE: not found
+            Assert.assertFalse(dao.update(orig));
+            Assert.assertFalse(dao.exists(orig.getURI()));
+            
+            // CREATE
+            Assert.assertTrue(dao.create(orig));
+            Assert.assertTrue(dao.exists(orig.getURI()));
+            
+            // CREATE: already exists
+            Assert.assertFalse(dao.create(orig));
+            
+            // CREATE: same URI with a different ID
+            Observation dupe = getTestObservation(false, 1, false, true);
+            Assert.assertEquals(orig.getURI(), dupe.getURI());
+            Assert.assertFalse(dao.create(dupe));
+            
+            // UPDATE
+            orig.sequenceNumber = 456;
+            Assert.assertTrue(dao.update(orig));
+            Observation retrieved = dao.get(orig.getURI());
+            Assert.assertNotNull("found by URI", retrieved);
+            testEqual(orig, retrieved);
+            
+            // UPDATE: same URI with a different ID
+            try
+            {
+                dao.update(dupe);
+                Assert.fail("expected IllegalArgumentException for ID mismatch");
+            }
+            catch(IllegalArgumentException expected) { }
+            
+            // DELETE
+            Assert.assertTrue(dao.deleteIfExists(orig.getURI()));
+            Assert.assertFalse(dao.exists(orig.getURI()));
+            Assert.assertFalse(dao.deleteIfExists(orig.getURI()));
+            
+            Assert.assertFalse("open transaction", txnManager.isOpen());
+        }
+        catch(Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
+    @Test
+    public void testGetSkeleton()
+    {
+        try
+        {
+            Observation orig = getTestObservation(false, 5, false, true);
+            Assert.assertNull(dao.getSkeleton(orig.getID()));
+            
+            dao.put(orig);
+            ObservationSkeleton skel = dao.getSkeleton(orig.getID());
+            Assert.assertNotNull(skel);
+            Assert.assertEquals(orig.getID(), skel.id);
+            Assert.assertEquals(orig.getAccMetaChecksum(), skel.accMetaChecksum);
+            Assert.assertEquals(orig.getPlanes().size(), skel.planes.size());
+            for (Plane p : orig.getPlanes())
+            {
+                PlaneSkeleton ps = Util.findPlaneSkel(skel.planes, p.getID());
+                Assert.assertNotNull(ps);
+                Assert.assertEquals(p.getMetaChecksum(), ps.metaChecksum);
+                Assert.assertEquals(p.getAccMetaChecksum(), ps.accMetaChecksum);
+            }
+            
+            dao.delete(orig.getID());
+            Assert.assertNull(dao.getSkeleton(orig.getID()));
+        }
+        catch(Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
+    @Test
+    public void testStream()
+    {
+        try
+        {
+            Observation orig = getTestObservation(false, 5, false, true);
+            // mixed case: String order is Bthing, athing but a locale collation 
+            // would return athing, Bthing
+            orig.getPlanes().add(getTestPlane(false, "athing", 5));
+            orig.getPlanes().add(getTestPlane(false, "Bthing", 5));
+            dao.put(orig);
+            
+            final List<Plane> planes = new ArrayList<Plane>();
+            final List<Observation> obs = new ArrayList<Observation>();
+            ObservationStreamHandler handler = new ObservationStreamHandler()
+            {
+                @Override
+                public void start(Observation o)
+                {
+                    obs.add(o);
+                }
+
+                @Override
+                public void plane(Plane p)
+                {
+                    planes.add(p);
+                }
+
+                @Override
+                public void end(Observation o)
+                {
+                    Assert.assertSame(obs.get(0), o);
+                }
+            };
+            Assert.assertTrue(dao.stream(orig.getURI(), handler));
+            Assert.assertEquals(1, obs.size());
+            Assert.assertEquals(orig.getID(), obs.get(0).getID());
+            Assert.assertTrue(obs.get(0).getPlanes().isEmpty());
+            
+            // same planes in productID order
+            Assert.assertEquals(orig.getPlanes().size(), planes.size());
+            Iterator<Plane> oi = orig.getPlanes().iterator();
+            for (Plane p : planes)
+            {
+                Plane op = oi.next();
+                Assert.assertEquals(op.getProductID(), p.getProductID());
+                Assert.assertEquals(op.getAccMetaChecksum(), p.getAccMetaChecksum());
+                Assert.assertEquals(op.getArtifacts().size(), p.getArtifacts().size());
+            }
+            
+            dao.delete(orig.getID());
+            Assert.assertFalse(dao.stream(orig.getURI(), handler));
+        }
+        catch(Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
+    @Test
+    public void testBatchDelete()
+    {
+        try
+        {
+            Observation o1 = getTestObservation(false, 5, false, true);
+            Observation o2 = new SimpleObservation(AbstractDatabaseObservationDAOTest.class.getSimpleName(), "batch2");
+            Observation o3 = new SimpleObservation(AbstractDatabaseObservationDAOTest.class.getSimpleName(), "batch3");
+            
+            dao.put(o1);
+            dao.put(o2);
+            dao.put(o3);
+            Assert.assertTrue(dao.exists(o1.getURI()));
+            Assert.assertTrue(dao.exists(o2.getURI()));
+            Assert.assertTrue(dao.exists(o3.getURI()));
+            
+            // o1 has children at all levels; random ID is not found and ignored
+            List<UUID> ids = new ArrayList<UUID>();
+            ids.add(o1.getID());
+            ids.add(o2.getID());
+            ids.add(UUID.randomUUID());
+            dao.delete(ids);
+            
+            Assert.assertFalse(dao.exists(o1.getURI()));
+            Assert.assertFalse(dao.exists(o2.getURI()));
+            Assert.assertTrue(dao.exists(o3.getURI()));
+            
+            dao.delete(o3.getURI());
+            Assert.assertFalse(dao.exists(o3.getURI()));
+            
+            Assert.assertFalse("open transaction", txnManager.isOpen());
+        }
+        catch(Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
     @Test
     public void testPutSimpleObservation()
     {
@@ -82,6 +82,7 @@ import ca.nrc.cadc.caom2.access.ObservationMetaReadAccess;
 import ca.nrc.cadc.caom2.access.ReadAccess;
 import java.lang.reflect.Constructor;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -285,6 +286,74 @@ public abstract class AbstractDatabaseReadAccessDAOTest
         }
     }
     
+    @Test
+    public void testBatchPutDelete()
+    {
+        UUID assetID = genID();
+        Observation obs = new SimpleObservation("FOO", "bar-" + UUID.randomUUID());
+        Util.assignID(obs, assetID);
+        Plane pl = new Plane("bar1");
+        Util.assignID(pl, assetID);
+        Artifact ar = new Artifact(URI.create("ad:FOO/bar1.fits"), ProductType.SCIENCE, ReleaseType.DATA);
+        Part pp = new Part(0);
+        Chunk ch = new Chunk();
+        
+        pp.getChunks().add(ch);
+        ar.getParts().add(pp);
+        pl.getArtifacts().add(ar);
+        obs.getPlanes().add(pl);
+            
+        try
+        {
+            // cleanup previous test run
+            obsDAO.delete(assetID);
+            
+            obsDAO.put(obs);
+            
+            for (Class c : entityClasses)
+            {
+                String s = c.getSimpleName();
+                Constructor ctor = c.getConstructor(UUID.class, URI.class);
+                List<ReadAccess> expected = new ArrayList<ReadAccess>();
+                expected.add((ReadAccess) ctor.newInstance(assetID, new URI("ivo://cadc.nrc.ca/gms?FOO-777")));
+                expected.add((ReadAccess) ctor.newInstance(assetID, new URI("ivo://cadc.nrc.ca/gms?FOO-999")));
+                
+                dao.put(expected);
+                for (ReadAccess e : expected)
+                {
+                    ReadAccess actual = dao.get(c, e.getID());
+                    checkPut(s, e, actual);
+                }
+                
+                // idempotent put: all skipped
+                dao.put(expected);
+                for (ReadAccess e : expected)
+                {
+                    ReadAccess actual = dao.get(c, e.getID());
+                    checkPut(s, e, actual);
+                }
+                
+                List<UUID> ids = new ArrayList<UUID>();
+                for (ReadAccess e : expected)
+                {
+                    ids.add(e.getID());
+                }
+                ids.add(genID()); // not found: ignored
+                dao.delete(c, ids);
+                for (ReadAccess e : expected)
+                {
+                    ReadAccess actual = dao.get(c, e.getID());
+                    checkDelete(s, e, actual);
+                }
+            }
+        }
+        catch(Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+    
     @Test
     public void testRejectDuplicate()
     {
@@ -0,0 +1,148 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2017.                            (c) 2017.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+
+package ca.nrc.cadc.caom2.persistence;
+
+import ca.nrc.cadc.caom2.compute.PolygonUtil;
+import ca.nrc.cadc.caom2.types.Polygon;
+import ca.nrc.cadc.caom2.types.SegmentType;
+import ca.nrc.cadc.caom2.types.Vertex;
+import ca.nrc.cadc.util.Log4jInit;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author pdowler
+ */
+public class HullCacheTest 
+{
+    private static final Logger log = Logger.getLogger(HullCacheTest.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.caom2.persistence", Level.INFO);
+    }
+
+    private Polygon getPolygon(double x, double y)
+    {
+        Polygon ret = new Polygon();
+        ret.getVertices().add(new Vertex(x, y, SegmentType.MOVE));
+        ret.getVertices().add(new Vertex(x + 1.0, y, SegmentType.LINE));
+        ret.getVertices().add(new Vertex(x + 1.0, y + 1.0, SegmentType.LINE));
+        ret.getVertices().add(new Vertex(x, y + 1.0, SegmentType.LINE));
+        ret.getVertices().add(new Vertex(0.0, 0.0, SegmentType.CLOSE));
+        return ret;
+    }
+    
+    @Test
+    public void testGetOuterHull()
+    {
+        try
+        {
+            HullCache cache = new HullCache(2);
+            
+            Polygon expected = PolygonUtil.getOuterHull(getPolygon(10.0, 20.0));
+            Polygon actual = cache.getOuterHull(getPolygon(10.0, 20.0));
+            Assert.assertNotNull(actual);
+            Assert.assertEquals(expected.getVertices().size(), actual.getVertices().size());
+            Assert.assertEquals(0L, cache.getHits());
+            Assert.assertEquals(1L, cache.getMisses());
+            
+            // same vertices in another instance
+            Polygon again = cache.getOuterHull(getPolygon(10.0, 20.0));
+            Assert.assertSame(actual, again);
+            Assert.assertEquals(1L, cache.getHits());
+            
+            // different vertices
+            Polygon other = cache.getOuterHull(getPolygon(11.0, 20.0));
+            Assert.assertNotSame(actual, other);
+            Assert.assertEquals(2L, cache.getMisses());
+            
+            // LRU: 10,20 was used before 11,20 so it is removed
+            cache.getOuterHull(getPolygon(12.0, 20.0));
+            cache.getOuterHull(getPolygon(11.0, 20.0));
+            Assert.assertEquals(2L, cache.getHits());
+            cache.getOuterHull(getPolygon(10.0, 20.0));
+            Assert.assertEquals(4L, cache.getMisses());
+            
+            cache.clear();
+            Assert.assertEquals(0L, cache.getHits());
+            Assert.assertEquals(0L, cache.getMisses());
+        }
+        catch(Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+}
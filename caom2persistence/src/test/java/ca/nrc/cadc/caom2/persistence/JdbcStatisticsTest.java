@@ -0,0 +1,240 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2017.                            (c) 2017.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+
+package ca.nrc.cadc.caom2.persistence;
+
+import ca.nrc.cadc.util.Log4jInit;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.jdbc.core.ResultSetExtractor;
+
+/**
+ *
+ * @author pdowler
+ */
+public class JdbcStatisticsTest 
+{
+    private static final Logger log = Logger.getLogger(JdbcStatisticsTest.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.caom2.persistence", Level.INFO);
+    }
+
+    @Test
+    public void testGetKind()
+    {
+        try
+        {
+            Assert.assertEquals("UNKNOWN", JdbcStatistics.getKind(null));
+            Assert.assertEquals("SELECT caom2.Observation", 
+                    JdbcStatistics.getKind("SELECT a, b FROM caom2.Observation WHERE a = 1"));
+            Assert.assertEquals("SELECT caom2.Plane", 
+                    JdbcStatistics.getKind("select a from caom2.Plane, caom2.Artifact"));
+            Assert.assertEquals("INSERT caom2.Plane", 
+                    JdbcStatistics.getKind("INSERT INTO caom2.Plane(a,b) VALUES (?,?)"));
+            Assert.assertEquals("UPDATE caom2.Artifact", 
+                    JdbcStatistics.getKind("UPDATE caom2.Artifact SET a = ? WHERE b = ?"));
+            Assert.assertEquals("DELETE caom2.Chunk", 
+                    JdbcStatistics.getKind("DELETE FROM caom2.Chunk WHERE id = ?"));
+            Assert.assertEquals("COMMIT", JdbcStatistics.getKind("COMMIT"));
+            // cached
+            Assert.assertEquals("SELECT caom2.Plane", 
+                    JdbcStatistics.getKind("select a from caom2.Plane, caom2.Artifact"));
+        }
+        catch(Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+    
+    @Test
+    public void testRecord()
+    {
+        try
+        {
+            JdbcStatistics stats = JdbcStatistics.getInstance();
+            stats.reset();
+            stats.setSlowThreshold(100L);
+            long bytes0 = stats.getThreadBytesRead();
+            
+            List<Object> rows = new ArrayList<Object>();
+            rows.add("a");
+            rows.add("b");
+            
+            stats.startPut();
+            stats.record("SELECT a FROM caom2.Plane", 2L, rows, true, -1L, -1L);
+            stats.startPut(); // nested
+            stats.record("INSERT INTO caom2.Plane (a) VALUES (?)", 200L, new Integer(1), true, -1L, -1L);
+            stats.endPut();
+            stats.record("UPDATE caom2.Plane SET a = ?", 3L, new int[] { 1, 1, 1 }, true, -1L, -1L);
+            // extractor: many rows into one object
+            stats.record("SELECT a FROM caom2.Observation", 4L, new Object(), true, 42L, 1000L);
+            stats.endPut();
+            
+            Assert.assertEquals(4L, stats.getStatementCount());
+            Assert.assertEquals(1000L, stats.getThreadBytesRead() - bytes0);
+            Assert.assertEquals(1L, stats.getSlowStatementCount());
+            Assert.assertEquals(1L, stats.getPutCount());
+            Assert.assertEquals(3L, stats.getMaxStatementsPerPut());
+            Assert.assertEquals(3.0, stats.getStatementsPerPut(), 0.0001);
+            
+            String[] lines = stats.getStatementStats();
+            Assert.assertEquals(4, lines.length);
+            for (String s : lines)
+            {
+                log.info("stats: " + s);
+                if (s.startsWith("SELECT caom2.Plane"))
+                    Assert.assertTrue(s, s.contains("rowsRead=2 "));
+                else if (s.startsWith("SELECT caom2.Observation"))
+                    Assert.assertTrue(s, s.contains("rowsRead=42 ") && s.contains("bytesRead=1000 "));
+                else if (s.startsWith("UPDATE caom2.Plane"))
+                    Assert.assertTrue(s, s.contains("rowsWritten=3 "));
+                else
+                    Assert.assertTrue(s, s.startsWith("INSERT caom2.Plane") && s.contains("rowsWritten=1 "));
+            }
+            
+            stats.reset();
+            Assert.assertEquals(0L, stats.getStatementCount());
+            stats.setSlowThreshold(JdbcStatistics.DEFAULT_SLOW_THRESHOLD);
+        }
+        catch(Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
+    @Test
+    public void testRowCountingExtractor()
+    {
+        try
+        {
+            // ResultSet with 5 rows
+            final int[] cur = new int[1];
+            ResultSet rs = (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), 
+                new Class[] { ResultSet.class }, new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    if ("next".equals(method.getName()))
+                        return (++cur[0] <= 5);
+                    if ("getInt".equals(method.getName()))
+                        return cur[0];
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+            
+            // extract all rows into one object
+            ResultSetExtractor sum = new ResultSetExtractor()
+            {
+                public Object extractData(ResultSet rs) throws SQLException
+                {
+                    int ret = 0;
+                    while (rs.next())
+                        ret += rs.getInt(1);
+                    return ret;
+                }
+            };
+            
+            // default: rows only
+            long[] rows = new long[2];
+            InstrumentedJdbcTemplate.RowCountingExtractor rce = new InstrumentedJdbcTemplate.RowCountingExtractor(sum, rows, false);
+            Object result = rce.extractData(rs);
+            Assert.assertEquals(15, result);
+            Assert.assertEquals(5L, rows[0]);
+            Assert.assertEquals(0L, rows[1]);
+            
+            // with byte estimate
+            cur[0] = 0;
+            rows = new long[2];
+            rce = new InstrumentedJdbcTemplate.RowCountingExtractor(sum, rows, true);
+            result = rce.extractData(rs);
+            Assert.assertEquals(15, result);
+            Assert.assertEquals(5L, rows[0]);
+            Assert.assertEquals(5 * 8L, rows[1]);
+        }
+        catch(Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2017.                            (c) 2017.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+
+package ca.nrc.cadc.caom2.persistence;
+
+import ca.nrc.cadc.util.Log4jInit;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author pdowler
+ */
+public class PlannerSettingsTest 
+{
+    private static final Logger log = Logger.getLogger(PlannerSettingsTest.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.caom2.persistence", Level.INFO);
+    }
+
+    @Test
+    public void testLocalSQL()
+    {
+        try
+        {
+            PlannerSettings ps = new PlannerSettings();
+            Assert.assertNull(ps.getLocalSQL(PlannerSettings.Operation.DEEP_READ));
+            
+            ps.set(PlannerSettings.Operation.DEEP_READ, "enable_hashjoin", "false");
+            ps.set(PlannerSettings.Operation.DEEP_READ, "work_mem", "64MB");
+            Assert.assertEquals("SET LOCAL enable_hashjoin = false; SET LOCAL work_mem = 64MB", 
+                    ps.getLocalSQL(PlannerSettings.Operation.DEEP_READ));
+            // settings of another operation in the same transaction are reset
+            Assert.assertEquals("SET LOCAL enable_hashjoin TO DEFAULT; SET LOCAL work_mem TO DEFAULT", 
+                    ps.getLocalSQL(PlannerSettings.Operation.WRITE));
+            
+            ps.set(PlannerSettings.Operation.DEEP_READ, "work_mem", null);
+            Assert.assertEquals("SET LOCAL enable_hashjoin = false", ps.getLocalSQL(PlannerSettings.Operation.DEEP_READ));
+            
+            ps.set(PlannerSettings.Operation.SKELETON_READ, "enable_seqscan", "false");
+            Assert.assertEquals("SET LOCAL enable_seqscan = false; SET LOCAL enable_hashjoin TO DEFAULT", 
+                    ps.getLocalSQL(PlannerSettings.Operation.SKELETON_READ));
+            Assert.assertEquals("SET LOCAL enable_hashjoin TO DEFAULT; SET LOCAL enable_seqscan TO DEFAULT", 
+                    ps.getLocalSQL(PlannerSettings.Operation.WRITE));
+            
+            try
+            {
+                ps.set(PlannerSettings.Operation.LIST, "work_mem", "1; drop table foo");
+                Assert.fail("expected IllegalArgumentException for invalid value");
+            }
+            catch(IllegalArgumentException expected) { }
+            try
+            {
+                ps.set(PlannerSettings.Operation.LIST, "work mem", "1");
+                Assert.fail("expected IllegalArgumentException for invalid name");
+            }
+            catch(IllegalArgumentException expected) { }
+        }
+        catch(Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+    
+    @Test
+    public void testSessionCache()
+    {
+        try
+        {
+            PlannerSettings ps = new PlannerSettings();
+            ps.set(PlannerSettings.Operation.DEEP_READ, "enable_hashjoin", "false");
+            
+            List<String> executed = new ArrayList<String>();
+            Connection con = getConnection(executed);
+            
+            // fresh connection has default settings
+            ps.apply(con, null);
+            ps.apply(con, PlannerSettings.Operation.LIST);
+            Assert.assertTrue(executed.isEmpty());
+            
+            ps.apply(con, PlannerSettings.Operation.DEEP_READ);
+            Assert.assertEquals(1, executed.size());
+            Assert.assertEquals("SET enable_hashjoin = false", executed.get(0));
+            
+            // cached
+            ps.apply(con, PlannerSettings.Operation.DEEP_READ);
+            Assert.assertEquals(1, executed.size());
+            
+            ps.apply(con, PlannerSettings.Operation.WRITE);
+            Assert.assertEquals(2, executed.size());
+            Assert.assertEquals("SET enable_hashjoin TO DEFAULT", executed.get(1));
+            
+            ps.apply(con, null);
+            Assert.assertEquals(2, executed.size());
+        }
+        catch(Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+    
+    // connection that records the SQL executed by its statements
+    private Connection getConnection(final List<String> executed)
+    {
+        final Statement st = (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(), 
+                new Class[] { Statement.class }, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+                if ("execute".equals(method.getName()))
+                {
+                    executed.add((String) args[0]);
+                    return Boolean.FALSE;
+                }
+                return null;
+            }
+        });
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), 
+                new Class[] { Connection.class }, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+                if ("createStatement".equals(method.getName()))
+                    return st;
+                if ("isWrapperFor".equals(method.getName()))
+                    return Boolean.FALSE;
+                if ("hashCode".equals(method.getName()))
+                    return System.identityHashCode(proxy);
+                if ("equals".equals(method.getName()))
+                    return proxy == args[0];
+                return null;
+            }
+        });
+    }
+}
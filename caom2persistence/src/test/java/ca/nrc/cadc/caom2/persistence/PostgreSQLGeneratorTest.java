@@ -70,6 +70,7 @@
 package ca.nrc.cadc.caom2.persistence;
 
 import ca.nrc.cadc.caom2.Observation;
+import ca.nrc.cadc.caom2.ObservationURI;
 import ca.nrc.cadc.caom2.access.ObservationMetaReadAccess;
 import ca.nrc.cadc.caom2.types.Interval;
 import ca.nrc.cadc.caom2.types.SubInterval;
@@ -168,6 +169,24 @@ public class PostgreSQLGeneratorTest
     
     
     
+    @Test
+    public void testStreamSelectSQL()
+    {
+        try
+        {
+            String sql = gen.getStreamSelectSQL(new ObservationURI("FOO", "bar"));
+            log.debug("SQL: " + sql);
+            sql = sql.toLowerCase();
+            // planes must come back in String.compareTo order
+            Assert.assertTrue(sql, sql.contains(" order by observation.obsid,plane.productid collate \"c\","));
+        }
+        catch(Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+    
     @Test
     public void testGetPolygonFromInterval()
     {
@@ -0,0 +1,285 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2017.                            (c) 2017.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+*  $Revision: 5 $
+*
+************************************************************************
+*/
+
+
+package ca.nrc.cadc.caom2.persistence;
+
+import ca.nrc.cadc.caom2.Artifact;
+import ca.nrc.cadc.caom2.Chunk;
+import ca.nrc.cadc.caom2.Observation;
+import ca.nrc.cadc.caom2.Part;
+import ca.nrc.cadc.caom2.Plane;
+import ca.nrc.cadc.caom2.ProductType;
+import ca.nrc.cadc.caom2.ReleaseType;
+import ca.nrc.cadc.caom2.SimpleObservation;
+import ca.nrc.cadc.caom2.version.InitDatabase;
+import ca.nrc.cadc.db.ConnectionConfig;
+import ca.nrc.cadc.db.DBConfig;
+import ca.nrc.cadc.util.Log4jInit;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import javax.sql.DataSource;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.tomcat.jdbc.pool.PoolProperties;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compare put throughput with the default single connection DataSource and with a 
+ * pooled DataSource that caches prepared statements and uses server-side prepared
+ * statements (prepareThreshold=1). Each run inserts and then updates every entity 
+ * of NUM_OBS observations. Not part of the default test run: use 
+ * <code>gradle test -Pbenchmark</code>.
+ * 
+ * @author pdowler
+ */
+public class PostgresqlPutBenchmark 
+{
+    private static final Logger log = Logger.getLogger(PostgresqlPutBenchmark.class);
+
+    static
+    {
+        Log4jInit.setLevel("ca.nrc.cadc.caom2.persistence", Level.INFO);
+    }
+    
+    private static final String SERVER = "CAOM2_PG_TEST";
+    private static final String DATABASE = "cadctest";
+    private static final String SCHEMA = "caom2";
+    
+    static final int NUM_OBS = 200;
+    
+    // statements/put of the last run
+    private double statementsPerPut;
+
+    public PostgresqlPutBenchmark() 
+        throws Exception
+    {
+        DatabaseObservationDAO dao = getDAO(null);
+        InitDatabase init = new InitDatabase(dao.getDataSource(), DATABASE, SCHEMA);
+        init.doInit();
+    }
+    
+    private DatabaseObservationDAO getDAO(DataSource ds)
+    {
+        Map<String,Object> config = new TreeMap<String,Object>();
+        config.put("server", SERVER);
+        config.put("database", DATABASE);
+        config.put("schema", SCHEMA);
+        config.put(SQLGenerator.class.getName(), PostgreSQLGenerator.class);
+        if (ds != null)
+            config.put("dataSource", ds);
+        DatabaseObservationDAO dao = new DatabaseObservationDAO();
+        dao.setConfig(config);
+        return dao;
+    }
+    
+    private org.apache.tomcat.jdbc.pool.DataSource getPool(int statementCache, int prepareThreshold)
+        throws Exception
+    {
+        DBConfig dbrc = new DBConfig();
+        ConnectionConfig cc = dbrc.getConnectionConfig(SERVER, DATABASE);
+        PoolProperties pp = new PoolProperties();
+        pp.setDriverClassName(cc.getDriver());
+        pp.setUrl(cc.getURL());
+        pp.setUsername(cc.getUsername());
+        pp.setPassword(cc.getPassword());
+        pp.setMaxActive(1);
+        pp.setMaxIdle(1);
+        pp.setInitialSize(1);
+        if (statementCache > 0)
+            pp.setJdbcInterceptors("StatementCache(prepared=true,callable=false,max=" + statementCache + ")");
+        pp.setConnectionProperties("prepareThreshold=" + prepareThreshold);
+        return new org.apache.tomcat.jdbc.pool.DataSource(pp);
+    }
+
+    @Test
+    public void testPutBenchmark()
+    {
+        try
+        {
+            long plain = run("default", getDAO(null));
+            double plainStatements = statementsPerPut;
+            
+            org.apache.tomcat.jdbc.pool.DataSource pool = getPool(0, 0);
+            long pooled;
+            try
+            {
+                pooled = run("pool", getDAO(pool));
+            }
+            finally
+            {
+                pool.close();
+            }
+            
+            pool = getPool(64, 1);
+            long cached;
+            try
+            {
+                cached = run("pool+statementCache+prepareThreshold=1", getDAO(pool));
+            }
+            finally
+            {
+                pool.close();
+            }
+            
+            // caching must not change what is executed
+            Assert.assertEquals(plainStatements, statementsPerPut, 0.01);
+            
+            log.info("put benchmark: default " + plain + "ms pool " + pooled + "ms pool+cache " + cached + "ms"
+                    + " speedup: " + String.format("%.2f", ((double) plain) / cached));
+        }
+        catch(Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+    
+    // insert and update NUM_OBS observations, return elapsed time
+    private long run(String name, DatabaseObservationDAO dao)
+    {
+        List<Observation> obs = new ArrayList<Observation>(NUM_OBS);
+        for (int i = 0; i < NUM_OBS; i++)
+            obs.add(getObservation(name.hashCode() + "-" + i));
+        
+        JdbcStatistics stats = JdbcStatistics.getInstance();
+        stats.reset();
+        long t = System.currentTimeMillis();
+        for (Observation o : obs)
+            dao.put(o);
+        long dtInsert = System.currentTimeMillis() - t;
+        
+        // change every chunk so all entities are updated
+        long t2 = System.currentTimeMillis();
+        for (Observation o : obs)
+        {
+            o.sequenceNumber = 2;
+            for (Plane p : o.getPlanes())
+                for (Artifact a : p.getArtifacts())
+                    for (Part pa : a.getParts())
+                        for (Chunk c : pa.getChunks())
+                            c.naxis = 2;
+            dao.put(o);
+        }
+        long dtUpdate = System.currentTimeMillis() - t2;
+        long dt = System.currentTimeMillis() - t;
+        
+        this.statementsPerPut = stats.getStatementsPerPut();
+        log.info(name + ": " + NUM_OBS + " observations insert: " + dtInsert + "ms update: " + dtUpdate + "ms"
+                + " statements/put: " + String.format("%.1f", statementsPerPut));
+        Assert.assertTrue("statements/put: " + statementsPerPut, statementsPerPut > 0.0);
+        
+        for (Observation o : obs)
+        {
+            Observation actual = dao.get(o.getURI());
+            Assert.assertNotNull(name + ": " + o.getURI(), actual);
+            Assert.assertEquals(o.getMaxLastModified(), actual.getMaxLastModified());
+            Assert.assertEquals(o.getAccMetaChecksum(), actual.getAccMetaChecksum());
+        }
+        
+        List<UUID> ids = new ArrayList<UUID>(obs.size());
+        for (Observation o : obs)
+            ids.add(o.getID());
+        dao.delete(ids);
+        
+        return dt;
+    }
+    
+    // observation with 2 planes, 2 artifacts per plane, 2 parts per artifact, 1 chunk per part
+    private Observation getObservation(String id)
+    {
+        Observation o = new SimpleObservation("TEST", "bench-" + id);
+        o.sequenceNumber = 1;
+        for (int i = 0; i < 2; i++)
+        {
+            Plane p = new Plane("plane" + i);
+            o.getPlanes().add(p);
+            for (int j = 0; j < 2; j++)
+            {
+                Artifact a = new Artifact(URI.create("ad:TEST/" + id + "-" + i + "-" + j), 
+                        ProductType.SCIENCE, ReleaseType.DATA);
+                p.getArtifacts().add(a);
+                for (int k = 0; k < 2; k++)
+                {
+                    Part pa = new Part(k);
+                    a.getParts().add(pa);
+                    Chunk c = new Chunk();
+                    c.naxis = 1;
+                    pa.getChunks().add(c);
+                }
+            }
+        }
+        return o;
+    }
+}
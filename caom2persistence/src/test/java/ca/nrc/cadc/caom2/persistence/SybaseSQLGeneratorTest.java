@@ -70,6 +70,7 @@
 package ca.nrc.cadc.caom2.persistence;
 
 import ca.nrc.cadc.caom2.Observation;
+import ca.nrc.cadc.caom2.ObservationURI;
 import ca.nrc.cadc.caom2.access.ObservationMetaReadAccess;
 import ca.nrc.cadc.date.DateUtil;
 import ca.nrc.cadc.util.Log4jInit;
@@ -109,6 +110,24 @@ public class SybaseSQLGeneratorTest
         }
     }
 
+    @Test
+    public void testStreamSelectSQL()
+    {
+        try
+        {
+            String sql = gen.getStreamSelectSQL(new ObservationURI("FOO", "bar"));
+            log.debug("SQL: " + sql);
+            sql = sql.toLowerCase();
+            // server sort order: rows grouped by plane and the extractor sorts the planes
+            Assert.assertTrue(sql, sql.contains(" order by observation.obsid,plane.productid,plane.planeid,"));
+        }
+        catch(Exception unexpected)
+        {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+
     @Test
     public void testSelectLastModifiedBatchSizeSQL()
     {